@@ -0,0 +1,105 @@
+package nl.runnable.spring.fileupload.benchmarks;
+
+import nl.runnable.spring.fileupload.impl.JdbcMultipartFileStorage;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares saving and deleting files in a batch with saving and deleting them one by one.
+ * <p>
+ * Each iteration prepares new files to save and saves another set of files to delete, then measures one batch or loop
+ * of them. All files are deleted after the iteration.
+ * </p>
+ *
+ * @author Laurens Fridael
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 20)
+@Fork(1)
+public class BatchBenchmark {
+
+  private static final int TIME_TO_LIVE = 3600;
+
+  private static final int FILE_SIZE = 256;
+
+  @Param({"10", "100", "1000"})
+  public int count;
+
+  @Param({EmbeddedStorage.PLAIN, EmbeddedStorage.DEDUPLICATED})
+  public String layout;
+
+  private EmbeddedStorage embeddedStorage;
+
+  private JdbcMultipartFileStorage storage;
+
+  private List<MultipartFile> files;
+
+  private List<String> savedIds;
+
+  private long seed = 0;
+
+  @Setup(Level.Trial)
+  public void setup() throws Exception {
+    embeddedStorage = new EmbeddedStorage(layout);
+    storage = embeddedStorage.getStorage();
+  }
+
+  @Setup(Level.Iteration)
+  public void prepareFiles() {
+    files = createFiles();
+    savedIds = storage.saveAll(createFiles(), TIME_TO_LIVE, null, null);
+  }
+
+  @TearDown(Level.Iteration)
+  public void deleteFiles() {
+    storage.deleteAll();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    embeddedStorage.destroy();
+  }
+
+  @Benchmark
+  public List<String> saveOneByOne() {
+    List<String> ids = new ArrayList<String>(files.size());
+    for (MultipartFile file : files) {
+      ids.add(storage.save(file, TIME_TO_LIVE, null, null));
+    }
+    return ids;
+  }
+
+  @Benchmark
+  public List<String> saveBatch() {
+    return storage.saveAll(files, TIME_TO_LIVE, null, null);
+  }
+
+  @Benchmark
+  public int deleteOneByOne() {
+    int deleted = 0;
+    for (String id : savedIds) {
+      deleted += storage.delete(id);
+    }
+    return deleted;
+  }
+
+  @Benchmark
+  public int deleteBatch() {
+    return storage.delete(savedIds);
+  }
+
+  private List<MultipartFile> createFiles() {
+    List<MultipartFile> files = new ArrayList<MultipartFile>(count);
+    for (int i = 0; i < count; i++) {
+      files.add(new GeneratedMultipartFile(FILE_SIZE, seed++));
+    }
+    return files;
+  }
+}
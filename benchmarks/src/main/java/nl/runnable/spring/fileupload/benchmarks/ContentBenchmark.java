@@ -0,0 +1,98 @@
+package nl.runnable.spring.fileupload.benchmarks;
+
+import nl.runnable.spring.fileupload.StoredMultipartFile;
+import nl.runnable.spring.fileupload.impl.JdbcMultipartFileStorage;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.util.Assert;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures saving files and reading them back as a stream, for sizes from 1 KB to 256 MB.
+ * <p>
+ * Files saved during an iteration are deleted after it, so the size of the database does not grow with the number of
+ * iterations.
+ * </p>
+ *
+ * @author Laurens Fridael
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(value = 1, jvmArgsAppend = "-Xmx1g")
+public class ContentBenchmark {
+
+  private static final int TIME_TO_LIVE = 3600;
+
+  @Param({"1024", "65536", "1048576", "16777216", "268435456"})
+  public long size;
+
+  @Param({EmbeddedStorage.PLAIN, EmbeddedStorage.CHUNKED})
+  public String layout;
+
+  private EmbeddedStorage embeddedStorage;
+
+  private JdbcMultipartFileStorage storage;
+
+  private String storedId;
+
+  private final List<String> savedIds = new ArrayList<String>();
+
+  private final byte[] buffer = new byte[8192];
+
+  private long seed = 0;
+
+  @Setup(Level.Trial)
+  public void setup() throws Exception {
+    embeddedStorage = new EmbeddedStorage(layout);
+    storage = embeddedStorage.getStorage();
+    storedId = storage.save(new GeneratedMultipartFile(size, seed++), TIME_TO_LIVE, null, null);
+  }
+
+  @TearDown(Level.Iteration)
+  public void deleteSavedFiles() {
+    if (!savedIds.isEmpty()) {
+      storage.delete(savedIds);
+      savedIds.clear();
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    embeddedStorage.destroy();
+  }
+
+  @Benchmark
+  public String save() {
+    String id = storage.save(new GeneratedMultipartFile(size, seed++), TIME_TO_LIVE, null, null);
+    savedIds.add(id);
+    return id;
+  }
+
+  /**
+   * Reads the content of a stored file to the end, returning the number of bytes read so the reads cannot be
+   * eliminated.
+   */
+  @Benchmark
+  public long read() throws IOException {
+    StoredMultipartFile file = storage.find(storedId);
+    Assert.state(file != null, "File not found.");
+    long count = 0;
+    InputStream in = file.getInputStream();
+    try {
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        count += read;
+      }
+    } finally {
+      in.close();
+    }
+    return count;
+  }
+}
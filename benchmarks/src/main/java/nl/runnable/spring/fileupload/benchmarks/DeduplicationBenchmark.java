@@ -0,0 +1,83 @@
+package nl.runnable.spring.fileupload.benchmarks;
+
+import nl.runnable.spring.fileupload.impl.JdbcMultipartFileStorage;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures saving a corpus of uploads that repeat a number of distinct files, with and without deduplication.
+ * <p>
+ * Each iteration saves the corpus one upload at a time into an empty storage and deletes it afterwards. The number of
+ * content bytes stored is printed after each iteration, so that the space saved can be compared with the time taken.
+ * </p>
+ *
+ * @author Laurens Fridael
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class DeduplicationBenchmark {
+
+  private static final int TIME_TO_LIVE = 3600;
+
+  private static final int CORPUS_SIZE = 1000;
+
+  private static final int FILE_SIZE = 64 * 1024;
+
+  private static final String STORED_BYTES = "SELECT (SELECT COALESCE(SUM(LENGTH(data)), 0) FROM sfus_file) + " +
+      "(SELECT COALESCE(SUM(LENGTH(data)), 0) FROM sfus_content)";
+
+  /**
+   * The number of distinct files in the corpus. A corpus of {@value #CORPUS_SIZE} distinct files has nothing to
+   * deduplicate and shows the cost of hashing and looking up content.
+   */
+  @Param({"1", "10", "100", "1000"})
+  public int distinct;
+
+  @Param({EmbeddedStorage.PLAIN, EmbeddedStorage.DEDUPLICATED})
+  public String layout;
+
+  private EmbeddedStorage embeddedStorage;
+
+  private JdbcMultipartFileStorage storage;
+
+  private final List<MultipartFile> corpus = new ArrayList<MultipartFile>(CORPUS_SIZE);
+
+  @Setup(Level.Trial)
+  public void setup() throws Exception {
+    embeddedStorage = new EmbeddedStorage(layout);
+    storage = embeddedStorage.getStorage();
+    for (int i = 0; i < CORPUS_SIZE; i++) {
+      corpus.add(new GeneratedMultipartFile(FILE_SIZE, i % distinct));
+    }
+  }
+
+  @TearDown(Level.Iteration)
+  public void deleteCorpus() {
+    long storedBytes = new JdbcTemplate(embeddedStorage.getDataSource()).queryForObject(STORED_BYTES, Long.class);
+    System.out.printf("Stored %d bytes of content for %d uploads of %d distinct files.%n", storedBytes,
+        CORPUS_SIZE, distinct);
+    storage.deleteAll();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    embeddedStorage.destroy();
+  }
+
+  @Benchmark
+  public int saveCorpus() {
+    for (MultipartFile file : corpus) {
+      storage.save(file, TIME_TO_LIVE, null, null);
+    }
+    return corpus.size();
+  }
+}
@@ -0,0 +1,91 @@
+package nl.runnable.spring.fileupload.benchmarks;
+
+import nl.runnable.spring.fileupload.DeletionResult;
+import nl.runnable.spring.fileupload.impl.JdbcMultipartFileStorage;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures clearing a backlog of expired files in batches, as {@link nl.runnable.spring.fileupload.CleanupExpiredFilesJob}
+ * does, among a fixed number of files that have not expired.
+ * <p>
+ * Each iteration saves a new backlog and then measures deleting all of it once.
+ * </p>
+ *
+ * @author Laurens Fridael
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DeleteExpiredBenchmark {
+
+  private static final int TIME_TO_LIVE = 3600;
+
+  private static final int LIVE_FILE_COUNT = 10000;
+
+  private static final int SAVE_BATCH_SIZE = 1000;
+
+  private static final int FILE_SIZE = 256;
+
+  @Param({"1000", "10000", "100000"})
+  public int backlog;
+
+  @Param({"100", "1000"})
+  public int batchSize;
+
+  @Param({EmbeddedStorage.PLAIN, EmbeddedStorage.DEDUPLICATED})
+  public String layout;
+
+  private EmbeddedStorage embeddedStorage;
+
+  private JdbcMultipartFileStorage storage;
+
+  private long seed = 0;
+
+  @Setup(Level.Trial)
+  public void setup() throws Exception {
+    embeddedStorage = new EmbeddedStorage(layout);
+    storage = embeddedStorage.getStorage();
+    saveFiles(LIVE_FILE_COUNT, TIME_TO_LIVE);
+  }
+
+  @Setup(Level.Iteration)
+  public void createBacklog() throws InterruptedException {
+    saveFiles(backlog, 0);
+    // Files with a time-to-live of 0 expire once the clock has moved on.
+    Thread.sleep(10);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    embeddedStorage.destroy();
+  }
+
+  @Benchmark
+  public int deleteExpired() {
+    int count = 0;
+    DeletionResult result;
+    do {
+      result = storage.deleteExpired(batchSize);
+      count += result.getCount();
+    } while (result.getCount() > 0);
+    return count;
+  }
+
+  private void saveFiles(int count, int timeToLiveInSeconds) {
+    for (int i = 0; i < count; i += SAVE_BATCH_SIZE) {
+      List<MultipartFile> files = new ArrayList<MultipartFile>(SAVE_BATCH_SIZE);
+      for (int j = i; j < Math.min(i + SAVE_BATCH_SIZE, count); j++) {
+        files.add(new GeneratedMultipartFile(FILE_SIZE, seed++));
+      }
+      storage.saveAll(files, timeToLiveInSeconds, "context-" + i / SAVE_BATCH_SIZE, null);
+    }
+  }
+}
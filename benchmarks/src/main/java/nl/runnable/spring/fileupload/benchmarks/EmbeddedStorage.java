@@ -0,0 +1,95 @@
+package nl.runnable.spring.fileupload.benchmarks;
+
+import nl.runnable.spring.fileupload.impl.JdbcMultipartFileStorage;
+import org.apache.tomcat.jdbc.pool.DataSource;
+import org.apache.tomcat.jdbc.pool.PoolProperties;
+import org.jetbrains.annotations.NotNull;
+import org.springframework.util.Assert;
+import org.springframework.util.FileSystemUtils;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * {@link JdbcMultipartFileStorage} backed by an embedded H2 database in a temporary directory, for the duration of a
+ * benchmark trial.
+ * <p>
+ * The database is kept on disk rather than in memory, so that the benchmarks include the cost of writing pages and
+ * large objects, and so that files of hundreds of megabytes do not have to fit in the heap.
+ * </p>
+ *
+ * @author Laurens Fridael
+ */
+class EmbeddedStorage {
+
+  /**
+   * Storage layouts that benchmarks can select by name.
+   */
+  static final String PLAIN = "plain";
+
+  static final String DEDUPLICATED = "deduplicated";
+
+  static final String CHUNKED = "chunked";
+
+  static final String COMPRESSED = "compressed";
+
+  private static final int CHUNK_SIZE = 1024 * 1024;
+
+  private final File directory;
+
+  private final DataSource dataSource;
+
+  private final JdbcMultipartFileStorage storage;
+
+  EmbeddedStorage(@NotNull String layout) throws Exception {
+    Assert.hasText(layout, "Layout cannot be empty.");
+
+    directory = createDirectory();
+    PoolProperties properties = new PoolProperties();
+    properties.setDriverClassName("org.h2.Driver");
+    properties.setUrl(String.format("jdbc:h2:file:%s;LOCK_TIMEOUT=10000", new File(directory, "storage").getPath()));
+    properties.setUsername("sa");
+    properties.setPassword("");
+    properties.setMaxActive(16);
+    dataSource = new DataSource(properties);
+
+    storage = new JdbcMultipartFileStorage();
+    storage.setDataSource(dataSource);
+    if (DEDUPLICATED.equals(layout)) {
+      storage.setDeduplicate(true);
+    } else if (CHUNKED.equals(layout)) {
+      storage.setChunkSize(CHUNK_SIZE);
+    } else if (COMPRESSED.equals(layout)) {
+      storage.setCompress(true);
+    } else {
+      Assert.isTrue(PLAIN.equals(layout), String.format("Unknown layout '%s'.", layout));
+    }
+    storage.afterPropertiesSet();
+  }
+
+  @NotNull
+  JdbcMultipartFileStorage getStorage() {
+    return storage;
+  }
+
+  @NotNull
+  javax.sql.DataSource getDataSource() {
+    return dataSource;
+  }
+
+  /**
+   * Closes the database and deletes its directory.
+   */
+  void destroy() {
+    dataSource.close(true);
+    FileSystemUtils.deleteRecursively(directory);
+  }
+
+  @NotNull
+  private static File createDirectory() throws IOException {
+    File directory = File.createTempFile("spring-file-upload-storage-benchmark", "");
+    Assert.state(directory.delete() && directory.mkdir(),
+        String.format("Could not create directory '%s'.", directory));
+    return directory;
+  }
+}
@@ -0,0 +1,80 @@
+package nl.runnable.spring.fileupload.benchmarks;
+
+import nl.runnable.spring.fileupload.StoredMultipartFile;
+import nl.runnable.spring.fileupload.impl.JdbcMultipartFileStorage;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures looking up files by ID and by context as the number of stored files grows. Each lookup selects a random
+ * file or context, so that it does not repeatedly hit the same rows.
+ *
+ * @author Laurens Fridael
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class FindBenchmark {
+
+  private static final int TIME_TO_LIVE = 3600;
+
+  private static final int FILES_PER_CONTEXT = 10;
+
+  private static final int FILE_SIZE = 256;
+
+  @Param({"1000", "10000", "100000"})
+  public int fileCount;
+
+  @Param({EmbeddedStorage.PLAIN, EmbeddedStorage.DEDUPLICATED})
+  public String layout;
+
+  private EmbeddedStorage embeddedStorage;
+
+  private JdbcMultipartFileStorage storage;
+
+  private final List<String> ids = new ArrayList<String>();
+
+  private int contextCount;
+
+  @Setup(Level.Trial)
+  public void setup() throws Exception {
+    embeddedStorage = new EmbeddedStorage(layout);
+    storage = embeddedStorage.getStorage();
+    contextCount = fileCount / FILES_PER_CONTEXT;
+    long seed = 0;
+    for (int i = 0; i < contextCount; i++) {
+      List<MultipartFile> files = new ArrayList<MultipartFile>(FILES_PER_CONTEXT);
+      for (int j = 0; j < FILES_PER_CONTEXT; j++) {
+        files.add(new GeneratedMultipartFile(FILE_SIZE, seed++));
+      }
+      ids.addAll(storage.saveAll(files, TIME_TO_LIVE, getContext(i), null));
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    embeddedStorage.destroy();
+  }
+
+  @Benchmark
+  public StoredMultipartFile find() {
+    return storage.find(ids.get(ThreadLocalRandom.current().nextInt(ids.size())));
+  }
+
+  @Benchmark
+  public List<StoredMultipartFile> findByContext() {
+    return storage.findByContext(getContext(ThreadLocalRandom.current().nextInt(contextCount)));
+  }
+
+  private static String getContext(int index) {
+    return "context-" + index;
+  }
+}
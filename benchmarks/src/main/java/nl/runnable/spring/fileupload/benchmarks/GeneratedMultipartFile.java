@@ -0,0 +1,112 @@
+package nl.runnable.spring.fileupload.benchmarks;
+
+import org.jetbrains.annotations.NotNull;
+import org.springframework.util.Assert;
+import org.springframework.util.FileCopyUtils;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+/**
+ * {@link MultipartFile} whose content is generated while it is read, so that files of hundreds of megabytes can be
+ * saved without holding them in memory.
+ * <p>
+ * The content repeats a block of random bytes derived from a seed. The block is larger than the window of the deflate
+ * algorithm, so the content does not compress, and files with different seeds have different content hashes, so they
+ * are not deduplicated.
+ * </p>
+ *
+ * @author Laurens Fridael
+ */
+class GeneratedMultipartFile implements MultipartFile {
+
+  private static final int BLOCK_SIZE = 64 * 1024;
+
+  private final long size;
+
+  private final byte[] block;
+
+  GeneratedMultipartFile(long size, long seed) {
+    Assert.isTrue(size >= 0, "Size cannot be less than 0.");
+
+    this.size = size;
+    this.block = new byte[(int) Math.max(Math.min(size, BLOCK_SIZE), 1)];
+    new Random(seed).nextBytes(block);
+  }
+
+  @Override
+  public String getName() {
+    return "file";
+  }
+
+  @Override
+  public String getOriginalFilename() {
+    return "file.bin";
+  }
+
+  @Override
+  public String getContentType() {
+    return "application/octet-stream";
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  @Override
+  public long getSize() {
+    return size;
+  }
+
+  @Override
+  public byte[] getBytes() throws IOException {
+    Assert.isTrue(size <= Integer.MAX_VALUE, "File is too large to be held in an array.");
+
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream((int) size);
+    FileCopyUtils.copy(getInputStream(), buffer);
+    return buffer.toByteArray();
+  }
+
+  @NotNull
+  @Override
+  public InputStream getInputStream() throws IOException {
+    return new InputStream() {
+
+      private long position = 0;
+
+      @Override
+      public int read() throws IOException {
+        if (position >= size) {
+          return -1;
+        }
+        return block[(int) (position++ % block.length)] & 0xFF;
+      }
+
+      @Override
+      public int read(@NotNull byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+          return 0;
+        }
+        if (position >= size) {
+          return -1;
+        }
+        int offset = (int) (position % block.length);
+        int count = (int) Math.min(Math.min(len, block.length - offset), size - position);
+        System.arraycopy(block, offset, b, off, count);
+        position += count;
+        return count;
+      }
+    };
+  }
+
+  @Override
+  public void transferTo(File dest) throws IOException, IllegalStateException {
+    FileCopyUtils.copy(getInputStream(), new FileOutputStream(dest));
+  }
+}
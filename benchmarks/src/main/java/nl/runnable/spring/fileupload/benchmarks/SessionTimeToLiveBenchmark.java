@@ -0,0 +1,68 @@
+package nl.runnable.spring.fileupload.benchmarks;
+
+import nl.runnable.spring.fileupload.SessionMultipartFileStorage;
+import nl.runnable.spring.fileupload.impl.AbstractSessionMultipartFileStorage;
+import nl.runnable.spring.fileupload.impl.JdbcMultipartFileStorage;
+import nl.runnable.spring.fileupload.impl.PredefinedSessionMultipartFileStorage;
+import org.openjdk.jmh.annotations.*;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures extending the time-to-live of the files of a session, as done after each request by
+ * {@link AbstractSessionMultipartFileStorage#setTimeToLive}, as the number of files per session grows. Each extension
+ * selects a random session among a fixed number of sessions.
+ *
+ * @author Laurens Fridael
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class SessionTimeToLiveBenchmark {
+
+  private static final int TIME_TO_LIVE = 3600;
+
+  private static final int SESSION_COUNT = 100;
+
+  private static final int FILE_SIZE = 256;
+
+  @Param({"1", "10", "100", "1000"})
+  public int filesPerSession;
+
+  private EmbeddedStorage embeddedStorage;
+
+  private final List<SessionMultipartFileStorage> sessions = new ArrayList<SessionMultipartFileStorage>();
+
+  @Setup(Level.Trial)
+  public void setup() throws Exception {
+    embeddedStorage = new EmbeddedStorage(EmbeddedStorage.PLAIN);
+    JdbcMultipartFileStorage storage = embeddedStorage.getStorage();
+    long seed = 0;
+    for (int i = 0; i < SESSION_COUNT; i++) {
+      String sessionId = "session-" + i;
+      List<MultipartFile> files = new ArrayList<MultipartFile>(filesPerSession);
+      for (int j = 0; j < filesPerSession; j++) {
+        files.add(new GeneratedMultipartFile(FILE_SIZE, seed++));
+      }
+      storage.saveAll(files, TIME_TO_LIVE, sessionId, null);
+      sessions.add(new PredefinedSessionMultipartFileStorage(storage, sessionId));
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    embeddedStorage.destroy();
+  }
+
+  @Benchmark
+  public void setTimeToLive() {
+    sessions.get(ThreadLocalRandom.current().nextInt(SESSION_COUNT)).setTimeToLive(TIME_TO_LIVE);
+  }
+}
@@ -0,0 +1,81 @@
+package nl.runnable.spring.fileupload;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.InputStream;
+import java.util.List;
+
+/**
+ * Asynchronous counterpart of {@link MultipartFileStorage}. Operations run in the background and their results are
+ * obtained through {@link ListenableFuture}s, so that independent operations can run in parallel and callers are not
+ * blocked while they run.
+ * <p>
+ * Failures of the underlying operations are reported through the futures. Files saved asynchronously must remain
+ * readable until the save completes, so callers saving uploads should wait for the save before the request ends and
+ * the container deletes the uploaded files.
+ * </p>
+ *
+ * @author Laurens Fridael
+ * @see MultipartFileStorage
+ */
+public interface AsyncMultipartFileStorage {
+
+  /**
+   * Saves a multipart file.
+   *
+   * @return The ID of the stored file.
+   * @see MultipartFileStorage#save(MultipartFile, int, String, String)
+   */
+  @NotNull
+  ListenableFuture<String> save(@NotNull MultipartFile file, int timeToLiveInSeconds, @Nullable String context,
+                                @Nullable String metadata);
+
+  /**
+   * Obtains a file.
+   *
+   * @return The matching file or {@code null} if no match was found.
+   * @see MultipartFileStorage#find(String)
+   */
+  @NotNull
+  ListenableFuture<StoredMultipartFile> find(@NotNull String id);
+
+  /**
+   * Obtains the files with the given context.
+   *
+   * @see MultipartFileStorage#findByContext(String)
+   */
+  @NotNull
+  ListenableFuture<List<StoredMultipartFile>> findByContext(@NotNull String context);
+
+  /**
+   * Opens a stream for reading a file's content. Opening the stream, which typically involves a query, happens in the
+   * background; the stream itself is read by the caller.
+   *
+   * @return The stream, which must be closed by the caller. Fails with {@link java.io.FileNotFoundException} if the
+   * file does not exist.
+   */
+  @NotNull
+  ListenableFuture<InputStream> openInputStream(@NotNull String id);
+
+  /**
+   * Deletes a file.
+   *
+   * @return The number of files deleted.
+   * @see MultipartFileStorage#delete(String)
+   */
+  @NotNull
+  ListenableFuture<Integer> delete(@NotNull String id);
+
+  /**
+   * Deletes the files with the given context.
+   *
+   * @return The number of files deleted.
+   * @see MultipartFileStorage#deleteByContext(String)
+   */
+  @NotNull
+  ListenableFuture<Integer> deleteByContext(@NotNull String context);
+
+}
@@ -1,5 +1,6 @@
 package nl.runnable.spring.fileupload;
 
+import org.jetbrains.annotations.NotNull;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.DisposableBean;
@@ -15,11 +16,28 @@ import java.util.Date;
 
 /**
  * Background job for cleaning up expired files from {@link nl.runnable.spring.fileupload.MultipartFileStorage}.
+ * <p>
+ * Each run deletes expired files in batches of at most {@link #setBatchSize(int) the batch size}, pausing
+ * {@link #setBatchPause(int) between batches} so that concurrent uploads are not locked out. A run ends when no
+ * expired files remain or when {@link #setTimeBudget(int) its time budget} is spent, in which case the remaining files
+ * are deleted by the next run.
+ * </p>
+ * <p>
+ * If a {@link ClusterLock} is available, only the application instance holding the cleanup lease runs the job. The
+ * lease is renewed on every run, so it stays with the same instance for as long as that instance is running. If the
+ * instance dies, another instance takes over once the lease has expired.
+ * </p>
+ * <p>
+ * If {@link StorageMetrics} are available, the duration of each run and the number of files and bytes it deleted are
+ * recorded. Runs skipped because another instance holds the lease are not recorded.
+ * </p>
  *
  * @author Laurens Fridael
  */
 public class CleanupExpiredFilesJob implements Runnable, InitializingBean, DisposableBean {
 
+  static final String LEASE_NAME = "cleanup-expired-files";
+
   private final Logger logger = LoggerFactory.getLogger(getClass());
 
   /* Dependencies */
@@ -31,23 +49,142 @@ public class CleanupExpiredFilesJob implements Runnable, InitializingBean, Dispo
   @Autowired
   private MultipartFileStorage multipartFileStorage;
 
+  @Autowired(required = false)
+  private ClusterLock clusterLock;
+
+  @Autowired(required = false)
+  private StorageMetrics storageMetrics;
+
   /* Configuration */
 
   @Value("${spring-file-upload-storage.database.cleanupInterval:60}")
   private int intervalInSeconds = 60;
 
+  @Value("${spring-file-upload-storage.database.cleanupBatchSize:500}")
+  private int batchSize = 500;
+
+  @Value("${spring-file-upload-storage.database.cleanupBatchPause:100}")
+  private int batchPause = 100;
+
+  @Value("${spring-file-upload-storage.database.cleanupTimeBudget:30}")
+  private int timeBudget = 30;
+
+  @Value("${spring-file-upload-storage.database.cleanupLeaseDuration:0}")
+  private int leaseDuration = 0;
+
   /* State*/
 
   private boolean destroyScheduler = false;
 
+  private volatile DeletionResult lastResult = DeletionResult.NONE;
+
+  private volatile DeletionResult totalResult = DeletionResult.NONE;
+
   /* Main operations */
 
   public void run() {
-    multipartFileStorage.deleteExpired();
+    cleanup();
+  }
+
+  /**
+   * Deletes expired files in batches, until none remain or the time budget is spent.
+   *
+   * @return The files deleted in this run.
+   */
+  @NotNull
+  public DeletionResult cleanup() {
+    if (!acquireLease()) {
+      logger.debug("Skipping expired files clean-up, as another instance holds the lease.");
+      return DeletionResult.NONE;
+    }
+    long startedAt = System.currentTimeMillis();
+    long startedAtNanos = System.nanoTime();
+    long deadline = startedAt + timeBudget * 1000L;
+    DeletionResult result = DeletionResult.NONE;
+    int batches = 0;
+    while (true) {
+      DeletionResult batch = multipartFileStorage.deleteExpired(batchSize);
+      result = result.plus(batch);
+      batches++;
+      if (batch.getCount() < batchSize) {
+        break;
+      }
+      if (System.currentTimeMillis() + batchPause >= deadline) {
+        logger.info("Time budget of {} seconds spent, deferring remaining expired files to the next run.", timeBudget);
+        break;
+      }
+      if (!pause()) {
+        break;
+      }
+    }
+    lastResult = result;
+    synchronized (this) {
+      totalResult = totalResult.plus(result);
+    }
+    if (storageMetrics != null) {
+      storageMetrics.record(StorageMetrics.CLEANUP, System.nanoTime() - startedAtNanos);
+      storageMetrics.record(StorageMetrics.CLEANUP_FILES, result.getCount());
+      storageMetrics.record(StorageMetrics.CLEANUP_BYTES, result.getSize());
+    }
+    if (result.getCount() > 0) {
+      logger.info("Deleted {} expired file(s), reclaiming {} byte(s), in {} batch(es) and {} ms.", result.getCount(),
+          result.getSize(), batches, System.currentTimeMillis() - startedAt);
+    }
+    return result;
+  }
+
+  /**
+   * Obtains the files deleted by the most recent run.
+   */
+  @NotNull
+  public DeletionResult getLastResult() {
+    return lastResult;
+  }
+
+  /**
+   * Obtains the files deleted by all runs.
+   */
+  @NotNull
+  public DeletionResult getTotalResult() {
+    return totalResult;
   }
 
   /* Utility */
 
+  /**
+   * Acquires or renews the clean-up lease. If the lease cannot be checked, for example because the lease table does
+   * not exist, the clean-up runs anyway, as it would without a {@link ClusterLock}.
+   */
+  private boolean acquireLease() {
+    if (clusterLock == null) {
+      return true;
+    }
+    try {
+      return clusterLock.tryAcquire(LEASE_NAME, getLeaseDuration());
+    } catch (RuntimeException e) {
+      logger.warn("Could not acquire the expired files clean-up lease, cleaning up regardless.", e);
+      return true;
+    }
+  }
+
+  /**
+   * Pauses between batches.
+   *
+   * @return {@code false} if the thread was interrupted.
+   */
+  private boolean pause() {
+    if (batchPause == 0) {
+      return true;
+    }
+    try {
+      Thread.sleep(batchPause);
+      return true;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
   @Override
   public void afterPropertiesSet() throws Exception {
     scheduleTask();
@@ -73,6 +210,13 @@ public class CleanupExpiredFilesJob implements Runnable, InitializingBean, Dispo
 
   @Override
   public void destroy() throws Exception {
+    if (clusterLock != null) {
+      try {
+        clusterLock.release(LEASE_NAME);
+      } catch (RuntimeException e) {
+        logger.warn("Could not release the expired files clean-up lease.", e);
+      }
+    }
     if (destroyScheduler) {
       try {
         ((DisposableBean) taskScheduler).destroy();
@@ -94,6 +238,14 @@ public class CleanupExpiredFilesJob implements Runnable, InitializingBean, Dispo
     this.multipartFileStorage = multipartFileStorage;
   }
 
+  public void setClusterLock(ClusterLock clusterLock) {
+    this.clusterLock = clusterLock;
+  }
+
+  public void setStorageMetrics(StorageMetrics storageMetrics) {
+    this.storageMetrics = storageMetrics;
+  }
+
   /* Configuration */
 
   public void setIntervalInSeconds(int intervalInSeconds) {
@@ -101,4 +253,41 @@ public class CleanupExpiredFilesJob implements Runnable, InitializingBean, Dispo
     this.intervalInSeconds = intervalInSeconds;
   }
 
+  /**
+   * Sets the maximum number of files deleted per batch, and therefore per transaction.
+   */
+  public void setBatchSize(int batchSize) {
+    Assert.isTrue(batchSize > 0, "Batch size must be greater than 0.");
+    this.batchSize = batchSize;
+  }
+
+  /**
+   * Sets the pause between batches in milliseconds.
+   */
+  public void setBatchPause(int batchPause) {
+    Assert.isTrue(batchPause >= 0, "Batch pause must be greater than or equal to 0.");
+    this.batchPause = batchPause;
+  }
+
+  /**
+   * Sets the maximum duration of a run in seconds. A run always deletes at least one batch.
+   */
+  public void setTimeBudget(int timeBudget) {
+    Assert.isTrue(timeBudget > 0, "Time budget must be greater than 0.");
+    this.timeBudget = timeBudget;
+  }
+
+  /**
+   * Sets the duration in seconds of the clean-up lease. The lease should outlast the interval between runs, so that
+   * the holder keeps it. Defaults to twice the interval.
+   */
+  public void setLeaseDuration(int leaseDuration) {
+    Assert.isTrue(leaseDuration >= 0, "Lease duration must be greater than or equal to 0.");
+    this.leaseDuration = leaseDuration;
+  }
+
+  protected int getLeaseDuration() {
+    return leaseDuration > 0 ? leaseDuration : intervalInSeconds * 2;
+  }
+
 }
@@ -0,0 +1,32 @@
+package nl.runnable.spring.fileupload;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Lease-based lock shared by application instances, used to let a single instance perform a task at a time.
+ * <p>
+ * A lease is held for a limited duration and must be renewed by acquiring it again before it expires. If the holder
+ * stops renewing it, for example because the instance died, another instance can acquire the lease once it expires.
+ * </p>
+ *
+ * @author Laurens Fridael
+ */
+public interface ClusterLock {
+
+  /**
+   * Acquires or renews a lease, unless it is held by another instance.
+   *
+   * @param name                   The name of the lease.
+   * @param leaseDurationInSeconds The duration from now for which the lease is held.
+   * @return {@code true} if this instance holds the lease, {@code false} if another instance does.
+   */
+  boolean tryAcquire(@NotNull String name, int leaseDurationInSeconds);
+
+  /**
+   * Releases a lease if this instance holds it, so that other instances can acquire it immediately.
+   *
+   * @param name The name of the lease.
+   */
+  void release(@NotNull String name);
+
+}
@@ -0,0 +1,71 @@
+package nl.runnable.spring.fileupload;
+
+import org.jetbrains.annotations.NotNull;
+import org.springframework.util.Assert;
+
+/**
+ * The number of files stored with a context and their total size.
+ *
+ * @author Laurens Fridael
+ * @see MultipartFileStorage#getUsage(String)
+ */
+public final class ContextUsage {
+
+  public static final ContextUsage NONE = new ContextUsage(0, 0);
+
+  private final long count;
+
+  private final long size;
+
+  public ContextUsage(long count, long size) {
+    Assert.isTrue(count >= 0, "Count cannot be less than 0.");
+    Assert.isTrue(size >= 0, "Size cannot be less than 0.");
+    this.count = count;
+    this.size = size;
+  }
+
+  /**
+   * Obtains the number of files.
+   */
+  public long getCount() {
+    return count;
+  }
+
+  /**
+   * Obtains the total size of the files in bytes.
+   */
+  public long getSize() {
+    return size;
+  }
+
+  /**
+   * Obtains the combined usage of these files and the given files.
+   */
+  @NotNull
+  public ContextUsage plus(@NotNull ContextUsage other) {
+    Assert.notNull(other, "Usage cannot be null.");
+    return new ContextUsage(count + other.count, size + other.size);
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (!(o instanceof ContextUsage)) {
+      return false;
+    }
+    ContextUsage other = (ContextUsage) o;
+    return count == other.count && size == other.size;
+  }
+
+  @Override
+  public int hashCode() {
+    return 31 * (int) (count ^ (count >>> 32)) + (int) (size ^ (size >>> 32));
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%d file(s), %d byte(s)", count, size);
+  }
+}
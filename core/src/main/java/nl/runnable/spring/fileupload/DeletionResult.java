@@ -0,0 +1,67 @@
+package nl.runnable.spring.fileupload;
+
+import org.jetbrains.annotations.NotNull;
+import org.springframework.util.Assert;
+
+/**
+ * The number of files deleted by an operation and their total size.
+ *
+ * @author Laurens Fridael
+ */
+public final class DeletionResult {
+
+  public static final DeletionResult NONE = new DeletionResult(0, 0);
+
+  private final int count;
+
+  private final long size;
+
+  public DeletionResult(int count, long size) {
+    Assert.isTrue(count >= 0, "Count cannot be less than 0.");
+    Assert.isTrue(size >= 0, "Size cannot be less than 0.");
+    this.count = count;
+    this.size = size;
+  }
+
+  /**
+   * Obtains the number of files deleted.
+   */
+  public int getCount() {
+    return count;
+  }
+
+  /**
+   * Obtains the total size of the deleted files in bytes. Content shared with other files is included, even though it
+   * is not reclaimed until the last file referencing it is deleted.
+   */
+  public long getSize() {
+    return size;
+  }
+
+  @NotNull
+  public DeletionResult plus(@NotNull DeletionResult other) {
+    return new DeletionResult(count + other.count, size + other.size);
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (!(o instanceof DeletionResult)) {
+      return false;
+    }
+    DeletionResult other = (DeletionResult) o;
+    return count == other.count && size == other.size;
+  }
+
+  @Override
+  public int hashCode() {
+    return 31 * count + (int) (size ^ (size >>> 32));
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%d file(s), %d byte(s)", count, size);
+  }
+}
@@ -0,0 +1,43 @@
+package nl.runnable.spring.fileupload;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * {@link StoredMultipartFile} whose content may be stored in an encoded form, such as gzip. Callers can send the
+ * encoded content as-is to clients that accept the encoding, for example as an HTTP {@code Content-Encoding}, instead
+ * of reading the decoded content using {@link #getInputStream()}.
+ *
+ * @author Laurens Fridael
+ */
+public interface EncodedMultipartFile extends StoredMultipartFile {
+
+  /**
+   * Obtains the encoding of the stored content.
+   *
+   * @return The encoding, such as {@code gzip}, or {@code null} if the content is stored as-is.
+   */
+  @Nullable
+  String getContentEncoding();
+
+  /**
+   * Obtains the size of the stored content, which differs from {@link #getSize()} if the content is encoded.
+   *
+   * @return The size in bytes or -1 if the size is not known.
+   */
+  long getEncodedSize();
+
+  /**
+   * Opens a stream for reading the stored content without decoding it. If the content is not encoded, this is the same
+   * as {@link #getInputStream()}.
+   *
+   * @return The stream, which must be closed by the caller.
+   * @throws IOException If the stream cannot be opened.
+   */
+  @NotNull
+  InputStream getEncodedInputStream() throws IOException;
+
+}
@@ -0,0 +1,25 @@
+package nl.runnable.spring.fileupload;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+
+/**
+ * {@link StoredMultipartFile} whose content is kept in a file on the local filesystem. Callers can use the file
+ * directly, for example to serve it using {@link java.nio.channels.FileChannel#transferTo(long, long,
+ * java.nio.channels.WritableByteChannel)}.
+ *
+ * @author Laurens Fridael
+ */
+public interface FileBackedMultipartFile extends StoredMultipartFile {
+
+  /**
+   * Obtains the file holding the content. The file is deleted along with the stored file, so callers should be
+   * prepared for it to no longer exist.
+   *
+   * @return The file.
+   */
+  @NotNull
+  File getFile();
+
+}
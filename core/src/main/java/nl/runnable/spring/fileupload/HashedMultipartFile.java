@@ -0,0 +1,22 @@
+package nl.runnable.spring.fileupload;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * {@link StoredMultipartFile} that knows a digest of its content. Callers can use the digest to detect changed content,
+ * for example as an HTTP entity tag, without reading the content.
+ *
+ * @author Laurens Fridael
+ */
+public interface HashedMultipartFile extends StoredMultipartFile {
+
+  /**
+   * Obtains a digest of the file's content, computed when the file was saved. The digest is suitable for use as an
+   * HTTP entity tag.
+   *
+   * @return The hex-encoded SHA-256 digest or {@code null} if the digest is not available.
+   */
+  @Nullable
+  String getContentHash();
+
+}
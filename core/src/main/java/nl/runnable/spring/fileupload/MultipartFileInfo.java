@@ -0,0 +1,182 @@
+package nl.runnable.spring.fileupload;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.springframework.util.Assert;
+
+import java.io.Serializable;
+import java.util.Date;
+
+/**
+ * The attributes of a stored file, without access to its content.
+ * <p>
+ * Unlike a {@link StoredMultipartFile}, this view does not reference the storage it was obtained from, so it is
+ * cheap to create in large numbers and can be cached or serialized. Use {@link MultipartFileStorage#find(String)} to
+ * read a file's content.
+ * </p>
+ *
+ * @author Laurens Fridael
+ * @see MultipartFileStorage#findInfo(java.util.Collection)
+ * @see MultipartFileStorage#findInfoByContext(String)
+ */
+public final class MultipartFileInfo implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  private final String id;
+
+  private final String name;
+
+  private final String originalFilename;
+
+  private final String contentType;
+
+  private final long size;
+
+  private final String contentHash;
+
+  private final String context;
+
+  private final String metadata;
+
+  private final long createdAt;
+
+  private final long expiresAt;
+
+  public MultipartFileInfo(@NotNull String id, @Nullable String name, @Nullable String originalFilename,
+                           @Nullable String contentType, long size, @Nullable String contentHash,
+                           @Nullable String context, @Nullable String metadata, long createdAt, long expiresAt) {
+    Assert.hasText(id, "File ID cannot be empty.");
+    this.id = id;
+    this.name = name;
+    this.originalFilename = originalFilename;
+    this.contentType = contentType;
+    this.size = size;
+    this.contentHash = contentHash;
+    this.context = context;
+    this.metadata = metadata;
+    this.createdAt = createdAt;
+    this.expiresAt = expiresAt;
+  }
+
+  /**
+   * Obtains the attributes of a stored file.
+   */
+  @NotNull
+  public static MultipartFileInfo of(@NotNull StoredMultipartFile file) {
+    Assert.notNull(file, "File cannot be null.");
+    return new MultipartFileInfo(file.getId(), file.getName(), file.getOriginalFilename(), file.getContentType(),
+        file.getSize(), getContentHash(file), file.getContext(), file.getMetadata(), file.getCreatedAt().getTime(),
+        file.getExpiresAt().getTime());
+  }
+
+  /**
+   * @see StoredMultipartFile#getId()
+   */
+  @NotNull
+  public String getId() {
+    return id;
+  }
+
+  /**
+   * @see StoredMultipartFile#getName()
+   */
+  @Nullable
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * @see StoredMultipartFile#getOriginalFilename()
+   */
+  @Nullable
+  public String getOriginalFilename() {
+    return originalFilename;
+  }
+
+  /**
+   * @see StoredMultipartFile#getContentType()
+   */
+  @Nullable
+  public String getContentType() {
+    return contentType;
+  }
+
+  /**
+   * @see StoredMultipartFile#getSize()
+   */
+  public long getSize() {
+    return size;
+  }
+
+  /**
+   * @see HashedMultipartFile#getContentHash()
+   */
+  @Nullable
+  public String getContentHash() {
+    return contentHash;
+  }
+
+  /**
+   * @see StoredMultipartFile#getContext()
+   */
+  @Nullable
+  public String getContext() {
+    return context;
+  }
+
+  /**
+   * @see StoredMultipartFile#getMetadata()
+   */
+  @Nullable
+  public String getMetadata() {
+    return metadata;
+  }
+
+  /**
+   * @see StoredMultipartFile#getCreatedAt()
+   */
+  @NotNull
+  public Date getCreatedAt() {
+    return new Date(createdAt);
+  }
+
+  /**
+   * @see StoredMultipartFile#getExpiresAt()
+   */
+  @NotNull
+  public Date getExpiresAt() {
+    return new Date(expiresAt);
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) {
+      return true;
+    }
+    if (!(o instanceof MultipartFileInfo)) {
+      return false;
+    }
+    MultipartFileInfo other = (MultipartFileInfo) o;
+    return id.equals(other.id) && expiresAt == other.expiresAt && equals(metadata, other.metadata);
+  }
+
+  @Override
+  public int hashCode() {
+    return id.hashCode();
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%s (%s, %d byte(s))", id, originalFilename, size);
+  }
+
+  private static boolean equals(@Nullable Object a, @Nullable Object b) {
+    return a == null ? b == null : a.equals(b);
+  }
+
+  @Nullable
+  private static String getContentHash(@NotNull StoredMultipartFile file) {
+    return file instanceof HashedMultipartFile ? ((HashedMultipartFile) file).getContentHash() : null;
+  }
+}
@@ -4,8 +4,10 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.springframework.web.multipart.MultipartFile;
 
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 
 /**
  * <p>Defines storage operations for {@link MultipartFile}s.</p>
@@ -51,6 +53,24 @@ public interface MultipartFileStorage {
   void save(@NotNull MultipartFile file, @NotNull String id, int timeToLiveInSeconds, @Nullable String context,
             @Nullable String metadata);
 
+  /**
+   * Saves several multipart files at once, with the same time to live, context and metadata. Either all files are
+   * saved or, if saving any of them fails, none.
+   * <p>
+   * Implementations should save the files using fewer round trips than saving them one by one.
+   * </p>
+   *
+   * @param files               The multipart files.
+   * @param timeToLiveInSeconds The time to keep the files in storage.
+   * @param context             Optional context value to associate with the files.
+   * @param metadata            Optional metadata
+   * @return The IDs of the stored files, in the order of the given files.
+   * @see #save(MultipartFile, int, String, String)
+   */
+  @NotNull
+  List<String> saveAll(@NotNull List<? extends MultipartFile> files, int timeToLiveInSeconds,
+                       @Nullable String context, @Nullable String metadata);
+
   /**
    * Obtains a file.
    *
@@ -69,6 +89,59 @@ public interface MultipartFileStorage {
   @NotNull
   List<StoredMultipartFile> findByContext(@NotNull String context);
 
+  /**
+   * Obtains a page of the files matching a given context. Pages are sorted by the time the files were created and
+   * continue after the last file of the previous page, so that the cost of obtaining a page does not depend on the
+   * number of pages before it.
+   *
+   * @param context The context to filter against.
+   * @param after   The last file of the previous page or {@code null} to obtain the first page.
+   * @param limit   The maximum number of files in the page.
+   * @return The matching files. A page with less than {@code limit} files is the last page.
+   */
+  @NotNull
+  List<StoredMultipartFile> findByContext(@NotNull String context, @Nullable StoredMultipartFile after, int limit);
+
+  /**
+   * Processes the files matching a given context one at a time, sorted by the time they were created. Unlike
+   * {@link #findByContext(String)}, the files are not all held in memory at once.
+   *
+   * @param context  The context to filter against.
+   * @param callback The callback to invoke for each file.
+   * @return The number of files processed.
+   */
+  int forEachByContext(@NotNull String context, @NotNull StoredMultipartFileCallback callback);
+
+  /**
+   * Obtains several files at once. Implementations should look up the files using fewer round trips than finding them
+   * one by one.
+   *
+   * @param ids The file IDs.
+   * @return The matching files by ID, in the order of the given IDs. IDs without a match are left out.
+   */
+  @NotNull
+  Map<String, StoredMultipartFile> findAll(@NotNull Collection<String> ids);
+
+  /**
+   * Obtains the attributes of several files at once, without the means to read their content.
+   *
+   * @param ids The file IDs.
+   * @return The attributes by ID, in the order of the given IDs. IDs without a match are left out.
+   * @see #findAll(Collection)
+   */
+  @NotNull
+  Map<String, MultipartFileInfo> findInfo(@NotNull Collection<String> ids);
+
+  /**
+   * Obtains the attributes of the files matching a given context, without the means to read their content.
+   *
+   * @param context The context to filter against.
+   * @return The attributes of the matching files, sorted by the time they were created.
+   * @see #findByContext(String)
+   */
+  @NotNull
+  List<MultipartFileInfo> findInfoByContext(@NotNull String context);
+
   /**
    * Sets a file's time to live.
    *
@@ -79,6 +152,24 @@ public interface MultipartFileStorage {
   @Nullable
   Date setTimeToLive(@NotNull String id, int timeToLiveInSeconds);
 
+  /**
+   * Sets the time to live of several files at once.
+   *
+   * @param ids                 The file IDs.
+   * @param timeToLiveInSeconds The time to live from now.
+   * @return The number of files updated.
+   */
+  int setTimeToLive(@NotNull Collection<String> ids, int timeToLiveInSeconds);
+
+  /**
+   * Sets the time to live of all files matching a given context, using a single update.
+   *
+   * @param context             The context to filter against.
+   * @param timeToLiveInSeconds The time to live from now.
+   * @return The number of files updated.
+   */
+  int setTimeToLiveByContext(@NotNull String context, int timeToLiveInSeconds);
+
   /**
    * Sets a file's metadata.
    *
@@ -96,6 +187,14 @@ public interface MultipartFileStorage {
    */
   int delete(@NotNull String id);
 
+  /**
+   * Deletes several files at once.
+   *
+   * @param ids The file IDs.
+   * @return The number of files deleted.
+   */
+  int delete(@NotNull Collection<String> ids);
+
   /**
    * Deletes files matching a given context.
    *
@@ -111,6 +210,16 @@ public interface MultipartFileStorage {
    */
   int deleteExpired();
 
+  /**
+   * Deletes at most the given number of expired files, starting with the files that expired first. Use this method to
+   * delete a large number of expired files in bounded batches.
+   *
+   * @param limit The maximum number of files to delete.
+   * @return The number and total size of the files deleted.
+   */
+  @NotNull
+  DeletionResult deleteExpired(int limit);
+
   /**
    * Deletes all files.
    *
@@ -118,6 +227,19 @@ public interface MultipartFileStorage {
    */
   int deleteAll();
 
+  /**
+   * Obtains the number and total size of the files with a given context.
+   * <p>
+   * Storage that enforces quotas per context maintains this usage as files are saved and deleted, so that it can be
+   * obtained without summing the files. Such usage includes files that are being saved.
+   * </p>
+   *
+   * @param context The context.
+   * @return The usage.
+   */
+  @NotNull
+  ContextUsage getUsage(@NotNull String context);
+
   /**
    * Obtains the number of files stored.
    *
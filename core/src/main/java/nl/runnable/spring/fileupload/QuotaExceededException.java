@@ -0,0 +1,37 @@
+package nl.runnable.spring.fileupload;
+
+import org.jetbrains.annotations.NotNull;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+/**
+ * Thrown when saving a file would exceed the number of files or the total size allowed for its context. Spring MVC
+ * responds to uncaught instances with status 413.
+ *
+ * @author Laurens Fridael
+ */
+@ResponseStatus(HttpStatus.PAYLOAD_TOO_LARGE)
+public class QuotaExceededException extends RuntimeException {
+
+  private static final long serialVersionUID = 1L;
+
+  private final String context;
+
+  public QuotaExceededException(@NotNull String context, @NotNull String message) {
+    super(message);
+    this.context = context;
+  }
+
+  public QuotaExceededException(@NotNull String context, @NotNull String message, @NotNull Throwable cause) {
+    super(message, cause);
+    this.context = context;
+  }
+
+  /**
+   * Obtains the context whose quota would be exceeded.
+   */
+  @NotNull
+  public String getContext() {
+    return context;
+  }
+}
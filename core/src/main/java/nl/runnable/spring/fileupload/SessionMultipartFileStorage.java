@@ -70,6 +70,25 @@ public interface SessionMultipartFileStorage {
   @NotNull
   List<StoredMultipartFile> findAll();
 
+  /**
+   * Obtains a page of the files in the current session, sorted by the time they were created.
+   *
+   * @param after The last file of the previous page or {@code null} to obtain the first page.
+   * @param limit The maximum number of files in the page.
+   * @return The files in the page. A page with less than {@code limit} files is the last page.
+   * @see MultipartFileStorage#findByContext(String, StoredMultipartFile, int)
+   */
+  @NotNull
+  List<StoredMultipartFile> findAll(@Nullable StoredMultipartFile after, int limit);
+
+  /**
+   * Processes the files in the current session one at a time, without holding all of them in memory.
+   *
+   * @return The number of files processed.
+   * @see MultipartFileStorage#forEachByContext(String, StoredMultipartFileCallback)
+   */
+  int forEach(@NotNull StoredMultipartFileCallback callback);
+
   /**
    * Deletes the given file from the current session.
    *
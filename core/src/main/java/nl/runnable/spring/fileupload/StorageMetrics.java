@@ -0,0 +1,94 @@
+package nl.runnable.spring.fileupload;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Registry receiving the measurements taken by this library, such as the latency of storage operations and the number
+ * of bytes uploaded and downloaded.
+ * <p>
+ * Implementations can forward measurements to a monitoring system. They are called on the threads performing the
+ * measured operations, so they must be thread-safe and should not block.
+ * </p>
+ *
+ * @author Laurens Fridael
+ * @see nl.runnable.spring.fileupload.impl.InMemoryStorageMetrics
+ * @see nl.runnable.spring.fileupload.impl.InstrumentedMultipartFileStorage
+ */
+public interface StorageMetrics {
+
+  /**
+   * Prefix of the latency, in nanoseconds, of each {@link MultipartFileStorage} operation, followed by the name of the
+   * operation, as in {@code sfus.storage.find}. Failed operations also increment a counter with the suffix
+   * {@link #ERRORS}.
+   */
+  String STORAGE = "sfus.storage.";
+
+  /**
+   * Suffix of the counters of failed operations.
+   */
+  String ERRORS = ".errors";
+
+  /**
+   * Number of bytes saved to storage, according to the sizes of the saved files.
+   */
+  String STORAGE_BYTES_IN = "sfus.storage.bytesIn";
+
+  /**
+   * Duration of downloads in nanoseconds, until the last byte was written to the response.
+   */
+  String DOWNLOAD = "sfus.download";
+
+  /**
+   * Duration of downloads in nanoseconds, until the first byte was written to the response.
+   */
+  String DOWNLOAD_TIME_TO_FIRST_BYTE = "sfus.download.timeToFirstByte";
+
+  /**
+   * Number of bytes written to download responses, including the part headers of multiple range responses, or handed
+   * to the container to be sent using {@code sendfile}.
+   */
+  String DOWNLOAD_BYTES_OUT = "sfus.download.bytesOut";
+
+  /**
+   * Duration of expired files clean-up runs in nanoseconds.
+   */
+  String CLEANUP = "sfus.cleanup";
+
+  /**
+   * Number of files deleted per expired files clean-up run.
+   */
+  String CLEANUP_FILES = "sfus.cleanup.files";
+
+  /**
+   * Number of bytes reclaimed per expired files clean-up run.
+   */
+  String CLEANUP_BYTES = "sfus.cleanup.bytes";
+
+  /**
+   * Number of times the time-to-live of session-bound files was written after a request.
+   */
+  String SESSION_TIME_TO_LIVE_REFRESHES = "sfus.session.timeToLiveRefreshes";
+
+  /**
+   * Number of times the time-to-live of session-bound files was queued for a coalesced background write after a
+   * request.
+   */
+  String SESSION_TIME_TO_LIVE_TOUCHES = "sfus.session.timeToLiveTouches";
+
+  /**
+   * Records a measured value, such as a duration or a size, in the distribution with the given name.
+   *
+   * @param name  The name of the distribution.
+   * @param value The value. Durations are recorded in nanoseconds.
+   */
+  void record(@NotNull String name, long value);
+
+  /**
+   * Increments the counter with the given name.
+   *
+   * @param name   The name of the counter.
+   * @param amount The amount to add.
+   */
+  void increment(@NotNull String name, long amount);
+
+}
@@ -0,0 +1,20 @@
+package nl.runnable.spring.fileupload;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Callback for processing stored files one at a time, without holding all of them in memory.
+ *
+ * @author Laurens Fridael
+ * @see MultipartFileStorage#forEachByContext(String, StoredMultipartFileCallback)
+ */
+public interface StoredMultipartFileCallback {
+
+  /**
+   * Processes a file. Exceptions thrown by this method stop the iteration and are passed on to the caller.
+   *
+   * @param file The file.
+   */
+  void doWithFile(@NotNull StoredMultipartFile file);
+
+}
@@ -0,0 +1,23 @@
+package nl.runnable.spring.fileupload.config;
+
+import nl.runnable.spring.fileupload.AsyncMultipartFileStorage;
+import nl.runnable.spring.fileupload.impl.TaskExecutorAsyncMultipartFileStorage;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Provides an {@link AsyncMultipartFileStorage}. Import this configuration alongside {@link DefaultFileUploadConfig} to
+ * enable it. The storage starts its own thread pool unless a task executor with the qualifier
+ * "spring-file-upload-storage" is available.
+ *
+ * @author Laurens Fridael
+ */
+@Configuration
+public class AsyncFileUploadConfig {
+
+  @Bean
+  AsyncMultipartFileStorage asyncMultipartFileStorage() {
+    return new TaskExecutorAsyncMultipartFileStorage();
+  }
+
+}
@@ -0,0 +1,23 @@
+package nl.runnable.spring.fileupload.config;
+
+import nl.runnable.spring.fileupload.ClusterLock;
+import nl.runnable.spring.fileupload.impl.JdbcClusterLock;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Provides a {@link ClusterLock}, so that only one instance of a clustered application runs the
+ * {@link nl.runnable.spring.fileupload.CleanupExpiredFilesJob} at a time. Import this configuration alongside
+ * {@link DefaultFileUploadConfig} to enable it.
+ *
+ * @author Laurens Fridael
+ */
+@Configuration
+public class ClusterLockConfig {
+
+  @Bean
+  ClusterLock clusterLock() {
+    return new JdbcClusterLock();
+  }
+
+}
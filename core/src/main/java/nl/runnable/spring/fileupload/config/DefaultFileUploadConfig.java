@@ -7,6 +7,9 @@ import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
 /**
+ * Provides the storage and the job that deletes expired files. Asynchronous storage, metrics and cluster locking are
+ * optional; see {@link AsyncFileUploadConfig}, {@link StorageMetricsConfig} and {@link ClusterLockConfig}.
+ *
  * @author Laurens Fridael
  */
 @Configuration
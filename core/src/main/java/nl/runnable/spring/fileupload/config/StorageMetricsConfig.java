@@ -0,0 +1,22 @@
+package nl.runnable.spring.fileupload.config;
+
+import nl.runnable.spring.fileupload.StorageMetrics;
+import nl.runnable.spring.fileupload.impl.InMemoryStorageMetrics;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Provides {@link StorageMetrics} kept in memory. Import this configuration alongside {@link DefaultFileUploadConfig}
+ * to enable it, or provide another {@link StorageMetrics} bean instead.
+ *
+ * @author Laurens Fridael
+ */
+@Configuration
+public class StorageMetricsConfig {
+
+  @Bean
+  StorageMetrics storageMetrics() {
+    return new InMemoryStorageMetrics();
+  }
+
+}
@@ -0,0 +1,26 @@
+package nl.runnable.spring.fileupload.config;
+
+import nl.runnable.spring.fileupload.impl.TimeToLiveTouchQueue;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Writes time-to-live extensions of session-bound files in the background, through a {@link TimeToLiveTouchQueue}.
+ * Import this configuration alongside {@link DefaultFileUploadConfig} to enable it.
+ * <p>
+ * Without it, the session interceptor of the MVC module writes the extension after every request that used
+ * session-bound files. With it, files may be kept up to the queue's maximum staleness, by default 300 seconds, after
+ * their session has expired.
+ * </p>
+ *
+ * @author Laurens Fridael
+ */
+@Configuration
+public class TimeToLiveTouchQueueConfig {
+
+  @Bean
+  TimeToLiveTouchQueue timeToLiveTouchQueue() {
+    return new TimeToLiveTouchQueue();
+  }
+
+}
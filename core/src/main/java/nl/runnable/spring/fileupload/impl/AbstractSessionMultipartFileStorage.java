@@ -3,6 +3,7 @@ package nl.runnable.spring.fileupload.impl;
 import nl.runnable.spring.fileupload.MultipartFileStorage;
 import nl.runnable.spring.fileupload.SessionMultipartFileStorage;
 import nl.runnable.spring.fileupload.StoredMultipartFile;
+import nl.runnable.spring.fileupload.StoredMultipartFileCallback;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.springframework.util.Assert;
@@ -83,6 +84,17 @@ public abstract class AbstractSessionMultipartFileStorage implements SessionMult
     return storage.findByContext(getSessionId());
   }
 
+  @NotNull
+  @Override
+  public List<StoredMultipartFile> findAll(@Nullable StoredMultipartFile after, int limit) {
+    return storage.findByContext(getSessionId(), after, limit);
+  }
+
+  @Override
+  public int forEach(@NotNull StoredMultipartFileCallback callback) {
+    return storage.forEachByContext(getSessionId(), callback);
+  }
+
   @Override
   public int delete(@NotNull String id) {
     Assert.hasText(id, "ID cannot be empty.");
@@ -101,9 +113,7 @@ public abstract class AbstractSessionMultipartFileStorage implements SessionMult
 
   @Override
   public void setTimeToLive(int timeToLiveInSeconds) {
-    for (StoredMultipartFile file : findAll()) {
-      storage.setTimeToLive(file.getId(), timeToLiveInSeconds);
-    }
+    storage.setTimeToLiveByContext(getSessionId(), timeToLiveInSeconds);
   }
 
   @Override
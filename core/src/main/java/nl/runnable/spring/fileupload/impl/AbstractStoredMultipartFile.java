@@ -0,0 +1,90 @@
+package nl.runnable.spring.fileupload.impl;
+
+import nl.runnable.spring.fileupload.StoredMultipartFile;
+import org.jetbrains.annotations.NotNull;
+import org.springframework.util.Assert;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Abstract base class for {@link StoredMultipartFile} implementations that can read part of a file's content.
+ * <p>
+ * Reading part of the content is optional. By default, {@link #getInputStream(long, long)} skips to the requested
+ * position in the stream obtained from {@link #getInputStream()}. Subclasses should override it if the underlying
+ * storage can read the requested bytes only.
+ * </p>
+ * <p>
+ * Use {@link #getInputStream(StoredMultipartFile, long, long)} to read part of the content of any
+ * {@link StoredMultipartFile}, including implementations that do not extend this class.
+ * </p>
+ *
+ * @author Laurens Fridael
+ */
+public abstract class AbstractStoredMultipartFile implements StoredMultipartFile {
+
+  /**
+   * Opens a stream for reading part of the content of the given file. Uses
+   * {@link AbstractStoredMultipartFile#getInputStream(long, long)} if the file extends this class and otherwise skips
+   * to the requested position.
+   *
+   * @param file     The file.
+   * @param position The zero-based position of the first byte to read.
+   * @param length   The maximum number of bytes to read.
+   * @return The stream, which must be closed by the caller.
+   * @throws IOException If the stream cannot be opened.
+   */
+  @NotNull
+  public static InputStream getInputStream(@NotNull StoredMultipartFile file, long position, long length)
+      throws IOException {
+    Assert.notNull(file, "File cannot be null.");
+
+    if (file instanceof AbstractStoredMultipartFile) {
+      return ((AbstractStoredMultipartFile) file).getInputStream(position, length);
+    }
+    return skipTo(file.getInputStream(), position, length);
+  }
+
+  /**
+   * Opens a stream for reading part of the file's content.
+   * <p>
+   * This implementation skips to the requested position in the stream obtained from {@link #getInputStream()}.
+   * </p>
+   *
+   * @param position The zero-based position of the first byte to read.
+   * @param length   The maximum number of bytes to read.
+   * @return The stream, which must be closed by the caller.
+   * @throws IOException If the stream cannot be opened.
+   */
+  @NotNull
+  public InputStream getInputStream(long position, long length) throws IOException {
+    return skipTo(getInputStream(), position, length);
+  }
+
+  @NotNull
+  private static InputStream skipTo(@NotNull InputStream in, long position, long length) throws IOException {
+    Assert.isTrue(position >= 0, "Position cannot be less than 0.");
+    Assert.isTrue(length >= 0, "Length cannot be less than 0.");
+
+    boolean positioned = false;
+    try {
+      long remaining = position;
+      while (remaining > 0) {
+        long skipped = in.skip(remaining);
+        if (skipped <= 0) {
+          if (in.read() == -1) {
+            break;
+          }
+          skipped = 1;
+        }
+        remaining -= skipped;
+      }
+      positioned = true;
+      return new BoundedInputStream(in, length);
+    } finally {
+      if (!positioned) {
+        in.close();
+      }
+    }
+  }
+}
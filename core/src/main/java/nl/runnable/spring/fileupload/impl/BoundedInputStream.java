@@ -0,0 +1,63 @@
+package nl.runnable.spring.fileupload.impl;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Limits the number of bytes read from the underlying stream.
+ *
+ * @author Laurens Fridael
+ */
+class BoundedInputStream extends FilterInputStream {
+
+  private long remaining;
+
+  BoundedInputStream(@NotNull InputStream in, long limit) {
+    super(in);
+    this.remaining = limit;
+  }
+
+  @Override
+  public int read() throws IOException {
+    if (remaining <= 0) {
+      return -1;
+    }
+    int b = super.read();
+    if (b != -1) {
+      remaining--;
+    }
+    return b;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (remaining <= 0) {
+      return -1;
+    }
+    int count = super.read(b, off, (int) Math.min(len, remaining));
+    if (count != -1) {
+      remaining -= count;
+    }
+    return count;
+  }
+
+  @Override
+  public long skip(long n) throws IOException {
+    long skipped = super.skip(Math.min(n, remaining));
+    remaining -= skipped;
+    return skipped;
+  }
+
+  @Override
+  public int available() throws IOException {
+    return (int) Math.min(super.available(), remaining);
+  }
+
+  @Override
+  public boolean markSupported() {
+    return false;
+  }
+}
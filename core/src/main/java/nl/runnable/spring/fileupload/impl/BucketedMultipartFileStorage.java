@@ -0,0 +1,461 @@
+package nl.runnable.spring.fileupload.impl;
+
+import nl.runnable.spring.fileupload.ContextUsage;
+import nl.runnable.spring.fileupload.DeletionResult;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.support.AbstractLobCreatingPreparedStatementCallback;
+import org.springframework.jdbc.support.lob.DefaultLobHandler;
+import org.springframework.jdbc.support.lob.LobCreator;
+import org.springframework.jdbc.support.lob.LobHandler;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.util.Assert;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * {@link nl.runnable.spring.fileupload.MultipartFileStorage} implementation that keeps file content in time buckets by
+ * expiration date, so that expired content is reclaimed by dropping whole tables instead of deleting rows.
+ * <p>
+ * Each bucket covers {@link #setBucketWidth(int) a fixed period} and is a table named {@code sfus_bucket_<n>}, where
+ * {@code n} is the expiration date divided by the bucket width. Buckets are created on demand and registered in the
+ * {@code sfus_bucket} table. File metadata is kept in {@code sfus_file}, along with the bucket holding the content.
+ * </p>
+ * <p>
+ * Deleting expired files only deletes their metadata. The content of a bucket is dropped once the bucket's period has
+ * passed and no files refer to it anymore. Extending a file's time-to-live beyond the end of its bucket moves its
+ * content to a later bucket. Shortening it leaves the content in place, where it is kept until its bucket is dropped.
+ * The bucket width is therefore a trade-off: wider buckets mean fewer moves on extension and fewer tables, narrower
+ * buckets mean that expired content is reclaimed sooner.
+ * </p>
+ * <p>
+ * Deduplication and chunked storage do not apply to this implementation. The database tables should not be shared
+ * with other {@link JdbcMultipartFileStorage} implementations.
+ * </p>
+ *
+ * @author Laurens Fridael
+ */
+public class BucketedMultipartFileStorage extends JdbcMultipartFileStorage {
+
+  private static final String BUCKET_TABLE_PREFIX = "sfus_bucket_";
+
+  private final Logger logger = LoggerFactory.getLogger(getClass());
+
+  private final LobHandler lobHandler = new DefaultLobHandler();
+
+  /* Configuration */
+
+  @Value("${spring-file-upload-storage.buckets.width:3600}")
+  private int bucketWidth = 3600;
+
+  /* State */
+
+  /**
+   * Buckets known to exist.
+   */
+  private final Set<Long> buckets = Collections.synchronizedSet(new HashSet<Long>());
+
+  /* Main operations */
+
+  @Override
+  void saveFile(@NotNull final MultipartFile file, @NotNull final String id, @Nullable final String context,
+                @Nullable final String metadata, @NotNull final Date createdAt, @NotNull final Date expiresAt) {
+    final long bucket = getBucket(expiresAt.getTime());
+    ensureBucket(bucket);
+    final DigestInputStream data = openDigestingStream(file);
+    try {
+      getTransactionTemplate().execute(new TransactionCallback<Object>() {
+
+        @Override
+        public Object doInTransaction(TransactionStatus status) {
+          JdbcTemplate jdbc = getJdbcTemplate();
+          jdbc.update(SqlConstants.INSERT_INTO_WITH_BUCKET, id, file.getName(), file.getOriginalFilename(),
+              file.getContentType(), file.getSize(), context, metadata, createdAt.getTime(), expiresAt.getTime(),
+              bucket);
+          // Content left behind by an expired file with the same ID is only reclaimed when its bucket is dropped.
+          jdbc.update(bucketSql(SqlConstants.DELETE_FROM_BUCKET_TABLE, bucket), id);
+          jdbc.execute(bucketSql(SqlConstants.INSERT_INTO_BUCKET_TABLE, bucket),
+              new AbstractLobCreatingPreparedStatementCallback(lobHandler) {
+
+                @Override
+                protected void setValues(PreparedStatement ps, LobCreator lobCreator)
+                    throws SQLException, DataAccessException {
+                  ps.setString(1, id);
+                  lobCreator.setBlobAsBinaryStream(ps, 2, data, (int) file.getSize());
+                }
+              });
+          jdbc.update(SqlConstants.UPDATE_CONTENT_HASH, ContentHash.toHex(data), id);
+          return null;
+        }
+      });
+    } finally {
+      try {
+        data.close();
+      } catch (IOException ignored) {
+      }
+    }
+  }
+
+  @NotNull
+  private static DigestInputStream openDigestingStream(@NotNull MultipartFile file) {
+    try {
+      return ContentHash.digesting(file.getInputStream());
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Content is stored in bucket tables, so files cannot be inserted in JDBC batches.
+   */
+  @Override
+  boolean isBatchInsertSupported() {
+    return false;
+  }
+
+  @NotNull
+  @Override
+  InputStream openInputStream(@NotNull JdbcMultipartFile file, long position, long length) throws IOException {
+    Long bucket = findBucket(file.getId());
+    while (bucket != null) {
+      InputStream data = JdbcBlobInputStream.open(getJdbcTemplate(), position, length,
+          bucketSql(SqlConstants.SELECT_DATA_FROM_BUCKET_TABLE, bucket), file.getId());
+      if (data != null) {
+        return data;
+      }
+      // The content may have moved to a later bucket in the meantime.
+      Long movedTo = findBucket(file.getId());
+      bucket = movedTo != null && movedTo > bucket ? movedTo : null;
+    }
+    throw new FileNotFoundException(String.format("File '%s' no longer exists.", file.getId()));
+  }
+
+  @Nullable
+  @Override
+  public Date setTimeToLive(@NotNull final String id, int timeToLiveInSeconds) {
+    Assert.hasText(id, "File ID cannot be empty.");
+    Assert.isTrue(timeToLiveInSeconds >= 0, "Time to live must be greater than or equal to 0.");
+
+    final Date expiresAt = new Date(System.currentTimeMillis() + timeToLiveInSeconds * 1000L);
+    final long bucket = getBucket(expiresAt.getTime());
+    ensureBucket(bucket);
+    int count = getTransactionTemplate().execute(new TransactionCallback<Integer>() {
+
+      @Override
+      public Integer doInTransaction(TransactionStatus status) {
+        JdbcTemplate jdbc = getJdbcTemplate();
+        Long current = findBucket(id);
+        if (current == null) {
+          return 0;
+        }
+        if (current >= bucket) {
+          return jdbc.update(SqlConstants.UPDATE_EXPIRES_AT, expiresAt.getTime(), id);
+        }
+        jdbc.update(bucketSql(SqlConstants.DELETE_FROM_BUCKET_TABLE, bucket), id);
+        jdbc.update(String.format(SqlConstants.MOVE_INTO_BUCKET_TABLE, getBucketTable(bucket), getBucketTable(current)),
+            id);
+        jdbc.update(bucketSql(SqlConstants.DELETE_FROM_BUCKET_TABLE, current), id);
+        return jdbc.update(SqlConstants.UPDATE_EXPIRES_AT_AND_BUCKET, expiresAt.getTime(), bucket, id);
+      }
+    });
+    if (count > 0) {
+      logger.debug("Set expiration of file '{}' to {}.", id, expiresAt);
+    }
+    return count == 1 ? expiresAt : null;
+  }
+
+  /**
+   * Sets the time to live of the given files in a single transaction. As the content of each file may move to another
+   * bucket, the files are updated one by one.
+   */
+  @Override
+  public int setTimeToLive(@NotNull Collection<String> ids, final int timeToLiveInSeconds) {
+    Assert.isTrue(timeToLiveInSeconds >= 0, "Time to live must be greater than or equal to 0.");
+    final List<String> uniqueIds = toUniqueIds(ids);
+
+    return getTransactionTemplate().execute(new TransactionCallback<Integer>() {
+
+      @Override
+      public Integer doInTransaction(TransactionStatus status) {
+        int count = 0;
+        for (String id : uniqueIds) {
+          if (setTimeToLive(id, timeToLiveInSeconds) != null) {
+            count++;
+          }
+        }
+        return count;
+      }
+    });
+  }
+
+  @Override
+  public int setTimeToLiveByContext(@NotNull String context, int timeToLiveInSeconds) {
+    Assert.hasText(context, "Context cannot be empty.");
+    Assert.isTrue(timeToLiveInSeconds >= 0, "Time to live must be greater than or equal to 0.");
+
+    return setExpiresAtByContext(context, System.currentTimeMillis() + timeToLiveInSeconds * 1000L);
+  }
+
+  @Override
+  public int setExpiresAtByContext(@NotNull Map<String, Date> expirations) {
+    Assert.notNull(expirations, "Expirations cannot be null.");
+
+    int count = 0;
+    for (Map.Entry<String, Date> expiration : expirations.entrySet()) {
+      count += setExpiresAtByContext(expiration.getKey(), expiration.getValue().getTime());
+    }
+    return count;
+  }
+
+  /**
+   * Sets the expiration of the files in a context, moving the content of files whose bucket ends before the new
+   * expiration.
+   */
+  private int setExpiresAtByContext(@NotNull final String context, final long expiresAt) {
+    final long bucket = getBucket(expiresAt);
+    ensureBucket(bucket);
+    int count = getTransactionTemplate().execute(new TransactionCallback<Integer>() {
+
+      @Override
+      public Integer doInTransaction(TransactionStatus status) {
+        JdbcTemplate jdbc = getJdbcTemplate();
+        List<Long> earlier = jdbc.queryForList(SqlConstants.SELECT_BUCKETS_BY_CONTEXT_BEFORE, Long.class, context,
+            bucket);
+        for (Long current : earlier) {
+          String from = getBucketTable(current);
+          String to = getBucketTable(bucket);
+          jdbc.update(String.format(SqlConstants.DELETE_CONTEXT_FROM_BUCKET_TABLE, to), context, current);
+          jdbc.update(String.format(SqlConstants.MOVE_CONTEXT_INTO_BUCKET_TABLE, to, from), context, current);
+          jdbc.update(String.format(SqlConstants.DELETE_CONTEXT_FROM_BUCKET_TABLE, from), context, current);
+          jdbc.update(SqlConstants.UPDATE_BUCKET_BY_CONTEXT, bucket, context, current);
+        }
+        return jdbc.update(SqlConstants.UPDATE_EXPIRES_AT_BY_CONTEXT, expiresAt, context);
+      }
+    });
+    if (count > 0) {
+      logger.debug("Set expiration of {} file(s) with context '{}' to {}.", count, context, new Date(expiresAt));
+    }
+    return count;
+  }
+
+  @Override
+  public int delete(@NotNull final String id) {
+    Assert.hasText(id, "File ID cannot be empty.");
+
+    int count = getTransactionTemplate().execute(new TransactionCallback<Integer>() {
+
+      @Override
+      public Integer doInTransaction(TransactionStatus status) {
+        Long bucket = findBucket(id);
+        Map<String, ContextUsage> usage = selectUsage(SqlConstants.SELECT_USAGE_BY_ID, id);
+        int count = getJdbcTemplate().update(SqlConstants.DELETE_BY_ID, id);
+        if (count > 0 && bucket != null) {
+          getJdbcTemplate().update(bucketSql(SqlConstants.DELETE_FROM_BUCKET_TABLE, bucket), id);
+        }
+        releaseUsage(usage, count);
+        return count;
+      }
+    });
+    if (count == 1) {
+      logger.debug("Deleted file '{}'.", id);
+    }
+    return count;
+  }
+
+  /**
+   * Deletes the given files in a single transaction. As the content of each file may be in a different bucket, the
+   * files are deleted one by one.
+   */
+  @Override
+  int deleteFilesById(@NotNull final List<String> ids) {
+    return getTransactionTemplate().execute(new TransactionCallback<Integer>() {
+
+      @Override
+      public Integer doInTransaction(TransactionStatus status) {
+        int count = 0;
+        for (String id : ids) {
+          count += delete(id);
+        }
+        return count;
+      }
+    });
+  }
+
+  @Override
+  public int deleteByContext(@NotNull final String context) {
+    Assert.hasText(context, "Context cannot be empty.");
+
+    int count = getTransactionTemplate().execute(new TransactionCallback<Integer>() {
+
+      @Override
+      public Integer doInTransaction(TransactionStatus status) {
+        JdbcTemplate jdbc = getJdbcTemplate();
+        Map<String, ContextUsage> usage = selectUsage(SqlConstants.SELECT_USAGE_BY_CONTEXT, context);
+        for (Long bucket : jdbc.queryForList(SqlConstants.SELECT_BUCKETS_BY_CONTEXT, Long.class, context)) {
+          if (bucket != null) {
+            jdbc.update(bucketSql(SqlConstants.DELETE_CONTEXT_FROM_BUCKET_TABLE, bucket), context, bucket);
+          }
+        }
+        int count = jdbc.update(SqlConstants.DELETE_BY_CONTEXT, context);
+        releaseUsage(usage, count);
+        return count;
+      }
+    });
+    if (count > 1) {
+      logger.debug("Deleted {} files with context '{}'.", count, context);
+    }
+    return count;
+  }
+
+  /**
+   * Deletes the metadata of expired files and drops the buckets that have passed.
+   */
+  @Override
+  public int deleteExpired() {
+    int count = super.deleteExpired();
+    dropExpiredBuckets();
+    return count;
+  }
+
+  /**
+   * Deletes the metadata of at most the given number of expired files and drops the buckets that have passed and are
+   * no longer referred to.
+   */
+  @NotNull
+  @Override
+  public DeletionResult deleteExpired(int limit) {
+    DeletionResult result = super.deleteExpired(limit);
+    dropExpiredBuckets();
+    return result;
+  }
+
+  @Override
+  public int deleteAll() {
+    int count = super.deleteAll();
+    for (Long bucket : getJdbcTemplate().queryForList(SqlConstants.SELECT_BUCKETS, Long.class)) {
+      dropBucket(bucket);
+    }
+    return count;
+  }
+
+  /**
+   * Drops the buckets whose period has passed, unless files still refer to them. This is only the case if not all
+   * expired files have been deleted yet.
+   */
+  private void dropExpiredBuckets() {
+    long current = getBucket(System.currentTimeMillis());
+    JdbcTemplate jdbc = getJdbcTemplate();
+    for (Long bucket : jdbc.queryForList(SqlConstants.SELECT_BUCKETS_BEFORE, Long.class, current)) {
+      if (jdbc.queryForObject(SqlConstants.COUNT_BY_BUCKET, Integer.class, bucket) == 0) {
+        dropBucket(bucket);
+      }
+    }
+  }
+
+  private void dropBucket(long bucket) {
+    buckets.remove(bucket);
+    if (getJdbcTemplate().update(SqlConstants.DELETE_BUCKET, bucket) == 0) {
+      // Dropped by another instance.
+      return;
+    }
+    try {
+      getJdbcTemplate().execute(bucketSql(SqlConstants.DROP_BUCKET_TABLE, bucket));
+      logger.debug("Dropped bucket {}.", bucket);
+    } catch (DataAccessException e) {
+      logger.warn("Could not drop bucket table '{}'.", getBucketTable(bucket), e);
+    }
+  }
+
+  /* Utility */
+
+  /**
+   * Obtains the bucket covering the given expiration date.
+   */
+  long getBucket(long expiresAt) {
+    return expiresAt / (bucketWidth * 1000L);
+  }
+
+  @NotNull
+  static String getBucketTable(long bucket) {
+    return BUCKET_TABLE_PREFIX + bucket;
+  }
+
+  @NotNull
+  private static String bucketSql(@NotNull String sql, long bucket) {
+    return String.format(sql, getBucketTable(bucket));
+  }
+
+  @Nullable
+  private Long findBucket(@NotNull String id) {
+    List<Long> result = getJdbcTemplate().queryForList(SqlConstants.SELECT_BUCKET_BY_ID, Long.class, id);
+    return result.isEmpty() ? null : result.get(0);
+  }
+
+  /**
+   * Creates a bucket table if it does not exist yet. Another instance may be creating the same bucket concurrently.
+   */
+  private void ensureBucket(long bucket) {
+    if (buckets.contains(bucket)) {
+      return;
+    }
+    JdbcTemplate jdbc = getJdbcTemplate();
+    try {
+      jdbc.execute(bucketSql(SqlConstants.CREATE_BUCKET_TABLE, bucket));
+      logger.debug("Created bucket {}.", bucket);
+    } catch (DataAccessException e) {
+      try {
+        jdbc.queryForObject(bucketSql(SqlConstants.PROBE_BUCKET_TABLE, bucket), Integer.class);
+      } catch (DataAccessException ignored) {
+        throw e;
+      }
+    }
+    try {
+      jdbc.update(SqlConstants.INSERT_INTO_BUCKET, bucket);
+    } catch (DataIntegrityViolationException ignored) {
+      // Registered by another instance.
+    }
+    buckets.add(bucket);
+  }
+
+  @Override
+  public void afterPropertiesSet() throws Exception {
+    Assert.state(!isDeduplicate() && !isChunked(),
+        "Deduplication and chunked storage are not supported when storing content in buckets.");
+    super.afterPropertiesSet();
+    buckets.addAll(getJdbcTemplate().queryForList(SqlConstants.SELECT_BUCKETS, Long.class));
+  }
+
+  /* Configuration */
+
+  /**
+   * Sets the period in seconds covered by each bucket.
+   */
+  public void setBucketWidth(int bucketWidth) {
+    Assert.isTrue(bucketWidth > 0, "Bucket width must be greater than 0.");
+    this.bucketWidth = bucketWidth;
+  }
+
+  protected int getBucketWidth() {
+    return bucketWidth;
+  }
+}
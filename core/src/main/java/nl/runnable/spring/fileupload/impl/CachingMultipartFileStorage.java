@@ -0,0 +1,585 @@
+package nl.runnable.spring.fileupload.impl;
+
+import nl.runnable.spring.fileupload.ContextUsage;
+import nl.runnable.spring.fileupload.DeletionResult;
+import nl.runnable.spring.fileupload.MultipartFileInfo;
+import nl.runnable.spring.fileupload.MultipartFileStorage;
+import nl.runnable.spring.fileupload.StoredMultipartFile;
+import nl.runnable.spring.fileupload.StoredMultipartFileCallback;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.util.Assert;
+import org.springframework.web.multipart.MultipartFile;
+
+import javax.sql.DataSource;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@link MultipartFileStorage} decorator that caches the results of {@link #find(String)} and
+ * {@link #findByContext(String)}.
+ * <p>
+ * Only file metadata is cached; content is still read from the underlying storage. The cache holds at most
+ * {@link #setMaxEntries(int) a given number} of files and contexts, evicting the least recently used ones. An entry is
+ * kept for at most {@link #setCacheTimeToLive(int) the cache's time-to-live} and never beyond the expiration date of the
+ * file itself. Entries are invalidated by all operations that modify files through this decorator.
+ * </p>
+ * <p>
+ * When several application instances share the same database, modifications made by one instance are published to
+ * the others through the {@code sfus_change_log} table, if {@link #setChangeLogDataSource(DataSource) a data source} is
+ * configured. Each instance reads the change log at most once per {@link #setPollInterval(int) poll interval}, before
+ * consulting its cache. Changes are therefore visible to other instances after at most the poll interval.
+ * </p>
+ *
+ * @author Laurens Fridael
+ */
+public class CachingMultipartFileStorage implements MultipartFileStorage {
+
+  private final Logger logger = LoggerFactory.getLogger(getClass());
+
+  /* Dependencies */
+
+  private final MultipartFileStorage storage;
+
+  private JdbcTemplate changeLog;
+
+  /* Configuration */
+
+  @Value("${spring-file-upload-storage.cache.maxEntries:1000}")
+  private int maxEntries = 1000;
+
+  @Value("${spring-file-upload-storage.cache.timeToLive:60}")
+  private int cacheTimeToLive = 60;
+
+  @Value("${spring-file-upload-storage.cache.pollInterval:1}")
+  private int pollInterval = 1;
+
+  @Value("${spring-file-upload-storage.cache.clockSkew:5}")
+  private int clockSkew = 5;
+
+  @Value("${spring-file-upload-storage.cache.changeLogRetention:3600}")
+  private int changeLogRetention = 3600;
+
+  /* State */
+
+  private final Map<String, CachedFile> files = new LinkedHashMap<String, CachedFile>(16, 0.75f, true) {
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, CachedFile> eldest) {
+      return size() > maxEntries;
+    }
+  };
+
+  private final Map<String, CachedContext> contexts = new LinkedHashMap<String, CachedContext>(16, 0.75f, true) {
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, CachedContext> eldest) {
+      return size() > maxEntries;
+    }
+  };
+
+  /**
+   * Incremented on every invalidation, so that results loaded concurrently with a modification are not cached.
+   */
+  private long generation = 0;
+
+  private final Object pollLock = new Object();
+
+  private long lastPolledAt = System.currentTimeMillis();
+
+  private long nextPollAt = 0;
+
+  public CachingMultipartFileStorage(@NotNull MultipartFileStorage storage) {
+    Assert.notNull(storage);
+    this.storage = storage;
+  }
+
+  /* Main operations */
+
+  @NotNull
+  @Override
+  public String save(@NotNull MultipartFile file, int timeToLiveInSeconds, @Nullable String context,
+                     @Nullable String metadata) {
+    String id = storage.save(file, timeToLiveInSeconds, context, metadata);
+    changed(id, context);
+    return id;
+  }
+
+  /**
+   * Saves files with new IDs, which are never cached, so only the context needs to be invalidated.
+   */
+  @NotNull
+  @Override
+  public List<String> saveAll(@NotNull List<? extends MultipartFile> files, int timeToLiveInSeconds,
+                              @Nullable String context, @Nullable String metadata) {
+    List<String> ids = storage.saveAll(files, timeToLiveInSeconds, context, metadata);
+    if (context != null && !ids.isEmpty()) {
+      changed(ids.get(0), context);
+    }
+    return ids;
+  }
+
+  @Override
+  public void save(@NotNull MultipartFile file, @NotNull String id, int timeToLiveInSeconds,
+                   @Nullable String context, @Nullable String metadata) {
+    storage.save(file, id, timeToLiveInSeconds, context, metadata);
+    changed(id, context);
+  }
+
+  @Nullable
+  @Override
+  public StoredMultipartFile find(@NotNull String id) {
+    Assert.hasText(id, "File ID cannot be empty.");
+
+    pollChangeLog();
+    long loadedGeneration;
+    synchronized (this) {
+      CachedFile cached = files.get(id);
+      if (cached != null && cached.isValid(System.currentTimeMillis())) {
+        return cached.file;
+      }
+      loadedGeneration = generation;
+    }
+    StoredMultipartFile file = storage.find(id);
+    if (file != null) {
+      synchronized (this) {
+        if (generation == loadedGeneration) {
+          files.put(id, new CachedFile(file, getCachedUntil(file)));
+        }
+      }
+    }
+    return file;
+  }
+
+  @NotNull
+  @Override
+  public List<StoredMultipartFile> findByContext(@NotNull String context) {
+    Assert.hasText(context, "Context cannot be empty.");
+
+    pollChangeLog();
+    long loadedGeneration;
+    synchronized (this) {
+      List<StoredMultipartFile> cachedFiles = getCachedContext(context, System.currentTimeMillis());
+      if (cachedFiles != null) {
+        return cachedFiles;
+      }
+      loadedGeneration = generation;
+    }
+    List<StoredMultipartFile> contextFiles = storage.findByContext(context);
+    synchronized (this) {
+      if (generation == loadedGeneration) {
+        long cachedUntil = System.currentTimeMillis() + cacheTimeToLive * 1000L;
+        List<String> ids = new ArrayList<String>(contextFiles.size());
+        for (StoredMultipartFile file : contextFiles) {
+          long fileCachedUntil = getCachedUntil(file);
+          files.put(file.getId(), new CachedFile(file, fileCachedUntil));
+          ids.add(file.getId());
+          cachedUntil = Math.min(cachedUntil, fileCachedUntil);
+        }
+        contexts.put(context, new CachedContext(ids, cachedUntil));
+      }
+    }
+    return contextFiles;
+  }
+
+  /**
+   * Obtains the files of a cached context.
+   *
+   * @return The files or {@code null} if the context, or any of its files, is not cached.
+   */
+  @Nullable
+  private List<StoredMultipartFile> getCachedContext(@NotNull String context, long now) {
+    CachedContext cached = contexts.get(context);
+    if (cached == null || !cached.isValid(now)) {
+      return null;
+    }
+    List<StoredMultipartFile> contextFiles = new ArrayList<StoredMultipartFile>(cached.ids.size());
+    for (String id : cached.ids) {
+      CachedFile file = files.get(id);
+      if (file == null || !file.isValid(now)) {
+        return null;
+      }
+      contextFiles.add(file.file);
+    }
+    return contextFiles;
+  }
+
+  /**
+   * Obtains a page from the underlying storage. Pages are not cached, as they are typically used to walk through
+   * contexts that are too large to cache.
+   */
+  @NotNull
+  @Override
+  public List<StoredMultipartFile> findByContext(@NotNull String context, @Nullable StoredMultipartFile after,
+                                                int limit) {
+    return storage.findByContext(context, after, limit);
+  }
+
+  @Override
+  public int forEachByContext(@NotNull String context, @NotNull StoredMultipartFileCallback callback) {
+    return storage.forEachByContext(context, callback);
+  }
+
+  /**
+   * Obtains cached files and loads the others from the underlying storage using a single lookup.
+   */
+  @NotNull
+  @Override
+  public Map<String, StoredMultipartFile> findAll(@NotNull Collection<String> ids) {
+    Assert.notNull(ids, "IDs cannot be null.");
+
+    pollChangeLog();
+    Map<String, StoredMultipartFile> cachedFiles = new HashMap<String, StoredMultipartFile>(ids.size() * 2);
+    List<String> missingIds = new ArrayList<String>();
+    long loadedGeneration;
+    synchronized (this) {
+      long now = System.currentTimeMillis();
+      for (String id : ids) {
+        Assert.hasText(id, "File ID cannot be empty.");
+        CachedFile cached = files.get(id);
+        if (cached != null && cached.isValid(now)) {
+          cachedFiles.put(id, cached.file);
+        } else {
+          missingIds.add(id);
+        }
+      }
+      loadedGeneration = generation;
+    }
+    if (!missingIds.isEmpty()) {
+      Map<String, StoredMultipartFile> loadedFiles = storage.findAll(missingIds);
+      synchronized (this) {
+        if (generation == loadedGeneration) {
+          for (StoredMultipartFile file : loadedFiles.values()) {
+            files.put(file.getId(), new CachedFile(file, getCachedUntil(file)));
+          }
+        }
+      }
+      cachedFiles.putAll(loadedFiles);
+    }
+    Map<String, StoredMultipartFile> result = new LinkedHashMap<String, StoredMultipartFile>(cachedFiles.size() * 2);
+    for (String id : ids) {
+      StoredMultipartFile file = cachedFiles.get(id);
+      if (file != null) {
+        result.put(id, file);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Obtains the attributes of the files using {@link #findAll(Collection)}, so that cached files are used.
+   */
+  @NotNull
+  @Override
+  public Map<String, MultipartFileInfo> findInfo(@NotNull Collection<String> ids) {
+    Map<String, StoredMultipartFile> found = findAll(ids);
+    Map<String, MultipartFileInfo> infos = new LinkedHashMap<String, MultipartFileInfo>(found.size() * 2);
+    for (StoredMultipartFile file : found.values()) {
+      infos.put(file.getId(), MultipartFileInfo.of(file));
+    }
+    return infos;
+  }
+
+  /**
+   * Obtains the attributes of the files using {@link #findByContext(String)}, so that a cached context is used.
+   */
+  @NotNull
+  @Override
+  public List<MultipartFileInfo> findInfoByContext(@NotNull String context) {
+    List<StoredMultipartFile> contextFiles = findByContext(context);
+    List<MultipartFileInfo> infos = new ArrayList<MultipartFileInfo>(contextFiles.size());
+    for (StoredMultipartFile file : contextFiles) {
+      infos.add(MultipartFileInfo.of(file));
+    }
+    return infos;
+  }
+
+  private long getCachedUntil(@NotNull StoredMultipartFile file) {
+    return Math.min(System.currentTimeMillis() + cacheTimeToLive * 1000L, file.getExpiresAt().getTime());
+  }
+
+  @Nullable
+  @Override
+  public Date setTimeToLive(@NotNull String id, int timeToLiveInSeconds) {
+    Date expiresAt = storage.setTimeToLive(id, timeToLiveInSeconds);
+    changed(id, null);
+    return expiresAt;
+  }
+
+  @Override
+  public int setTimeToLive(@NotNull Collection<String> ids, int timeToLiveInSeconds) {
+    int count = storage.setTimeToLive(ids, timeToLiveInSeconds);
+    changed(ids);
+    return count;
+  }
+
+  @Override
+  public int setTimeToLiveByContext(@NotNull String context, int timeToLiveInSeconds) {
+    int count = storage.setTimeToLiveByContext(context, timeToLiveInSeconds);
+    changed(null, context);
+    return count;
+  }
+
+  @Override
+  public int setMetadata(@NotNull String id, @Nullable String metadata) {
+    int count = storage.setMetadata(id, metadata);
+    changed(id, null);
+    return count;
+  }
+
+  @Override
+  public int delete(@NotNull String id) {
+    int count = storage.delete(id);
+    changed(id, null);
+    return count;
+  }
+
+  @Override
+  public int delete(@NotNull Collection<String> ids) {
+    int count = storage.delete(ids);
+    changed(ids);
+    return count;
+  }
+
+  @Override
+  public int deleteByContext(@NotNull String context) {
+    int count = storage.deleteByContext(context);
+    changed(null, context);
+    return count;
+  }
+
+  /**
+   * Deletes expired files and prunes the change log. Cached files never outlive their expiration date, so deleting
+   * expired files requires no invalidation.
+   */
+  @Override
+  public int deleteExpired() {
+    int count = storage.deleteExpired();
+    pruneChangeLog();
+    return count;
+  }
+
+  /**
+   * Deletes expired files and prunes the change log, like {@link #deleteExpired()}.
+   */
+  @NotNull
+  @Override
+  public DeletionResult deleteExpired(int limit) {
+    DeletionResult result = storage.deleteExpired(limit);
+    pruneChangeLog();
+    return result;
+  }
+
+  @Override
+  public int deleteAll() {
+    int count = storage.deleteAll();
+    changed(null, null);
+    return count;
+  }
+
+  @NotNull
+  @Override
+  public ContextUsage getUsage(@NotNull String context) {
+    return storage.getUsage(context);
+  }
+
+  @Override
+  public int count() {
+    return storage.count();
+  }
+
+  /* Invalidation */
+
+  /**
+   * Invalidates the cache after a modification and publishes the modification to other instances.
+   *
+   * @param id      The ID of the modified file, or {@code null} if the modification applies to a context.
+   * @param context The context of the modified file, if known. If both are {@code null}, all files were modified.
+   */
+  private void changed(@Nullable String id, @Nullable String context) {
+    invalidate(id, context);
+    if (changeLog != null) {
+      changeLog.update(SqlConstants.INSERT_INTO_CHANGE_LOG, id, context, System.currentTimeMillis());
+    }
+  }
+
+  /**
+   * Invalidates the cache after a modification of several files and publishes the modifications in a single batch.
+   */
+  private void changed(@NotNull Collection<String> ids) {
+    List<Object[]> changes = new ArrayList<Object[]>(ids.size());
+    long now = System.currentTimeMillis();
+    for (String id : ids) {
+      invalidate(id, null);
+      changes.add(new Object[]{id, null, now});
+    }
+    if (changeLog != null && !changes.isEmpty()) {
+      changeLog.batchUpdate(SqlConstants.INSERT_INTO_CHANGE_LOG, changes);
+    }
+  }
+
+  private synchronized void invalidate(@Nullable String id, @Nullable String context) {
+    generation++;
+    if (id == null && context == null) {
+      files.clear();
+      contexts.clear();
+      return;
+    }
+    if (id != null) {
+      // Contexts that contain the file are reloaded, as the file is no longer cached.
+      files.remove(id);
+    }
+    if (context != null) {
+      CachedContext cached = contexts.remove(context);
+      if (id == null && cached != null) {
+        for (String contextId : cached.ids) {
+          files.remove(contextId);
+        }
+      }
+    }
+  }
+
+  /**
+   * Applies modifications made by other instances, at most once per poll interval.
+   * <p>
+   * Each poll reads the changes since the previous poll, minus the tolerated clock skew between instances. Changes may
+   * therefore be applied more than once, which is harmless.
+   * </p>
+   */
+  private void pollChangeLog() {
+    if (changeLog == null) {
+      return;
+    }
+    long since;
+    synchronized (pollLock) {
+      long now = System.currentTimeMillis();
+      if (now < nextPollAt) {
+        return;
+      }
+      nextPollAt = now + pollInterval * 1000L;
+      since = lastPolledAt - clockSkew * 1000L;
+      lastPolledAt = now;
+      if (since < now - changeLogRetention * 1000L) {
+        // Changes may have been pruned since the last poll.
+        logger.debug("Change log not polled for more than {} seconds, clearing cache.", changeLogRetention);
+        invalidate(null, null);
+        return;
+      }
+    }
+    changeLog.query(SqlConstants.SELECT_CHANGES_SINCE, new RowCallbackHandler() {
+
+      @Override
+      public void processRow(ResultSet rs) throws SQLException {
+        invalidate(rs.getString("file_id"), rs.getString("context"));
+      }
+    }, since);
+  }
+
+  private void pruneChangeLog() {
+    if (changeLog != null) {
+      changeLog.update(SqlConstants.DELETE_CHANGES_BEFORE, System.currentTimeMillis() - changeLogRetention * 1000L);
+    }
+  }
+
+  /**
+   * Clears the cache.
+   */
+  public void clear() {
+    invalidate(null, null);
+  }
+
+  /* Utility */
+
+  private static class CachedFile {
+
+    final StoredMultipartFile file;
+
+    final long cachedUntil;
+
+    CachedFile(@NotNull StoredMultipartFile file, long cachedUntil) {
+      this.file = file;
+      this.cachedUntil = cachedUntil;
+    }
+
+    boolean isValid(long now) {
+      return now < cachedUntil;
+    }
+  }
+
+  private static class CachedContext {
+
+    final List<String> ids;
+
+    final long cachedUntil;
+
+    CachedContext(@NotNull List<String> ids, long cachedUntil) {
+      this.ids = ids;
+      this.cachedUntil = cachedUntil;
+    }
+
+    boolean isValid(long now) {
+      return now < cachedUntil;
+    }
+  }
+
+  /* Dependencies */
+
+  /**
+   * Sets the data source holding the {@code sfus_change_log} table, enabling invalidation across application
+   * instances. This is typically the same data source as that of the underlying storage.
+   */
+  public void setChangeLogDataSource(@Nullable DataSource dataSource) {
+    this.changeLog = dataSource != null ? new JdbcTemplate(dataSource) : null;
+  }
+
+  /* Configuration */
+
+  /**
+   * Sets the maximum number of files, and separately the maximum number of contexts, to cache.
+   */
+  public void setMaxEntries(int maxEntries) {
+    Assert.isTrue(maxEntries > 0, "Maximum entries must be greater than 0.");
+    this.maxEntries = maxEntries;
+  }
+
+  /**
+   * Sets the maximum time in seconds to cache an entry.
+   */
+  public void setCacheTimeToLive(int cacheTimeToLive) {
+    Assert.isTrue(cacheTimeToLive > 0, "Cache time to live must be greater than 0.");
+    this.cacheTimeToLive = cacheTimeToLive;
+  }
+
+  public void setPollInterval(int pollInterval) {
+    Assert.isTrue(pollInterval >= 0, "Poll interval must be greater than or equal to 0.");
+    this.pollInterval = pollInterval;
+  }
+
+  /**
+   * Sets the maximum difference in seconds between the clocks of the application instances.
+   */
+  public void setClockSkew(int clockSkew) {
+    Assert.isTrue(clockSkew >= 0, "Clock skew must be greater than or equal to 0.");
+    this.clockSkew = clockSkew;
+  }
+
+  /**
+   * Sets the time in seconds that changes are kept in the change log. Pruning happens in {@link #deleteExpired()}.
+   */
+  public void setChangeLogRetention(int changeLogRetention) {
+    Assert.isTrue(changeLogRetention > 0, "Change log retention must be greater than 0.");
+    this.changeLogRetention = changeLogRetention;
+  }
+}
@@ -0,0 +1,567 @@
+package nl.runnable.spring.fileupload.impl;
+
+import nl.runnable.spring.fileupload.ContextUsage;
+import nl.runnable.spring.fileupload.DeletionResult;
+import nl.runnable.spring.fileupload.HashedMultipartFile;
+import nl.runnable.spring.fileupload.MultipartFileInfo;
+import nl.runnable.spring.fileupload.MultipartFileStorage;
+import nl.runnable.spring.fileupload.StoredMultipartFile;
+import nl.runnable.spring.fileupload.StoredMultipartFileCallback;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.util.Assert;
+import org.springframework.util.FileCopyUtils;
+import org.springframework.util.ObjectUtils;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link MultipartFileStorage} decorator that caches the content of small files in memory, for files that are
+ * downloaded repeatedly, such as images shown on every page of a multi-page form.
+ * <p>
+ * Files obtained from this storage serve {@link StoredMultipartFile#getBytes()} and the various
+ * {@code getInputStream()} methods from the cache if the file is no larger than
+ * {@link #setMaxFileSize(int) the maximum file size}. The cache holds at most {@link #setMaxSize(long) a given number
+ * of bytes}, evicting the least recently used content. Concurrent requests for content that is not cached yet share a
+ * single read from the underlying storage.
+ * </p>
+ * <p>
+ * Cached content is keyed by file ID and verified against the file's content hash, and is evicted when the file is
+ * deleted through this storage.
+ * </p>
+ *
+ * @author Laurens Fridael
+ */
+public class ContentCachingMultipartFileStorage implements MultipartFileStorage {
+
+  private final Logger logger = LoggerFactory.getLogger(getClass());
+
+  /* Dependencies */
+
+  private final MultipartFileStorage storage;
+
+  /* Configuration */
+
+  @Value("${spring-file-upload-storage.contentCache.maxFileSize:262144}")
+  private int maxFileSize = 256 * 1024;
+
+  @Value("${spring-file-upload-storage.contentCache.maxSize:16777216}")
+  private long maxSize = 16 * 1024 * 1024;
+
+  /* State */
+
+  /**
+   * Cached content in least recently used order.
+   */
+  private final LinkedHashMap<String, CachedContent> contents = new LinkedHashMap<String, CachedContent>(16, 0.75f,
+      true);
+
+  private long size = 0;
+
+  private final ConcurrentMap<String, FutureTask<byte[]>> loads = new ConcurrentHashMap<String, FutureTask<byte[]>>();
+
+  private final AtomicLong hitCount = new AtomicLong();
+
+  private final AtomicLong missCount = new AtomicLong();
+
+  private final AtomicLong loadCount = new AtomicLong();
+
+  private final AtomicLong evictionCount = new AtomicLong();
+
+  public ContentCachingMultipartFileStorage(@NotNull MultipartFileStorage storage) {
+    Assert.notNull(storage);
+    this.storage = storage;
+  }
+
+  /* Main operations */
+
+  @NotNull
+  @Override
+  public String save(@NotNull MultipartFile file, int timeToLiveInSeconds, @Nullable String context,
+                     @Nullable String metadata) {
+    return storage.save(file, timeToLiveInSeconds, context, metadata);
+  }
+
+  @NotNull
+  @Override
+  public List<String> saveAll(@NotNull List<? extends MultipartFile> files, int timeToLiveInSeconds,
+                              @Nullable String context, @Nullable String metadata) {
+    return storage.saveAll(files, timeToLiveInSeconds, context, metadata);
+  }
+
+  @Override
+  public void save(@NotNull MultipartFile file, @NotNull String id, int timeToLiveInSeconds,
+                   @Nullable String context, @Nullable String metadata) {
+    storage.save(file, id, timeToLiveInSeconds, context, metadata);
+  }
+
+  @Nullable
+  @Override
+  public StoredMultipartFile find(@NotNull String id) {
+    StoredMultipartFile file = storage.find(id);
+    return file != null ? new ContentCachingMultipartFile(file) : null;
+  }
+
+  @NotNull
+  @Override
+  public List<StoredMultipartFile> findByContext(@NotNull String context) {
+    List<StoredMultipartFile> files = storage.findByContext(context);
+    List<StoredMultipartFile> cachingFiles = new ArrayList<StoredMultipartFile>(files.size());
+    for (StoredMultipartFile file : files) {
+      cachingFiles.add(new ContentCachingMultipartFile(file));
+    }
+    return cachingFiles;
+  }
+
+  @NotNull
+  @Override
+  public List<StoredMultipartFile> findByContext(@NotNull String context, @Nullable StoredMultipartFile after,
+                                                int limit) {
+    List<StoredMultipartFile> files = storage.findByContext(context, after, limit);
+    List<StoredMultipartFile> cachingFiles = new ArrayList<StoredMultipartFile>(files.size());
+    for (StoredMultipartFile file : files) {
+      cachingFiles.add(new ContentCachingMultipartFile(file));
+    }
+    return cachingFiles;
+  }
+
+  @Override
+  public int forEachByContext(@NotNull String context, @NotNull final StoredMultipartFileCallback callback) {
+    Assert.notNull(callback, "Callback cannot be null.");
+
+    return storage.forEachByContext(context, new StoredMultipartFileCallback() {
+
+      @Override
+      public void doWithFile(@NotNull StoredMultipartFile file) {
+        callback.doWithFile(new ContentCachingMultipartFile(file));
+      }
+    });
+  }
+
+  @NotNull
+  @Override
+  public Map<String, StoredMultipartFile> findAll(@NotNull Collection<String> ids) {
+    Map<String, StoredMultipartFile> files = storage.findAll(ids);
+    Map<String, StoredMultipartFile> cachingFiles = new LinkedHashMap<String, StoredMultipartFile>(files.size() * 2);
+    for (StoredMultipartFile file : files.values()) {
+      cachingFiles.put(file.getId(), new ContentCachingMultipartFile(file));
+    }
+    return cachingFiles;
+  }
+
+  @NotNull
+  @Override
+  public Map<String, MultipartFileInfo> findInfo(@NotNull Collection<String> ids) {
+    return storage.findInfo(ids);
+  }
+
+  @NotNull
+  @Override
+  public List<MultipartFileInfo> findInfoByContext(@NotNull String context) {
+    return storage.findInfoByContext(context);
+  }
+
+  @Nullable
+  @Override
+  public Date setTimeToLive(@NotNull String id, int timeToLiveInSeconds) {
+    return storage.setTimeToLive(id, timeToLiveInSeconds);
+  }
+
+  @Override
+  public int setTimeToLive(@NotNull Collection<String> ids, int timeToLiveInSeconds) {
+    return storage.setTimeToLive(ids, timeToLiveInSeconds);
+  }
+
+  @Override
+  public int setTimeToLiveByContext(@NotNull String context, int timeToLiveInSeconds) {
+    return storage.setTimeToLiveByContext(context, timeToLiveInSeconds);
+  }
+
+  @Override
+  public int setMetadata(@NotNull String id, @Nullable String metadata) {
+    return storage.setMetadata(id, metadata);
+  }
+
+  @Override
+  public int delete(@NotNull String id) {
+    int count = storage.delete(id);
+    evict(id);
+    return count;
+  }
+
+  @Override
+  public int delete(@NotNull Collection<String> ids) {
+    int count = storage.delete(ids);
+    for (String id : ids) {
+      evict(id);
+    }
+    return count;
+  }
+
+  @Override
+  public int deleteByContext(@NotNull String context) {
+    int count = storage.deleteByContext(context);
+    synchronized (this) {
+      for (Iterator<CachedContent> it = contents.values().iterator(); it.hasNext(); ) {
+        CachedContent content = it.next();
+        if (context.equals(content.context)) {
+          it.remove();
+          size -= content.bytes.length;
+        }
+      }
+    }
+    return count;
+  }
+
+  @Override
+  public int deleteExpired() {
+    int count = storage.deleteExpired();
+    removeExpired();
+    return count;
+  }
+
+  @NotNull
+  @Override
+  public DeletionResult deleteExpired(int limit) {
+    DeletionResult result = storage.deleteExpired(limit);
+    removeExpired();
+    return result;
+  }
+
+  @Override
+  public int deleteAll() {
+    int count = storage.deleteAll();
+    synchronized (this) {
+      contents.clear();
+      size = 0;
+    }
+    return count;
+  }
+
+  @NotNull
+  @Override
+  public ContextUsage getUsage(@NotNull String context) {
+    return storage.getUsage(context);
+  }
+
+  @Override
+  public int count() {
+    return storage.count();
+  }
+
+  /* Content caching */
+
+  /**
+   * Obtains the content of a small file, loading it from the underlying storage if it is not cached. Concurrent
+   * requests for the same file wait for a single load.
+   */
+  @NotNull
+  byte[] getContent(@NotNull final StoredMultipartFile file) throws IOException {
+    final String id = file.getId();
+    byte[] cached = getCached(file);
+    if (cached != null) {
+      hitCount.incrementAndGet();
+      return cached;
+    }
+    missCount.incrementAndGet();
+
+    FutureTask<byte[]> load = new FutureTask<byte[]>(new Callable<byte[]>() {
+
+      @Override
+      public byte[] call() throws Exception {
+        // A load that completed after the cache was checked has already cached the content.
+        byte[] loaded = getCached(file);
+        if (loaded != null) {
+          return loaded;
+        }
+        loadCount.incrementAndGet();
+        byte[] bytes = FileCopyUtils.copyToByteArray(file.getInputStream());
+        put(file, bytes);
+        return bytes;
+      }
+    });
+    FutureTask<byte[]> pending = loads.putIfAbsent(id, load);
+    if (pending == null) {
+      try {
+        load.run();
+      } finally {
+        loads.remove(id, load);
+      }
+      pending = load;
+    }
+    try {
+      return pending.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while loading file content.");
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new IOException("Could not load file content.", e.getCause());
+    }
+  }
+
+  @Nullable
+  private synchronized byte[] getCached(@NotNull StoredMultipartFile file) {
+    CachedContent content = contents.get(file.getId());
+    if (content == null) {
+      return null;
+    }
+    if (!ObjectUtils.nullSafeEquals(content.contentHash, getContentHash(file))) {
+      contents.remove(file.getId());
+      size -= content.bytes.length;
+      return null;
+    }
+    return content.bytes;
+  }
+
+  private synchronized void put(@NotNull StoredMultipartFile file, @NotNull byte[] bytes) {
+    CachedContent previous = contents.put(file.getId(), new CachedContent(bytes, getContentHash(file),
+        file.getContext(), file.getExpiresAt().getTime()));
+    if (previous != null) {
+      size -= previous.bytes.length;
+    }
+    size += bytes.length;
+    for (Iterator<Map.Entry<String, CachedContent>> it = contents.entrySet().iterator(); size > maxSize; ) {
+      Map.Entry<String, CachedContent> eldest = it.next();
+      it.remove();
+      size -= eldest.getValue().bytes.length;
+      evictionCount.incrementAndGet();
+      logger.debug("Evicted content of file '{}' from cache.", eldest.getKey());
+    }
+  }
+
+  private synchronized void evict(@NotNull String id) {
+    CachedContent content = contents.remove(id);
+    if (content != null) {
+      size -= content.bytes.length;
+    }
+  }
+
+  boolean isCacheable(@NotNull StoredMultipartFile file) {
+    return file.getSize() <= maxFileSize && file.getSize() <= maxSize;
+  }
+
+  /* Statistics */
+
+  /**
+   * Obtains the number of content requests served from the cache.
+   */
+  public long getHitCount() {
+    return hitCount.get();
+  }
+
+  /**
+   * Obtains the number of content requests for cacheable files that were not served from the cache.
+   */
+  public long getMissCount() {
+    return missCount.get();
+  }
+
+  /**
+   * Obtains the number of times content was read from the underlying storage. This is at most the miss count, as
+   * concurrent misses for the same file share a single read.
+   */
+  public long getLoadCount() {
+    return loadCount.get();
+  }
+
+  /**
+   * Obtains the number of cached items evicted to stay within the maximum size.
+   */
+  public long getEvictionCount() {
+    return evictionCount.get();
+  }
+
+  /**
+   * Obtains the number of bytes currently cached.
+   */
+  public synchronized long getSize() {
+    return size;
+  }
+
+  /* Utility */
+
+  @Nullable
+  private static String getContentHash(@NotNull StoredMultipartFile file) {
+    return file instanceof HashedMultipartFile ? ((HashedMultipartFile) file).getContentHash() : null;
+  }
+
+  private synchronized void removeExpired() {
+    long now = System.currentTimeMillis();
+    for (Iterator<CachedContent> it = contents.values().iterator(); it.hasNext(); ) {
+      CachedContent content = it.next();
+      if (content.expiresAt <= now) {
+        it.remove();
+        size -= content.bytes.length;
+      }
+    }
+  }
+
+  private static class CachedContent {
+
+    final byte[] bytes;
+
+    final String contentHash;
+
+    final String context;
+
+    final long expiresAt;
+
+    CachedContent(@NotNull byte[] bytes, @Nullable String contentHash, @Nullable String context, long expiresAt) {
+      this.bytes = bytes;
+      this.contentHash = contentHash;
+      this.context = context;
+      this.expiresAt = expiresAt;
+    }
+  }
+
+  /**
+   * Serves the content of small files from the cache, delegating everything else to the underlying file.
+   */
+  private class ContentCachingMultipartFile extends AbstractStoredMultipartFile implements HashedMultipartFile {
+
+    private final StoredMultipartFile file;
+
+    ContentCachingMultipartFile(@NotNull StoredMultipartFile file) {
+      this.file = file;
+    }
+
+    @NotNull
+    @Override
+    public String getId() {
+      return file.getId();
+    }
+
+    @Override
+    public String getName() {
+      return file.getName();
+    }
+
+    @Override
+    public String getOriginalFilename() {
+      return file.getOriginalFilename();
+    }
+
+    @Override
+    public String getContentType() {
+      return file.getContentType();
+    }
+
+    @Override
+    public boolean isEmpty() {
+      return file.isEmpty();
+    }
+
+    @Override
+    public long getSize() {
+      return file.getSize();
+    }
+
+    @Nullable
+    @Override
+    public String getContentHash() {
+      return ContentCachingMultipartFileStorage.getContentHash(file);
+    }
+
+    @Override
+    public byte[] getBytes() throws IOException {
+      return isCacheable(file) ? getContent(file).clone() : file.getBytes();
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+      return isCacheable(file) ? new ByteArrayInputStream(getContent(file)) : file.getInputStream();
+    }
+
+    @NotNull
+    @Override
+    public InputStream getInputStream(long position, long length) throws IOException {
+      if (!isCacheable(file)) {
+        return getInputStream(file, position, length);
+      }
+      Assert.isTrue(position >= 0, "Position cannot be less than 0.");
+      Assert.isTrue(length >= 0, "Length cannot be less than 0.");
+      byte[] content = getContent(file);
+      int offset = (int) Math.min(position, content.length);
+      return new ByteArrayInputStream(content, offset, (int) Math.min(length, content.length - offset));
+    }
+
+    @Override
+    public void transferTo(File dest) throws IOException, IllegalStateException {
+      if (isCacheable(file)) {
+        FileCopyUtils.copy(getContent(file), new FileOutputStream(dest));
+      } else {
+        file.transferTo(dest);
+      }
+    }
+
+    @Nullable
+    @Override
+    public String getContext() {
+      return file.getContext();
+    }
+
+    @Nullable
+    @Override
+    public String getMetadata() {
+      return file.getMetadata();
+    }
+
+    @NotNull
+    @Override
+    public Date getCreatedAt() {
+      return file.getCreatedAt();
+    }
+
+    @NotNull
+    @Override
+    public Date getExpiresAt() {
+      return file.getExpiresAt();
+    }
+  }
+
+  /* Configuration */
+
+  /**
+   * Sets the size in bytes up to which file content is cached.
+   */
+  public void setMaxFileSize(int maxFileSize) {
+    Assert.isTrue(maxFileSize >= 0, "Maximum file size cannot be less than 0.");
+    this.maxFileSize = maxFileSize;
+  }
+
+  /**
+   * Sets the maximum number of bytes to cache.
+   */
+  public void setMaxSize(long maxSize) {
+    Assert.isTrue(maxSize >= 0, "Maximum size cannot be less than 0.");
+    this.maxSize = maxSize;
+  }
+}
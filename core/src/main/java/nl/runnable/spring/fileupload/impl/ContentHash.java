@@ -0,0 +1,58 @@
+package nl.runnable.spring.fileupload.impl;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.InputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Computes the SHA-256 content hashes stored alongside files.
+ *
+ * @author Laurens Fridael
+ */
+abstract class ContentHash {
+
+  static final String ALGORITHM = "SHA-256";
+
+  private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+  /**
+   * Wraps a stream so that the hash is computed as the stream is read.
+   *
+   * @see #toHex(DigestInputStream)
+   */
+  @NotNull
+  static DigestInputStream digesting(@NotNull InputStream in) {
+    return new DigestInputStream(in, newMessageDigest());
+  }
+
+  /**
+   * Obtains the hash of the bytes read from the given stream so far.
+   */
+  @NotNull
+  static String toHex(@NotNull DigestInputStream in) {
+    return toHex(in.getMessageDigest().digest());
+  }
+
+  @NotNull
+  static String toHex(@NotNull byte[] digest) {
+    char[] hex = new char[digest.length * 2];
+    for (int i = 0; i < digest.length; i++) {
+      hex[i * 2] = HEX_DIGITS[(digest[i] >> 4) & 0xf];
+      hex[i * 2 + 1] = HEX_DIGITS[digest[i] & 0xf];
+    }
+    return new String(hex);
+  }
+
+  @NotNull
+  static MessageDigest newMessageDigest() {
+    try {
+      return MessageDigest.getInstance(ALGORITHM);
+    } catch (NoSuchAlgorithmException e) {
+      // Every Java platform implementation is required to support SHA-256.
+      throw new IllegalStateException(e);
+    }
+  }
+}
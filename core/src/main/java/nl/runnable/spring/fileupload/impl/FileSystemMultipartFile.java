@@ -0,0 +1,50 @@
+package nl.runnable.spring.fileupload.impl;
+
+import nl.runnable.spring.fileupload.FileBackedMultipartFile;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * @author Laurens Fridael
+ */
+class FileSystemMultipartFile extends JdbcMultipartFile implements FileBackedMultipartFile {
+
+  private final FileSystemMultipartFileStorage storage;
+
+  FileSystemMultipartFile(@NotNull FileSystemMultipartFileStorage storage) {
+    super(storage);
+    this.storage = storage;
+  }
+
+  @NotNull
+  @Override
+  public File getFile() {
+    return storage.getContentFile(getId());
+  }
+
+  @Override
+  public void transferTo(File dest) throws IOException, IllegalStateException {
+    FileInputStream in = new FileInputStream(getFile());
+    try {
+      FileOutputStream out = new FileOutputStream(dest);
+      try {
+        FileChannel source = in.getChannel();
+        FileChannel target = out.getChannel();
+        long size = source.size();
+        long position = 0;
+        while (position < size) {
+          position += source.transferTo(position, size - position, target);
+        }
+      } finally {
+        out.close();
+      }
+    } finally {
+      in.close();
+    }
+  }
+}
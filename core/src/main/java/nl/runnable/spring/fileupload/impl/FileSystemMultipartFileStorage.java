@@ -0,0 +1,369 @@
+package nl.runnable.spring.fileupload.impl;
+
+import nl.runnable.spring.fileupload.ContextUsage;
+import nl.runnable.spring.fileupload.DeletionResult;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.util.Assert;
+import org.springframework.util.FileSystemUtils;
+import org.springframework.util.StringUtils;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.security.DigestInputStream;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@link nl.runnable.spring.fileupload.MultipartFileStorage} implementation that keeps file content in a directory on
+ * the local filesystem and everything else, such as the context, metadata and expiration date, in the database.
+ * <p>
+ * Content is stored in a directory tree sharded by the SHA-256 hash of the file ID, for example
+ * {@code 3f/a2/3fa2...}, which keeps directories small. Content is written to a temporary file first and only moved
+ * into place once the file's row has been inserted. Content is read using {@link FileChannel}s, and files obtained from
+ * this storage implement {@link nl.runnable.spring.fileupload.FileBackedMultipartFile}, so they can be served without
+ * copying their content through the heap.
+ * </p>
+ * <p>
+ * Deduplication and chunked storage do not apply to this implementation. The database tables should not be shared
+ * with a {@link JdbcMultipartFileStorage}.
+ * </p>
+ *
+ * @author Laurens Fridael
+ */
+public class FileSystemMultipartFileStorage extends JdbcMultipartFileStorage {
+
+  private static final String TEMP_FILE_PREFIX = "upload-";
+
+  private static final String TEMP_FILE_SUFFIX = ".tmp";
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private final Logger logger = LoggerFactory.getLogger(getClass());
+
+  /* Configuration */
+
+  @Value("${spring-file-upload-storage.fileSystem.directory:}")
+  private String directory;
+
+  /* Main operations */
+
+  @Override
+  void saveFile(@NotNull MultipartFile file, @NotNull String id, @Nullable String context,
+                @Nullable String metadata, @NotNull Date createdAt, @NotNull Date expiresAt) {
+    File contentFile = getContentFile(id);
+    File shard = contentFile.getParentFile();
+    if (!shard.isDirectory() && !shard.mkdirs() && !shard.isDirectory()) {
+      throw new IllegalStateException(String.format("Could not create directory '%s'.", shard));
+    }
+
+    File tempFile = null;
+    try {
+      tempFile = File.createTempFile(TEMP_FILE_PREFIX, TEMP_FILE_SUFFIX, shard);
+      long size;
+      DigestInputStream data = ContentHash.digesting(file.getInputStream());
+      try {
+        size = write(data, tempFile);
+      } finally {
+        data.close();
+      }
+      Assert.state(size == file.getSize(), "File content changed while it was being saved.");
+      getJdbcTemplate().update(SqlConstants.INSERT_INTO_WITHOUT_DATA, id, file.getName(), file.getOriginalFilename(),
+          file.getContentType(), size, ContentHash.toHex(data), context, metadata, createdAt.getTime(),
+          expiresAt.getTime());
+    } catch (IOException e) {
+      deleteQuietly(tempFile);
+      throw new IllegalStateException(String.format("Could not write content of file '%s'.", id), e);
+    } catch (RuntimeException e) {
+      deleteQuietly(tempFile);
+      throw e;
+    }
+
+    // A leftover file can only exist if deleting it failed earlier, as the ID is unique.
+    if (contentFile.exists()) {
+      deleteQuietly(contentFile);
+    }
+    if (!tempFile.renameTo(contentFile)) {
+      deleteQuietly(tempFile);
+      getJdbcTemplate().update(SqlConstants.DELETE_BY_ID, id);
+      throw new IllegalStateException(String.format("Could not move content of file '%s' to '%s'.", id,
+          contentFile));
+    }
+  }
+
+  /**
+   * Saves the given files one by one, as the content of each file is written to its own file. If saving a file fails,
+   * the files saved before it are deleted again, including their content.
+   */
+  @Override
+  void saveFiles(@NotNull List<? extends MultipartFile> files, @NotNull List<String> ids, @Nullable String context,
+                 @Nullable String metadata, @NotNull Date createdAt, @NotNull Date expiresAt) {
+    List<String> saved = new ArrayList<String>(ids.size());
+    try {
+      for (int i = 0; i < files.size(); i++) {
+        saveFile(files.get(i), ids.get(i), context, metadata, createdAt, expiresAt);
+        saved.add(ids.get(i));
+      }
+    } catch (RuntimeException e) {
+      try {
+        // Quota reserved for the files is released when the caller's transaction is rolled back.
+        deleteFiles(saved, SqlConstants.DELETE_BY_ID, null, false);
+      } catch (RuntimeException ignored) {
+        logger.warn("Could not delete {} file(s) after failing to save them.", saved.size());
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Writes a stream to a file through a {@link FileChannel}.
+   *
+   * @return The number of bytes written.
+   */
+  private static long write(@NotNull InputStream in, @NotNull File file) throws IOException {
+    ReadableByteChannel source = Channels.newChannel(in);
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      FileChannel target = out.getChannel();
+      long position = 0;
+      long count;
+      while ((count = target.transferFrom(source, position, 1024 * 1024)) > 0) {
+        position += count;
+      }
+      return position;
+    } finally {
+      out.close();
+    }
+  }
+
+  @Override
+  public int delete(@NotNull String id) {
+    Assert.hasText(id, "File ID cannot be empty.");
+
+    int count = deleteFiles(Collections.singletonList(id), SqlConstants.DELETE_BY_ID, null, true).size();
+    if (count == 1) {
+      logger.debug("Deleted file '{}'.", id);
+    }
+    return count;
+  }
+
+  @Override
+  int deleteFilesById(@NotNull List<String> ids) {
+    return deleteFiles(ids, SqlConstants.DELETE_BY_ID, null, true).size();
+  }
+
+  @Override
+  public int deleteByContext(@NotNull String context) {
+    Assert.hasText(context, "Context cannot be empty.");
+
+    List<String> ids = getJdbcTemplate().queryForList(SqlConstants.SELECT_ID_BY_CONTEXT, String.class, context);
+    int count = deleteFiles(ids, SqlConstants.DELETE_BY_ID_AND_CONTEXT, context, true).size();
+    if (count > 1) {
+      logger.debug("Deleted {} files with context '{}'.", count, context);
+    }
+    return count;
+  }
+
+  @Override
+  public int deleteExpired() {
+    long now = new Date().getTime();
+    List<String> ids = getJdbcTemplate().queryForList(SqlConstants.SELECT_ID_EXPIRED, String.class, now);
+    int count = deleteFiles(ids, SqlConstants.DELETE_BY_ID_EXPIRED, now, true).size();
+    if (count > 0) {
+      logger.debug("Deleted {} expired files.", count);
+    }
+    return count;
+  }
+
+  @Override
+  public int deleteAll() {
+    int count = getJdbcTemplate().update(SqlConstants.DELETE_ALL);
+    getJdbcTemplate().update(SqlConstants.DELETE_ALL_USAGE);
+    File[] shards = getDirectory().listFiles();
+    if (shards != null) {
+      for (File shard : shards) {
+        FileSystemUtils.deleteRecursively(shard);
+      }
+    }
+    if (count > 0) {
+      logger.debug("Deleted {} files.", count);
+    }
+    return count;
+  }
+
+  /**
+   * Deletes the rows of the given files, followed by the content of the rows that were actually deleted. Each row is
+   * deleted by ID and the given condition, if any, so that files that no longer match are kept. The rows are deleted
+   * and their usage released in a single transaction, and the content once that transaction has been committed.
+   *
+   * @param delete       Statement deleting a file by its ID and the given condition argument.
+   * @param condition    The condition argument or {@code null} if the statement only takes the ID.
+   * @param releaseUsage Whether to subtract the deleted files from the usage of their contexts.
+   * @return The IDs of the files deleted.
+   */
+  @NotNull
+  private List<String> deleteFiles(@NotNull final List<String> ids, @NotNull final String delete,
+                                   @Nullable final Object condition, final boolean releaseUsage) {
+    if (ids.isEmpty()) {
+      return Collections.emptyList();
+    }
+    List<String> deleted = getTransactionTemplate().execute(new TransactionCallback<List<String>>() {
+
+      @Override
+      public List<String> doInTransaction(TransactionStatus status) {
+        Map<String, ContextUsage> usage = releaseUsage ? selectUsageByIds(ids) : null;
+        List<String> deleted = deleteRows(ids, delete, condition);
+        releaseUsage(usage, deleted.size());
+        return deleted;
+      }
+    });
+    deleteContent(deleted);
+    return deleted;
+  }
+
+  /**
+   * Deletes the rows of the given files by ID and the given condition, if any.
+   *
+   * @return The IDs of the rows deleted.
+   */
+  @NotNull
+  private List<String> deleteRows(@NotNull List<String> ids, @NotNull String delete, @Nullable Object condition) {
+    List<Object[]> args = new ArrayList<Object[]>(ids.size());
+    for (String id : ids) {
+      args.add(condition != null ? new Object[]{id, condition} : new Object[]{id});
+    }
+    int[] counts = getJdbcTemplate().batchUpdate(delete, args);
+    List<String> deleted = new ArrayList<String>(ids.size());
+    for (int i = 0; i < counts.length; i++) {
+      // Some drivers report an unknown count for batched statements.
+      if (counts[i] > 0 || counts[i] == Statement.SUCCESS_NO_INFO) {
+        deleted.add(ids.get(i));
+      }
+    }
+    return deleted;
+  }
+
+  private void deleteContent(@NotNull List<String> ids) {
+    for (String id : ids) {
+      deleteQuietly(getContentFile(id));
+    }
+  }
+
+  @NotNull
+  @Override
+  DeletionResult deleteExpiredFiles(@NotNull final List<ExpiredFile> files, final long now) {
+    final List<String> ids = new ArrayList<String>(files.size());
+    final Map<String, ExpiredFile> filesById = new HashMap<String, ExpiredFile>(files.size());
+    for (ExpiredFile file : files) {
+      ids.add(file.id);
+      filesById.put(file.id, file);
+    }
+    List<ExpiredFile> deletedFiles = getTransactionTemplate().execute(new TransactionCallback<List<ExpiredFile>>() {
+
+      @Override
+      public List<ExpiredFile> doInTransaction(TransactionStatus status) {
+        lockUsage(contextsOf(files));
+        List<ExpiredFile> deletedFiles = new ArrayList<ExpiredFile>(files.size());
+        for (String id : deleteRows(ids, SqlConstants.DELETE_BY_ID_EXPIRED, now)) {
+          deletedFiles.add(filesById.get(id));
+        }
+        releaseUsage(toUsage(deletedFiles), deletedFiles.size());
+        return deletedFiles;
+      }
+    });
+    List<String> deleted = new ArrayList<String>(deletedFiles.size());
+    long size = 0;
+    for (ExpiredFile file : deletedFiles) {
+      deleted.add(file.id);
+      size += file.size;
+    }
+    deleteContent(deleted);
+    return new DeletionResult(deleted.size(), size);
+  }
+
+  @NotNull
+  @Override
+  InputStream openInputStream(@NotNull JdbcMultipartFile file, long position, long length) throws IOException {
+    FileInputStream in = new FileInputStream(getContentFile(file.getId()));
+    try {
+      if (position > 0) {
+        in.getChannel().position(position);
+      }
+    } catch (IOException e) {
+      in.close();
+      throw e;
+    }
+    return length < 0 ? in : new BoundedInputStream(in, length);
+  }
+
+  /**
+   * Obtains the location of a file's content.
+   */
+  @NotNull
+  File getContentFile(@NotNull String id) {
+    String hash = ContentHash.toHex(ContentHash.newMessageDigest().digest(id.getBytes(UTF_8)));
+    return new File(new File(new File(getDirectory(), hash.substring(0, 2)), hash.substring(2, 4)), hash);
+  }
+
+  private void deleteQuietly(@Nullable File file) {
+    if (file != null && file.exists() && !file.delete()) {
+      logger.warn("Could not delete '{}'.", file);
+    }
+  }
+
+  @NotNull
+  @Override
+  JdbcMultipartFile createFile() {
+    return new FileSystemMultipartFile(this);
+  }
+
+  @Override
+  long getMaxFileSize() {
+    return Long.MAX_VALUE;
+  }
+
+  @Override
+  public void afterPropertiesSet() throws Exception {
+    Assert.state(!isDeduplicate() && !isChunked(),
+        "Deduplication and chunked storage are not supported when storing content on the filesystem.");
+    Assert.state(StringUtils.hasText(directory), "Directory must be specified.");
+    File directory = getDirectory();
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IllegalStateException(String.format("Could not create directory '%s'.", directory));
+    }
+    super.afterPropertiesSet();
+  }
+
+  /* Configuration */
+
+  /**
+   * Sets the directory in which file content is stored. The directory is created if it does not exist.
+   */
+  public void setDirectory(@NotNull String directory) {
+    Assert.hasText(directory, "Directory cannot be empty.");
+    this.directory = directory;
+  }
+
+  @NotNull
+  protected File getDirectory() {
+    return new File(directory);
+  }
+}
@@ -0,0 +1,152 @@
+package nl.runnable.spring.fileupload.impl;
+
+import org.jetbrains.annotations.NotNull;
+import org.springframework.util.Assert;
+import org.springframework.util.StreamUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * {@link InputStream} that yields the gzip-compressed content of the underlying stream.
+ * <p>
+ * Unlike {@link java.util.zip.GZIPOutputStream}, which compresses data as it is written, this stream compresses data as
+ * it is read. It can therefore be handed to a JDBC driver that pulls the content of a BLOB from a stream, without
+ * buffering the compressed content up front. Only a single buffer of input and output is held at a time.
+ * </p>
+ *
+ * @author Laurens Fridael
+ */
+class GzipCompressingInputStream extends InputStream {
+
+  /**
+   * Gzip header without optional fields or modification time, as written by {@link java.util.zip.GZIPOutputStream}.
+   */
+  private static final byte[] HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+  private static final int TRAILER_SIZE = 8;
+
+  private final InputStream in;
+
+  private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+
+  private final CRC32 crc = new CRC32();
+
+  private final byte[] input = new byte[StreamUtils.BUFFER_SIZE];
+
+  private final byte[] output = new byte[StreamUtils.BUFFER_SIZE];
+
+  private int position = 0;
+
+  private int limit = 0;
+
+  private State state = State.HEADER;
+
+  private long count = 0;
+
+  GzipCompressingInputStream(@NotNull InputStream in) {
+    Assert.notNull(in);
+    this.in = in;
+  }
+
+  @Override
+  public int read() throws IOException {
+    byte[] b = new byte[1];
+    return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    if (position == limit && !fill()) {
+      return -1;
+    }
+    int count = Math.min(len, limit - position);
+    System.arraycopy(output, position, b, off, count);
+    position += count;
+    return count;
+  }
+
+  @Override
+  public int available() throws IOException {
+    return limit - position;
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      in.close();
+    } finally {
+      deflater.end();
+    }
+  }
+
+  /**
+   * Obtains the number of compressed bytes produced so far. Once the end of the stream has been reached, this is the
+   * size of the compressed content.
+   */
+  long getCount() {
+    return count;
+  }
+
+  /**
+   * Fills the output buffer with the next part of the compressed content.
+   *
+   * @return {@code false} if the end of the compressed content has been reached.
+   */
+  private boolean fill() throws IOException {
+    position = 0;
+    limit = 0;
+    while (limit == 0) {
+      switch (state) {
+        case HEADER:
+          System.arraycopy(HEADER, 0, output, 0, HEADER.length);
+          limit = HEADER.length;
+          state = State.CONTENT;
+          break;
+        case CONTENT:
+          if (deflater.needsInput() && !deflater.finished()) {
+            int read = in.read(input);
+            if (read == -1) {
+              deflater.finish();
+            } else if (read > 0) {
+              crc.update(input, 0, read);
+              deflater.setInput(input, 0, read);
+            }
+          }
+          limit = deflater.deflate(output);
+          if (limit == 0 && deflater.finished()) {
+            state = State.TRAILER;
+          }
+          break;
+        case TRAILER:
+          writeInt(output, 0, crc.getValue());
+          writeInt(output, 4, deflater.getBytesRead());
+          limit = TRAILER_SIZE;
+          state = State.END;
+          break;
+        default:
+          return false;
+      }
+    }
+    count += limit;
+    return true;
+  }
+
+  /**
+   * Writes the lower 32 bits of a value in little-endian byte order, as required by the gzip trailer.
+   */
+  private static void writeInt(@NotNull byte[] b, int off, long value) {
+    for (int i = 0; i < 4; i++) {
+      b[off + i] = (byte) (value >> (8 * i));
+    }
+  }
+
+  private enum State {
+    HEADER, CONTENT, TRAILER, END
+  }
+}
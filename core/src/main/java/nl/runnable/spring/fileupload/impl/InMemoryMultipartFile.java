@@ -0,0 +1,140 @@
+package nl.runnable.spring.fileupload.impl;
+
+import nl.runnable.spring.fileupload.HashedMultipartFile;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.springframework.util.Assert;
+import org.springframework.util.FileCopyUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Date;
+
+/**
+ * Snapshot of a file in {@link InMemoryMultipartFileStorage}. The content is read from the storage, so reading fails
+ * once the file has been deleted or evicted.
+ *
+ * @author Laurens Fridael
+ */
+class InMemoryMultipartFile extends AbstractStoredMultipartFile implements HashedMultipartFile {
+
+  private final InMemoryMultipartFileStorage storage;
+
+  private final InMemoryMultipartFileStorage.Entry entry;
+
+  private final String metadata;
+
+  private final Date expiresAt;
+
+  /**
+   * Must be called while holding the storage's lock.
+   */
+  InMemoryMultipartFile(@NotNull InMemoryMultipartFileStorage storage,
+                        @NotNull InMemoryMultipartFileStorage.Entry entry) {
+    this.storage = storage;
+    this.entry = entry;
+    this.metadata = entry.metadata;
+    this.expiresAt = new Date(entry.expiresAt);
+  }
+
+  /**
+   * Obtains the position of this file in the order in which files were saved.
+   */
+  long getSequence() {
+    return entry.sequence;
+  }
+
+  boolean isStoredIn(@NotNull InMemoryMultipartFileStorage storage) {
+    return this.storage == storage;
+  }
+
+  @NotNull
+  @Override
+  public String getId() {
+    return entry.id;
+  }
+
+  @Override
+  public String getName() {
+    return entry.name;
+  }
+
+  @Override
+  public String getOriginalFilename() {
+    return entry.originalFilename;
+  }
+
+  @Override
+  public String getContentType() {
+    return entry.contentType;
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return getSize() == 0;
+  }
+
+  @Override
+  public long getSize() {
+    return entry.size;
+  }
+
+  @Nullable
+  @Override
+  public String getContentHash() {
+    return entry.contentHash;
+  }
+
+  @Override
+  public byte[] getBytes() throws IOException {
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream((int) getSize());
+    FileCopyUtils.copy(getInputStream(), buffer);
+    return buffer.toByteArray();
+  }
+
+  @Override
+  public InputStream getInputStream() throws IOException {
+    return storage.openInputStream(entry, 0, -1);
+  }
+
+  @NotNull
+  @Override
+  public InputStream getInputStream(long position, long length) throws IOException {
+    Assert.isTrue(position >= 0, "Position cannot be less than 0.");
+    Assert.isTrue(length >= 0, "Length cannot be less than 0.");
+
+    return storage.openInputStream(entry, position, length);
+  }
+
+  @Override
+  public void transferTo(File dest) throws IOException, IllegalStateException {
+    FileCopyUtils.copy(getInputStream(), new FileOutputStream(dest));
+  }
+
+  @Nullable
+  @Override
+  public String getContext() {
+    return entry.context;
+  }
+
+  @Nullable
+  @Override
+  public String getMetadata() {
+    return metadata;
+  }
+
+  @NotNull
+  @Override
+  public Date getCreatedAt() {
+    return new Date(entry.createdAt);
+  }
+
+  @NotNull
+  @Override
+  public Date getExpiresAt() {
+    return expiresAt;
+  }
+}
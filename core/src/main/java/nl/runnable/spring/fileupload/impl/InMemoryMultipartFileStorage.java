@@ -0,0 +1,728 @@
+package nl.runnable.spring.fileupload.impl;
+
+import nl.runnable.spring.fileupload.ContextUsage;
+import nl.runnable.spring.fileupload.DeletionResult;
+import nl.runnable.spring.fileupload.IdGenerator;
+import nl.runnable.spring.fileupload.MultipartFileInfo;
+import nl.runnable.spring.fileupload.MultipartFileStorage;
+import nl.runnable.spring.fileupload.StoredMultipartFile;
+import nl.runnable.spring.fileupload.StoredMultipartFileCallback;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.util.Assert;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.DigestInputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * {@link MultipartFileStorage} implementation that keeps files in memory, intended for short-lived uploads where a
+ * database round trip per operation is not worth it.
+ * <p>
+ * Content is stored outside the Java heap, in fixed-size pages of a direct buffer that is allocated once, so stored
+ * files add no garbage collection pressure. The size of this buffer is a hard budget: when a file does not fit, files
+ * are evicted to make room, expired files first, followed by the least recently used files. Files are also indexed by
+ * context, so that {@link #findByContext(String)} and {@link #deleteByContext(String)} only visit the files in that
+ * context.
+ * </p>
+ * <p>
+ * Files are lost when the application stops and are not shared between application instances. As files are evicted
+ * to stay within the buffer, quotas per context are not enforced.
+ * </p>
+ *
+ * @author Laurens Fridael
+ */
+public class InMemoryMultipartFileStorage implements MultipartFileStorage, InitializingBean {
+
+  private static final Comparator<Entry> EXPIRY_ORDER = new Comparator<Entry>() {
+
+    @Override
+    public int compare(Entry e1, Entry e2) {
+      if (e1.expiresAt != e2.expiresAt) {
+        return e1.expiresAt < e2.expiresAt ? -1 : 1;
+      }
+      return e1.sequence < e2.sequence ? -1 : (e1.sequence == e2.sequence ? 0 : 1);
+    }
+  };
+
+  private final Logger logger = LoggerFactory.getLogger(getClass());
+
+  /* Dependencies */
+
+  private IdGenerator idGenerator = new UuidGenerator();
+
+  /* Configuration */
+
+  @Value("${spring-file-upload-storage.memory.maxSize:67108864}")
+  private long maxSize = 64 * 1024 * 1024;
+
+  @Value("${spring-file-upload-storage.memory.pageSize:8192}")
+  private int pageSize = 8 * 1024;
+
+  /* State */
+
+  private PageAllocator allocator;
+
+  /**
+   * Files in least recently used order.
+   */
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+  private final Map<String, Set<Entry>> entriesByContext = new HashMap<String, Set<Entry>>();
+
+  private final TreeSet<Entry> entriesByExpiry = new TreeSet<Entry>(EXPIRY_ORDER);
+
+  private long sequence = 0;
+
+  /* Main operations */
+
+  @NotNull
+  @Override
+  public String save(@NotNull MultipartFile file, int timeToLiveInSeconds, @Nullable String context,
+                     @Nullable String metadata) {
+    String id = idGenerator.generateId();
+    save(file, id, timeToLiveInSeconds, context, metadata);
+    return id;
+  }
+
+  /**
+   * Saves the given files one by one. If saving a file fails, the files saved before it are deleted again.
+   */
+  @NotNull
+  @Override
+  public List<String> saveAll(@NotNull List<? extends MultipartFile> files, int timeToLiveInSeconds,
+                              @Nullable String context, @Nullable String metadata) {
+    Assert.notNull(files, "Files cannot be null.");
+
+    List<String> ids = new ArrayList<String>(files.size());
+    try {
+      for (MultipartFile file : files) {
+        ids.add(save(file, timeToLiveInSeconds, context, metadata));
+      }
+    } catch (RuntimeException e) {
+      delete(ids);
+      throw e;
+    }
+    return ids;
+  }
+
+  @Override
+  public void save(@NotNull MultipartFile file, @NotNull String id, int timeToLiveInSeconds,
+                   @Nullable String context, @Nullable String metadata) {
+    Assert.notNull(file, "File cannot be null.");
+    Assert.hasText(id, "ID cannot be empty.");
+    Assert.isTrue(timeToLiveInSeconds >= 0, "Time to live must be greater than or equal to 0.");
+    Assert.isTrue(context == null || context.length() <= 255, "Context cannot be longer than 255 characters");
+    Assert.isTrue(metadata == null || metadata.length() <= 255, "Metadata cannot be longer than 255 characters");
+    long capacity = (long) allocator.getPageSize() * allocator.getPageCount();
+    if (file.getSize() > capacity) {
+      throw new IllegalArgumentException(String.format("Cannot store files larger than %d bytes.", capacity));
+    }
+
+    int[] pages;
+    synchronized (this) {
+      checkUnique(id);
+      pages = reserve(allocator.getPagesNeeded(file.getSize()));
+    }
+    // The pages are not visible to other threads yet, so they are filled without holding the lock.
+    String contentHash;
+    try {
+      contentHash = fill(pages, file);
+    } catch (RuntimeException e) {
+      synchronized (this) {
+        allocator.free(pages);
+      }
+      throw e;
+    }
+
+    Entry entry = new Entry();
+    entry.id = id;
+    entry.name = file.getName();
+    entry.originalFilename = file.getOriginalFilename();
+    entry.contentType = file.getContentType();
+    entry.size = file.getSize();
+    entry.contentHash = contentHash;
+    entry.context = context;
+    entry.metadata = metadata;
+    entry.createdAt = System.currentTimeMillis();
+    entry.expiresAt = entry.createdAt + timeToLiveInSeconds * 1000L;
+    entry.pages = pages;
+    synchronized (this) {
+      try {
+        checkUnique(id);
+      } catch (DuplicateKeyException e) {
+        allocator.free(pages);
+        throw e;
+      }
+      entry.sequence = sequence++;
+      entries.put(id, entry);
+      entriesByExpiry.add(entry);
+      if (context != null) {
+        Set<Entry> contextEntries = entriesByContext.get(context);
+        if (contextEntries == null) {
+          contextEntries = new LinkedHashSet<Entry>();
+          entriesByContext.put(context, contextEntries);
+        }
+        contextEntries.add(entry);
+      }
+    }
+    logger.debug("Saved multipart file '{}' in {} page(s). Expires at: {}", id, pages.length,
+        new Date(entry.expiresAt));
+  }
+
+  private void checkUnique(@NotNull String id) {
+    if (entries.containsKey(id)) {
+      throw new DuplicateKeyException(String.format("File '%s' already exists.", id));
+    }
+  }
+
+  /**
+   * Allocates pages, evicting files until enough pages are free.
+   */
+  @NotNull
+  private int[] reserve(int count) {
+    int[] pages;
+    while ((pages = allocator.allocate(count)) == null) {
+      Entry victim = selectVictim();
+      if (victim == null) {
+        // Only possible if concurrent saves have reserved the remaining pages.
+        throw new IllegalStateException("Not enough memory available to store file.");
+      }
+      logger.debug("Evicting file '{}' to free {} page(s).", victim.id, victim.pages.length);
+      release(victim);
+    }
+    return pages;
+  }
+
+  /**
+   * Selects the file to evict: the file that expired first or, if no file has expired, the least recently used file.
+   */
+  @Nullable
+  private Entry selectVictim() {
+    if (!entriesByExpiry.isEmpty() && entriesByExpiry.first().expiresAt <= System.currentTimeMillis()) {
+      return entriesByExpiry.first();
+    }
+    Iterator<Entry> lru = entries.values().iterator();
+    return lru.hasNext() ? lru.next() : null;
+  }
+
+  /**
+   * Copies a file's content into the given pages.
+   *
+   * @return The content hash.
+   */
+  @NotNull
+  private String fill(@NotNull int[] pages, @NotNull MultipartFile file) {
+    try {
+      DigestInputStream in = ContentHash.digesting(file.getInputStream());
+      try {
+        byte[] buffer = new byte[allocator.getPageSize()];
+        long size = 0;
+        for (int page : pages) {
+          int length = 0;
+          int count;
+          while (length < buffer.length && (count = in.read(buffer, length, buffer.length - length)) != -1) {
+            length += count;
+          }
+          allocator.page(page).put(buffer, 0, length);
+          size += length;
+        }
+        if (size != file.getSize() || in.read() != -1) {
+          throw new IllegalStateException("File content changed while it was being saved.");
+        }
+        return ContentHash.toHex(in);
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      throw new IllegalStateException("Could not read file content.", e);
+    }
+  }
+
+  @Nullable
+  @Override
+  public synchronized StoredMultipartFile find(@NotNull String id) {
+    Assert.hasText(id, "File ID cannot be empty.");
+
+    Entry entry = entries.get(id);
+    return entry != null ? new InMemoryMultipartFile(this, entry) : null;
+  }
+
+  @NotNull
+  @Override
+  public synchronized List<StoredMultipartFile> findByContext(@NotNull String context) {
+    Assert.hasText(context, "Context cannot be empty.");
+
+    Set<Entry> contextEntries = entriesByContext.get(context);
+    if (contextEntries == null) {
+      return new ArrayList<StoredMultipartFile>();
+    }
+    List<StoredMultipartFile> files = new ArrayList<StoredMultipartFile>(contextEntries.size());
+    for (Entry entry : contextEntries) {
+      // Marks the file as recently used.
+      entries.get(entry.id);
+      files.add(new InMemoryMultipartFile(this, entry));
+    }
+    return files;
+  }
+
+  /**
+   * Obtains a page of files in the order they were saved. Pages continue after files obtained from this storage, even
+   * if they were deleted meanwhile. Other files are compared by their creation time.
+   */
+  @NotNull
+  @Override
+  public synchronized List<StoredMultipartFile> findByContext(@NotNull String context,
+                                                             @Nullable StoredMultipartFile after, int limit) {
+    Assert.hasText(context, "Context cannot be empty.");
+    Assert.isTrue(limit > 0, "Limit must be greater than 0.");
+
+    Set<Entry> contextEntries = entriesByContext.get(context);
+    List<StoredMultipartFile> files = new ArrayList<StoredMultipartFile>();
+    if (contextEntries == null) {
+      return files;
+    }
+    boolean ownFile = after instanceof InMemoryMultipartFile && ((InMemoryMultipartFile) after).isStoredIn(this);
+    for (Entry entry : contextEntries) {
+      if (files.size() == limit) {
+        break;
+      }
+      if (after == null || (ownFile ? entry.sequence > ((InMemoryMultipartFile) after).getSequence()
+          : entry.createdAt > after.getCreatedAt().getTime())) {
+        // Marks the file as recently used.
+        entries.get(entry.id);
+        files.add(new InMemoryMultipartFile(this, entry));
+      }
+    }
+    return files;
+  }
+
+  /**
+   * Processes the files of a snapshot of the context. The callback is invoked without holding the storage's lock.
+   */
+  @Override
+  public int forEachByContext(@NotNull String context, @NotNull StoredMultipartFileCallback callback) {
+    Assert.notNull(callback, "Callback cannot be null.");
+
+    List<StoredMultipartFile> files = findByContext(context);
+    for (StoredMultipartFile file : files) {
+      callback.doWithFile(file);
+    }
+    return files.size();
+  }
+
+  @NotNull
+  @Override
+  public synchronized Map<String, StoredMultipartFile> findAll(@NotNull Collection<String> ids) {
+    Assert.notNull(ids, "IDs cannot be null.");
+
+    Map<String, StoredMultipartFile> files = new LinkedHashMap<String, StoredMultipartFile>(ids.size() * 2);
+    for (String id : ids) {
+      StoredMultipartFile file = find(id);
+      if (file != null) {
+        files.put(id, file);
+      }
+    }
+    return files;
+  }
+
+  @NotNull
+  @Override
+  public synchronized Map<String, MultipartFileInfo> findInfo(@NotNull Collection<String> ids) {
+    Assert.notNull(ids, "IDs cannot be null.");
+
+    Map<String, MultipartFileInfo> infos = new LinkedHashMap<String, MultipartFileInfo>(ids.size() * 2);
+    for (String id : ids) {
+      Assert.hasText(id, "File ID cannot be empty.");
+      Entry entry = entries.get(id);
+      if (entry != null) {
+        infos.put(id, toInfo(entry));
+      }
+    }
+    return infos;
+  }
+
+  @NotNull
+  @Override
+  public synchronized List<MultipartFileInfo> findInfoByContext(@NotNull String context) {
+    Assert.hasText(context, "Context cannot be empty.");
+
+    Set<Entry> contextEntries = entriesByContext.get(context);
+    if (contextEntries == null) {
+      return new ArrayList<MultipartFileInfo>();
+    }
+    List<MultipartFileInfo> infos = new ArrayList<MultipartFileInfo>(contextEntries.size());
+    for (Entry entry : contextEntries) {
+      // Marks the file as recently used.
+      entries.get(entry.id);
+      infos.add(toInfo(entry));
+    }
+    return infos;
+  }
+
+  @Nullable
+  @Override
+  public synchronized Date setTimeToLive(@NotNull String id, int timeToLiveInSeconds) {
+    Assert.hasText(id, "File ID cannot be empty.");
+    Assert.isTrue(timeToLiveInSeconds >= 0, "Time to live must be greater than or equal to 0.");
+
+    Entry entry = entries.get(id);
+    if (entry == null) {
+      return null;
+    }
+    entriesByExpiry.remove(entry);
+    entry.expiresAt = System.currentTimeMillis() + timeToLiveInSeconds * 1000L;
+    entriesByExpiry.add(entry);
+    return new Date(entry.expiresAt);
+  }
+
+  @Override
+  public synchronized int setTimeToLive(@NotNull Collection<String> ids, int timeToLiveInSeconds) {
+    Assert.notNull(ids, "IDs cannot be null.");
+    Assert.isTrue(timeToLiveInSeconds >= 0, "Time to live must be greater than or equal to 0.");
+
+    int count = 0;
+    for (String id : new LinkedHashSet<String>(ids)) {
+      if (setTimeToLive(id, timeToLiveInSeconds) != null) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  @Override
+  public synchronized int setTimeToLiveByContext(@NotNull String context, int timeToLiveInSeconds) {
+    Assert.hasText(context, "Context cannot be empty.");
+    Assert.isTrue(timeToLiveInSeconds >= 0, "Time to live must be greater than or equal to 0.");
+
+    Set<Entry> contextEntries = entriesByContext.get(context);
+    if (contextEntries == null) {
+      return 0;
+    }
+    long expiresAt = System.currentTimeMillis() + timeToLiveInSeconds * 1000L;
+    for (Entry entry : contextEntries) {
+      entriesByExpiry.remove(entry);
+      entry.expiresAt = expiresAt;
+      entriesByExpiry.add(entry);
+    }
+    return contextEntries.size();
+  }
+
+  @Override
+  public synchronized int setMetadata(@NotNull String id, @Nullable String metadata) {
+    Assert.hasText(id, "File ID cannot be empty.");
+
+    Entry entry = entries.get(id);
+    if (entry == null) {
+      return 0;
+    }
+    entry.metadata = metadata;
+    return 1;
+  }
+
+  @Override
+  public synchronized int delete(@NotNull String id) {
+    Assert.hasText(id, "File ID cannot be empty.");
+
+    Entry entry = entries.get(id);
+    if (entry == null) {
+      return 0;
+    }
+    release(entry);
+    logger.debug("Deleted file '{}'.", id);
+    return 1;
+  }
+
+  @Override
+  public synchronized int delete(@NotNull Collection<String> ids) {
+    Assert.notNull(ids, "IDs cannot be null.");
+
+    int count = 0;
+    for (String id : new LinkedHashSet<String>(ids)) {
+      count += delete(id);
+    }
+    return count;
+  }
+
+  @Override
+  public synchronized int deleteByContext(@NotNull String context) {
+    Assert.hasText(context, "Context cannot be empty.");
+
+    Set<Entry> contextEntries = entriesByContext.get(context);
+    if (contextEntries == null) {
+      return 0;
+    }
+    List<Entry> deleted = new ArrayList<Entry>(contextEntries);
+    for (Entry entry : deleted) {
+      release(entry);
+    }
+    if (deleted.size() > 1) {
+      logger.debug("Deleted {} files with context '{}'.", deleted.size(), context);
+    }
+    return deleted.size();
+  }
+
+  @Override
+  public synchronized int deleteExpired() {
+    long now = System.currentTimeMillis();
+    int count = 0;
+    while (!entriesByExpiry.isEmpty() && entriesByExpiry.first().expiresAt <= now) {
+      release(entriesByExpiry.first());
+      count++;
+    }
+    if (count > 0) {
+      logger.debug("Deleted {} expired files.", count);
+    }
+    return count;
+  }
+
+  @NotNull
+  @Override
+  public synchronized DeletionResult deleteExpired(int limit) {
+    Assert.isTrue(limit > 0, "Limit must be greater than 0.");
+
+    long now = System.currentTimeMillis();
+    int count = 0;
+    long size = 0;
+    while (count < limit && !entriesByExpiry.isEmpty() && entriesByExpiry.first().expiresAt <= now) {
+      Entry entry = entriesByExpiry.first();
+      release(entry);
+      count++;
+      size += entry.size;
+    }
+    if (count > 0) {
+      logger.debug("Deleted {} expired files.", count);
+    }
+    return new DeletionResult(count, size);
+  }
+
+  @Override
+  public synchronized int deleteAll() {
+    List<Entry> deleted = new ArrayList<Entry>(entries.values());
+    for (Entry entry : deleted) {
+      release(entry);
+    }
+    if (!deleted.isEmpty()) {
+      logger.debug("Deleted {} files.", deleted.size());
+    }
+    return deleted.size();
+  }
+
+  @NotNull
+  @Override
+  public synchronized ContextUsage getUsage(@NotNull String context) {
+    Assert.hasText(context, "Context cannot be empty.");
+
+    Set<Entry> contextEntries = entriesByContext.get(context);
+    if (contextEntries == null) {
+      return ContextUsage.NONE;
+    }
+    long size = 0;
+    for (Entry entry : contextEntries) {
+      size += entry.size;
+    }
+    return new ContextUsage(contextEntries.size(), size);
+  }
+
+  @Override
+  public synchronized int count() {
+    return entries.size();
+  }
+
+  /**
+   * Removes a file from all indexes and frees its pages. Streams that are still reading the file fail from then on.
+   */
+  private void release(@NotNull Entry entry) {
+    entries.remove(entry.id);
+    entriesByExpiry.remove(entry);
+    if (entry.context != null) {
+      Set<Entry> contextEntries = entriesByContext.get(entry.context);
+      if (contextEntries != null) {
+        contextEntries.remove(entry);
+        if (contextEntries.isEmpty()) {
+          entriesByContext.remove(entry.context);
+        }
+      }
+    }
+    entry.released = true;
+    allocator.free(entry.pages);
+  }
+
+  /**
+   * Opens a stream for reading (part of) a file's content.
+   *
+   * @param length The maximum number of bytes to read or -1 to read up to the end of the file.
+   */
+  @NotNull
+  InputStream openInputStream(@NotNull Entry entry, long position, long length) {
+    long end = length < 0 ? entry.size : Math.min(entry.size, position + length);
+    return new PageInputStream(entry, Math.min(position, end), end);
+  }
+
+  /**
+   * Obtains the number of bytes in use, including unused space in the last page of each file.
+   */
+  public synchronized long getUsedSize() {
+    return (long) (allocator.getPageCount() - allocator.getFreeCount()) * allocator.getPageSize();
+  }
+
+  /* Utility */
+
+  /**
+   * Holds a stored file. Fields are guarded by the storage's lock once the entry is published.
+   */
+  @NotNull
+  private static MultipartFileInfo toInfo(@NotNull Entry entry) {
+    return new MultipartFileInfo(entry.id, entry.name, entry.originalFilename, entry.contentType, entry.size,
+        entry.contentHash, entry.context, entry.metadata, entry.createdAt, entry.expiresAt);
+  }
+
+  static class Entry {
+
+    String id;
+
+    String name;
+
+    String originalFilename;
+
+    String contentType;
+
+    long size;
+
+    String contentHash;
+
+    String context;
+
+    String metadata;
+
+    long createdAt;
+
+    long expiresAt;
+
+    long sequence;
+
+    int[] pages;
+
+    boolean released;
+  }
+
+  /**
+   * Reads a file's pages, holding the storage's lock for each read so that the pages cannot be freed meanwhile.
+   */
+  private class PageInputStream extends InputStream {
+
+    private final Entry entry;
+
+    private long position;
+
+    private final long end;
+
+    PageInputStream(@NotNull Entry entry, long position, long end) {
+      this.entry = entry;
+      this.position = position;
+      this.end = end;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      if (position >= end) {
+        return -1;
+      }
+      int pageSize = allocator.getPageSize();
+      int offset = (int) (position % pageSize);
+      int count = (int) Math.min(Math.min(len, pageSize - offset), end - position);
+      synchronized (InMemoryMultipartFileStorage.this) {
+        if (entry.released) {
+          throw new FileNotFoundException(String.format("File '%s' has been deleted or evicted.", entry.id));
+        }
+        ByteBuffer page = allocator.page(entry.pages[(int) (position / pageSize)]);
+        page.position(offset);
+        page.get(b, off, count);
+      }
+      position += count;
+      return count;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      long skipped = Math.max(0, Math.min(n, end - position));
+      position += skipped;
+      return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+      return (int) Math.min(end - position, Integer.MAX_VALUE);
+    }
+  }
+
+  @Override
+  public void afterPropertiesSet() throws Exception {
+    long pageCount = maxSize / pageSize;
+    Assert.state(pageCount > 0, "Maximum size must be at least one page.");
+    allocator = new PageAllocator(pageSize, (int) pageCount);
+    logger.info("Allocated {} pages of {} bytes for in-memory file storage.", pageCount, pageSize);
+  }
+
+  /* Dependencies */
+
+  public void setIdGenerator(@NotNull IdGenerator idGenerator) {
+    Assert.notNull(idGenerator);
+    this.idGenerator = idGenerator;
+  }
+
+  /* Configuration */
+
+  /**
+   * Sets the memory budget in bytes, which is allocated outside the heap on startup. Cannot exceed 2 GB.
+   */
+  public void setMaxSize(long maxSize) {
+    Assert.isTrue(maxSize > 0 && maxSize <= Integer.MAX_VALUE, "Maximum size must be between 1 byte and 2 GB.");
+    this.maxSize = maxSize;
+  }
+
+  protected long getMaxSize() {
+    return maxSize;
+  }
+
+  /**
+   * Sets the size of the pages in which content is stored. Each file occupies at least one page.
+   */
+  public void setPageSize(int pageSize) {
+    Assert.isTrue(pageSize > 0, "Page size must be greater than 0.");
+    this.pageSize = pageSize;
+  }
+
+  protected int getPageSize() {
+    return pageSize;
+  }
+}
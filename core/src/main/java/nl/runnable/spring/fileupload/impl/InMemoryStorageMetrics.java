@@ -0,0 +1,248 @@
+package nl.runnable.spring.fileupload.impl;
+
+import nl.runnable.spring.fileupload.StorageMetrics;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.springframework.util.Assert;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * {@link StorageMetrics} implementation that keeps measurements in memory, so that they can be read by the application
+ * itself, for example to expose them through a monitoring endpoint, or by tests.
+ * <p>
+ * Distributions are kept in histograms with a fixed number of buckets, whose width grows with the values they hold.
+ * Each power of two is divided into 8 buckets, so percentiles are accurate to within 12.5%. Recording a value is
+ * lock-free and does not allocate.
+ * </p>
+ *
+ * @author Laurens Fridael
+ */
+public class InMemoryStorageMetrics implements StorageMetrics {
+
+  /**
+   * The number of bits of a value that select a bucket within a power of two.
+   */
+  private static final int SUB_BUCKET_BITS = 3;
+
+  private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+  private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT;
+
+  /* State */
+
+  private final ConcurrentMap<String, Distribution> distributions = new ConcurrentHashMap<String, Distribution>();
+
+  private final ConcurrentMap<String, AtomicLong> counters = new ConcurrentHashMap<String, AtomicLong>();
+
+  /* Main operations */
+
+  @Override
+  public void record(@NotNull String name, long value) {
+    Assert.hasText(name, "Name cannot be empty.");
+
+    Distribution distribution = distributions.get(name);
+    if (distribution == null) {
+      distribution = new Distribution();
+      Distribution existing = distributions.putIfAbsent(name, distribution);
+      if (existing != null) {
+        distribution = existing;
+      }
+    }
+    distribution.record(Math.max(value, 0));
+  }
+
+  @Override
+  public void increment(@NotNull String name, long amount) {
+    Assert.hasText(name, "Name cannot be empty.");
+
+    AtomicLong counter = counters.get(name);
+    if (counter == null) {
+      counter = new AtomicLong();
+      AtomicLong existing = counters.putIfAbsent(name, counter);
+      if (existing != null) {
+        counter = existing;
+      }
+    }
+    counter.addAndGet(amount);
+  }
+
+  /**
+   * Obtains the value of a counter.
+   *
+   * @return The value or 0 if the counter was never incremented.
+   */
+  public long getCounter(@NotNull String name) {
+    AtomicLong counter = counters.get(name);
+    return counter != null ? counter.get() : 0;
+  }
+
+  /**
+   * Obtains a snapshot of a distribution.
+   *
+   * @return The snapshot or {@code null} if no values were recorded.
+   */
+  @Nullable
+  public Histogram getHistogram(@NotNull String name) {
+    Distribution distribution = distributions.get(name);
+    return distribution != null ? distribution.snapshot() : null;
+  }
+
+  /**
+   * Obtains the names of the counters that were incremented.
+   */
+  @NotNull
+  public Set<String> getCounterNames() {
+    return Collections.unmodifiableSet(new TreeSet<String>(counters.keySet()));
+  }
+
+  /**
+   * Obtains the names of the distributions in which values were recorded.
+   */
+  @NotNull
+  public Set<String> getHistogramNames() {
+    return Collections.unmodifiableSet(new TreeSet<String>(distributions.keySet()));
+  }
+
+  /**
+   * Discards all measurements.
+   */
+  public void reset() {
+    distributions.clear();
+    counters.clear();
+  }
+
+  /* Utility */
+
+  static int getBucket(long value) {
+    if (value < SUB_BUCKET_COUNT) {
+      return (int) value;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKET_COUNT - 1);
+    return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT + subBucket;
+  }
+
+  /**
+   * Obtains the highest value held by a bucket.
+   */
+  static long getUpperBound(int bucket) {
+    if (bucket < SUB_BUCKET_COUNT) {
+      return bucket;
+    }
+    int shift = bucket / SUB_BUCKET_COUNT - 1;
+    long lowerBound = (long) (SUB_BUCKET_COUNT + bucket % SUB_BUCKET_COUNT) << shift;
+    return lowerBound + (1L << shift) - 1;
+  }
+
+  private static final class Distribution {
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+
+    private final AtomicLong count = new AtomicLong();
+
+    private final AtomicLong sum = new AtomicLong();
+
+    private final AtomicLong max = new AtomicLong(Long.MIN_VALUE);
+
+    void record(long value) {
+      buckets.incrementAndGet(getBucket(value));
+      count.incrementAndGet();
+      sum.addAndGet(value);
+      long current;
+      while (value > (current = max.get())) {
+        if (max.compareAndSet(current, value)) {
+          break;
+        }
+      }
+    }
+
+    @NotNull
+    Histogram snapshot() {
+      long[] counts = new long[BUCKET_COUNT];
+      long total = 0;
+      for (int i = 0; i < BUCKET_COUNT; i++) {
+        counts[i] = buckets.get(i);
+        total += counts[i];
+      }
+      return new Histogram(counts, total, sum.get(), Math.max(max.get(), 0));
+    }
+  }
+
+  /**
+   * Snapshot of the values recorded in a distribution.
+   */
+  public static final class Histogram {
+
+    private final long[] buckets;
+
+    private final long count;
+
+    private final long sum;
+
+    private final long max;
+
+    Histogram(@NotNull long[] buckets, long count, long sum, long max) {
+      this.buckets = buckets;
+      this.count = count;
+      this.sum = sum;
+      this.max = max;
+    }
+
+    /**
+     * Obtains the number of values recorded.
+     */
+    public long getCount() {
+      return count;
+    }
+
+    /**
+     * Obtains the sum of the values recorded.
+     */
+    public long getSum() {
+      return sum;
+    }
+
+    /**
+     * Obtains the highest value recorded.
+     */
+    public long getMax() {
+      return max;
+    }
+
+    public double getMean() {
+      return count > 0 ? (double) sum / count : 0;
+    }
+
+    /**
+     * Obtains the value below or at which the given fraction of the recorded values lie.
+     *
+     * @param fraction The fraction, from 0 to 1, such as 0.99 for the 99th percentile.
+     * @return The upper bound of the bucket holding the percentile, or 0 if no values were recorded.
+     */
+    public long getPercentile(double fraction) {
+      Assert.isTrue(fraction >= 0 && fraction <= 1, "Fraction must be between 0 and 1.");
+      long rank = Math.max((long) Math.ceil(fraction * count), 1);
+      long seen = 0;
+      for (int i = 0; i < buckets.length; i++) {
+        seen += buckets[i];
+        if (seen >= rank) {
+          return Math.min(getUpperBound(i), max);
+        }
+      }
+      return max;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("count=%d, mean=%.1f, p50=%d, p99=%d, max=%d", count, getMean(), getPercentile(0.5),
+          getPercentile(0.99), max);
+    }
+  }
+}
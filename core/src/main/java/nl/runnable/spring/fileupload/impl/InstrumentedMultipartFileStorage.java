@@ -0,0 +1,410 @@
+package nl.runnable.spring.fileupload.impl;
+
+import nl.runnable.spring.fileupload.ContextUsage;
+import nl.runnable.spring.fileupload.DeletionResult;
+import nl.runnable.spring.fileupload.MultipartFileInfo;
+import nl.runnable.spring.fileupload.MultipartFileStorage;
+import nl.runnable.spring.fileupload.StorageMetrics;
+import nl.runnable.spring.fileupload.StoredMultipartFile;
+import nl.runnable.spring.fileupload.StoredMultipartFileCallback;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.springframework.util.Assert;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@link MultipartFileStorage} decorator that records the latency of each operation in a {@link StorageMetrics}
+ * registry, under the operation's name prefixed with {@link StorageMetrics#STORAGE}, such as {@code sfus.storage.save}.
+ * Failed operations are recorded as well and also increment the operation's {@link StorageMetrics#ERRORS} counter.
+ * Successful saves add the size of the saved files to {@link StorageMetrics#STORAGE_BYTES_IN}.
+ * <p>
+ * Overloaded operations that act on several files have their own names, such as {@code saveAll} and
+ * {@code deleteAllById}. The latency of {@link #forEachByContext(String, StoredMultipartFileCallback)} includes the
+ * time spent in the callback. Reading the content of files obtained from this storage is not measured here; the
+ * content written to HTTP responses is measured by the MVC module.
+ * </p>
+ *
+ * @author Laurens Fridael
+ */
+public class InstrumentedMultipartFileStorage implements MultipartFileStorage {
+
+  private static final String SAVE = StorageMetrics.STORAGE + "save";
+
+  private static final String SAVE_ALL = StorageMetrics.STORAGE + "saveAll";
+
+  private static final String FIND = StorageMetrics.STORAGE + "find";
+
+  private static final String FIND_BY_CONTEXT = StorageMetrics.STORAGE + "findByContext";
+
+  private static final String FIND_PAGE_BY_CONTEXT = StorageMetrics.STORAGE + "findPageByContext";
+
+  private static final String FOR_EACH_BY_CONTEXT = StorageMetrics.STORAGE + "forEachByContext";
+
+  private static final String FIND_ALL = StorageMetrics.STORAGE + "findAll";
+
+  private static final String FIND_INFO = StorageMetrics.STORAGE + "findInfo";
+
+  private static final String FIND_INFO_BY_CONTEXT = StorageMetrics.STORAGE + "findInfoByContext";
+
+  private static final String SET_TIME_TO_LIVE = StorageMetrics.STORAGE + "setTimeToLive";
+
+  private static final String SET_TIME_TO_LIVE_ALL = StorageMetrics.STORAGE + "setTimeToLiveAll";
+
+  private static final String SET_TIME_TO_LIVE_BY_CONTEXT = StorageMetrics.STORAGE + "setTimeToLiveByContext";
+
+  private static final String SET_METADATA = StorageMetrics.STORAGE + "setMetadata";
+
+  private static final String DELETE = StorageMetrics.STORAGE + "delete";
+
+  private static final String DELETE_ALL_BY_ID = StorageMetrics.STORAGE + "deleteAllById";
+
+  private static final String DELETE_BY_CONTEXT = StorageMetrics.STORAGE + "deleteByContext";
+
+  private static final String DELETE_EXPIRED = StorageMetrics.STORAGE + "deleteExpired";
+
+  private static final String DELETE_ALL = StorageMetrics.STORAGE + "deleteAll";
+
+  private static final String GET_USAGE = StorageMetrics.STORAGE + "getUsage";
+
+  private static final String COUNT = StorageMetrics.STORAGE + "count";
+
+  /* Dependencies */
+
+  private final MultipartFileStorage storage;
+
+  private final StorageMetrics metrics;
+
+  public InstrumentedMultipartFileStorage(@NotNull MultipartFileStorage storage, @NotNull StorageMetrics metrics) {
+    Assert.notNull(storage);
+    Assert.notNull(metrics);
+    this.storage = storage;
+    this.metrics = metrics;
+  }
+
+  /* Main operations */
+
+  @NotNull
+  @Override
+  public String save(@NotNull MultipartFile file, int timeToLiveInSeconds, @Nullable String context,
+                     @Nullable String metadata) {
+    long startedAt = System.nanoTime();
+    boolean succeeded = false;
+    try {
+      String result = storage.save(file, timeToLiveInSeconds, context, metadata);
+      metrics.increment(StorageMetrics.STORAGE_BYTES_IN, file.getSize());
+      succeeded = true;
+      return result;
+    } finally {
+      stop(SAVE, startedAt, succeeded);
+    }
+  }
+
+  @Override
+  public void save(@NotNull MultipartFile file, @NotNull String id, int timeToLiveInSeconds,
+                   @Nullable String context, @Nullable String metadata) {
+    long startedAt = System.nanoTime();
+    boolean succeeded = false;
+    try {
+      storage.save(file, id, timeToLiveInSeconds, context, metadata);
+      metrics.increment(StorageMetrics.STORAGE_BYTES_IN, file.getSize());
+      succeeded = true;
+    } finally {
+      stop(SAVE, startedAt, succeeded);
+    }
+  }
+
+  @NotNull
+  @Override
+  public List<String> saveAll(@NotNull List<? extends MultipartFile> files, int timeToLiveInSeconds,
+                              @Nullable String context, @Nullable String metadata) {
+    long startedAt = System.nanoTime();
+    boolean succeeded = false;
+    try {
+      List<String> result = storage.saveAll(files, timeToLiveInSeconds, context, metadata);
+      metrics.increment(StorageMetrics.STORAGE_BYTES_IN, getSize(files));
+      succeeded = true;
+      return result;
+    } finally {
+      stop(SAVE_ALL, startedAt, succeeded);
+    }
+  }
+
+  @Nullable
+  @Override
+  public StoredMultipartFile find(@NotNull String id) {
+    long startedAt = System.nanoTime();
+    boolean succeeded = false;
+    try {
+      StoredMultipartFile result = storage.find(id);
+      succeeded = true;
+      return result;
+    } finally {
+      stop(FIND, startedAt, succeeded);
+    }
+  }
+
+  @NotNull
+  @Override
+  public List<StoredMultipartFile> findByContext(@NotNull String context) {
+    long startedAt = System.nanoTime();
+    boolean succeeded = false;
+    try {
+      List<StoredMultipartFile> result = storage.findByContext(context);
+      succeeded = true;
+      return result;
+    } finally {
+      stop(FIND_BY_CONTEXT, startedAt, succeeded);
+    }
+  }
+
+  @NotNull
+  @Override
+  public List<StoredMultipartFile> findByContext(@NotNull String context, @Nullable StoredMultipartFile after,
+                                                 int limit) {
+    long startedAt = System.nanoTime();
+    boolean succeeded = false;
+    try {
+      List<StoredMultipartFile> result = storage.findByContext(context, after, limit);
+      succeeded = true;
+      return result;
+    } finally {
+      stop(FIND_PAGE_BY_CONTEXT, startedAt, succeeded);
+    }
+  }
+
+  @Override
+  public int forEachByContext(@NotNull String context, @NotNull StoredMultipartFileCallback callback) {
+    long startedAt = System.nanoTime();
+    boolean succeeded = false;
+    try {
+      int result = storage.forEachByContext(context, callback);
+      succeeded = true;
+      return result;
+    } finally {
+      stop(FOR_EACH_BY_CONTEXT, startedAt, succeeded);
+    }
+  }
+
+  @NotNull
+  @Override
+  public Map<String, StoredMultipartFile> findAll(@NotNull Collection<String> ids) {
+    long startedAt = System.nanoTime();
+    boolean succeeded = false;
+    try {
+      Map<String, StoredMultipartFile> result = storage.findAll(ids);
+      succeeded = true;
+      return result;
+    } finally {
+      stop(FIND_ALL, startedAt, succeeded);
+    }
+  }
+
+  @NotNull
+  @Override
+  public Map<String, MultipartFileInfo> findInfo(@NotNull Collection<String> ids) {
+    long startedAt = System.nanoTime();
+    boolean succeeded = false;
+    try {
+      Map<String, MultipartFileInfo> result = storage.findInfo(ids);
+      succeeded = true;
+      return result;
+    } finally {
+      stop(FIND_INFO, startedAt, succeeded);
+    }
+  }
+
+  @NotNull
+  @Override
+  public List<MultipartFileInfo> findInfoByContext(@NotNull String context) {
+    long startedAt = System.nanoTime();
+    boolean succeeded = false;
+    try {
+      List<MultipartFileInfo> result = storage.findInfoByContext(context);
+      succeeded = true;
+      return result;
+    } finally {
+      stop(FIND_INFO_BY_CONTEXT, startedAt, succeeded);
+    }
+  }
+
+  @Nullable
+  @Override
+  public Date setTimeToLive(@NotNull String id, int timeToLiveInSeconds) {
+    long startedAt = System.nanoTime();
+    boolean succeeded = false;
+    try {
+      Date result = storage.setTimeToLive(id, timeToLiveInSeconds);
+      succeeded = true;
+      return result;
+    } finally {
+      stop(SET_TIME_TO_LIVE, startedAt, succeeded);
+    }
+  }
+
+  @Override
+  public int setTimeToLive(@NotNull Collection<String> ids, int timeToLiveInSeconds) {
+    long startedAt = System.nanoTime();
+    boolean succeeded = false;
+    try {
+      int result = storage.setTimeToLive(ids, timeToLiveInSeconds);
+      succeeded = true;
+      return result;
+    } finally {
+      stop(SET_TIME_TO_LIVE_ALL, startedAt, succeeded);
+    }
+  }
+
+  @Override
+  public int setTimeToLiveByContext(@NotNull String context, int timeToLiveInSeconds) {
+    long startedAt = System.nanoTime();
+    boolean succeeded = false;
+    try {
+      int result = storage.setTimeToLiveByContext(context, timeToLiveInSeconds);
+      succeeded = true;
+      return result;
+    } finally {
+      stop(SET_TIME_TO_LIVE_BY_CONTEXT, startedAt, succeeded);
+    }
+  }
+
+  @Override
+  public int setMetadata(@NotNull String id, @Nullable String metadata) {
+    long startedAt = System.nanoTime();
+    boolean succeeded = false;
+    try {
+      int result = storage.setMetadata(id, metadata);
+      succeeded = true;
+      return result;
+    } finally {
+      stop(SET_METADATA, startedAt, succeeded);
+    }
+  }
+
+  @Override
+  public int delete(@NotNull String id) {
+    long startedAt = System.nanoTime();
+    boolean succeeded = false;
+    try {
+      int result = storage.delete(id);
+      succeeded = true;
+      return result;
+    } finally {
+      stop(DELETE, startedAt, succeeded);
+    }
+  }
+
+  @Override
+  public int delete(@NotNull Collection<String> ids) {
+    long startedAt = System.nanoTime();
+    boolean succeeded = false;
+    try {
+      int result = storage.delete(ids);
+      succeeded = true;
+      return result;
+    } finally {
+      stop(DELETE_ALL_BY_ID, startedAt, succeeded);
+    }
+  }
+
+  @Override
+  public int deleteByContext(@NotNull String context) {
+    long startedAt = System.nanoTime();
+    boolean succeeded = false;
+    try {
+      int result = storage.deleteByContext(context);
+      succeeded = true;
+      return result;
+    } finally {
+      stop(DELETE_BY_CONTEXT, startedAt, succeeded);
+    }
+  }
+
+  @Override
+  public int deleteExpired() {
+    long startedAt = System.nanoTime();
+    boolean succeeded = false;
+    try {
+      int result = storage.deleteExpired();
+      succeeded = true;
+      return result;
+    } finally {
+      stop(DELETE_EXPIRED, startedAt, succeeded);
+    }
+  }
+
+  @NotNull
+  @Override
+  public DeletionResult deleteExpired(int limit) {
+    long startedAt = System.nanoTime();
+    boolean succeeded = false;
+    try {
+      DeletionResult result = storage.deleteExpired(limit);
+      succeeded = true;
+      return result;
+    } finally {
+      stop(DELETE_EXPIRED, startedAt, succeeded);
+    }
+  }
+
+  @Override
+  public int deleteAll() {
+    long startedAt = System.nanoTime();
+    boolean succeeded = false;
+    try {
+      int result = storage.deleteAll();
+      succeeded = true;
+      return result;
+    } finally {
+      stop(DELETE_ALL, startedAt, succeeded);
+    }
+  }
+
+  @NotNull
+  @Override
+  public ContextUsage getUsage(@NotNull String context) {
+    long startedAt = System.nanoTime();
+    boolean succeeded = false;
+    try {
+      ContextUsage result = storage.getUsage(context);
+      succeeded = true;
+      return result;
+    } finally {
+      stop(GET_USAGE, startedAt, succeeded);
+    }
+  }
+
+  @Override
+  public int count() {
+    long startedAt = System.nanoTime();
+    boolean succeeded = false;
+    try {
+      int result = storage.count();
+      succeeded = true;
+      return result;
+    } finally {
+      stop(COUNT, startedAt, succeeded);
+    }
+  }
+
+  /* Utility */
+
+  private void stop(@NotNull String operation, long startedAt, boolean succeeded) {
+    metrics.record(operation, System.nanoTime() - startedAt);
+    if (!succeeded) {
+      metrics.increment(operation + StorageMetrics.ERRORS, 1);
+    }
+  }
+
+  private static long getSize(@NotNull List<? extends MultipartFile> files) {
+    long size = 0;
+    for (MultipartFile file : files) {
+      size += file.getSize();
+    }
+    return size;
+  }
+}
@@ -0,0 +1,250 @@
+package nl.runnable.spring.fileupload.impl;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.springframework.dao.DataRetrievalFailureException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceUtils;
+import org.springframework.jdbc.support.JdbcUtils;
+import org.springframework.util.Assert;
+
+import javax.sql.DataSource;
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Blob;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+
+/**
+ * {@link InputStream} that reads a BLOB column while keeping the underlying JDBC resources open.
+ * <p>
+ * Unlike reading the BLOB from within a {@link org.springframework.jdbc.core.ResultSetExtractor}, the
+ * {@link Connection}, {@link PreparedStatement} and {@link ResultSet} stay open until the stream is closed, the end of
+ * the stream is reached or reading fails. This lets the driver stream the BLOB instead of materializing it on the heap.
+ * </p>
+ * <p>
+ * Connections are obtained and released through {@link DataSourceUtils}, so a stream opened within a transaction uses
+ * the transaction-bound connection and leaves it open.
+ * </p>
+ *
+ * @author Laurens Fridael
+ */
+class JdbcBlobInputStream extends FilterInputStream {
+
+  /**
+   * SQL state used by drivers, such as H2, that do not throw {@link SQLFeatureNotSupportedException}.
+   */
+  private static final String FEATURE_NOT_SUPPORTED_STATE = "HYC00";
+
+  private final DataSource dataSource;
+
+  private Connection connection;
+
+  private PreparedStatement statement;
+
+  private ResultSet resultSet;
+
+  private JdbcBlobInputStream(@NotNull InputStream in, @NotNull DataSource dataSource, @NotNull Connection connection,
+                              @NotNull PreparedStatement statement, @NotNull ResultSet resultSet) {
+    super(in);
+    this.dataSource = dataSource;
+    this.connection = connection;
+    this.statement = statement;
+    this.resultSet = resultSet;
+  }
+
+  /**
+   * Opens a stream for the first non-null BLOB column of the first row returned by the given query.
+   *
+   * @param jdbc The {@link JdbcTemplate} providing the {@link DataSource} and exception translation.
+   * @param sql  The query.
+   * @param args The query arguments.
+   * @return The stream or {@code null} if the query yields no rows or all BLOB columns are {@code null}.
+   */
+  @Nullable
+  static InputStream open(@NotNull JdbcTemplate jdbc, @NotNull String sql, Object... args) {
+    return open(jdbc, 0, -1, sql, args);
+  }
+
+  /**
+   * Opens a stream for part of the first non-null BLOB column of the first row returned by the given query.
+   * <p>
+   * Uses {@link Blob#getBinaryStream(long, long)} so that only the requested bytes are read from the database. Falls
+   * back to skipping to the requested position for drivers that do not support offset-based access.
+   * </p>
+   *
+   * @param jdbc     The {@link JdbcTemplate} providing the {@link DataSource} and exception translation.
+   * @param position The zero-based position of the first byte.
+   * @param length   The maximum number of bytes or -1 to read up to the end of the BLOB.
+   * @param sql      The query.
+   * @param args     The query arguments.
+   * @return The stream or {@code null} if the query yields no rows or all BLOB columns are {@code null}.
+   */
+  @Nullable
+  static InputStream open(@NotNull JdbcTemplate jdbc, long position, long length, @NotNull String sql,
+                          Object... args) {
+    Assert.isTrue(position >= 0, "Position cannot be less than 0.");
+    DataSource dataSource = jdbc.getDataSource();
+    Connection connection = DataSourceUtils.getConnection(dataSource);
+    PreparedStatement statement = null;
+    ResultSet resultSet = null;
+    boolean opened = false;
+    try {
+      statement = connection.prepareStatement(sql);
+      for (int i = 0; i < args.length; i++) {
+        statement.setObject(i + 1, args[i]);
+      }
+      resultSet = statement.executeQuery();
+      if (!resultSet.next()) {
+        return null;
+      }
+      InputStream data = null;
+      int columnCount = resultSet.getMetaData().getColumnCount();
+      for (int column = 1; column <= columnCount && data == null; column++) {
+        if (position == 0 && length < 0) {
+          data = resultSet.getBinaryStream(column);
+        } else {
+          data = getBinaryStream(resultSet.getBlob(column), position, length);
+        }
+      }
+      if (data == null) {
+        return null;
+      }
+      opened = true;
+      return new JdbcBlobInputStream(data, dataSource, connection, statement, resultSet);
+    } catch (SQLException e) {
+      throw jdbc.getExceptionTranslator().translate("Opening BLOB stream", sql, e);
+    } catch (IOException e) {
+      throw new DataRetrievalFailureException("Could not skip to BLOB position " + position, e);
+    } finally {
+      if (!opened) {
+        JdbcUtils.closeResultSet(resultSet);
+        JdbcUtils.closeStatement(statement);
+        DataSourceUtils.releaseConnection(connection, dataSource);
+      }
+    }
+  }
+
+  @Nullable
+  private static InputStream getBinaryStream(@Nullable Blob blob, long position, long length)
+      throws SQLException, IOException {
+    if (blob == null) {
+      return null;
+    }
+    long available = Math.max(blob.length() - position, 0);
+    long count = length < 0 ? available : Math.min(length, available);
+    if (count == 0) {
+      return new ByteArrayInputStream(new byte[0]);
+    }
+    try {
+      return blob.getBinaryStream(position + 1, count);
+    } catch (SQLException e) {
+      if (!isFeatureNotSupported(e)) {
+        throw e;
+      }
+    }
+    InputStream data = blob.getBinaryStream();
+    long remaining = position;
+    while (remaining > 0) {
+      long skipped = data.skip(remaining);
+      if (skipped <= 0) {
+        if (data.read() == -1) {
+          break;
+        }
+        skipped = 1;
+      }
+      remaining -= skipped;
+    }
+    return new BoundedInputStream(data, count);
+  }
+
+  private static boolean isFeatureNotSupported(@NotNull SQLException e) {
+    return e instanceof SQLFeatureNotSupportedException || FEATURE_NOT_SUPPORTED_STATE.equals(e.getSQLState());
+  }
+
+  @Override
+  public int read() throws IOException {
+    if (connection == null) {
+      return -1;
+    }
+    try {
+      int b = super.read();
+      if (b == -1) {
+        release();
+      }
+      return b;
+    } catch (IOException e) {
+      release();
+      throw e;
+    } catch (RuntimeException e) {
+      release();
+      throw e;
+    }
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (connection == null) {
+      return -1;
+    }
+    try {
+      int count = super.read(b, off, len);
+      if (count == -1) {
+        release();
+      }
+      return count;
+    } catch (IOException e) {
+      release();
+      throw e;
+    } catch (RuntimeException e) {
+      release();
+      throw e;
+    }
+  }
+
+  @Override
+  public long skip(long n) throws IOException {
+    try {
+      return super.skip(n);
+    } catch (IOException e) {
+      release();
+      throw e;
+    } catch (RuntimeException e) {
+      release();
+      throw e;
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    release();
+  }
+
+  @Override
+  public boolean markSupported() {
+    return false;
+  }
+
+  private void release() {
+    if (connection == null) {
+      return;
+    }
+    try {
+      in.close();
+    } catch (IOException ignored) {
+      // The ResultSet is closed next, which invalidates the stream anyway.
+    } finally {
+      JdbcUtils.closeResultSet(resultSet);
+      JdbcUtils.closeStatement(statement);
+      DataSourceUtils.releaseConnection(connection, dataSource);
+      resultSet = null;
+      statement = null;
+      connection = null;
+    }
+  }
+}
@@ -0,0 +1,175 @@
+package nl.runnable.spring.fileupload.impl;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.ResultSetExtractor;
+import org.springframework.jdbc.support.lob.LobHandler;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * {@link InputStream} that reads a file stored as a sequence of chunks in {@code sfus_chunk}.
+ * <p>
+ * Only the chunks that overlap the requested range are read. Without an executor, chunks are streamed one at a time
+ * over a single connection. With an executor, up to a given number of upcoming chunks are fetched in parallel over
+ * separate connections, buffering each prefetched chunk in memory.
+ * </p>
+ *
+ * @author Laurens Fridael
+ */
+class JdbcChunkInputStream extends InputStream {
+
+  private final JdbcTemplate jdbc;
+
+  private final LobHandler lobHandler;
+
+  private final String fileId;
+
+  private final int chunkSize;
+
+  private final AsyncTaskExecutor executor;
+
+  private final int readAhead;
+
+  private final LinkedList<Future<byte[]>> prefetched = new LinkedList<Future<byte[]>>();
+
+  private InputStream current;
+
+  private int nextSeq;
+
+  private int nextPrefetchSeq;
+
+  private final int lastSeq;
+
+  private long offsetInChunk;
+
+  private long remaining;
+
+  /**
+   * @param position The zero-based position of the first byte to read.
+   * @param length   The number of bytes to read, which must not extend beyond the end of the file.
+   * @param executor Optional executor for prefetching chunks in parallel.
+   */
+  JdbcChunkInputStream(@NotNull JdbcTemplate jdbc, @NotNull LobHandler lobHandler, @NotNull String fileId,
+                       int chunkSize, long position, long length, @Nullable AsyncTaskExecutor executor,
+                       int readAhead) {
+    this.jdbc = jdbc;
+    this.lobHandler = lobHandler;
+    this.fileId = fileId;
+    this.chunkSize = chunkSize;
+    this.executor = executor;
+    this.readAhead = readAhead;
+    this.nextSeq = (int) (position / chunkSize);
+    this.nextPrefetchSeq = nextSeq;
+    this.offsetInChunk = position % chunkSize;
+    this.remaining = length;
+    this.lastSeq = length > 0 ? (int) ((position + length - 1) / chunkSize) : nextSeq - 1;
+  }
+
+  @Override
+  public int read() throws IOException {
+    byte[] b = new byte[1];
+    return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    while (remaining > 0) {
+      if (current == null) {
+        current = openNextChunk();
+      }
+      int count = current.read(b, off, (int) Math.min(len, remaining));
+      if (count != -1) {
+        remaining -= count;
+        return count;
+      }
+      current.close();
+      current = null;
+      if (nextSeq > lastSeq) {
+        throw new IOException(String.format("Chunks of file '%s' end before the expected size.", fileId));
+      }
+    }
+    return -1;
+  }
+
+  @Override
+  public void close() throws IOException {
+    remaining = 0;
+    for (Future<byte[]> future : prefetched) {
+      future.cancel(true);
+    }
+    prefetched.clear();
+    if (current != null) {
+      current.close();
+      current = null;
+    }
+  }
+
+  @NotNull
+  private InputStream openNextChunk() throws IOException {
+    int seq = nextSeq++;
+    long offset = offsetInChunk;
+    offsetInChunk = 0;
+    long length = Math.min(remaining, chunkSize - offset);
+    if (executor == null) {
+      InputStream data = JdbcBlobInputStream.open(jdbc, offset, length, SqlConstants.SELECT_CHUNK_DATA, fileId, seq);
+      if (data == null) {
+        throw new FileNotFoundException(String.format("Chunk %d of file '%s' does not exist.", seq, fileId));
+      }
+      return data;
+    }
+
+    while (nextPrefetchSeq <= lastSeq && prefetched.size() < readAhead) {
+      prefetched.add(prefetch(nextPrefetchSeq++));
+    }
+    byte[] chunk = await(prefetched.removeFirst());
+    if (chunk == null) {
+      throw new FileNotFoundException(String.format("Chunk %d of file '%s' does not exist.", seq, fileId));
+    }
+    return new ByteArrayInputStream(chunk, (int) offset, (int) length);
+  }
+
+  @NotNull
+  private Future<byte[]> prefetch(final int seq) {
+    return executor.submit(new Callable<byte[]>() {
+
+      @Override
+      public byte[] call() throws Exception {
+        return jdbc.query(SqlConstants.SELECT_CHUNK_DATA, new ResultSetExtractor<byte[]>() {
+
+          @Override
+          public byte[] extractData(ResultSet rs) throws SQLException {
+            return rs.next() ? lobHandler.getBlobAsBytes(rs, 1) : null;
+          }
+        }, fileId, seq);
+      }
+    });
+  }
+
+  @Nullable
+  private static byte[] await(@NotNull Future<byte[]> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while reading chunk.");
+    } catch (ExecutionException e) {
+      throw new IOException("Could not read chunk.", e.getCause());
+    }
+  }
+}
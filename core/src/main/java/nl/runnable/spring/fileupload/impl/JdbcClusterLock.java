@@ -0,0 +1,85 @@
+package nl.runnable.spring.fileupload.impl;
+
+import nl.runnable.spring.fileupload.ClusterLock;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.util.Assert;
+
+import javax.sql.DataSource;
+import java.util.UUID;
+
+/**
+ * {@link ClusterLock} implementation that keeps leases in the {@code sfus_lease} table.
+ * <p>
+ * A lease is acquired by updating its row if this instance holds it or if it has expired, or by inserting the row if
+ * it does not exist yet. Both are single statements, so the database decides which instance wins. Expiration is
+ * determined by the clock of each instance, so their clocks should differ by much less than the lease duration.
+ * </p>
+ *
+ * @author Laurens Fridael
+ */
+public class JdbcClusterLock implements ClusterLock {
+
+  private final Logger logger = LoggerFactory.getLogger(getClass());
+
+  /* Dependencies */
+
+  private JdbcTemplate jdbc;
+
+  /* State */
+
+  private final String owner = UUID.randomUUID().toString();
+
+  /* Main operations */
+
+  @Override
+  public boolean tryAcquire(@NotNull String name, int leaseDurationInSeconds) {
+    Assert.hasText(name, "Name cannot be empty.");
+    Assert.isTrue(leaseDurationInSeconds > 0, "Lease duration must be greater than 0.");
+
+    long now = System.currentTimeMillis();
+    long expiresAt = now + leaseDurationInSeconds * 1000L;
+    if (jdbc.update(SqlConstants.RENEW_LEASE, owner, expiresAt, name, owner, now) > 0) {
+      return true;
+    }
+    try {
+      jdbc.update(SqlConstants.INSERT_INTO_LEASE, name, owner, expiresAt);
+      logger.debug("Acquired new lease '{}'.", name);
+      return true;
+    } catch (DataIntegrityViolationException e) {
+      return false;
+    }
+  }
+
+  @Override
+  public void release(@NotNull String name) {
+    Assert.hasText(name, "Name cannot be empty.");
+
+    if (jdbc.update(SqlConstants.DELETE_LEASE, name, owner) > 0) {
+      logger.debug("Released lease '{}'.", name);
+    }
+  }
+
+  /**
+   * Obtains the identifier by which this instance holds leases.
+   */
+  @NotNull
+  public String getOwner() {
+    return owner;
+  }
+
+  /* Dependencies */
+
+  @Autowired
+  @Qualifier("spring-file-upload-storage")
+  public void setDataSource(@NotNull DataSource dataSource) {
+    Assert.notNull(dataSource);
+    jdbc = new JdbcTemplate(dataSource);
+  }
+
+}
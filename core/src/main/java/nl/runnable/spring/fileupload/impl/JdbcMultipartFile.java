@@ -1,25 +1,21 @@
 package nl.runnable.spring.fileupload.impl;
 
-import nl.runnable.spring.fileupload.StoredMultipartFile;
+import nl.runnable.spring.fileupload.EncodedMultipartFile;
+import nl.runnable.spring.fileupload.HashedMultipartFile;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
-import org.springframework.dao.DataAccessException;
-import org.springframework.jdbc.core.JdbcOperations;
-import org.springframework.jdbc.core.ResultSetExtractor;
 import org.springframework.util.Assert;
 import org.springframework.util.FileCopyUtils;
 
 import java.io.*;
-import java.sql.ResultSet;
-import java.sql.SQLException;
 import java.util.Date;
 
 /**
  * @author Laurens Fridael
  */
-class JdbcMultipartFile implements StoredMultipartFile {
+class JdbcMultipartFile extends AbstractStoredMultipartFile implements EncodedMultipartFile, HashedMultipartFile {
 
-  private final JdbcOperations jdbc;
+  private final JdbcMultipartFileStorage storage;
 
   private String id;
 
@@ -31,6 +27,14 @@ class JdbcMultipartFile implements StoredMultipartFile {
 
   private long size;
 
+  private String contentEncoding;
+
+  private long encodedSize = -1;
+
+  private Integer chunkSize;
+
+  private String contentHash;
+
   private String context;
 
   private String metadata;
@@ -39,9 +43,9 @@ class JdbcMultipartFile implements StoredMultipartFile {
 
   private Date expiresAt;
 
-  JdbcMultipartFile(@NotNull JdbcOperations jdbc) {
-    Assert.notNull(jdbc);
-    this.jdbc = jdbc;
+  JdbcMultipartFile(@NotNull JdbcMultipartFileStorage storage) {
+    Assert.notNull(storage);
+    this.storage = storage;
   }
 
   @NotNull
@@ -86,7 +90,6 @@ class JdbcMultipartFile implements StoredMultipartFile {
   }
 
   void setSize(final long size) {
-    Assert.isTrue(size <= Integer.MAX_VALUE);
     this.size = size;
   }
 
@@ -95,26 +98,85 @@ class JdbcMultipartFile implements StoredMultipartFile {
     return size;
   }
 
+  @Nullable
+  @Override
+  public String getContentHash() {
+    return contentHash;
+  }
+
+  void setContentHash(String contentHash) {
+    this.contentHash = contentHash;
+  }
+
+  @Nullable
+  @Override
+  public String getContentEncoding() {
+    return contentEncoding;
+  }
+
+  void setContentEncoding(String contentEncoding) {
+    this.contentEncoding = contentEncoding;
+  }
+
+  @Override
+  public long getEncodedSize() {
+    return contentEncoding != null ? encodedSize : size;
+  }
+
+  void setEncodedSize(long encodedSize) {
+    this.encodedSize = encodedSize;
+  }
+
+  /**
+   * Obtains the size of the chunks the file is stored in.
+   *
+   * @return The chunk size or {@code null} if the file is stored as a single BLOB.
+   */
+  @Nullable
+  Integer getChunkSize() {
+    return chunkSize;
+  }
+
+  void setChunkSize(Integer chunkSize) {
+    this.chunkSize = chunkSize;
+  }
+
   @Override
   public byte[] getBytes() throws IOException {
+    if (getSize() > Integer.MAX_VALUE) {
+      throw new IllegalStateException("File is too large to be obtained as a byte array.");
+    }
     ByteArrayOutputStream buffer = new ByteArrayOutputStream((int) getSize());
     FileCopyUtils.copy(getInputStream(), buffer);
     return buffer.toByteArray();
   }
 
+  /**
+   * Opens a stream for reading the file's data directly from the database.
+   * <p>
+   * The stream holds on to a database connection until it is closed or fully read, so callers must always close it.
+   * </p>
+   *
+   * @throws FileNotFoundException If the file no longer exists.
+   */
   @Override
   public InputStream getInputStream() throws IOException {
-    return jdbc.query(SqlConstants.SELECT_DATA_BY_ID, new ResultSetExtractor<InputStream>() {
-
-      @Override
-      public InputStream extractData(final ResultSet rs) throws SQLException, DataAccessException {
-        InputStream data = null;
-        if (rs.next()) {
-          data = rs.getBinaryStream(1);
-        }
-        return data;
-      }
-    }, id);
+    return storage.openInputStream(this, 0, -1);
+  }
+
+  @NotNull
+  @Override
+  public InputStream getInputStream(long position, long length) throws IOException {
+    Assert.isTrue(position >= 0, "Position cannot be less than 0.");
+    Assert.isTrue(length >= 0, "Length cannot be less than 0.");
+
+    return storage.openInputStream(this, position, length);
+  }
+
+  @NotNull
+  @Override
+  public InputStream getEncodedInputStream() throws IOException {
+    return contentEncoding != null ? storage.openEncodedInputStream(this) : getInputStream();
   }
 
   @Override
@@ -1,8 +1,13 @@
 package nl.runnable.spring.fileupload.impl;
 
+import nl.runnable.spring.fileupload.ContextUsage;
+import nl.runnable.spring.fileupload.DeletionResult;
 import nl.runnable.spring.fileupload.IdGenerator;
+import nl.runnable.spring.fileupload.MultipartFileInfo;
 import nl.runnable.spring.fileupload.MultipartFileStorage;
+import nl.runnable.spring.fileupload.QuotaExceededException;
 import nl.runnable.spring.fileupload.StoredMultipartFile;
+import nl.runnable.spring.fileupload.StoredMultipartFileCallback;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
@@ -12,28 +17,66 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.core.io.ClassPathResource;
+import org.springframework.core.task.AsyncTaskExecutor;
 import org.springframework.core.io.Resource;
 import org.springframework.dao.DataAccessException;
-import org.springframework.jdbc.core.JdbcOperations;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.dao.DuplicateKeyException;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.PreparedStatementCallback;
+import org.springframework.jdbc.core.PreparedStatementCreator;
 import org.springframework.jdbc.core.ResultSetExtractor;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.jdbc.core.RowMapper;
 import org.springframework.jdbc.core.support.AbstractLobCreatingPreparedStatementCallback;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.init.DatabasePopulatorUtils;
+import org.springframework.jdbc.datasource.init.ResourceDatabasePopulator;
+import org.springframework.jdbc.support.JdbcUtils;
+import org.springframework.jdbc.support.MetaDataAccessException;
 import org.springframework.jdbc.support.lob.DefaultLobHandler;
 import org.springframework.jdbc.support.lob.LobCreator;
 import org.springframework.jdbc.support.lob.LobHandler;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
 import org.springframework.util.Assert;
 import org.springframework.util.FileCopyUtils;
+import org.springframework.util.StreamUtils;
 import org.springframework.web.multipart.MultipartFile;
 
 import javax.sql.DataSource;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.security.DigestInputStream;
+import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
 
 /**
  * JDBC-based {@link nl.runnable.spring.fileupload.MultipartFileStorage} implementation.
@@ -42,14 +85,59 @@ import java.util.List;
  */
 public class JdbcMultipartFileStorage implements MultipartFileStorage, InitializingBean {
 
+  /**
+   * The version of the schema created by {@code schema.sql}.
+   */
+  static final int SCHEMA_VERSION = 6;
+
+  /**
+   * The content encoding of compressed files.
+   */
+  static final String GZIP = "gzip";
+
+  /**
+   * The maximum number of rows inserted in a single JDBC batch. Drivers may buffer the content of a whole batch.
+   */
+  static final int MAX_BATCH_SIZE = 100;
+
+  /**
+   * The maximum number of IDs in a single {@code IN} list. Some databases, such as Oracle, limit lists to 1000 items.
+   */
+  static final int MAX_IN_LIST_SIZE = 500;
+
+  /**
+   * Content types whose content is typically compressed already. A trailing {@code *} matches any suffix.
+   */
+  private static final List<String> DEFAULT_UNCOMPRESSED_CONTENT_TYPES = Arrays.asList("image/jpeg", "image/png",
+      "image/gif", "image/webp", "video/*", "audio/*", "application/zip", "application/gzip", "application/x-gzip",
+      "application/x-bzip2", "application/x-xz", "application/x-7z-compressed", "application/x-rar-compressed",
+      "application/vnd.openxmlformats-officedocument.*", "application/vnd.oasis.opendocument.*",
+      "application/java-archive");
+
+  private static final RowMapper<MultipartFileInfo> MULTIPART_FILE_INFO_ROW_MAPPER =
+      new RowMapper<MultipartFileInfo>() {
+
+        @Override
+        public MultipartFileInfo mapRow(ResultSet rs, int rowNum) throws SQLException {
+          return new MultipartFileInfo(rs.getString("id"), rs.getString("name"), rs.getString("original_filename"),
+              rs.getString("content_type"), rs.getLong("size"), rs.getString("content_hash"),
+              rs.getString("context"), rs.getString("metadata"), rs.getLong("created_at"),
+              rs.getLong("expires_at"));
+        }
+      };
+
   private final Logger logger = LoggerFactory.getLogger(getClass());
 
   /* Dependencies */
 
-  private JdbcOperations jdbc;
+  private JdbcTemplate jdbc;
 
   private final LobHandler lobHandler = new DefaultLobHandler();
 
+  private TransactionTemplate transactionTemplate;
+
+  private TransactionTemplate nestedTransactionTemplate;
+
   private IdGenerator idGenerator = new UuidGenerator();
 
   /* Configuration */
@@ -57,6 +145,37 @@ public class JdbcMultipartFileStorage implements MultipartFileStorage, Initializ
   @Value("${spring-file-upload-storage.database.autoInit:true}")
   private boolean initDatabaseAutomatically = true;
 
+  @Value("${spring-file-upload-storage.database.migrationLockTimeout:600}")
+  private int migrationLockTimeout = 600;
+
+  @Value("${spring-file-upload-storage.database.deduplicate:false}")
+  private boolean deduplicate = false;
+
+  @Value("${spring-file-upload-storage.database.chunkSize:0}")
+  private int chunkSize = 0;
+
+  @Value("${spring-file-upload-storage.database.chunkParallelism:4}")
+  private int chunkParallelism = 4;
+
+  @Value("${spring-file-upload-storage.database.compress:false}")
+  private boolean compress = false;
+
+  @Value("${spring-file-upload-storage.database.compressionThreshold:1024}")
+  private long compressionThreshold = 1024;
+
+  private List<String> uncompressedContentTypes = DEFAULT_UNCOMPRESSED_CONTENT_TYPES;
+
+  @Value("${spring-file-upload-storage.database.fetchSize:100}")
+  private int fetchSize = 100;
+
+  @Value("${spring-file-upload-storage.quota.maxFilesPerContext:0}")
+  private long maxFilesPerContext = 0;
+
+  @Value("${spring-file-upload-storage.quota.maxSizePerContext:0}")
+  private long maxSizePerContext = 0;
+
+  private AsyncTaskExecutor chunkTaskExecutor;
+
   /* Main operations */
 
   @NotNull
@@ -72,8 +191,8 @@ public class JdbcMultipartFileStorage implements MultipartFileStorage, Initializ
   public void save(@NotNull final MultipartFile file, @NotNull final String id, int timeToLiveInSeconds,
                    final @Nullable String context, final @Nullable String metadata) {
     Assert.notNull(file, "File cannot be null.");
-    if (file.getSize() > Integer.MAX_VALUE) {
-      throw new IllegalArgumentException(String.format("Cannot store files larger than %d bytes.", Integer.MAX_VALUE));
+    if (file.getSize() > getMaxFileSize()) {
+      throw new IllegalArgumentException(String.format("Cannot store files larger than %d bytes.", getMaxFileSize()));
     }
     Assert.hasText(id, "ID cannot be empty.");
     Assert.isTrue(timeToLiveInSeconds >= 0, "Time to live must be greater than or equal to 0.");
@@ -83,31 +202,780 @@ public class JdbcMultipartFileStorage implements MultipartFileStorage, Initializ
     final Date createdAt = new Date();
     final Date expiresAt = new Date(createdAt.getTime() + timeToLiveInSeconds * 1000);
     logger.debug("Saving multipart file '{}'. Expires at: {} ", id, expiresAt);
-    jdbc.execute(SqlConstants.INSERT_INTO, new AbstractLobCreatingPreparedStatementCallback(lobHandler) {
+    if (context == null || !isQuotaEnabled()) {
+      saveFile(file, id, context, metadata, createdAt, expiresAt);
+      return;
+    }
+    final QuotaCheckingMultipartFile checked = new QuotaCheckingMultipartFile(file, context);
+    try {
+      transactionTemplate.execute(new TransactionCallbackWithoutResult() {
+
+        @Override
+        protected void doInTransactionWithoutResult(TransactionStatus status) {
+          reserveUsage(context, 1, file.getSize());
+          saveFile(checked, id, context, metadata, createdAt, expiresAt);
+        }
+      });
+    } catch (RuntimeException e) {
+      throw checked.translate(e);
+    }
+  }
+
+  @NotNull
+  @Override
+  public List<String> saveAll(@NotNull List<? extends MultipartFile> files, int timeToLiveInSeconds,
+                              @Nullable final String context, @Nullable final String metadata) {
+    Assert.notNull(files, "Files cannot be null.");
+    Assert.isTrue(timeToLiveInSeconds >= 0, "Time to live must be greater than or equal to 0.");
+    Assert.isTrue(context == null || context.length() <= 255, "Context cannot be longer than 255 characters");
+    Assert.isTrue(metadata == null || metadata.length() <= 255, "Metadata cannot be longer than 255 characters");
+    for (MultipartFile file : files) {
+      Assert.notNull(file, "File cannot be null.");
+      if (file.getSize() > getMaxFileSize()) {
+        throw new IllegalArgumentException(String.format("Cannot store files larger than %d bytes.", getMaxFileSize()));
+      }
+    }
+
+    if (files.isEmpty()) {
+      return Collections.emptyList();
+    }
+    final List<String> ids = new ArrayList<String>(files.size());
+    for (int i = 0; i < files.size(); i++) {
+      ids.add(idGenerator.generateId());
+    }
+    final Date createdAt = new Date();
+    final Date expiresAt = new Date(createdAt.getTime() + timeToLiveInSeconds * 1000L);
+    logger.debug("Saving {} multipart files. Expires at: {} ", files.size(), expiresAt);
+    if (context == null || !isQuotaEnabled()) {
+      saveFiles(files, ids, context, metadata, createdAt, expiresAt);
+      return ids;
+    }
+    long size = 0;
+    final List<QuotaCheckingMultipartFile> checked = new ArrayList<QuotaCheckingMultipartFile>(files.size());
+    for (MultipartFile file : files) {
+      size += file.getSize();
+      checked.add(new QuotaCheckingMultipartFile(file, context));
+    }
+    final long totalSize = size;
+    try {
+      transactionTemplate.execute(new TransactionCallbackWithoutResult() {
+
+        @Override
+        protected void doInTransactionWithoutResult(TransactionStatus status) {
+          reserveUsage(context, checked.size(), totalSize);
+          saveFiles(checked, ids, context, metadata, createdAt, expiresAt);
+        }
+      });
+    } catch (RuntimeException e) {
+      for (QuotaCheckingMultipartFile file : checked) {
+        RuntimeException translated = file.translate(e);
+        if (translated != e) {
+          throw translated;
+        }
+      }
+      throw e;
+    }
+    return ids;
+  }
+
+  /**
+   * Reserves quota for files about to be saved in a context, by adding them to the context's usage if the result stays
+   * within the quota. The usage of a context is initialized from its files when the first file is saved.
+   * <p>
+   * The reservation is made in the transaction saving the files, so it is undone along with the files if saving fails
+   * or the connection is lost. The transaction holds the lock on the context's usage row until it ends, so saves in the
+   * same context take turns, while saves in other contexts are not affected.
+   * </p>
+   *
+   * @throws QuotaExceededException If the files do not fit in the quota.
+   */
+  private void reserveUsage(@NotNull String context, long count, long size) {
+    long maxCount = maxFilesPerContext > 0 ? maxFilesPerContext - count : Long.MAX_VALUE;
+    long maxSize = maxSizePerContext > 0 ? maxSizePerContext - size : Long.MAX_VALUE;
+    if (maxCount >= 0 && maxSize >= 0) {
+      if (jdbc.update(SqlConstants.RESERVE_USAGE, count, size, context, maxCount, maxSize) > 0) {
+        return;
+      }
+      initUsage(context);
+      if (jdbc.update(SqlConstants.RESERVE_USAGE, count, size, context, maxCount, maxSize) > 0) {
+        return;
+      }
+    }
+    throw new QuotaExceededException(context, String.format("Cannot save %d file(s) of %d byte(s) in context '%s', " +
+        "as this would exceed its quota of %s file(s) and %s byte(s). Current usage: %s.", count, size, context,
+        maxFilesPerContext > 0 ? maxFilesPerContext : "unlimited",
+        maxSizePerContext > 0 ? maxSizePerContext : "unlimited", getUsage(context)));
+  }
+
+  /**
+   * Initializes the usage of a context from its files, unless another transaction has done so. Uses a savepoint, as
+   * some databases, such as PostgreSQL, cannot continue a transaction after a failed statement.
+   */
+  private void initUsage(@NotNull final String context) {
+    try {
+      nestedTransactionTemplate.execute(new TransactionCallbackWithoutResult() {
+
+        @Override
+        protected void doInTransactionWithoutResult(TransactionStatus status) {
+          jdbc.update(SqlConstants.INSERT_INTO_USAGE, context, context);
+        }
+      });
+      logger.debug("Initialized usage of context '{}'.", context);
+    } catch (DataIntegrityViolationException ignored) {
+      // Initialized by another thread or instance.
+    }
+  }
+
+  /**
+   * Locks the usage of the given contexts until the current transaction ends, initializing it if necessary. Files are
+   * deleted while holding this lock, as saves reserve quota while holding it. Usage can therefore be released or
+   * recomputed without racing reservations that are still in progress.
+   *
+   * @param contexts The contexts. {@code null} contexts, which have no quota, are ignored.
+   */
+  void lockUsage(@NotNull Collection<String> contexts) {
+    if (!isQuotaEnabled()) {
+      return;
+    }
+    // Locks in a consistent order to avoid deadlocks between transactions locking several contexts.
+    Set<String> sorted = new TreeSet<String>();
+    for (String context : contexts) {
+      if (context != null) {
+        sorted.add(context);
+      }
+    }
+    for (String context : sorted) {
+      if (jdbc.update(SqlConstants.LOCK_USAGE, context) == 0) {
+        initUsage(context);
+        jdbc.update(SqlConstants.LOCK_USAGE, context);
+      }
+    }
+  }
+
+  /**
+   * Saves validated files in a single transaction. Files stored as a single BLOB are inserted in JDBC batches, other
+   * files one by one.
+   * <p>
+   * Chunks written in parallel using a chunk task executor do not participate in the transaction. If saving a later
+   * file fails, they are left behind until the files with the same IDs expire.
+   * </p>
+   */
+  void saveFiles(@NotNull final List<? extends MultipartFile> files, @NotNull final List<String> ids,
+                 @Nullable final String context, @Nullable final String metadata, @NotNull final Date createdAt,
+                 @NotNull final Date expiresAt) {
+    transactionTemplate.execute(new TransactionCallbackWithoutResult() {
+
+      @Override
+      protected void doInTransactionWithoutResult(TransactionStatus status) {
+        if (isBatchInsertSupported()) {
+          for (int from = 0; from < files.size(); from += MAX_BATCH_SIZE) {
+            int to = Math.min(from + MAX_BATCH_SIZE, files.size());
+            insertBatch(files.subList(from, to), ids.subList(from, to), context, metadata, createdAt, expiresAt);
+          }
+        } else {
+          for (int i = 0; i < files.size(); i++) {
+            saveFile(files.get(i), ids.get(i), context, metadata, createdAt, expiresAt);
+          }
+        }
+      }
+    });
+  }
+
+  /**
+   * Determines whether files can be inserted in JDBC batches, which requires each file to be stored as a single BLOB in
+   * its own row.
+   */
+  boolean isBatchInsertSupported() {
+    return !isDeduplicate() && !isChunked();
+  }
+
+  /**
+   * Saves a validated file using the configured storage layout.
+   */
+  void saveFile(@NotNull MultipartFile file, @NotNull String id, @Nullable String context,
+                @Nullable String metadata, @NotNull Date createdAt, @NotNull Date expiresAt) {
+    if (isDeduplicate()) {
+      saveWithSharedContent(file, id, context, metadata, createdAt, expiresAt);
+    } else if (isChunked()) {
+      saveInChunks(file, id, context, metadata, createdAt, expiresAt);
+    } else {
+      saveWithOwnContent(file, id, context, metadata, createdAt, expiresAt);
+    }
+  }
+
+  /**
+   * Saves a file stored as a single BLOB in its own row. The row and its content hash are written in a single
+   * transaction, so the file is never visible without its hash.
+   */
+  private void saveWithOwnContent(@NotNull final MultipartFile file, @NotNull final String id,
+                                  @Nullable final String context, @Nullable final String metadata,
+                                  @NotNull final Date createdAt, @NotNull final Date expiresAt) {
+    final DigestInputStream data = openDigestingStream(file);
+    final GzipCompressingInputStream compressed = isCompressible(file) ? new GzipCompressingInputStream(data) : null;
+    final InputStream stored = compressed != null ? compressed : data;
+    try {
+      transactionTemplate.execute(new TransactionCallbackWithoutResult() {
+
+        @Override
+        protected void doInTransactionWithoutResult(TransactionStatus status) {
+          jdbc.execute(SqlConstants.INSERT_INTO, new AbstractLobCreatingPreparedStatementCallback(lobHandler) {
+
+            @Override
+            protected void setValues(final PreparedStatement ps, final LobCreator lobCreator)
+                throws SQLException, DataAccessException {
+              setInsertValues(ps, lobCreator, file, id, stored, compressed != null, context, metadata, createdAt,
+                  expiresAt);
+            }
+          });
+          // The hash and compressed size are only known once the driver has consumed the stream, so they are stored
+          // separately.
+          if (compressed != null) {
+            jdbc.update(SqlConstants.UPDATE_CONTENT_HASH_AND_ENCODED_SIZE, ContentHash.toHex(data),
+                compressed.getCount(), id);
+          } else {
+            jdbc.update(SqlConstants.UPDATE_CONTENT_HASH, ContentHash.toHex(data), id);
+          }
+        }
+      });
+    } finally {
+      closeQuietly(stored);
+    }
+    if (compressed != null) {
+      logger.debug("Compressed file '{}' from {} to {} bytes.", id, file.getSize(), compressed.getCount());
+    }
+  }
+
+  /**
+   * Inserts files stored as a single BLOB using a single JDBC batch. The rows and their content hashes are written in a
+   * single transaction, so no file is ever visible without its hash.
+   */
+  private void insertBatch(@NotNull final List<? extends MultipartFile> files, @NotNull final List<String> ids,
+                           @Nullable final String context, @Nullable final String metadata,
+                           @NotNull final Date createdAt, @NotNull final Date expiresAt) {
+    transactionTemplate.execute(new TransactionCallbackWithoutResult() {
+
+      @Override
+      protected void doInTransactionWithoutResult(TransactionStatus status) {
+        insertBatchInTransaction(files, ids, context, metadata, createdAt, expiresAt);
+      }
+    });
+  }
+
+  private void insertBatchInTransaction(@NotNull final List<? extends MultipartFile> files,
+                                        @NotNull final List<String> ids, @Nullable final String context,
+                                        @Nullable final String metadata, @NotNull final Date createdAt,
+                                        @NotNull final Date expiresAt) {
+    final List<DigestInputStream> digests = new ArrayList<DigestInputStream>(files.size());
+    final List<GzipCompressingInputStream> compressed = new ArrayList<GzipCompressingInputStream>(files.size());
+    try {
+      jdbc.execute(SqlConstants.INSERT_INTO, new PreparedStatementCallback<Object>() {
+
+        @Override
+        public Object doInPreparedStatement(PreparedStatement ps) throws SQLException, DataAccessException {
+          LobCreator lobCreator = lobHandler.getLobCreator();
+          try {
+            for (int i = 0; i < files.size(); i++) {
+              MultipartFile file = files.get(i);
+              DigestInputStream data = openDigestingStream(file);
+              digests.add(data);
+              GzipCompressingInputStream gzip = isCompressible(file) ? new GzipCompressingInputStream(data) : null;
+              compressed.add(gzip);
+              setInsertValues(ps, lobCreator, file, ids.get(i), gzip != null ? gzip : data, gzip != null, context,
+                  metadata, createdAt, expiresAt);
+              ps.addBatch();
+            }
+            ps.executeBatch();
+            return null;
+          } finally {
+            lobCreator.close();
+          }
+        }
+      });
+    } finally {
+      for (int i = 0; i < digests.size(); i++) {
+        closeQuietly(i < compressed.size() && compressed.get(i) != null ? compressed.get(i) : digests.get(i));
+      }
+    }
+    List<Object[]> hashes = new ArrayList<Object[]>(files.size());
+    List<Object[]> hashesAndSizes = new ArrayList<Object[]>();
+    for (int i = 0; i < files.size(); i++) {
+      if (compressed.get(i) != null) {
+        hashesAndSizes.add(new Object[]{ContentHash.toHex(digests.get(i)), compressed.get(i).getCount(), ids.get(i)});
+      } else {
+        hashes.add(new Object[]{ContentHash.toHex(digests.get(i)), ids.get(i)});
+      }
+    }
+    if (!hashes.isEmpty()) {
+      jdbc.batchUpdate(SqlConstants.UPDATE_CONTENT_HASH, hashes);
+    }
+    if (!hashesAndSizes.isEmpty()) {
+      jdbc.batchUpdate(SqlConstants.UPDATE_CONTENT_HASH_AND_ENCODED_SIZE, hashesAndSizes);
+    }
+    logger.debug("Inserted {} file(s) in a single batch.", files.size());
+  }
+
+  /**
+   * Sets the values of {@link SqlConstants#INSERT_INTO}.
+   *
+   * @param data       The content to store, which the driver reads up to its end if it is compressed.
+   * @param compressed Whether the content is gzip-compressed.
+   */
+  private void setInsertValues(@NotNull PreparedStatement ps, @NotNull LobCreator lobCreator,
+                               @NotNull MultipartFile file, @NotNull String id, @NotNull InputStream data,
+                               boolean compressed, @Nullable String context, @Nullable String metadata,
+                               @NotNull Date createdAt, @NotNull Date expiresAt) throws SQLException {
+    int pos = 1;
+    ps.setString(pos++, id);
+    ps.setString(pos++, file.getName());
+    ps.setString(pos++, file.getOriginalFilename());
+    ps.setString(pos++, file.getContentType());
+    ps.setLong(pos++, file.getSize());
+    // The compressed size is unknown up front, so the driver reads the stream up to its end.
+    lobCreator.setBlobAsBinaryStream(ps, pos++, data, compressed ? -1 : (int) file.getSize());
+    ps.setString(pos++, compressed ? GZIP : null);
+    ps.setString(pos++, context);
+    ps.setString(pos++, metadata);
+    ps.setLong(pos++, createdAt.getTime());
+    ps.setLong(pos++, expiresAt.getTime());
+    Assert.state(pos - 1 == SqlConstants.COLUMN_COUNT, "Unexpected column count.");
+  }
+
+  /**
+   * Determines whether to compress a file, based on its size and content type.
+   */
+  private boolean isCompressible(@NotNull MultipartFile file) {
+    if (!isCompress() || file.getSize() < getCompressionThreshold()) {
+      return false;
+    }
+    String contentType = file.getContentType();
+    if (contentType == null) {
+      return true;
+    }
+    int parameters = contentType.indexOf(';');
+    if (parameters >= 0) {
+      contentType = contentType.substring(0, parameters);
+    }
+    contentType = contentType.trim().toLowerCase(Locale.ENGLISH);
+    for (String uncompressed : uncompressedContentTypes) {
+      if (uncompressed.endsWith("*") ? contentType.startsWith(uncompressed.substring(0, uncompressed.length() - 1))
+          : contentType.equals(uncompressed)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Saves a file whose content is stored once in {@code sfus_content} and shared by all files with the same hash.
+   * <p>
+   * The hash is computed up front by reading the upload, which is typically held in memory or on local disk. The BLOB
+   * is only written to the database if no identical content is stored yet.
+   * </p>
+   */
+  private void saveWithSharedContent(@NotNull final MultipartFile file, @NotNull final String id,
+                                     @Nullable final String context, @Nullable final String metadata,
+                                     @NotNull final Date createdAt, @NotNull final Date expiresAt) {
+    final String contentHash = computeContentHash(file);
+    transactionTemplate.execute(new TransactionCallbackWithoutResult() {
+
+      @Override
+      protected void doInTransactionWithoutResult(TransactionStatus status) {
+        acquireContent(file, contentHash, status);
+        jdbc.update(SqlConstants.INSERT_INTO_WITH_CONTENT_REF, id, file.getName(), file.getOriginalFilename(),
+            file.getContentType(), file.getSize(), contentHash, contentHash, context, metadata,
+            createdAt.getTime(), expiresAt.getTime());
+      }
+    });
+  }
+
+  /**
+   * Saves a file as a sequence of chunks in {@code sfus_chunk}, followed by the file's row, so that the file only
+   * becomes visible once all chunks are written.
+   * <p>
+   * With a chunk task executor, up to {@link #getChunkParallelism()} chunks are written concurrently over separate
+   * connections. These writes do not participate in the caller's transaction.
+   * </p>
+   */
+  private void saveInChunks(@NotNull final MultipartFile file, @NotNull final String id,
+                            @Nullable final String context, @Nullable final String metadata,
+                            @NotNull final Date createdAt, @NotNull final Date expiresAt) {
+    final int chunkSize = getChunkSize();
+    final List<Integer> written = Collections.synchronizedList(new ArrayList<Integer>());
+    final LinkedList<Future<?>> pending = new LinkedList<Future<?>>();
+    final DigestInputStream data = openDigestingStream(file);
+    try {
+      long size = 0;
+      int seq = 0;
+      byte[] chunk;
+      while ((chunk = readChunk(data, chunkSize)) != null) {
+        size += chunk.length;
+        if (chunkTaskExecutor == null) {
+          insertChunk(id, seq, chunk);
+          written.add(seq);
+        } else {
+          if (pending.size() >= getChunkParallelism()) {
+            awaitChunk(pending.removeFirst());
+          }
+          pending.add(submitChunk(id, seq, chunk, written));
+        }
+        seq++;
+      }
+      while (!pending.isEmpty()) {
+        awaitChunk(pending.removeFirst());
+      }
+      jdbc.update(SqlConstants.INSERT_INTO_CHUNKED, id, file.getName(), file.getOriginalFilename(),
+          file.getContentType(), size, chunkSize, ContentHash.toHex(data), context, metadata, createdAt.getTime(),
+          expiresAt.getTime());
+      logger.debug("Saved file '{}' in {} chunk(s).", id, seq);
+    } catch (RuntimeException e) {
+      // Chunks are recorded once written, so chunks still being written must finish before they can be deleted.
+      // Cancelling them would not stop a driver that is already writing.
+      awaitChunksQuietly(pending);
+      deleteChunksQuietly(id, written);
+      throw e;
+    } finally {
+      closeQuietly(data);
+    }
+  }
+
+  private void insertChunk(@NotNull final String id, final int seq, @NotNull final byte[] chunk) {
+    jdbc.execute(SqlConstants.INSERT_INTO_CHUNK, new AbstractLobCreatingPreparedStatementCallback(lobHandler) {
+
+      @Override
+      protected void setValues(PreparedStatement ps, LobCreator lobCreator) throws SQLException {
+        ps.setString(1, id);
+        ps.setInt(2, seq);
+        lobCreator.setBlobAsBytes(ps, 3, chunk);
+      }
+    });
+  }
+
+  @NotNull
+  private Future<?> submitChunk(@NotNull final String id, final int seq, @NotNull final byte[] chunk,
+                                @NotNull final List<Integer> written) {
+    return chunkTaskExecutor.submit(new Runnable() {
 
       @Override
-      protected void setValues(final PreparedStatement ps, final LobCreator lobCreator)
-          throws SQLException, DataAccessException {
-        try {
-          int pos = 1;
-          ps.setString(pos++, id);
-          ps.setString(pos++, file.getName());
-          ps.setString(pos++, file.getOriginalFilename());
-          ps.setString(pos++, file.getContentType());
-          ps.setInt(pos++, (int) file.getSize());
-          lobCreator.setBlobAsBinaryStream(ps, pos++, file.getInputStream(), (int) file.getSize());
-          ps.setString(pos++, context);
-          ps.setString(pos++, metadata);
-          ps.setLong(pos++, createdAt.getTime());
-          ps.setLong(pos++, expiresAt.getTime());
-          Assert.state(pos - 1 == SqlConstants.COLUMN_COUNT, "Unexpected column count.");
-        } catch (final IOException e) {
-          throw new RuntimeException(e);
+      public void run() {
+        insertChunk(id, seq, chunk);
+        written.add(seq);
+      }
+    });
+  }
+
+  private void awaitChunk(@NotNull Future<?> future) {
+    try {
+      future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while writing chunk.", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new IllegalStateException("Could not write chunk.", e.getCause());
+    }
+  }
+
+  /**
+   * Waits for chunks that are still being written by a failed save, ignoring their outcome.
+   */
+  private void awaitChunksQuietly(@NotNull List<Future<?>> pending) {
+    for (Future<?> future : pending) {
+      try {
+        future.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        logger.warn("Interrupted while waiting for chunks to be written. Chunks may be left behind.");
+        return;
+      } catch (ExecutionException ignored) {
+        // The chunk was not written.
+      }
+    }
+  }
+
+  /**
+   * Deletes the chunks written by a failed save. Only the given chunks are deleted, as the ID may belong to another
+   * file.
+   */
+  private void deleteChunksQuietly(@NotNull String id, @NotNull List<Integer> written) {
+    List<Object[]> deletes = new ArrayList<Object[]>();
+    synchronized (written) {
+      for (Integer seq : written) {
+        deletes.add(new Object[]{id, seq});
+      }
+    }
+    try {
+      jdbc.batchUpdate(SqlConstants.DELETE_CHUNK, deletes);
+    } catch (DataAccessException e) {
+      logger.warn("Could not delete chunks of file '{}' after failing to save it.", id, e);
+    }
+  }
+
+  /**
+   * Reads the next chunk from the given stream.
+   *
+   * @return The chunk, which is only shorter than the chunk size at the end of the stream, or {@code null} if the end
+   * of the stream has been reached.
+   */
+  @Nullable
+  private static byte[] readChunk(@NotNull InputStream in, int chunkSize) {
+    try {
+      byte[] chunk = new byte[chunkSize];
+      int length = 0;
+      int count;
+      while (length < chunkSize && (count = in.read(chunk, length, chunkSize - length)) != -1) {
+        length += count;
+      }
+      if (length == 0) {
+        return null;
+      }
+      return length == chunkSize ? chunk : Arrays.copyOf(chunk, length);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Adds a reference to shared content, storing the content if it is not available yet.
+   * <p>
+   * Concurrent first saves of the same content can both find it missing. The content is then stored by whichever
+   * inserts it first, and the other transaction rolls back its insert to a savepoint and adds a reference instead.
+   * </p>
+   */
+  private void acquireContent(@NotNull MultipartFile file, @NotNull String contentHash,
+                              @NotNull TransactionStatus status) {
+    if (jdbc.update(SqlConstants.INCREMENT_CONTENT_REF_COUNT, contentHash) > 0) {
+      logger.debug("Reusing stored content {}.", contentHash);
+      return;
+    }
+    Object savepoint = status.createSavepoint();
+    try {
+      insertContent(file, contentHash);
+    } catch (DuplicateKeyException e) {
+      status.rollbackToSavepoint(savepoint);
+      if (jdbc.update(SqlConstants.INCREMENT_CONTENT_REF_COUNT, contentHash) > 0) {
+        logger.debug("Reusing content {} stored concurrently.", contentHash);
+        return;
+      }
+      throw e;
+    }
+    status.releaseSavepoint(savepoint);
+  }
+
+  private void insertContent(@NotNull final MultipartFile file, @NotNull final String contentHash) {
+    final DigestInputStream data = openDigestingStream(file);
+    try {
+      jdbc.execute(SqlConstants.INSERT_INTO_CONTENT, new AbstractLobCreatingPreparedStatementCallback(lobHandler) {
+
+        @Override
+        protected void setValues(final PreparedStatement ps, final LobCreator lobCreator)
+            throws SQLException, DataAccessException {
+          ps.setString(1, contentHash);
+          ps.setInt(2, (int) file.getSize());
+          lobCreator.setBlobAsBinaryStream(ps, 3, data, (int) file.getSize());
         }
+      });
+    } finally {
+      closeQuietly(data);
+    }
+    if (!contentHash.equals(ContentHash.toHex(data))) {
+      throw new IllegalStateException("File content changed while it was being saved.");
+    }
+    logger.debug("Stored new content {}.", contentHash);
+  }
+
+  /**
+   * Deletes files and releases the shared content they reference. Shared content is deleted once its last reference
+   * is released.
+   *
+   * @param selectUsage       Query selecting the usage of the files to delete, by context.
+   * @param selectContentRefs Query selecting the {@code content_ref} of the files to delete.
+   * @param deleteChunks      Statement deleting the chunks of the files.
+   * @param delete            Statement deleting the files.
+   * @param args              Arguments for all statements.
+   * @return The number of files deleted.
+   */
+  private int deleteFiles(@NotNull final String selectUsage, @NotNull final String selectContentRefs,
+                          @NotNull final String deleteChunks, @NotNull final String delete, final Object... args) {
+    if (!isDeduplicate() && !isChunked() && !isQuotaEnabled()) {
+      return jdbc.update(delete, args);
+    }
+    return transactionTemplate.execute(new TransactionCallback<Integer>() {
+
+      @Override
+      public Integer doInTransaction(TransactionStatus status) {
+        Map<String, ContextUsage> usage = selectUsage(selectUsage, args);
+        if (isChunked()) {
+          jdbc.update(deleteChunks, args);
+        }
+        int count;
+        if (!isDeduplicate()) {
+          count = jdbc.update(delete, args);
+        } else {
+          List<String> contentRefs = jdbc.queryForList(selectContentRefs, String.class, args);
+          count = jdbc.update(delete, args);
+          releaseContent(contentRefs, count == contentRefs.size());
+        }
+        releaseUsage(usage, count);
+        return count;
       }
     });
   }
 
+  /**
+   * Selects the usage of files about to be deleted, by context. The usage of the contexts is
+   * {@link #lockUsage(Collection) locked} first, so this must be called in the transaction deleting the files.
+   *
+   * @param selectUsage Query selecting the context, number and total size of files, grouped by context.
+   * @return The usage by context, including files without a context under the {@code null} key, or {@code null} if
+   * quotas are not enabled.
+   */
+  @Nullable
+  Map<String, ContextUsage> selectUsage(@NotNull String selectUsage, Object... args) {
+    if (!isQuotaEnabled()) {
+      return null;
+    }
+    Set<String> locked = new HashSet<String>();
+    while (true) {
+      Map<String, ContextUsage> usage = queryUsage(selectUsage, args);
+      if (locked.containsAll(usage.keySet())) {
+        return usage;
+      }
+      Set<String> contexts = new HashSet<String>(usage.keySet());
+      contexts.removeAll(locked);
+      lockUsage(contexts);
+      locked.addAll(contexts);
+    }
+  }
+
+  @NotNull
+  private Map<String, ContextUsage> queryUsage(@NotNull String selectUsage, Object... args) {
+    final Map<String, ContextUsage> usage = new HashMap<String, ContextUsage>();
+    jdbc.query(selectUsage, new RowCallbackHandler() {
+
+      @Override
+      public void processRow(ResultSet rs) throws SQLException {
+        usage.put(rs.getString(1), new ContextUsage(rs.getLong(2), rs.getLong(3)));
+      }
+    }, args);
+    return usage;
+  }
+
+  /**
+   * Selects the usage of the files with the given IDs, using a query per {@link #MAX_IN_LIST_SIZE} IDs.
+   *
+   * @see #selectUsage(String, Object...)
+   */
+  @Nullable
+  Map<String, ContextUsage> selectUsageByIds(@NotNull List<String> ids) {
+    if (!isQuotaEnabled()) {
+      return null;
+    }
+    Map<String, ContextUsage> usage = new HashMap<String, ContextUsage>();
+    for (List<String> partition : partitionIds(ids)) {
+      Map<String, ContextUsage> selected = selectUsage(inList(SqlConstants.SELECT_USAGE_BY_IDS, partition.size()),
+          partition.toArray());
+      for (Map.Entry<String, ContextUsage> entry : selected.entrySet()) {
+        ContextUsage current = usage.get(entry.getKey());
+        usage.put(entry.getKey(), current != null ? current.plus(entry.getValue()) : entry.getValue());
+      }
+    }
+    return usage;
+  }
+
+  /**
+   * Subtracts deleted files from the usage of their contexts.
+   *
+   * @param usage   The usage of the files selected for deletion, as obtained from
+   *                {@link #selectUsage(String, Object...)}. Does nothing if {@code null}.
+   * @param deleted The number of files actually deleted. If this differs from the number of files selected, for
+   *                example because the time-to-live of some of them was extended concurrently, the usage of the
+   *                affected contexts is recomputed from their files instead. This is safe because the usage is locked,
+   *                so no reservation for files that are still being saved is in progress.
+   */
+  void releaseUsage(@Nullable Map<String, ContextUsage> usage, int deleted) {
+    if (usage == null || usage.isEmpty()) {
+      return;
+    }
+    long selected = 0;
+    for (ContextUsage contextUsage : usage.values()) {
+      selected += contextUsage.getCount();
+    }
+    boolean exact = selected == deleted;
+    List<Object[]> updates = new ArrayList<Object[]>(usage.size());
+    for (Map.Entry<String, ContextUsage> entry : usage.entrySet()) {
+      String context = entry.getKey();
+      if (context != null) {
+        updates.add(exact ? new Object[]{entry.getValue().getCount(), entry.getValue().getSize(), context} :
+            new Object[]{context, context, context});
+      }
+    }
+    if (!updates.isEmpty()) {
+      jdbc.batchUpdate(exact ? SqlConstants.RELEASE_USAGE : SqlConstants.RECOMPUTE_USAGE, updates);
+    }
+  }
+
+  /**
+   * Releases references to shared content.
+   *
+   * @param contentRefs The references of the deleted files. Files without shared content have {@code null} references.
+   * @param exact       Whether exactly these files were deleted. If not, for example because another transaction
+   *                    deleted some of them concurrently, the reference counts are recomputed instead.
+   */
+  private void releaseContent(@NotNull List<String> contentRefs, boolean exact) {
+    final Map<String, Integer> releases = new LinkedHashMap<String, Integer>();
+    for (String contentRef : contentRefs) {
+      if (contentRef != null) {
+        Integer count = releases.get(contentRef);
+        releases.put(contentRef, count != null ? count + 1 : 1);
+      }
+    }
+    if (releases.isEmpty()) {
+      return;
+    }
+    List<Object[]> updates = new ArrayList<Object[]>(releases.size());
+    List<Object[]> deletes = new ArrayList<Object[]>(releases.size());
+    for (Map.Entry<String, Integer> release : releases.entrySet()) {
+      if (exact) {
+        updates.add(new Object[]{release.getValue(), release.getKey()});
+      } else {
+        updates.add(new Object[]{release.getKey(), release.getKey()});
+      }
+      deletes.add(new Object[]{release.getKey()});
+    }
+    jdbc.batchUpdate(exact ? SqlConstants.DECREMENT_CONTENT_REF_COUNT : SqlConstants.RECOUNT_CONTENT_REF_COUNT,
+        updates);
+    int[] counts = jdbc.batchUpdate(SqlConstants.DELETE_UNREFERENCED_CONTENT, deletes);
+    logger.debug("Released {} shared content reference(s), deleted {} unreferenced content item(s).",
+        contentRefs.size(), sum(counts));
+  }
+
+  @NotNull
+  private DigestInputStream openDigestingStream(@NotNull MultipartFile file) {
+    try {
+      return ContentHash.digesting(file.getInputStream());
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  @NotNull
+  private String computeContentHash(@NotNull MultipartFile file) {
+    DigestInputStream data = openDigestingStream(file);
+    try {
+      byte[] buffer = new byte[StreamUtils.BUFFER_SIZE];
+      while (data.read(buffer) != -1) {
+        // Only the digest is needed.
+      }
+      return ContentHash.toHex(data);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    } finally {
+      closeQuietly(data);
+    }
+  }
+
   @Override
   @Nullable
   public StoredMultipartFile find(@NotNull String id) {
@@ -129,6 +997,111 @@ public class JdbcMultipartFileStorage implements MultipartFileStorage, Initializ
     return jdbc.query(SqlConstants.SELECT_BY_CONTEXT, new JdbcMultiPartFileResultExtractor(), context);
   }
 
+  @NotNull
+  @Override
+  public List<StoredMultipartFile> findByContext(@NotNull final String context,
+                                                @Nullable final StoredMultipartFile after, final int limit) {
+    Assert.hasText(context, "Context cannot be empty.");
+    Assert.isTrue(limit > 0, "Limit must be greater than 0.");
+
+    return jdbc.query(new PreparedStatementCreator() {
+
+      @Override
+      public PreparedStatement createPreparedStatement(Connection con) throws SQLException {
+        PreparedStatement ps;
+        if (after != null) {
+          ps = con.prepareStatement(SqlConstants.SELECT_BY_CONTEXT_AFTER);
+          ps.setString(1, context);
+          ps.setLong(2, after.getCreatedAt().getTime());
+          ps.setLong(3, after.getCreatedAt().getTime());
+          ps.setString(4, after.getId());
+        } else {
+          ps = con.prepareStatement(SqlConstants.SELECT_BY_CONTEXT);
+          ps.setString(1, context);
+        }
+        ps.setMaxRows(limit);
+        return ps;
+      }
+    }, new JdbcMultiPartFileResultExtractor());
+  }
+
+  /**
+   * Processes the files using a cursor that fetches {@link #setFetchSize(int) fetch size} rows at a time. The query
+   * runs in a transaction, as some drivers, such as PostgreSQL's, only use cursors outside of auto-commit mode.
+   */
+  @Override
+  public int forEachByContext(@NotNull final String context, @NotNull final StoredMultipartFileCallback callback) {
+    Assert.hasText(context, "Context cannot be empty.");
+    Assert.notNull(callback, "Callback cannot be null.");
+
+    return transactionTemplate.execute(new TransactionCallback<Integer>() {
+
+      @Override
+      public Integer doInTransaction(TransactionStatus status) {
+        final int[] count = {0};
+        jdbc.query(new PreparedStatementCreator() {
+
+          @Override
+          public PreparedStatement createPreparedStatement(Connection con) throws SQLException {
+            PreparedStatement ps = con.prepareStatement(SqlConstants.SELECT_BY_CONTEXT,
+                ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            ps.setFetchSize(getFetchSize());
+            ps.setString(1, context);
+            return ps;
+          }
+        }, new RowCallbackHandler() {
+
+          @Override
+          public void processRow(ResultSet rs) throws SQLException {
+            callback.doWithFile(mapFile(rs));
+            count[0]++;
+          }
+        });
+        return count[0];
+      }
+    });
+  }
+
+  @NotNull
+  @Override
+  public Map<String, StoredMultipartFile> findAll(@NotNull Collection<String> ids) {
+    List<String> uniqueIds = toUniqueIds(ids);
+
+    Map<String, StoredMultipartFile> found = new HashMap<String, StoredMultipartFile>(uniqueIds.size() * 2);
+    for (List<String> partition : partitionIds(uniqueIds)) {
+      List<StoredMultipartFile> files = jdbc.query(inList(SqlConstants.SELECT_BY_IDS, partition.size()),
+          new JdbcMultiPartFileResultExtractor(), partition.toArray());
+      for (StoredMultipartFile file : files) {
+        found.put(file.getId(), file);
+      }
+    }
+    return inOrder(uniqueIds, found);
+  }
+
+  @NotNull
+  @Override
+  public Map<String, MultipartFileInfo> findInfo(@NotNull Collection<String> ids) {
+    List<String> uniqueIds = toUniqueIds(ids);
+
+    Map<String, MultipartFileInfo> found = new HashMap<String, MultipartFileInfo>(uniqueIds.size() * 2);
+    for (List<String> partition : partitionIds(uniqueIds)) {
+      List<MultipartFileInfo> infos = jdbc.query(inList(SqlConstants.SELECT_INFO_BY_IDS, partition.size()),
+          MULTIPART_FILE_INFO_ROW_MAPPER, partition.toArray());
+      for (MultipartFileInfo info : infos) {
+        found.put(info.getId(), info);
+      }
+    }
+    return inOrder(uniqueIds, found);
+  }
+
+  @NotNull
+  @Override
+  public List<MultipartFileInfo> findInfoByContext(@NotNull String context) {
+    Assert.hasText(context, "Context cannot be empty.");
+
+    return jdbc.query(SqlConstants.SELECT_INFO_BY_CONTEXT, MULTIPART_FILE_INFO_ROW_MAPPER, context);
+  }
+
   @Override
   @Nullable
   public Date setTimeToLive(@NotNull String id, int timeToLiveInSeconds) {
@@ -144,6 +1117,75 @@ public class JdbcMultipartFileStorage implements MultipartFileStorage, Initializ
     return count == 1 ? expiresAt : null;
   }
 
+  @Override
+  public int setTimeToLive(@NotNull Collection<String> ids, int timeToLiveInSeconds) {
+    Assert.isTrue(timeToLiveInSeconds >= 0, "Time to live must be greater than or equal to 0.");
+    final List<String> uniqueIds = toUniqueIds(ids);
+
+    if (uniqueIds.isEmpty()) {
+      return 0;
+    }
+    final Date expiresAt = new Date(new Date().getTime() + timeToLiveInSeconds * 1000L);
+    int count = transactionTemplate.execute(new TransactionCallback<Integer>() {
+
+      @Override
+      public Integer doInTransaction(TransactionStatus status) {
+        int count = 0;
+        for (List<String> partition : partitionIds(uniqueIds)) {
+          List<Object> args = new ArrayList<Object>(partition.size() + 1);
+          args.add(expiresAt.getTime());
+          args.addAll(partition);
+          count += jdbc.update(inList(SqlConstants.UPDATE_EXPIRES_AT_BY_IDS, partition.size()), args.toArray());
+        }
+        return count;
+      }
+    });
+    if (count > 0) {
+      logger.debug("Set expiration of {} file(s) to {}.", count, expiresAt);
+    }
+    return count;
+  }
+
+  @Override
+  public int setTimeToLiveByContext(@NotNull String context, int timeToLiveInSeconds) {
+    Assert.hasText(context, "Context cannot be empty.");
+    Assert.isTrue(timeToLiveInSeconds >= 0, "Time to live must be greater than or equal to 0.");
+
+    Date expiresAt = new Date(new Date().getTime() + timeToLiveInSeconds * 1000L);
+    int count = jdbc.update(SqlConstants.UPDATE_EXPIRES_AT_BY_CONTEXT, expiresAt.getTime(), context);
+    if (count > 0) {
+      logger.debug("Set expiration of {} file(s) with context '{}' to {}.", count, context, expiresAt);
+    }
+    return count;
+  }
+
+  /**
+   * Sets the expiration of the files in several contexts, using a single batch of updates.
+   *
+   * @param expirations The new expiration by context.
+   * @return The number of files updated, as far as the driver reports it.
+   */
+  public int setExpiresAtByContext(@NotNull Map<String, Date> expirations) {
+    Assert.notNull(expirations, "Expirations cannot be null.");
+
+    if (expirations.isEmpty()) {
+      return 0;
+    }
+    List<Object[]> args = new ArrayList<Object[]>(expirations.size());
+    for (Map.Entry<String, Date> expiration : expirations.entrySet()) {
+      args.add(new Object[]{expiration.getValue().getTime(), expiration.getKey()});
+    }
+    int[] counts = jdbc.batchUpdate(SqlConstants.UPDATE_EXPIRES_AT_BY_CONTEXT, args);
+    int count = 0;
+    for (int updated : counts) {
+      if (updated > 0) {
+        count += updated;
+      }
+    }
+    logger.debug("Set expiration of {} file(s) in {} context(s).", count, expirations.size());
+    return count;
+  }
+
   @Override
   public int setMetadata(@NotNull String id, @Nullable String metadata) {
     Assert.hasText(id, "File ID cannot be empty.");
@@ -159,18 +1201,57 @@ public class JdbcMultipartFileStorage implements MultipartFileStorage, Initializ
   public int delete(@NotNull String id) {
     Assert.hasText(id, "File ID cannot be empty.");
 
-    int count = jdbc.update(SqlConstants.DELETE_BY_ID, id);
+    int count = deleteFiles(SqlConstants.SELECT_USAGE_BY_ID, SqlConstants.SELECT_CONTENT_REF_BY_ID,
+        SqlConstants.DELETE_CHUNKS_BY_FILE_ID, SqlConstants.DELETE_BY_ID, id);
     if (count == 1) {
       logger.debug("Deleted file '{}'.", id);
     }
     return count;
   }
 
+  @Override
+  public int delete(@NotNull Collection<String> ids) {
+    List<String> uniqueIds = toUniqueIds(ids);
+
+    if (uniqueIds.isEmpty()) {
+      return 0;
+    }
+    int count = deleteFilesById(uniqueIds);
+    if (count > 0) {
+      logger.debug("Deleted {} file(s) by ID.", count);
+    }
+    return count;
+  }
+
+  /**
+   * Deletes the files with the given IDs in a single transaction, using a statement per {@link #MAX_IN_LIST_SIZE}
+   * IDs.
+   *
+   * @return The number of files deleted.
+   */
+  int deleteFilesById(@NotNull final List<String> ids) {
+    return transactionTemplate.execute(new TransactionCallback<Integer>() {
+
+      @Override
+      public Integer doInTransaction(TransactionStatus status) {
+        int count = 0;
+        for (List<String> partition : partitionIds(ids)) {
+          count += deleteFiles(inList(SqlConstants.SELECT_USAGE_BY_IDS, partition.size()),
+              inList(SqlConstants.SELECT_CONTENT_REF_BY_IDS, partition.size()),
+              inList(SqlConstants.DELETE_CHUNKS_BY_FILE_IDS, partition.size()),
+              inList(SqlConstants.DELETE_BY_IDS, partition.size()), partition.toArray());
+        }
+        return count;
+      }
+    });
+  }
+
   @Override
   public int deleteByContext(@NotNull String context) {
     Assert.hasText(context, "Context cannot be empty.");
 
-    int count = jdbc.update(SqlConstants.DELETE_BY_CONTEXT, context);
+    int count = deleteFiles(SqlConstants.SELECT_USAGE_BY_CONTEXT, SqlConstants.SELECT_CONTENT_REF_BY_CONTEXT,
+        SqlConstants.DELETE_CHUNKS_BY_CONTEXT, SqlConstants.DELETE_BY_CONTEXT, context);
     if (count > 1) {
       logger.debug("Deleted {} files with context '{}'.", count, context);
     }
@@ -180,52 +1261,370 @@ public class JdbcMultipartFileStorage implements MultipartFileStorage, Initializ
   @Override
   public int deleteExpired() {
     Date now = new Date();
-    int count = jdbc.update(SqlConstants.DELETE_EXPIRED, now.getTime());
+    int count = deleteFiles(SqlConstants.SELECT_USAGE_EXPIRED, SqlConstants.SELECT_CONTENT_REF_EXPIRED,
+        SqlConstants.DELETE_CHUNKS_EXPIRED, SqlConstants.DELETE_EXPIRED, now.getTime());
     if (count > 0) {
       logger.debug("Deleted {} expired files.", count);
     }
     return count;
   }
 
+  @NotNull
+  @Override
+  public DeletionResult deleteExpired(final int limit) {
+    Assert.isTrue(limit > 0, "Limit must be greater than 0.");
+
+    final long now = new Date().getTime();
+    List<ExpiredFile> files = jdbc.query(new PreparedStatementCreator() {
+
+      @Override
+      public PreparedStatement createPreparedStatement(Connection con) throws SQLException {
+        PreparedStatement ps = con.prepareStatement(SqlConstants.SELECT_EXPIRED);
+        ps.setMaxRows(limit);
+        ps.setLong(1, now);
+        return ps;
+      }
+    }, new RowMapper<ExpiredFile>() {
+
+      @Override
+      public ExpiredFile mapRow(ResultSet rs, int rowNum) throws SQLException {
+        return new ExpiredFile(rs.getString("id"), rs.getLong("size"), rs.getString("content_ref"),
+            rs.getString("context"));
+      }
+    });
+    if (files.isEmpty()) {
+      return DeletionResult.NONE;
+    }
+    DeletionResult result = deleteExpiredFiles(files, now);
+    if (result.getCount() > 0) {
+      logger.debug("Deleted {} expired files.", result.getCount());
+    }
+    return result;
+  }
+
+  /**
+   * Deletes the given expired files in a single transaction. Each file is deleted by ID and only if it is still
+   * expired, so that files whose time-to-live was extended in the meantime are kept.
+   *
+   * @param now The time against which expiration is checked.
+   * @return The files deleted.
+   */
+  @NotNull
+  DeletionResult deleteExpiredFiles(@NotNull final List<ExpiredFile> files, final long now) {
+    return transactionTemplate.execute(new TransactionCallback<DeletionResult>() {
+
+      @Override
+      public DeletionResult doInTransaction(TransactionStatus status) {
+        lockUsage(contextsOf(files));
+        List<Object[]> deletes = new ArrayList<Object[]>(files.size());
+        for (ExpiredFile file : files) {
+          deletes.add(new Object[]{file.id, now});
+        }
+        int[] counts = jdbc.batchUpdate(SqlConstants.DELETE_BY_ID_EXPIRED, deletes);
+        List<String> contentRefs = new ArrayList<String>();
+        List<ExpiredFile> deleted = new ArrayList<ExpiredFile>(files.size());
+        boolean exact = true;
+        long size = 0;
+        for (int i = 0; i < counts.length; i++) {
+          // Some drivers report an unknown count for batched statements.
+          if (counts[i] > 0 || counts[i] == Statement.SUCCESS_NO_INFO) {
+            exact &= counts[i] > 0;
+            contentRefs.add(files.get(i).contentRef);
+            deleted.add(files.get(i));
+            size += files.get(i).size;
+          }
+        }
+        if (isChunked()) {
+          List<Object[]> chunkDeletes = new ArrayList<Object[]>(files.size());
+          for (ExpiredFile file : files) {
+            chunkDeletes.add(new Object[]{file.id, file.id});
+          }
+          jdbc.batchUpdate(SqlConstants.DELETE_ORPHANED_CHUNKS_BY_FILE_ID, chunkDeletes);
+        }
+        if (isDeduplicate()) {
+          releaseContent(contentRefs, exact);
+        }
+        releaseUsage(toUsage(deleted), deleted.size());
+        return new DeletionResult(deleted.size(), size);
+      }
+    });
+  }
+
+  /**
+   * Obtains the contexts of the given expired files.
+   */
+  @NotNull
+  Set<String> contextsOf(@NotNull List<ExpiredFile> files) {
+    Set<String> contexts = new HashSet<String>();
+    for (ExpiredFile file : files) {
+      contexts.add(file.context);
+    }
+    return contexts;
+  }
+
+  /**
+   * Obtains the usage of the given expired files by context.
+   *
+   * @return The usage or {@code null} if quotas are not enabled.
+   */
+  @Nullable
+  Map<String, ContextUsage> toUsage(@NotNull List<ExpiredFile> files) {
+    if (!isQuotaEnabled()) {
+      return null;
+    }
+    Map<String, ContextUsage> usage = new HashMap<String, ContextUsage>();
+    for (ExpiredFile file : files) {
+      ContextUsage current = usage.get(file.context);
+      ContextUsage added = new ContextUsage(1, file.size);
+      usage.put(file.context, current != null ? current.plus(added) : added);
+    }
+    return usage;
+  }
+
   @Override
   public int deleteAll() {
     int count = jdbc.update(SqlConstants.DELETE_ALL);
+    jdbc.update(SqlConstants.DELETE_ALL_CONTENT);
+    jdbc.update(SqlConstants.DELETE_ALL_CHUNKS);
+    jdbc.update(SqlConstants.DELETE_ALL_USAGE);
     if (count > 0) {
       logger.debug("Deleted {} files.", count);
     }
     return count;
   }
 
+  @NotNull
+  @Override
+  public ContextUsage getUsage(@NotNull String context) {
+    Assert.hasText(context, "Context cannot be empty.");
+
+    RowMapper<ContextUsage> rowMapper = new RowMapper<ContextUsage>() {
+
+      @Override
+      public ContextUsage mapRow(ResultSet rs, int rowNum) throws SQLException {
+        return new ContextUsage(rs.getLong(1), rs.getLong(2));
+      }
+    };
+    if (isQuotaEnabled()) {
+      List<ContextUsage> usage = jdbc.query(SqlConstants.SELECT_USAGE, rowMapper, context);
+      if (!usage.isEmpty()) {
+        return usage.get(0);
+      }
+    }
+    return jdbc.queryForObject(SqlConstants.SELECT_FILE_USAGE_BY_CONTEXT, rowMapper, context);
+  }
+
   @Override
   public int count() {
     return jdbc.queryForObject(SqlConstants.COUNT, Integer.class);
   }
 
+  /**
+   * Opens a stream for reading (part of) a file's content.
+   *
+   * @param length The maximum number of bytes to read or -1 to read up to the end of the file.
+   * @throws FileNotFoundException If the file no longer exists.
+   */
+  @NotNull
+  InputStream openInputStream(@NotNull JdbcMultipartFile file, long position, long length) throws IOException {
+    if (GZIP.equals(file.getContentEncoding())) {
+      return openDecompressingStream(file, position, length);
+    }
+    Integer fileChunkSize = file.getChunkSize();
+    if (fileChunkSize != null) {
+      long available = Math.max(file.getSize() - position, 0);
+      return new JdbcChunkInputStream(jdbc, lobHandler, file.getId(), fileChunkSize, position,
+          length < 0 ? available : Math.min(length, available), chunkTaskExecutor, getChunkParallelism());
+    }
+    InputStream data = JdbcBlobInputStream.open(jdbc, position, length, SqlConstants.SELECT_DATA_BY_ID, file.getId());
+    if (data == null) {
+      throw new FileNotFoundException(String.format("File '%s' no longer exists.", file.getId()));
+    }
+    return data;
+  }
+
+  /**
+   * Opens a stream for reading a file's content as stored, without decoding it.
+   *
+   * @throws FileNotFoundException If the file no longer exists.
+   */
+  @NotNull
+  InputStream openEncodedInputStream(@NotNull JdbcMultipartFile file) throws IOException {
+    InputStream data = JdbcBlobInputStream.open(jdbc, SqlConstants.SELECT_DATA_BY_ID, file.getId());
+    if (data == null) {
+      throw new FileNotFoundException(String.format("File '%s' no longer exists.", file.getId()));
+    }
+    return data;
+  }
+
+  /**
+   * Opens a stream that decompresses a compressed file while it is read. Compressed content cannot be read from an
+   * arbitrary position, so reading part of the file decompresses all content before it.
+   */
+  @NotNull
+  private InputStream openDecompressingStream(@NotNull JdbcMultipartFile file, long position, long length)
+      throws IOException {
+    InputStream data = openEncodedInputStream(file);
+    try {
+      InputStream decompressed = new GZIPInputStream(data, StreamUtils.BUFFER_SIZE);
+      long remaining = position;
+      while (remaining > 0) {
+        long skipped = decompressed.skip(remaining);
+        if (skipped <= 0) {
+          break;
+        }
+        remaining -= skipped;
+      }
+      return length < 0 ? decompressed : new BoundedInputStream(decompressed, length);
+    } catch (IOException e) {
+      closeQuietly(data);
+      throw e;
+    }
+  }
+
+  /**
+   * Obtains the maximum size of a file. Files stored as a single BLOB are limited to 2 GB.
+   */
+  long getMaxFileSize() {
+    return isChunked() ? Long.MAX_VALUE : Integer.MAX_VALUE;
+  }
+
+  /**
+   * Creates an empty file instance to populate from a query result.
+   */
+  @NotNull
+  JdbcMultipartFile createFile() {
+    return new JdbcMultipartFile(this);
+  }
+
   /* Utility */
 
+  /**
+   * A file selected for deletion because it expired.
+   */
+  static final class ExpiredFile {
+
+    final String id;
+
+    final long size;
+
+    final String contentRef;
+
+    final String context;
+
+    ExpiredFile(@NotNull String id, long size, @Nullable String contentRef, @Nullable String context) {
+      this.id = id;
+      this.size = size;
+      this.contentRef = contentRef;
+      this.context = context;
+    }
+  }
+
   private final class JdbcMultiPartFileResultExtractor implements ResultSetExtractor<List<StoredMultipartFile>> {
     @Override
     public List<StoredMultipartFile> extractData(final ResultSet rs) throws SQLException, DataAccessException {
       final List<StoredMultipartFile> files = new ArrayList<StoredMultipartFile>();
       while (rs.next()) {
-        final JdbcMultipartFile file = new JdbcMultipartFile(jdbc);
-        file.setId(rs.getString("id"));
-        file.setName(rs.getString("name"));
-        file.setOriginalFilename(rs.getString("original_filename"));
-        file.setContentType(rs.getString("content_type"));
-        file.setSize(rs.getInt("size"));
-        file.setContext(rs.getString("context"));
-        file.setMetadata(rs.getString("metadata"));
-        file.setCreatedAt(new Date(rs.getLong("created_at")));
-        file.setExpiresAt(new Date(rs.getLong("expires_at")));
-        files.add(file);
+        files.add(mapFile(rs));
       }
       return files;
     }
   }
 
+  /**
+   * Creates a file from the current row of a result set.
+   */
+  @NotNull
+  private JdbcMultipartFile mapFile(@NotNull ResultSet rs) throws SQLException {
+    final JdbcMultipartFile file = createFile();
+    file.setId(rs.getString("id"));
+    file.setName(rs.getString("name"));
+    file.setOriginalFilename(rs.getString("original_filename"));
+    file.setContentType(rs.getString("content_type"));
+    file.setSize(rs.getLong("size"));
+    file.setContentEncoding(rs.getString("content_encoding"));
+    long encodedSize = rs.getLong("encoded_size");
+    file.setEncodedSize(rs.wasNull() ? -1 : encodedSize);
+    int chunkSize = rs.getInt("chunk_size");
+    file.setChunkSize(rs.wasNull() ? null : chunkSize);
+    file.setContentHash(rs.getString("content_hash"));
+    file.setContext(rs.getString("context"));
+    file.setMetadata(rs.getString("metadata"));
+    file.setCreatedAt(new Date(rs.getLong("created_at")));
+    file.setExpiresAt(new Date(rs.getLong("expires_at")));
+    return file;
+  }
+
+  /**
+   * Validates the given IDs and removes duplicates, preserving their order.
+   */
+  @NotNull
+  static List<String> toUniqueIds(@NotNull Collection<String> ids) {
+    Assert.notNull(ids, "IDs cannot be null.");
+    for (String id : ids) {
+      Assert.hasText(id, "File ID cannot be empty.");
+    }
+    return new ArrayList<String>(new LinkedHashSet<String>(ids));
+  }
+
+  /**
+   * Splits IDs into lists of at most {@link #MAX_IN_LIST_SIZE} IDs.
+   */
+  @NotNull
+  static List<List<String>> partitionIds(@NotNull List<String> ids) {
+    List<List<String>> partitions = new ArrayList<List<String>>((ids.size() + MAX_IN_LIST_SIZE - 1) / MAX_IN_LIST_SIZE);
+    for (int from = 0; from < ids.size(); from += MAX_IN_LIST_SIZE) {
+      partitions.add(ids.subList(from, Math.min(from + MAX_IN_LIST_SIZE, ids.size())));
+    }
+    return partitions;
+  }
+
+  /**
+   * Orders values found by ID in the order of the given IDs, leaving out IDs without a value.
+   */
+  @NotNull
+  static <T> Map<String, T> inOrder(@NotNull List<String> ids, @NotNull Map<String, T> found) {
+    Map<String, T> ordered = new LinkedHashMap<String, T>(found.size() * 2);
+    for (String id : ids) {
+      T value = found.get(id);
+      if (value != null) {
+        ordered.put(id, value);
+      }
+    }
+    return ordered;
+  }
+
+  /**
+   * Substitutes an {@code IN} list of the given number of parameters into a statement, using
+   * {@link String#format(String, Object...)}.
+   */
+  @NotNull
+  static String inList(@NotNull String sql, int size) {
+    StringBuilder parameters = new StringBuilder(size * 3);
+    for (int i = 0; i < size; i++) {
+      parameters.append(i > 0 ? ", ?" : "?");
+    }
+    return String.format(sql, parameters);
+  }
+
+  private static int sum(@NotNull int[] counts) {
+    int sum = 0;
+    for (int count : counts) {
+      sum += count;
+    }
+    return sum;
+  }
+
+  private static void closeQuietly(@NotNull InputStream in) {
+    try {
+      in.close();
+    } catch (IOException ignored) {
+    }
+  }
+
   @Override
   public void afterPropertiesSet() throws Exception {
+    Assert.state(!(isDeduplicate() && isChunked()), "Deduplication cannot be combined with chunked storage.");
     if (isInitDatabaseAutomatically()) {
       initDatabase();
     }
@@ -233,14 +1632,124 @@ public class JdbcMultipartFileStorage implements MultipartFileStorage, Initializ
 
   private void initDatabase() throws IOException {
     if (isTableAvailable()) {
+      migrateDatabase();
       return;
     }
     Resource resource = new ClassPathResource("META-INF/spring-file-upload-storage/schema.sql");
     String sql = FileCopyUtils.copyToString(new InputStreamReader(resource.getInputStream()));
     logger.info("Creating database using schema:\n{}", sql);
-    jdbc.execute(sql);
+    DatabasePopulatorUtils.execute(new ResourceDatabasePopulator(resource), jdbc.getDataSource());
   }
 
+  /**
+   * Applies the migrations from the database's schema version up to {@link #SCHEMA_VERSION}. Migration {@code n} is
+   * the script {@code META-INF/spring-file-upload-storage/migrations/n.sql}.
+   * <p>
+   * Instances that start concurrently apply the migrations one at a time, holding a lock on the schema version row.
+   * The lock is itself a row update, as most databases commit DDL statements immediately and would release a
+   * transactional lock halfway. The schema version is updated after each migration succeeds. As a failed migration may
+   * have been applied partly, each script is written so that it can be applied again.
+   * </p>
+   * <p>
+   * The scripts use H2 syntax, so other databases are not migrated. Startup fails instead, until the schema has been
+   * migrated manually.
+   * </p>
+   */
+  private void migrateDatabase() throws IOException {
+    if (!isMigrationSupported()) {
+      Integer version = findSchemaVersion();
+      Assert.state(version != null && version >= SCHEMA_VERSION, String.format("Database schema must be migrated " +
+          "to version %d. Only H2 databases are migrated automatically. Apply the scripts in " +
+          "META-INF/spring-file-upload-storage/migrations manually and update sfus_schema_version.", SCHEMA_VERSION));
+      return;
+    }
+    initSchemaVersion();
+    if (getSchemaVersion() >= SCHEMA_VERSION) {
+      return;
+    }
+    String owner = UUID.randomUUID().toString();
+    lockSchemaVersion(owner);
+    try {
+      for (int version = getSchemaVersion(); version < SCHEMA_VERSION; version++) {
+        int next = version + 1;
+        Assert.state(tryLockSchemaVersion(owner), "Lost the schema version lock to another instance.");
+        Resource resource = new ClassPathResource(
+            String.format("META-INF/spring-file-upload-storage/migrations/%d.sql", next));
+        String sql = FileCopyUtils.copyToString(new InputStreamReader(resource.getInputStream()));
+        logger.info("Migrating database to schema version {}:\n{}", next, sql);
+        DatabasePopulatorUtils.execute(new ResourceDatabasePopulator(resource), jdbc.getDataSource());
+        Assert.state(jdbc.update(SqlConstants.UPDATE_SCHEMA_VERSION, next, owner) > 0,
+            "Lost the schema version lock to another instance.");
+      }
+    } finally {
+      jdbc.update(SqlConstants.UNLOCK_SCHEMA_VERSION, owner);
+    }
+  }
+
+  /**
+   * Creates the schema version table and its single row if necessary. Databases created before the schema was
+   * versioned are at version 1, the schema of release 0.0.8, which migration 2 brings forward. Instances that start
+   * concurrently may both attempt this, so existing tables and rows are tolerated.
+   */
+  private void initSchemaVersion() {
+    jdbc.execute(SqlConstants.CREATE_SCHEMA_VERSION);
+    try {
+      jdbc.update(SqlConstants.INSERT_INTO_SCHEMA_VERSION, 1);
+    } catch (DataIntegrityViolationException ignored) {
+    }
+  }
+
+  private int getSchemaVersion() {
+    return jdbc.queryForObject(SqlConstants.SELECT_SCHEMA_VERSION, Integer.class);
+  }
+
+  @Nullable
+  private Integer findSchemaVersion() {
+    try {
+      return jdbc.queryForObject(SqlConstants.SELECT_SCHEMA_VERSION, Integer.class);
+    } catch (DataAccessException e) {
+      return null;
+    }
+  }
+
+  private boolean isMigrationSupported() {
+    try {
+      String name = (String) JdbcUtils.extractDatabaseMetaData(jdbc.getDataSource(), "getDatabaseProductName");
+      return "H2".equals(JdbcUtils.commonDatabaseName(name));
+    } catch (MetaDataAccessException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Waits until the schema version lock is acquired. The lock expires after the
+   * {@link #setMigrationLockTimeout(int) migration lock timeout}, so that instances that die while migrating do not
+   * block others indefinitely.
+   */
+  private void lockSchemaVersion(@NotNull String owner) {
+    boolean waiting = false;
+    while (!tryLockSchemaVersion(owner)) {
+      if (!waiting) {
+        logger.info("Waiting for another instance to migrate the database.");
+        waiting = true;
+      }
+      try {
+        Thread.sleep(1000);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException("Interrupted while waiting for the schema version lock.", e);
+      }
+    }
+  }
+
+  /**
+   * Acquires or renews the schema version lock, unless another instance holds it.
+   */
+  private boolean tryLockSchemaVersion(@NotNull String owner) {
+    long now = System.currentTimeMillis();
+    return jdbc.update(SqlConstants.LOCK_SCHEMA_VERSION, owner, now + getMigrationLockTimeout() * 1000L, owner,
+        now) > 0;
+  }
 
   private boolean isTableAvailable() {
     try {
@@ -258,6 +1767,11 @@ public class JdbcMultipartFileStorage implements MultipartFileStorage, Initializ
   public void setDataSource(@NotNull DataSource dataSource) {
     Assert.notNull(dataSource);
     jdbc = new JdbcTemplate(dataSource);
+    // Participates in transactions started by other transaction managers for the same DataSource.
+    DataSourceTransactionManager transactionManager = new DataSourceTransactionManager(dataSource);
+    transactionTemplate = new TransactionTemplate(transactionManager);
+    nestedTransactionTemplate = new TransactionTemplate(transactionManager);
+    nestedTransactionTemplate.setPropagationBehavior(TransactionDefinition.PROPAGATION_NESTED);
   }
 
   public void setIdGenerator(@NotNull IdGenerator idGenerator) {
@@ -265,6 +1779,16 @@ public class JdbcMultipartFileStorage implements MultipartFileStorage, Initializ
     this.idGenerator = idGenerator;
   }
 
+  @NotNull
+  JdbcTemplate getJdbcTemplate() {
+    return jdbc;
+  }
+
+  @NotNull
+  TransactionTemplate getTransactionTemplate() {
+    return transactionTemplate;
+  }
+
   /* Configuration */
 
   public void setInitDatabaseAutomatically(boolean initDatabaseAutomatically) {
@@ -274,4 +1798,171 @@ public class JdbcMultipartFileStorage implements MultipartFileStorage, Initializ
   protected boolean isInitDatabaseAutomatically() {
     return initDatabaseAutomatically;
   }
+
+  /**
+   * Sets the number of seconds after which the lock held while migrating the database expires. A migration that takes
+   * longer may be applied by another instance concurrently. Defaults to 600.
+   */
+  public void setMigrationLockTimeout(int migrationLockTimeout) {
+    Assert.isTrue(migrationLockTimeout > 0, "Migration lock timeout must be greater than 0.");
+    this.migrationLockTimeout = migrationLockTimeout;
+  }
+
+  protected int getMigrationLockTimeout() {
+    return migrationLockTimeout;
+  }
+
+  /**
+   * Specifies whether to store identical content only once. Deduplicated content is keyed by its SHA-256 hash and
+   * reference counted, so it is deleted along with the last file that references it.
+   * <p>
+   * Deduplication should not be disabled once enabled, as shared content is only released while it is enabled.
+   * </p>
+   */
+  public void setDeduplicate(boolean deduplicate) {
+    this.deduplicate = deduplicate;
+  }
+
+  protected boolean isDeduplicate() {
+    return deduplicate;
+  }
+
+  /**
+   * Specifies the size of the chunks in which files are stored. Chunked storage lifts the 2 GB limit of a single BLOB
+   * and lets ranged reads fetch only the chunks they need. A size of 0, the default, stores each file as a single BLOB.
+   * <p>
+   * Chunked storage should not be disabled once enabled, as chunks are only deleted while it is enabled.
+   * </p>
+   */
+  public void setChunkSize(int chunkSize) {
+    Assert.isTrue(chunkSize >= 0, "Chunk size cannot be less than 0.");
+    this.chunkSize = chunkSize;
+  }
+
+  protected int getChunkSize() {
+    return chunkSize;
+  }
+
+  protected boolean isChunked() {
+    return chunkSize > 0;
+  }
+
+  /**
+   * Sets the executor for writing and prefetching chunks in parallel, each over a separate connection. Without an
+   * executor, chunks are processed sequentially.
+   */
+  public void setChunkTaskExecutor(@Nullable AsyncTaskExecutor chunkTaskExecutor) {
+    this.chunkTaskExecutor = chunkTaskExecutor;
+  }
+
+  /**
+   * Sets the maximum number of chunks that are written or prefetched concurrently when using a chunk task executor.
+   * Each of these chunks is buffered in memory.
+   */
+  public void setChunkParallelism(int chunkParallelism) {
+    Assert.isTrue(chunkParallelism > 0, "Chunk parallelism must be greater than 0.");
+    this.chunkParallelism = chunkParallelism;
+  }
+
+  protected int getChunkParallelism() {
+    return chunkParallelism;
+  }
+
+  /**
+   * Specifies whether to compress the content of files using gzip while it is written. Compressed files are decompressed
+   * while they are read, and their stored content can be sent as-is to HTTP clients that accept gzip.
+   * <p>
+   * Only files stored as a single BLOB are compressed; deduplicated and chunked content is stored as-is. Reading part
+   * of a compressed file decompresses all content before it.
+   * </p>
+   */
+  public void setCompress(boolean compress) {
+    this.compress = compress;
+  }
+
+  protected boolean isCompress() {
+    return compress;
+  }
+
+  /**
+   * Sets the size in bytes below which files are not compressed, as compressing small files saves little.
+   */
+  public void setCompressionThreshold(long compressionThreshold) {
+    Assert.isTrue(compressionThreshold >= 0, "Compression threshold cannot be less than 0.");
+    this.compressionThreshold = compressionThreshold;
+  }
+
+  protected long getCompressionThreshold() {
+    return compressionThreshold;
+  }
+
+  /**
+   * Sets the content types that are not compressed, because their content is typically compressed already. A trailing
+   * {@code *} matches any suffix, as in {@code video/*}. Defaults to common image, audio, video and archive types.
+   */
+  public void setUncompressedContentTypes(@NotNull List<String> uncompressedContentTypes) {
+    Assert.notNull(uncompressedContentTypes);
+    List<String> contentTypes = new ArrayList<String>(uncompressedContentTypes.size());
+    for (String contentType : uncompressedContentTypes) {
+      Assert.hasText(contentType, "Content type cannot be empty.");
+      contentTypes.add(contentType.trim().toLowerCase(Locale.ENGLISH));
+    }
+    this.uncompressedContentTypes = contentTypes;
+  }
+
+  /**
+   * Sets the number of rows that {@link #forEachByContext(String, StoredMultipartFileCallback)} fetches from the
+   * database at a time. 0 leaves the choice to the driver. MySQL only streams rows with a fetch size of
+   * {@link Integer#MIN_VALUE}.
+   */
+  public void setFetchSize(int fetchSize) {
+    Assert.isTrue(fetchSize >= 0 || fetchSize == Integer.MIN_VALUE, "Fetch size cannot be less than 0.");
+    this.fetchSize = fetchSize;
+  }
+
+  protected int getFetchSize() {
+    return fetchSize;
+  }
+
+  /**
+   * Sets the maximum number of files per context, including files that are being saved. 0, the default, means no
+   * limit. Files without a context are not subject to quotas.
+   * <p>
+   * The usage of each context is maintained in {@code sfus_context_usage} while a quota is enabled, so all instances
+   * sharing a database should use the same quotas. Usage recorded before quotas were disabled is outdated once they
+   * are enabled again; deleting the rows of {@code sfus_context_usage} makes it recomputed from the stored files.
+   * </p>
+   * <p>
+   * While a quota is enabled, saves and deletes in the same context take turns, as each holds the lock on the
+   * context's usage row until its transaction ends.
+   * </p>
+   */
+  public void setMaxFilesPerContext(long maxFilesPerContext) {
+    Assert.isTrue(maxFilesPerContext >= 0, "Maximum number of files per context cannot be less than 0.");
+    this.maxFilesPerContext = maxFilesPerContext;
+  }
+
+  protected long getMaxFilesPerContext() {
+    return maxFilesPerContext;
+  }
+
+  /**
+   * Sets the maximum total size in bytes of the files per context, including files that are being saved. 0, the
+   * default, means no limit. Quota is reserved for the declared size of each file before its content is written, and
+   * saving is aborted once the content exceeds the declared size.
+   *
+   * @see #setMaxFilesPerContext(long)
+   */
+  public void setMaxSizePerContext(long maxSizePerContext) {
+    Assert.isTrue(maxSizePerContext >= 0, "Maximum size per context cannot be less than 0.");
+    this.maxSizePerContext = maxSizePerContext;
+  }
+
+  protected long getMaxSizePerContext() {
+    return maxSizePerContext;
+  }
+
+  protected boolean isQuotaEnabled() {
+    return maxFilesPerContext > 0 || maxSizePerContext > 0;
+  }
 }
@@ -0,0 +1,96 @@
+package nl.runnable.spring.fileupload.impl;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.springframework.util.Assert;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Allocates fixed-size pages from a single direct buffer that is allocated up front.
+ * <p>
+ * Pages are identified by their index and are reused once freed, so the memory is never returned to the garbage
+ * collector. This class is not thread-safe.
+ * </p>
+ *
+ * @author Laurens Fridael
+ */
+class PageAllocator {
+
+  private final int pageSize;
+
+  private final ByteBuffer arena;
+
+  private final int[] freePages;
+
+  private int freeCount;
+
+  PageAllocator(int pageSize, int pageCount) {
+    Assert.isTrue(pageSize > 0, "Page size must be greater than 0.");
+    Assert.isTrue(pageCount > 0, "Page count must be greater than 0.");
+    Assert.isTrue((long) pageSize * pageCount <= Integer.MAX_VALUE, "Cannot allocate more than 2 GB.");
+
+    this.pageSize = pageSize;
+    this.arena = ByteBuffer.allocateDirect(pageSize * pageCount);
+    this.freePages = new int[pageCount];
+    // Hand out pages in ascending order.
+    for (int i = 0; i < pageCount; i++) {
+      freePages[i] = pageCount - 1 - i;
+    }
+    this.freeCount = pageCount;
+  }
+
+  int getPageSize() {
+    return pageSize;
+  }
+
+  int getPageCount() {
+    return freePages.length;
+  }
+
+  int getFreeCount() {
+    return freeCount;
+  }
+
+  /**
+   * Obtains the number of pages needed to hold the given number of bytes.
+   */
+  int getPagesNeeded(long size) {
+    return (int) ((size + pageSize - 1) / pageSize);
+  }
+
+  /**
+   * Allocates pages.
+   *
+   * @return The page indexes or {@code null} if not enough pages are free.
+   */
+  @Nullable
+  int[] allocate(int count) {
+    if (count > freeCount) {
+      return null;
+    }
+    int[] pages = new int[count];
+    for (int i = 0; i < count; i++) {
+      pages[i] = freePages[--freeCount];
+    }
+    return pages;
+  }
+
+  void free(@NotNull int[] pages) {
+    for (int page : pages) {
+      freePages[freeCount++] = page;
+    }
+  }
+
+  /**
+   * Obtains a buffer for accessing a page. The buffer's position and limit are independent of other buffers for the
+   * same page.
+   */
+  @NotNull
+  ByteBuffer page(int page) {
+    ByteBuffer buffer = arena.duplicate();
+    buffer.position(page * pageSize);
+    buffer.limit(page * pageSize + pageSize);
+    return buffer.slice();
+  }
+}
@@ -0,0 +1,133 @@
+package nl.runnable.spring.fileupload.impl;
+
+import nl.runnable.spring.fileupload.QuotaExceededException;
+import org.jetbrains.annotations.NotNull;
+import org.springframework.util.Assert;
+import org.springframework.util.FileCopyUtils;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * {@link MultipartFile} whose content may not exceed the size for which quota was reserved. Reading beyond the
+ * reserved size fails with a {@link QuotaExceededException}, so that saving a file whose content is larger than
+ * declared is aborted as soon as the reserved size is crossed, rather than after the whole content has been written.
+ *
+ * @author Laurens Fridael
+ */
+class QuotaCheckingMultipartFile implements MultipartFile {
+
+  private final MultipartFile file;
+
+  private final String context;
+
+  private volatile boolean exceeded = false;
+
+  QuotaCheckingMultipartFile(@NotNull MultipartFile file, @NotNull String context) {
+    Assert.notNull(file);
+    Assert.notNull(context);
+    this.file = file;
+    this.context = context;
+  }
+
+  @Override
+  public String getName() {
+    return file.getName();
+  }
+
+  @Override
+  public String getOriginalFilename() {
+    return file.getOriginalFilename();
+  }
+
+  @Override
+  public String getContentType() {
+    return file.getContentType();
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return file.isEmpty();
+  }
+
+  @Override
+  public long getSize() {
+    return file.getSize();
+  }
+
+  @Override
+  public byte[] getBytes() throws IOException {
+    return FileCopyUtils.copyToByteArray(getInputStream());
+  }
+
+  @Override
+  public InputStream getInputStream() throws IOException {
+    final long limit = file.getSize();
+    return new FilterInputStream(file.getInputStream()) {
+
+      private long count = 0;
+
+      @Override
+      public int read() throws IOException {
+        int b = super.read();
+        if (b != -1) {
+          count(1);
+        }
+        return b;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        int read = super.read(b, off, len);
+        if (read > 0) {
+          count(read);
+        }
+        return read;
+      }
+
+      @Override
+      public long skip(long n) throws IOException {
+        long skipped = super.skip(n);
+        count(skipped);
+        return skipped;
+      }
+
+      private void count(long read) {
+        count += read;
+        if (count > limit) {
+          exceeded = true;
+          throw exceeded(null);
+        }
+      }
+    };
+  }
+
+  @Override
+  public void transferTo(File dest) throws IOException, IllegalStateException {
+    FileCopyUtils.copy(getInputStream(), new FileOutputStream(dest));
+  }
+
+  /**
+   * Translates an exception thrown while saving this file into a {@link QuotaExceededException} if the content
+   * exceeded the reserved size. Drivers may wrap exceptions thrown while they read the content.
+   */
+  @NotNull
+  RuntimeException translate(@NotNull RuntimeException e) {
+    if (exceeded && !(e instanceof QuotaExceededException)) {
+      return exceeded(e);
+    }
+    return e;
+  }
+
+  @NotNull
+  private QuotaExceededException exceeded(Throwable cause) {
+    String message = String.format("Content of file '%s' exceeds its declared size of %d bytes, for which quota of " +
+        "context '%s' was reserved.", file.getOriginalFilename(), file.getSize(), context);
+    return cause != null ? new QuotaExceededException(context, message, cause) :
+        new QuotaExceededException(context, message);
+  }
+}
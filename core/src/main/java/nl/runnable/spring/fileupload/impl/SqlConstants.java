@@ -5,27 +5,259 @@ package nl.runnable.spring.fileupload.impl;
  */
 abstract class SqlConstants {
 
-  static final int COLUMN_COUNT = 10;
+  static final int COLUMN_COUNT = 11;
 
   static final String INSERT_INTO = "INSERT INTO sfus_file " +
-      "(id, name, original_filename, content_type, size, data, context, metadata, created_at, expires_at) " +
-      "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+      "(id, name, original_filename, content_type, size, data, content_encoding, context, metadata, created_at, " +
+      "expires_at) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
 
   static final String SELECT_BY_ID =
-      "SELECT id, name, original_filename, content_type, size, context, metadata, created_at, expires_at " +
-          "FROM sfus_file WHERE id = ?";
+      "SELECT id, name, original_filename, content_type, size, content_encoding, encoded_size, chunk_size, " +
+          "content_hash, context, metadata, created_at, expires_at FROM sfus_file WHERE id = ?";
 
   static final String SELECT_BY_CONTEXT =
-      "SELECT id, name, original_filename, content_type, size, context, metadata, created_at, expires_at " +
-          "FROM sfus_file WHERE context = ?";
+      "SELECT id, name, original_filename, content_type, size, content_encoding, encoded_size, chunk_size, " +
+          "content_hash, context, metadata, created_at, expires_at FROM sfus_file WHERE context = ? " +
+          "ORDER BY created_at, id";
+
+  static final String SELECT_BY_CONTEXT_AFTER =
+      "SELECT id, name, original_filename, content_type, size, content_encoding, encoded_size, chunk_size, " +
+          "content_hash, context, metadata, created_at, expires_at FROM sfus_file WHERE context = ? " +
+          "AND (created_at > ? OR (created_at = ? AND id > ?)) ORDER BY created_at, id";
+
+  static final String SELECT_BY_IDS =
+      "SELECT id, name, original_filename, content_type, size, content_encoding, encoded_size, chunk_size, " +
+          "content_hash, context, metadata, created_at, expires_at FROM sfus_file WHERE id IN (%s)";
+
+  static final String SELECT_INFO_BY_IDS =
+      "SELECT id, name, original_filename, content_type, size, content_hash, context, metadata, created_at, " +
+          "expires_at FROM sfus_file WHERE id IN (%s)";
+
+  static final String SELECT_INFO_BY_CONTEXT =
+      "SELECT id, name, original_filename, content_type, size, content_hash, context, metadata, created_at, " +
+          "expires_at FROM sfus_file WHERE context = ? ORDER BY created_at, id";
+
+  /**
+   * Selects a file's own data and its shared content, only one of which is present.
+   */
+  static final String SELECT_DATA_BY_ID = "SELECT f.data, c.data FROM sfus_file f " +
+      "LEFT JOIN sfus_content c ON c.content_hash = f.content_ref WHERE f.id = ?";
+
+  static final String INSERT_INTO_WITH_CONTENT_REF = "INSERT INTO sfus_file " +
+      "(id, name, original_filename, content_type, size, content_hash, content_ref, context, metadata, created_at, " +
+      "expires_at) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+  static final String SELECT_CONTENT_REF_BY_ID = "SELECT content_ref FROM sfus_file WHERE id = ?";
+
+  static final String SELECT_CONTENT_REF_BY_CONTEXT = "SELECT content_ref FROM sfus_file WHERE context = ?";
+
+  static final String SELECT_CONTENT_REF_EXPIRED = "SELECT content_ref FROM sfus_file WHERE expires_at <= ?";
+
+  static final String INSERT_INTO_CONTENT = "INSERT INTO sfus_content (content_hash, size, data, ref_count) " +
+      "VALUES (?, ?, ?, 1)";
+
+  static final String INCREMENT_CONTENT_REF_COUNT =
+      "UPDATE sfus_content SET ref_count = ref_count + 1 WHERE content_hash = ?";
+
+  static final String DECREMENT_CONTENT_REF_COUNT =
+      "UPDATE sfus_content SET ref_count = ref_count - ? WHERE content_hash = ?";
+
+  static final String RECOUNT_CONTENT_REF_COUNT = "UPDATE sfus_content SET ref_count = " +
+      "(SELECT COUNT(*) FROM sfus_file WHERE content_ref = ?) WHERE content_hash = ?";
+
+  static final String DELETE_UNREFERENCED_CONTENT =
+      "DELETE FROM sfus_content WHERE content_hash = ? AND ref_count <= 0";
+
+  static final String DELETE_ALL_CONTENT = "DELETE FROM sfus_content";
+
+  static final String INSERT_INTO_CHUNKED = "INSERT INTO sfus_file " +
+      "(id, name, original_filename, content_type, size, chunk_size, content_hash, context, metadata, created_at, " +
+      "expires_at) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+  static final String INSERT_INTO_CHUNK = "INSERT INTO sfus_chunk (file_id, seq, data) VALUES (?, ?, ?)";
+
+  static final String SELECT_CHUNK_DATA = "SELECT data FROM sfus_chunk WHERE file_id = ? AND seq = ?";
+
+  static final String DELETE_CHUNK = "DELETE FROM sfus_chunk WHERE file_id = ? AND seq = ?";
+
+  static final String DELETE_CHUNKS_BY_FILE_ID = "DELETE FROM sfus_chunk WHERE file_id = ?";
+
+  static final String DELETE_ORPHANED_CHUNKS_BY_FILE_ID =
+      "DELETE FROM sfus_chunk WHERE file_id = ? AND NOT EXISTS (SELECT 1 FROM sfus_file WHERE id = ?)";
+
+  static final String DELETE_CHUNKS_BY_CONTEXT =
+      "DELETE FROM sfus_chunk WHERE file_id IN (SELECT id FROM sfus_file WHERE context = ?)";
+
+  static final String DELETE_CHUNKS_EXPIRED =
+      "DELETE FROM sfus_chunk WHERE file_id IN (SELECT id FROM sfus_file WHERE expires_at <= ?)";
+
+  static final String DELETE_ALL_CHUNKS = "DELETE FROM sfus_chunk";
+
+  static final String INSERT_INTO_WITHOUT_DATA = "INSERT INTO sfus_file " +
+      "(id, name, original_filename, content_type, size, content_hash, context, metadata, created_at, expires_at) " +
+      "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+  static final String SELECT_ID_BY_CONTEXT = "SELECT id FROM sfus_file WHERE context = ?";
+
+  static final String SELECT_ID_EXPIRED = "SELECT id FROM sfus_file WHERE expires_at <= ?";
+
+  static final String SELECT_EXPIRED =
+      "SELECT id, size, content_ref, context FROM sfus_file WHERE expires_at <= ? ORDER BY expires_at";
+
+  static final String DELETE_BY_ID_AND_CONTEXT = "DELETE FROM sfus_file WHERE id = ? AND context = ?";
+
+  static final String DELETE_BY_ID_EXPIRED = "DELETE FROM sfus_file WHERE id = ? AND expires_at <= ?";
+
+  static final String INSERT_INTO_WITH_BUCKET = "INSERT INTO sfus_file " +
+      "(id, name, original_filename, content_type, size, context, metadata, created_at, expires_at, bucket) " +
+      "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+  static final String SELECT_BUCKET_BY_ID = "SELECT bucket FROM sfus_file WHERE id = ?";
+
+  static final String SELECT_BUCKETS_BY_CONTEXT = "SELECT DISTINCT bucket FROM sfus_file WHERE context = ?";
+
+  static final String SELECT_BUCKETS_BY_CONTEXT_BEFORE =
+      "SELECT DISTINCT bucket FROM sfus_file WHERE context = ? AND bucket < ?";
+
+  static final String UPDATE_EXPIRES_AT_AND_BUCKET = "UPDATE sfus_file SET expires_at = ?, bucket = ? WHERE id = ?";
+
+  static final String UPDATE_BUCKET_BY_CONTEXT = "UPDATE sfus_file SET bucket = ? WHERE context = ? AND bucket = ?";
+
+  static final String COUNT_BY_BUCKET = "SELECT COUNT(*) FROM sfus_file WHERE bucket = ?";
+
+  static final String SELECT_BUCKETS = "SELECT bucket FROM sfus_bucket";
+
+  static final String SELECT_BUCKETS_BEFORE = "SELECT bucket FROM sfus_bucket WHERE bucket < ? ORDER BY bucket";
+
+  static final String INSERT_INTO_BUCKET = "INSERT INTO sfus_bucket (bucket) VALUES (?)";
 
+  static final String DELETE_BUCKET = "DELETE FROM sfus_bucket WHERE bucket = ?";
 
-  static final String SELECT_DATA_BY_ID = "SELECT data FROM sfus_file WHERE id = ?";
+  /*
+   * Statements for bucket tables. The table names are substituted using String.format().
+   */
+
+  static final String CREATE_BUCKET_TABLE = "CREATE TABLE %s (id varchar(255) not null unique, data blob)";
+
+  static final String PROBE_BUCKET_TABLE = "SELECT COUNT(*) FROM %s WHERE 1 = 0";
+
+  static final String DROP_BUCKET_TABLE = "DROP TABLE %s";
+
+  static final String INSERT_INTO_BUCKET_TABLE = "INSERT INTO %s (id, data) VALUES (?, ?)";
+
+  static final String SELECT_DATA_FROM_BUCKET_TABLE = "SELECT data FROM %s WHERE id = ?";
+
+  static final String DELETE_FROM_BUCKET_TABLE = "DELETE FROM %s WHERE id = ?";
+
+  static final String MOVE_INTO_BUCKET_TABLE = "INSERT INTO %s (id, data) SELECT id, data FROM %s WHERE id = ?";
+
+  static final String MOVE_CONTEXT_INTO_BUCKET_TABLE = "INSERT INTO %s (id, data) SELECT id, data FROM %s " +
+      "WHERE id IN (SELECT id FROM sfus_file WHERE context = ? AND bucket = ?)";
+
+  static final String DELETE_CONTEXT_FROM_BUCKET_TABLE =
+      "DELETE FROM %s WHERE id IN (SELECT id FROM sfus_file WHERE context = ? AND bucket = ?)";
+
+  static final String RENEW_LEASE = "UPDATE sfus_lease SET owner = ?, expires_at = ? " +
+      "WHERE name = ? AND (owner = ? OR expires_at < ?)";
+
+  static final String INSERT_INTO_LEASE = "INSERT INTO sfus_lease (name, owner, expires_at) VALUES (?, ?, ?)";
+
+  static final String DELETE_LEASE = "DELETE FROM sfus_lease WHERE name = ? AND owner = ?";
+
+  static final String INSERT_INTO_CHANGE_LOG =
+      "INSERT INTO sfus_change_log (file_id, context, changed_at) VALUES (?, ?, ?)";
+
+  static final String SELECT_CHANGES_SINCE =
+      "SELECT file_id, context FROM sfus_change_log WHERE changed_at >= ?";
+
+  static final String DELETE_CHANGES_BEFORE = "DELETE FROM sfus_change_log WHERE changed_at < ?";
+
+  static final String SELECT_USAGE = "SELECT file_count, total_size FROM sfus_context_usage WHERE context = ?";
+
+  static final String SELECT_FILE_USAGE_BY_CONTEXT =
+      "SELECT COUNT(*), COALESCE(SUM(size), 0) FROM sfus_file WHERE context = ?";
+
+  /**
+   * Initializes the usage of a context from its files.
+   */
+  static final String INSERT_INTO_USAGE = "INSERT INTO sfus_context_usage (context, file_count, total_size) " +
+      "SELECT ?, COUNT(*), COALESCE(SUM(size), 0) FROM sfus_file WHERE context = ?";
+
+  /**
+   * Adds files to the usage of a context, provided that the current usage does not exceed the given values.
+   */
+  static final String RESERVE_USAGE = "UPDATE sfus_context_usage SET file_count = file_count + ?, " +
+      "total_size = total_size + ? WHERE context = ? AND file_count <= ? AND total_size <= ?";
+
+  /**
+   * Locks the usage of a context until the end of the transaction, without changing it.
+   */
+  static final String LOCK_USAGE = "UPDATE sfus_context_usage SET file_count = file_count WHERE context = ?";
+
+  static final String RELEASE_USAGE = "UPDATE sfus_context_usage SET file_count = file_count - ?, " +
+      "total_size = total_size - ? WHERE context = ?";
+
+  static final String RECOMPUTE_USAGE = "UPDATE sfus_context_usage SET " +
+      "file_count = (SELECT COUNT(*) FROM sfus_file WHERE context = ?), " +
+      "total_size = (SELECT COALESCE(SUM(size), 0) FROM sfus_file WHERE context = ?) WHERE context = ?";
+
+  static final String DELETE_ALL_USAGE = "DELETE FROM sfus_context_usage";
+
+  /*
+   * Statements selecting the usage of files about to be deleted, by context.
+   */
+
+  static final String SELECT_USAGE_BY_ID =
+      "SELECT context, COUNT(*), SUM(size) FROM sfus_file WHERE id = ? GROUP BY context";
+
+  static final String SELECT_USAGE_BY_CONTEXT =
+      "SELECT context, COUNT(*), SUM(size) FROM sfus_file WHERE context = ? GROUP BY context";
+
+  static final String SELECT_USAGE_EXPIRED =
+      "SELECT context, COUNT(*), SUM(size) FROM sfus_file WHERE expires_at <= ? GROUP BY context";
 
   static final String SELECT_COUNT = "SELECT COUNT(*) FROM sfus_file";
 
+  static final String CREATE_SCHEMA_VERSION = "CREATE TABLE IF NOT EXISTS sfus_schema_version " +
+      "(id int not null primary key, version int not null, locked_by varchar(255), locked_until bigint)";
+
+  static final String SELECT_SCHEMA_VERSION = "SELECT version FROM sfus_schema_version WHERE id = 1";
+
+  static final String INSERT_INTO_SCHEMA_VERSION = "INSERT INTO sfus_schema_version (id, version) VALUES (1, ?)";
+
+  static final String UPDATE_SCHEMA_VERSION =
+      "UPDATE sfus_schema_version SET version = ? WHERE id = 1 AND locked_by = ?";
+
+  static final String LOCK_SCHEMA_VERSION = "UPDATE sfus_schema_version SET locked_by = ?, locked_until = ? " +
+      "WHERE id = 1 AND (locked_by IS NULL OR locked_by = ? OR locked_until <= ?)";
+
+  static final String UNLOCK_SCHEMA_VERSION =
+      "UPDATE sfus_schema_version SET locked_by = NULL, locked_until = NULL WHERE id = 1 AND locked_by = ?";
+
   static final String UPDATE_EXPIRES_AT = "UPDATE sfus_file SET expires_at = ? WHERE id = ?";
 
+  /*
+   * Statements for lists of IDs. The IN lists are substituted using String.format().
+   */
+
+  static final String UPDATE_EXPIRES_AT_BY_IDS = "UPDATE sfus_file SET expires_at = ? WHERE id IN (%s)";
+
+  static final String SELECT_CONTENT_REF_BY_IDS = "SELECT content_ref FROM sfus_file WHERE id IN (%s)";
+
+  static final String SELECT_USAGE_BY_IDS =
+      "SELECT context, COUNT(*), SUM(size) FROM sfus_file WHERE id IN (%s) GROUP BY context";
+
+  static final String DELETE_CHUNKS_BY_FILE_IDS = "DELETE FROM sfus_chunk WHERE file_id IN (%s)";
+
+  static final String DELETE_BY_IDS = "DELETE FROM sfus_file WHERE id IN (%s)";
+
+  static final String UPDATE_EXPIRES_AT_BY_CONTEXT = "UPDATE sfus_file SET expires_at = ? WHERE context = ?";
+
+  static final String UPDATE_CONTENT_HASH = "UPDATE sfus_file SET content_hash = ? WHERE id = ?";
+
+  static final String UPDATE_CONTENT_HASH_AND_ENCODED_SIZE =
+      "UPDATE sfus_file SET content_hash = ?, encoded_size = ? WHERE id = ?";
+
   static final String UPDATE_METADATA = "UPDATE sfus_file SET metadata = ? WHERE id = ?";
 
   static final String DELETE_BY_ID = "DELETE FROM sfus_file WHERE id = ?";
@@ -0,0 +1,262 @@
+package nl.runnable.spring.fileupload.impl;
+
+import nl.runnable.spring.fileupload.AsyncMultipartFileStorage;
+import nl.runnable.spring.fileupload.MultipartFileStorage;
+import nl.runnable.spring.fileupload.StoredMultipartFile;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.AsyncListenableTaskExecutor;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.util.Assert;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.FileNotFoundException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * {@link AsyncMultipartFileStorage} implementation that runs the operations of a {@link MultipartFileStorage} using an
+ * {@link AsyncListenableTaskExecutor}.
+ * <p>
+ * Without a configured executor, operations run on a pool of {@link #setPoolSize(int) pool size} threads. Operations
+ * wait in a queue of {@link #setQueueCapacity(int) queue capacity} while all threads are busy and are rejected with a
+ * {@link org.springframework.core.task.TaskRejectedException} when the queue is full, so callers never block. If
+ * {@link #setVirtualThreads(boolean) virtual threads} are enabled and the JVM supports them, the pool consists of
+ * virtual threads.
+ * </p>
+ * <p>
+ * The pool size should not exceed the size of the database connection pool, as each operation holds a connection
+ * while it runs.
+ * </p>
+ *
+ * @author Laurens Fridael
+ */
+public class TaskExecutorAsyncMultipartFileStorage implements AsyncMultipartFileStorage, InitializingBean,
+    DisposableBean {
+
+  private static final String THREAD_NAME_PREFIX = "sfus-async-";
+
+  private final Logger logger = LoggerFactory.getLogger(getClass());
+
+  /* Dependencies */
+
+  @Autowired(required = false)
+  @Qualifier("spring-file-upload-storage")
+  private AsyncListenableTaskExecutor taskExecutor;
+
+  @Autowired
+  private MultipartFileStorage multipartFileStorage;
+
+  /* Configuration */
+
+  @Value("${spring-file-upload-storage.async.poolSize:8}")
+  private int poolSize = 8;
+
+  @Value("${spring-file-upload-storage.async.queueCapacity:1000}")
+  private int queueCapacity = 1000;
+
+  @Value("${spring-file-upload-storage.async.virtualThreads:false}")
+  private boolean virtualThreads = false;
+
+  /* State */
+
+  private ThreadPoolTaskExecutor defaultTaskExecutor;
+
+  /* Main operations */
+
+  @NotNull
+  @Override
+  public ListenableFuture<String> save(@NotNull final MultipartFile file, final int timeToLiveInSeconds,
+                                       @Nullable final String context, @Nullable final String metadata) {
+    Assert.notNull(file, "File cannot be null.");
+
+    return taskExecutor.submitListenable(new Callable<String>() {
+
+      @Override
+      public String call() throws Exception {
+        return multipartFileStorage.save(file, timeToLiveInSeconds, context, metadata);
+      }
+    });
+  }
+
+  @NotNull
+  @Override
+  public ListenableFuture<StoredMultipartFile> find(@NotNull final String id) {
+    Assert.hasText(id, "File ID cannot be empty.");
+
+    return taskExecutor.submitListenable(new Callable<StoredMultipartFile>() {
+
+      @Override
+      public StoredMultipartFile call() throws Exception {
+        return multipartFileStorage.find(id);
+      }
+    });
+  }
+
+  @NotNull
+  @Override
+  public ListenableFuture<List<StoredMultipartFile>> findByContext(@NotNull final String context) {
+    Assert.hasText(context, "Context cannot be empty.");
+
+    return taskExecutor.submitListenable(new Callable<List<StoredMultipartFile>>() {
+
+      @Override
+      public List<StoredMultipartFile> call() throws Exception {
+        return multipartFileStorage.findByContext(context);
+      }
+    });
+  }
+
+  @NotNull
+  @Override
+  public ListenableFuture<InputStream> openInputStream(@NotNull final String id) {
+    Assert.hasText(id, "File ID cannot be empty.");
+
+    return taskExecutor.submitListenable(new Callable<InputStream>() {
+
+      @Override
+      public InputStream call() throws Exception {
+        StoredMultipartFile file = multipartFileStorage.find(id);
+        if (file == null) {
+          throw new FileNotFoundException(String.format("File '%s' does not exist.", id));
+        }
+        return file.getInputStream();
+      }
+    });
+  }
+
+  @NotNull
+  @Override
+  public ListenableFuture<Integer> delete(@NotNull final String id) {
+    Assert.hasText(id, "File ID cannot be empty.");
+
+    return taskExecutor.submitListenable(new Callable<Integer>() {
+
+      @Override
+      public Integer call() throws Exception {
+        return multipartFileStorage.delete(id);
+      }
+    });
+  }
+
+  @NotNull
+  @Override
+  public ListenableFuture<Integer> deleteByContext(@NotNull final String context) {
+    Assert.hasText(context, "Context cannot be empty.");
+
+    return taskExecutor.submitListenable(new Callable<Integer>() {
+
+      @Override
+      public Integer call() throws Exception {
+        return multipartFileStorage.deleteByContext(context);
+      }
+    });
+  }
+
+  /* Utility */
+
+  @Override
+  public void afterPropertiesSet() throws Exception {
+    if (taskExecutor != null) {
+      return;
+    }
+    ThreadFactory virtualThreadFactory = virtualThreads ? createVirtualThreadFactory() : null;
+    defaultTaskExecutor = new ThreadPoolTaskExecutor();
+    defaultTaskExecutor.setCorePoolSize(poolSize);
+    defaultTaskExecutor.setMaxPoolSize(poolSize);
+    defaultTaskExecutor.setQueueCapacity(queueCapacity);
+    if (virtualThreadFactory != null) {
+      defaultTaskExecutor.setThreadFactory(virtualThreadFactory);
+    } else {
+      defaultTaskExecutor.setThreadNamePrefix(THREAD_NAME_PREFIX);
+      defaultTaskExecutor.setDaemon(true);
+    }
+    defaultTaskExecutor.afterPropertiesSet();
+    taskExecutor = defaultTaskExecutor;
+    logger.info("Running asynchronous storage operations on a pool of {} {}threads.", poolSize,
+        virtualThreadFactory != null ? "virtual " : "");
+  }
+
+  /**
+   * Creates a factory for virtual threads using reflection, as virtual threads are only available on Java 21 and later.
+   *
+   * @return The factory or {@code null} if the JVM does not support virtual threads.
+   */
+  @Nullable
+  private ThreadFactory createVirtualThreadFactory() {
+    try {
+      Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+      Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, THREAD_NAME_PREFIX, 0L);
+      return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+    } catch (Exception e) {
+      logger.warn("Virtual threads are not supported by this JVM, using a thread pool instead.");
+      return null;
+    }
+  }
+
+  @Override
+  public void destroy() throws Exception {
+    if (defaultTaskExecutor != null) {
+      try {
+        defaultTaskExecutor.destroy();
+      } finally {
+        defaultTaskExecutor = null;
+      }
+    }
+  }
+
+  /* Dependencies */
+
+  /**
+   * Sets the executor that runs the operations. Any {@link java.util.concurrent.Executor}, such as one creating
+   * virtual threads, can be used by wrapping it in a {@link org.springframework.core.task.support.TaskExecutorAdapter}.
+   */
+  public void setTaskExecutor(@NotNull AsyncListenableTaskExecutor taskExecutor) {
+    Assert.notNull(taskExecutor);
+    this.taskExecutor = taskExecutor;
+  }
+
+  public void setMultipartFileStorage(@NotNull MultipartFileStorage multipartFileStorage) {
+    Assert.notNull(multipartFileStorage);
+    this.multipartFileStorage = multipartFileStorage;
+  }
+
+  /* Configuration */
+
+  /**
+   * Sets the maximum number of operations that run concurrently when no task executor is configured.
+   */
+  public void setPoolSize(int poolSize) {
+    Assert.isTrue(poolSize > 0, "Pool size must be greater than 0.");
+    this.poolSize = poolSize;
+  }
+
+  /**
+   * Sets the maximum number of operations waiting for a thread when no task executor is configured. Further operations
+   * are rejected with a {@link org.springframework.core.task.TaskRejectedException}.
+   */
+  public void setQueueCapacity(int queueCapacity) {
+    Assert.isTrue(queueCapacity >= 0, "Queue capacity cannot be less than 0.");
+    this.queueCapacity = queueCapacity;
+  }
+
+  /**
+   * Specifies whether to run operations on virtual threads when no task executor is configured and the JVM supports
+   * them.
+   */
+  public void setVirtualThreads(boolean virtualThreads) {
+    this.virtualThreads = virtualThreads;
+  }
+
+}
@@ -0,0 +1,290 @@
+package nl.runnable.spring.fileupload.impl;
+
+import nl.runnable.spring.fileupload.MultipartFileStorage;
+import org.jetbrains.annotations.NotNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
+import org.springframework.util.Assert;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Coalesces time-to-live extensions of contexts, typically sessions, and writes them in the background.
+ * <p>
+ * Extending the time-to-live on every request is wasted work when requests follow each other closely and the
+ * time-to-live is long. This queue records the expiration it has written for each context and skips an extension if
+ * that expiration is still at least half the {@link #setMaxStaleness(int) maximum staleness} ahead of the requested
+ * one. Other extensions are queued and written {@link #setFlushInterval(int) periodically}, in a single batch if the
+ * storage is a {@link JdbcMultipartFileStorage}.
+ * </p>
+ * <p>
+ * Because extensions are skipped or delayed, the queue writes the requested expiration plus the maximum staleness. The
+ * expiration in storage is therefore never earlier than that of the context, provided the flush interval is at most
+ * half the maximum staleness, and {@link nl.runnable.spring.fileupload.CleanupExpiredFilesJob} never deletes files of
+ * an active context. In exchange, files may be kept up to the maximum staleness after their context has expired.
+ * </p>
+ * <p>
+ * Files saved to a context after its expiration was written have their own expiration, which this queue does not know
+ * about. Use {@link #refresh(String, int)} after saving files to write the expiration immediately.
+ * </p>
+ *
+ * @author Laurens Fridael
+ */
+public class TimeToLiveTouchQueue implements Runnable, InitializingBean, DisposableBean {
+
+  private final Logger logger = LoggerFactory.getLogger(getClass());
+
+  /* Dependencies */
+
+  @Autowired(required = false)
+  @Qualifier("spring-file-upload-storage")
+  private TaskScheduler taskScheduler;
+
+  @Autowired
+  private MultipartFileStorage multipartFileStorage;
+
+  /* Configuration */
+
+  @Value("${spring-file-upload-storage.touch.flushInterval:10}")
+  private int flushInterval = 10;
+
+  @Value("${spring-file-upload-storage.touch.maxStaleness:300}")
+  private int maxStaleness = 300;
+
+  /* State */
+
+  /**
+   * The latest expiration, written or pending, by context.
+   */
+  private final Map<String, Long> expirations = new HashMap<String, Long>();
+
+  private Map<String, Long> pending = new LinkedHashMap<String, Long>();
+
+  private long touchCount = 0;
+
+  private long coalescedCount = 0;
+
+  private boolean destroyScheduler = false;
+
+  /* Main operations */
+
+  /**
+   * Extends the time-to-live of the files in the given context, unless the current expiration suffices.
+   *
+   * @param context             The context.
+   * @param timeToLiveInSeconds The time to live from now.
+   * @return {@code true} if the extension was queued, {@code false} if it was skipped.
+   */
+  public boolean touch(@NotNull String context, int timeToLiveInSeconds) {
+    Assert.hasText(context, "Context cannot be empty.");
+    Assert.isTrue(timeToLiveInSeconds >= 0, "Time to live must be greater than or equal to 0.");
+
+    long requested = System.currentTimeMillis() + timeToLiveInSeconds * 1000L;
+    synchronized (this) {
+      touchCount++;
+      Long expiration = expirations.get(context);
+      if (expiration != null && expiration >= requested + maxStaleness * 500L) {
+        coalescedCount++;
+        return false;
+      }
+      long expiresAt = requested + maxStaleness * 1000L;
+      expirations.put(context, expiresAt);
+      pending.put(context, expiresAt);
+      return true;
+    }
+  }
+
+  /**
+   * Extends the time-to-live of the files in the given context immediately.
+   *
+   * @param context             The context.
+   * @param timeToLiveInSeconds The time to live from now.
+   */
+  public void refresh(@NotNull String context, int timeToLiveInSeconds) {
+    Assert.hasText(context, "Context cannot be empty.");
+    Assert.isTrue(timeToLiveInSeconds >= 0, "Time to live must be greater than or equal to 0.");
+
+    long expiresAt = System.currentTimeMillis() + (timeToLiveInSeconds + maxStaleness) * 1000L;
+    multipartFileStorage.setTimeToLiveByContext(context, timeToLiveInSeconds + maxStaleness);
+    synchronized (this) {
+      Long pendingExpiration = pending.get(context);
+      if (pendingExpiration != null && pendingExpiration <= expiresAt) {
+        pending.remove(context);
+      }
+      Long expiration = expirations.get(context);
+      if (expiration == null || expiration < expiresAt) {
+        expirations.put(context, expiresAt);
+      }
+    }
+  }
+
+  /**
+   * Writes the pending extensions. Extensions that fail to be written are retried on the next flush.
+   *
+   * @return The number of contexts written.
+   */
+  public int flush() {
+    Map<String, Long> flushed;
+    synchronized (this) {
+      pruneExpirations();
+      if (pending.isEmpty()) {
+        return 0;
+      }
+      flushed = pending;
+      pending = new LinkedHashMap<String, Long>();
+    }
+    try {
+      write(flushed);
+    } catch (RuntimeException e) {
+      synchronized (this) {
+        for (Map.Entry<String, Long> entry : flushed.entrySet()) {
+          if (!pending.containsKey(entry.getKey())) {
+            pending.put(entry.getKey(), entry.getValue());
+          }
+        }
+      }
+      throw e;
+    }
+    logger.debug("Extended the time-to-live of {} context(s).", flushed.size());
+    return flushed.size();
+  }
+
+  @Override
+  public void run() {
+    try {
+      flush();
+    } catch (RuntimeException e) {
+      logger.warn("Could not extend the time-to-live of contexts, retrying on the next flush.", e);
+    }
+  }
+
+  public synchronized int getPendingCount() {
+    return pending.size();
+  }
+
+  /**
+   * Obtains the number of extensions requested through {@link #touch(String, int)}.
+   */
+  public synchronized long getTouchCount() {
+    return touchCount;
+  }
+
+  /**
+   * Obtains the number of extensions that were skipped because the current expiration sufficed.
+   */
+  public synchronized long getCoalescedCount() {
+    return coalescedCount;
+  }
+
+  /* Utility */
+
+  private void write(@NotNull Map<String, Long> expiresAt) {
+    if (multipartFileStorage instanceof JdbcMultipartFileStorage) {
+      Map<String, Date> dates = new LinkedHashMap<String, Date>(expiresAt.size());
+      for (Map.Entry<String, Long> entry : expiresAt.entrySet()) {
+        dates.put(entry.getKey(), new Date(entry.getValue()));
+      }
+      ((JdbcMultipartFileStorage) multipartFileStorage).setExpiresAtByContext(dates);
+    } else {
+      long now = System.currentTimeMillis();
+      for (Map.Entry<String, Long> entry : expiresAt.entrySet()) {
+        long remaining = entry.getValue() - now;
+        if (remaining > 0) {
+          multipartFileStorage.setTimeToLiveByContext(entry.getKey(), (int) ((remaining + 999) / 1000));
+        }
+      }
+    }
+  }
+
+  /**
+   * Forgets contexts whose expiration has passed, so that the recorded expirations do not grow without bounds.
+   */
+  private void pruneExpirations() {
+    long now = System.currentTimeMillis();
+    for (Iterator<Long> it = expirations.values().iterator(); it.hasNext(); ) {
+      if (it.next() < now) {
+        it.remove();
+      }
+    }
+  }
+
+  @Override
+  public void afterPropertiesSet() throws Exception {
+    Assert.isTrue(flushInterval * 2 <= maxStaleness, "Flush interval cannot be more than half the maximum staleness.");
+    scheduleTask();
+  }
+
+  private void scheduleTask() {
+    if (taskScheduler == null) {
+      taskScheduler = createDefaultTaskScheduler();
+      destroyScheduler = true;
+    }
+    int delay = flushInterval * 1000;
+    logger.info("Scheduling time-to-live extensions for every {} seconds.", flushInterval);
+    taskScheduler.scheduleAtFixedRate(this, new Date(new Date().getTime() + delay), delay);
+  }
+
+  private TaskScheduler createDefaultTaskScheduler() {
+    ThreadPoolTaskScheduler taskScheduler = new ThreadPoolTaskScheduler();
+    taskScheduler.afterPropertiesSet();
+    return taskScheduler;
+  }
+
+  @Override
+  public void destroy() throws Exception {
+    try {
+      run();
+    } finally {
+      if (destroyScheduler) {
+        try {
+          ((DisposableBean) taskScheduler).destroy();
+        } finally {
+          destroyScheduler = false;
+        }
+      }
+    }
+  }
+
+  /* Dependencies */
+
+  public void setTaskScheduler(TaskScheduler taskScheduler) {
+    Assert.notNull(taskScheduler);
+    this.taskScheduler = taskScheduler;
+  }
+
+  public void setMultipartFileStorage(MultipartFileStorage multipartFileStorage) {
+    Assert.notNull(multipartFileStorage);
+    this.multipartFileStorage = multipartFileStorage;
+  }
+
+  /* Configuration */
+
+  /**
+   * Sets the interval in seconds at which pending extensions are written.
+   */
+  public void setFlushInterval(int flushInterval) {
+    Assert.isTrue(flushInterval > 0, "Flush interval must be greater than 0.");
+    this.flushInterval = flushInterval;
+  }
+
+  /**
+   * Sets the time in seconds that the expiration in storage may lag behind the requested expiration. This is also the
+   * time that files may be kept after their context has expired.
+   */
+  public void setMaxStaleness(int maxStaleness) {
+    Assert.isTrue(maxStaleness > 0, "Maximum staleness must be greater than 0.");
+    this.maxStaleness = maxStaleness;
+  }
+
+}
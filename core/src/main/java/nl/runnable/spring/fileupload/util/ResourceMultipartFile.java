@@ -25,7 +25,7 @@ public class ResourceMultipartFile implements MultipartFile {
 
   private final String contentType;
 
-  private final int size;
+  private final long size;
 
   /**
    * Constructs a new instance.
@@ -38,13 +38,12 @@ public class ResourceMultipartFile implements MultipartFile {
     Assert.notNull(resource, "Resource cannot be null.");
     Assert.hasText(name, "Name cannot be empty.");
     Assert.isTrue(size >= 0, "Size cannot be less than 0.");
-    Assert.isTrue(size <= Integer.MAX_VALUE, String.format("Size cannot be larger than %d.", Integer.MAX_VALUE));
 
     this.resource = resource;
     this.name = name;
 
     this.contentType = contentType;
-    this.size = (int) size;
+    this.size = size;
   }
 
   @Override
@@ -78,7 +77,10 @@ public class ResourceMultipartFile implements MultipartFile {
 
   @Override
   public byte[] getBytes() throws IOException {
-    ByteArrayOutputStream buffer = new ByteArrayOutputStream(size);
+    if (size > Integer.MAX_VALUE) {
+      throw new IllegalStateException("Resource is too large to be obtained as a byte array.");
+    }
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream((int) size);
     FileCopyUtils.copy(getInputStream(), buffer);
     return buffer.toByteArray();
   }
@@ -0,0 +1,35 @@
+alter table sfus_file alter column size bigint not null;
+
+alter table sfus_file add column if not exists chunk_size int;
+
+alter table sfus_file add column if not exists content_hash varchar(64);
+
+alter table sfus_file add column if not exists content_ref varchar(64);
+
+create table if not exists sfus_content (
+	content_hash varchar(64) not null unique,
+	size int not null,
+	data blob,
+	ref_count int not null
+);
+
+create table if not exists sfus_chunk (
+	file_id varchar(255) not null,
+	seq int not null,
+	data blob,
+	unique (file_id, seq)
+);
+
+create table if not exists sfus_change_log (
+	file_id varchar(255),
+	context varchar(255),
+	changed_at bigint not null
+);
+
+create index if not exists sfus_file_context_created_at on sfus_file (context, created_at);
+
+create index if not exists sfus_file_expires_at on sfus_file (expires_at);
+
+create index if not exists sfus_file_content_ref on sfus_file (content_ref);
+
+create index if not exists sfus_change_log_changed_at on sfus_change_log (changed_at);
@@ -0,0 +1,7 @@
+alter table sfus_file add column if not exists bucket bigint;
+
+create index if not exists sfus_file_bucket on sfus_file (bucket);
+
+create table if not exists sfus_bucket (
+	bucket bigint not null unique
+);
@@ -0,0 +1,5 @@
+create table if not exists sfus_lease (
+	name varchar(255) not null unique,
+	owner varchar(255) not null,
+	expires_at bigint not null
+);
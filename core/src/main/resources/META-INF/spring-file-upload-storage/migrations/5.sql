@@ -0,0 +1,3 @@
+alter table sfus_file add column if not exists content_encoding varchar(32);
+
+alter table sfus_file add column if not exists encoded_size bigint;
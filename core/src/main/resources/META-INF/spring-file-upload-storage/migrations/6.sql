@@ -0,0 +1,5 @@
+create table if not exists sfus_context_usage (
+	context varchar(255) not null unique,
+	file_count bigint not null,
+	total_size bigint not null
+);
@@ -3,10 +3,71 @@ create table sfus_file (
 	name varchar(255) not null,
 	original_filename varchar(255),
 	content_type varchar(255),
-	size int not null,
+	size bigint not null,
 	data blob,
+	content_encoding varchar(32),
+	encoded_size bigint,
+	chunk_size int,
+	content_hash varchar(64),
+	content_ref varchar(64),
 	context varchar(255),
 	metadata varchar(255),
 	created_at bigint not null,
+	expires_at bigint not null,
+	bucket bigint
+);
+
+create table sfus_content (
+	content_hash varchar(64) not null unique,
+	size int not null,
+	data blob,
+	ref_count int not null
+);
+
+create table sfus_chunk (
+	file_id varchar(255) not null,
+	seq int not null,
+	data blob,
+	unique (file_id, seq)
+);
+
+create table sfus_bucket (
+	bucket bigint not null unique
+);
+
+create table sfus_lease (
+	name varchar(255) not null unique,
+	owner varchar(255) not null,
 	expires_at bigint not null
 );
+
+create table sfus_context_usage (
+	context varchar(255) not null unique,
+	file_count bigint not null,
+	total_size bigint not null
+);
+
+create table sfus_change_log (
+	file_id varchar(255),
+	context varchar(255),
+	changed_at bigint not null
+);
+
+create index sfus_file_context_created_at on sfus_file (context, created_at);
+
+create index sfus_file_expires_at on sfus_file (expires_at);
+
+create index sfus_file_content_ref on sfus_file (content_ref);
+
+create index sfus_file_bucket on sfus_file (bucket);
+
+create index sfus_change_log_changed_at on sfus_change_log (changed_at);
+
+create table sfus_schema_version (
+	id int not null primary key,
+	version int not null,
+	locked_by varchar(255),
+	locked_until bigint
+);
+
+insert into sfus_schema_version (id, version) values (1, 6);
@@ -0,0 +1,150 @@
+package nl.runnable.spring.fileupload
+
+import nl.runnable.spring.fileupload.impl.InMemoryMultipartFileStorage
+import nl.runnable.spring.fileupload.impl.TaskExecutorAsyncMultipartFileStorage
+import org.springframework.beans.factory.annotation.Autowired
+import org.springframework.core.task.TaskRejectedException
+import org.springframework.mock.web.MockMultipartFile
+import org.springframework.test.context.ContextConfiguration
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.TimeUnit
+
+/**
+ * @author Laurens Fridael
+ */
+@ContextConfiguration(classes = [TestConfig])
+class AsyncStorageSpec extends Specification {
+
+  @Autowired
+  AsyncMultipartFileStorage configuredStorage
+
+  InMemoryMultipartFileStorage storage
+
+  TaskExecutorAsyncMultipartFileStorage asyncStorage
+
+  def setup() {
+    storage = new InMemoryMultipartFileStorage()
+    storage.afterPropertiesSet()
+    asyncStorage = createAsyncStorage(storage, false)
+  }
+
+  def cleanup() {
+    asyncStorage.destroy()
+  }
+
+  def 'Files are saved, found, read and deleted asynchronously'() {
+    when:
+    def ids = (1..5).collect {
+      asyncStorage.save(new MockMultipartFile('file', [it] as byte[]), 60, 'context', null)
+    }.collect { it.get(5, TimeUnit.SECONDS) }
+    then:
+    storage.count() == 5
+    ids.collect { asyncStorage.find(it) }.collect { it.get(5, TimeUnit.SECONDS).bytes } == (1..5).collect { [it] as byte[] }
+    asyncStorage.findByContext('context').get(5, TimeUnit.SECONDS).size() == 5
+    asyncStorage.openInputStream(ids[2]).get(5, TimeUnit.SECONDS).bytes == [3] as byte[]
+
+    when:
+    def deleted = asyncStorage.delete(ids[0]).get(5, TimeUnit.SECONDS) +
+        asyncStorage.deleteByContext('context').get(5, TimeUnit.SECONDS)
+    then:
+    deleted == 5
+    storage.count() == 0
+  }
+
+  def 'Independent operations run in parallel'() {
+    given:
+    def started = new CountDownLatch(3)
+    def blocking = [
+        find: { String id ->
+          started.countDown()
+          // Only completes if all three finds run at the same time.
+          if (!started.await(5, TimeUnit.SECONDS)) {
+            throw new IllegalStateException('Finds ran sequentially.')
+          }
+          return null
+        }
+    ] as MultipartFileStorage
+    def parallelStorage = createAsyncStorage(blocking, false)
+
+    when:
+    def futures = (1..3).collect { parallelStorage.find("file-$it".toString()) }
+    futures.each { it.get(10, TimeUnit.SECONDS) }
+    then:
+    notThrown(ExecutionException)
+
+    cleanup:
+    parallelStorage.destroy()
+  }
+
+  def 'Failures are reported through the future'() {
+    when:
+    asyncStorage.openInputStream('missing').get(5, TimeUnit.SECONDS)
+    then:
+    def e = thrown(ExecutionException)
+    e.cause instanceof FileNotFoundException
+  }
+
+  def 'Virtual threads are used if supported and a thread pool otherwise'() {
+    given:
+    def virtualStorage = createAsyncStorage(storage, true)
+
+    when:
+    def id = virtualStorage.save(new MockMultipartFile('file', [1] as byte[]), 60, null, null).get(5, TimeUnit.SECONDS)
+    then:
+    storage.find(id) != null
+
+    cleanup:
+    virtualStorage.destroy()
+  }
+
+  @Unroll
+  def 'Operations beyond the queue capacity are rejected without blocking (virtual threads: #virtualThreads)'() {
+    given:
+    def release = new CountDownLatch(1)
+    def blocking = [
+        find: { String id ->
+          release.await(5, TimeUnit.SECONDS)
+          return null
+        }
+    ] as MultipartFileStorage
+    def boundedStorage = new TaskExecutorAsyncMultipartFileStorage()
+    boundedStorage.multipartFileStorage = blocking
+    boundedStorage.poolSize = 1
+    boundedStorage.queueCapacity = 1
+    boundedStorage.virtualThreads = virtualThreads
+    boundedStorage.afterPropertiesSet()
+    def futures = (1..2).collect { boundedStorage.find("file-$it".toString()) }
+
+    when:
+    boundedStorage.find('file-3')
+    then:
+    thrown(TaskRejectedException)
+    release.count == 1
+
+    cleanup:
+    release.countDown()
+    futures.each { it.get(5, TimeUnit.SECONDS) }
+    boundedStorage.destroy()
+
+    where:
+    virtualThreads << [false, true]
+  }
+
+  def 'The asynchronous storage configuration provides asynchronous storage'() {
+    expect:
+    configuredStorage instanceof TaskExecutorAsyncMultipartFileStorage
+  }
+
+  TaskExecutorAsyncMultipartFileStorage createAsyncStorage(MultipartFileStorage storage, boolean virtualThreads) {
+    def asyncStorage = new TaskExecutorAsyncMultipartFileStorage()
+    asyncStorage.multipartFileStorage = storage
+    asyncStorage.poolSize = 4
+    asyncStorage.virtualThreads = virtualThreads
+    asyncStorage.afterPropertiesSet()
+    return asyncStorage
+  }
+}
@@ -0,0 +1,160 @@
+package nl.runnable.spring.fileupload
+
+import nl.runnable.spring.fileupload.impl.BucketedMultipartFileStorage
+import nl.runnable.spring.fileupload.impl.FileSystemMultipartFileStorage
+import nl.runnable.spring.fileupload.impl.InMemoryMultipartFileStorage
+import nl.runnable.spring.fileupload.impl.JdbcMultipartFileStorage
+import org.springframework.beans.factory.annotation.Autowired
+import org.springframework.beans.factory.annotation.Qualifier
+import org.springframework.jdbc.datasource.SingleConnectionDataSource
+import org.springframework.mock.web.MockMultipartFile
+import org.springframework.test.context.ContextConfiguration
+import org.springframework.util.FileSystemUtils
+import org.springframework.web.multipart.MultipartFile
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import javax.sql.DataSource
+
+/**
+ * @author Laurens Fridael
+ */
+@ContextConfiguration(classes = [TestConfig])
+class BatchOperationsSpec extends Specification {
+
+  @Autowired
+  @Qualifier("spring-file-upload-storage")
+  DataSource dataSource
+
+  MultipartFileStorage storage
+
+  File directory
+
+  SingleConnectionDataSource bucketDataSource
+
+  def cleanup() {
+    storage?.deleteAll()
+    if (directory) {
+      FileSystemUtils.deleteRecursively(directory)
+    }
+    bucketDataSource?.destroy()
+  }
+
+  @Unroll
+  def 'Files are saved, given a time-to-live and deleted in batches using #layout storage'() {
+    given:
+    storage = createStorage(layout)
+    def files = (0..<250).collect { createFile(it) }
+
+    when:
+    def ids = storage.saveAll(files, 60, 'batch', 'metadata')
+    then:
+    ids.size() == 250
+    ids.unique(false).size() == 250
+    storage.count() == 250
+    [0, 99, 100, 249].every {
+      def stored = storage.find(ids[it])
+      stored.bytes == files[it].bytes && stored.originalFilename == "file-${it}.txt" && stored.context == 'batch' &&
+          stored.metadata == 'metadata' && stored.contentHash
+    }
+
+    when:
+    def updated = storage.setTimeToLive(ids.subList(0, 150) + ids[0] + 'unknown', 3600)
+    then:
+    updated == 150
+    storage.find(ids[149]).expiresAt.time - storage.find(ids[149]).createdAt.time >= 3600 * 1000L
+    storage.find(ids[150]).expiresAt.time - storage.find(ids[150]).createdAt.time <= 60 * 1000L
+    storage.find(ids[0]).bytes == files[0].bytes
+
+    when:
+    def deleted = storage.delete(ids.subList(0, 200) + 'unknown')
+    then:
+    deleted == 200
+    storage.count() == 50
+    storage.find(ids[0]) == null
+    storage.find(ids[199]) == null
+    storage.find(ids[200]).bytes == files[200].bytes
+
+    where:
+    layout << ['plain', 'deduplicated', 'chunked', 'compressed', 'file system', 'bucketed', 'in-memory']
+  }
+
+  @Unroll
+  def 'No files are saved if saving one of the files fails using #layout storage'() {
+    given:
+    storage = createStorage(layout)
+    def files = (0..<20).collect { createFile(it) } + unreadableFile() + createFile(21)
+
+    when:
+    storage.saveAll(files, 60, 'batch', null)
+    then:
+    thrown(RuntimeException)
+    storage.count() == 0
+    storage.findByContext('batch').empty
+
+    where:
+    layout << ['plain', 'deduplicated', 'chunked', 'compressed', 'file system', 'bucketed', 'in-memory']
+  }
+
+  def 'Empty batches are no-ops'() {
+    given:
+    storage = createStorage('plain')
+
+    expect:
+    storage.saveAll([], 60, null, null).empty
+    storage.setTimeToLive([], 60) == 0
+    storage.delete([]) == 0
+  }
+
+  MultipartFileStorage createStorage(String layout) {
+    switch (layout) {
+      case 'in-memory':
+        def storage = new InMemoryMultipartFileStorage()
+        storage.afterPropertiesSet()
+        return storage
+      case 'file system':
+        directory = File.createTempFile('spring-file-upload-storage', '')
+        directory.delete()
+        def storage = new FileSystemMultipartFileStorage()
+        storage.dataSource = dataSource
+        storage.directory = directory.path
+        storage.afterPropertiesSet()
+        return storage
+      case 'bucketed':
+        bucketDataSource = new SingleConnectionDataSource("jdbc:h2:mem:batch-${UUID.randomUUID()}", 'sa', '', true)
+        def storage = new BucketedMultipartFileStorage()
+        storage.dataSource = bucketDataSource
+        storage.afterPropertiesSet()
+        return storage
+      default:
+        def storage = new JdbcMultipartFileStorage()
+        storage.dataSource = dataSource
+        storage.deduplicate = layout == 'deduplicated'
+        storage.chunkSize = layout == 'chunked' ? 16 : 0
+        storage.compress = layout == 'compressed'
+        storage.compressionThreshold = 0
+        storage.afterPropertiesSet()
+        storage.deleteAll()
+        return storage
+    }
+  }
+
+  static MultipartFile createFile(int index) {
+    new MockMultipartFile('file', "file-${index}.txt", 'text/plain', "Content of file ${index}\n".multiply(3).bytes)
+  }
+
+  static MultipartFile unreadableFile() {
+    new MockMultipartFile('file', 'unreadable.txt', 'text/plain', 'unreadable'.bytes) {
+
+      @Override
+      InputStream getInputStream() throws IOException {
+        throw new IOException('Unreadable')
+      }
+
+      @Override
+      byte[] getBytes() throws IOException {
+        throw new IOException('Unreadable')
+      }
+    }
+  }
+}
@@ -0,0 +1,153 @@
+package nl.runnable.spring.fileupload
+
+import nl.runnable.spring.fileupload.impl.JdbcBlobInputStream
+import nl.runnable.spring.fileupload.util.ResourceMultipartFile
+import org.springframework.beans.factory.annotation.Autowired
+import org.springframework.core.io.InputStreamResource
+import org.springframework.jdbc.core.JdbcTemplate
+import org.springframework.test.context.ContextConfiguration
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import javax.sql.DataSource
+import java.sql.Connection
+import java.sql.PreparedStatement
+import java.sql.ResultSet
+import java.sql.ResultSetMetaData
+
+/**
+ * @author Laurens Fridael
+ */
+@ContextConfiguration(classes = [TestConfig])
+class BlobStreamingSpec extends Specification {
+
+  static final int MEGABYTE = 1024 * 1024
+
+  @Autowired
+  MultipartFileStorage storage
+
+  @Unroll
+  def 'Reading a #megabytes MB file keeps heap usage flat'() {
+    given:
+    long size = megabytes * MEGABYTE
+    def id = storage.save(generatedFile(size), MultipartFileStorage.TTL_30_MINUTES, null, null)
+    def file = storage.find(id)
+    long baseline = usedHeap()
+
+    when:
+    def input = file.inputStream
+    def buffer = new byte[8192]
+    long read = 0
+    long retained = -1
+    int count
+    while ((count = input.read(buffer)) != -1) {
+      read += count
+      if (retained < 0 && read >= size / 2) {
+        // Measured halfway through, while the stream and its connection are still open.
+        retained = usedHeap() - baseline
+      }
+    }
+    input.close()
+    then:
+    read == size
+    retained < 4 * MEGABYTE
+
+    cleanup:
+    storage.delete(id)
+
+    where:
+    megabytes << [8, 32]
+  }
+
+  def 'Reading a file that no longer exists fails'() {
+    given:
+    def id = storage.save(generatedFile(16), MultipartFileStorage.TTL_30_MINUTES, null, null)
+    def file = storage.find(id)
+    storage.delete(id)
+
+    when:
+    file.inputStream
+    then:
+    thrown(FileNotFoundException)
+  }
+
+  def 'A driver failure while skipping releases the connection'() {
+    given:
+    def connection = Mock(Connection)
+    def statement = Stub(PreparedStatement)
+    def resultSet = Stub(ResultSet)
+    def dataSource = Stub(DataSource) {
+      getConnection() >> connection
+    }
+    connection.prepareStatement(_) >> statement
+    statement.executeQuery() >> resultSet
+    resultSet.next() >> true
+    resultSet.getMetaData() >> Stub(ResultSetMetaData) {
+      getColumnCount() >> 1
+    }
+    resultSet.getBinaryStream(1) >> new InputStream() {
+
+      @Override
+      int read() {
+        return 0
+      }
+
+      @Override
+      long skip(long n) {
+        throw new IllegalStateException('Driver failure')
+      }
+    }
+    def input = JdbcBlobInputStream.open(new JdbcTemplate(dataSource), 'SELECT data FROM sfus_file')
+
+    when:
+    input.skip(10)
+    then:
+    thrown(IllegalStateException)
+    1 * connection.close()
+  }
+
+  static ResourceMultipartFile generatedFile(long size) {
+    def resource = new InputStreamResource(new GeneratedInputStream(size))
+    return new ResourceMultipartFile(resource, 'file', 'application/octet-stream', size)
+  }
+
+  static long usedHeap() {
+    3.times {
+      System.gc()
+      sleep(50)
+    }
+    def runtime = Runtime.runtime
+    return runtime.totalMemory() - runtime.freeMemory()
+  }
+
+  /**
+   * Produces a given number of bytes without holding them in memory.
+   */
+  static class GeneratedInputStream extends InputStream {
+
+    final long size
+
+    long position = 0
+
+    GeneratedInputStream(long size) {
+      this.size = size
+    }
+
+    @Override
+    int read() {
+      return position < size ? (int) (position++ % 251) : -1
+    }
+
+    @Override
+    int read(byte[] b, int off, int len) {
+      if (position >= size) {
+        return -1
+      }
+      int count = (int) Math.min(len, size - position)
+      for (int i = 0; i < count; i++) {
+        b[off + i] = (byte) (position++ % 251)
+      }
+      return count
+    }
+  }
+}
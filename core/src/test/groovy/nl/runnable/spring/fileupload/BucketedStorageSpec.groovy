@@ -0,0 +1,149 @@
+package nl.runnable.spring.fileupload
+
+import nl.runnable.spring.fileupload.impl.BucketedMultipartFileStorage
+import org.springframework.jdbc.core.JdbcTemplate
+import org.springframework.jdbc.datasource.SingleConnectionDataSource
+import org.springframework.mock.web.MockMultipartFile
+import spock.lang.Specification
+
+/**
+ * @author Laurens Fridael
+ */
+class BucketedStorageSpec extends Specification {
+
+  SingleConnectionDataSource dataSource
+
+  JdbcTemplate jdbc
+
+  BucketedMultipartFileStorage storage
+
+  def file = new MockMultipartFile('file', 'logo.png', 'image/png', [1, 2, 3, 4, 5, 6] as byte[])
+
+  def setup() {
+    dataSource = new SingleConnectionDataSource("jdbc:h2:mem:buckets-${UUID.randomUUID()}", 'sa', '', true)
+    jdbc = new JdbcTemplate(dataSource)
+    storage = new BucketedMultipartFileStorage()
+    storage.dataSource = dataSource
+    storage.bucketWidth = 60
+    storage.afterPropertiesSet()
+  }
+
+  def cleanup() {
+    dataSource.destroy()
+  }
+
+  def 'Content is stored in the bucket covering the expiration date'() {
+    when:
+    def id = storage.save(file, MultipartFileStorage.TTL_30_MINUTES, 'context', 'metadata')
+    def stored = storage.find(id)
+    then:
+    bucketOf(id) == expectedBucket(stored.expiresAt)
+    contentRows(bucketOf(id)) == 1
+    jdbc.queryForObject('SELECT data FROM sfus_file WHERE id = ?', byte[], id) == null
+    stored.bytes == [1, 2, 3, 4, 5, 6] as byte[]
+    stored.getInputStream(2, 3).bytes == [3, 4, 5] as byte[]
+    stored.contentHash
+  }
+
+  def "Extending a file's time-to-live moves its content to a later bucket"() {
+    given:
+    def id = storage.save(file, 60, null, null)
+    def original = bucketOf(id)
+
+    when:
+    def expiresAt = storage.setTimeToLive(id, 3600)
+    then:
+    bucketOf(id) == expectedBucket(expiresAt)
+    bucketOf(id) > original
+    contentRows(original) == 0
+    contentRows(bucketOf(id)) == 1
+    storage.find(id).bytes == [1, 2, 3, 4, 5, 6] as byte[]
+
+    when:
+    def moved = bucketOf(id)
+    storage.setTimeToLive(id, 60)
+    then:
+    bucketOf(id) == moved
+    storage.find(id).expiresAt.time < (moved + 1) * 60 * 1000L
+  }
+
+  def "Extending a context's time-to-live moves the content of all its files"() {
+    given:
+    def ids = (1..3).collect { storage.save(file, 60, 'context', null) }
+    def other = storage.save(file, 60, 'other', null)
+
+    when:
+    def count = storage.setTimeToLiveByContext('context', 3600)
+    then:
+    count == 3
+    ids.every { bucketOf(it) == expectedBucket(storage.find(it).expiresAt) }
+    contentRows(bucketOf(ids[0])) == 3
+    contentRows(bucketOf(other)) == 1
+    ids.every { storage.find(it).bytes == [1, 2, 3, 4, 5, 6] as byte[] }
+  }
+
+  def 'Deleting files deletes their content'() {
+    given:
+    def first = storage.save(file, 60, 'context', null)
+    def second = storage.save(file, 60, 'context', null)
+    def third = storage.save(file, 60, null, null)
+
+    when:
+    storage.delete(first)
+    storage.deleteByContext('context')
+    then:
+    contentRows(bucketOf(third)) == 1
+    storage.count() == 1
+  }
+
+  def 'Deleting expired files drops buckets whose period has passed'() {
+    given:
+    storage.bucketWidth = 1
+    def expired = (1..3).collect { storage.save(file, 0, null, null) }
+    def live = storage.save(file, MultipartFileStorage.TTL_30_MINUTES, null, null)
+    def bucket = bucketOf(expired[0])
+    sleep(1100)
+
+    when:
+    def count = storage.deleteExpired()
+    then:
+    count == 3
+    !bucketTables().contains("SFUS_BUCKET_${bucket}".toString())
+    bucketTables().contains("SFUS_BUCKET_${bucketOf(live)}".toString())
+    storage.find(live).bytes == [1, 2, 3, 4, 5, 6] as byte[]
+  }
+
+  def 'Buckets still referred to by expired files are kept until those files are deleted'() {
+    given:
+    storage.bucketWidth = 1
+    (1..3).collect { storage.save(file, 0, null, null) }
+    sleep(1100)
+
+    when:
+    storage.deleteExpired(2)
+    then:
+    bucketTables().size() == 1
+
+    when:
+    storage.deleteExpired(2)
+    then:
+    bucketTables().empty
+  }
+
+  long bucketOf(String id) {
+    return jdbc.queryForObject('SELECT bucket FROM sfus_file WHERE id = ?', Long, id)
+  }
+
+  long expectedBucket(Date expiresAt) {
+    return expiresAt.time.intdiv(60 * 1000L)
+  }
+
+  int contentRows(long bucket) {
+    return jdbc.queryForObject("SELECT COUNT(*) FROM sfus_bucket_${bucket}".toString(), Integer)
+  }
+
+  List<String> bucketTables() {
+    return jdbc.queryForList("SELECT table_name FROM information_schema.tables WHERE table_name LIKE 'SFUS_BUCKET_%'",
+        String)
+  }
+}
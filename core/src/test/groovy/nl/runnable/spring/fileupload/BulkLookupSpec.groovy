@@ -0,0 +1,113 @@
+package nl.runnable.spring.fileupload
+
+import nl.runnable.spring.fileupload.impl.InMemoryMultipartFileStorage
+import nl.runnable.spring.fileupload.impl.JdbcMultipartFileStorage
+import org.springframework.beans.factory.annotation.Autowired
+import org.springframework.beans.factory.annotation.Qualifier
+import org.springframework.mock.web.MockMultipartFile
+import org.springframework.test.context.ContextConfiguration
+import org.springframework.web.multipart.MultipartFile
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import javax.sql.DataSource
+
+/**
+ * @author Laurens Fridael
+ */
+@ContextConfiguration(classes = [TestConfig])
+class BulkLookupSpec extends Specification {
+
+  @Autowired
+  @Qualifier("spring-file-upload-storage")
+  DataSource dataSource
+
+  MultipartFileStorage storage
+
+  def cleanup() {
+    storage?.deleteAll()
+  }
+
+  @Unroll
+  def 'Files are looked up by ID in bulk using #layout storage'() {
+    given:
+    storage = createStorage(layout)
+    def ids = storage.saveAll((0..<1200).collect { createFile(it) }, 60, 'bulk', 'metadata')
+    def requested = ids.reverse() + 'unknown' + ids[0]
+
+    when:
+    def files = storage.findAll(requested)
+    then:
+    files.size() == 1200
+    files.keySet() as List == ids.reverse()
+    files[ids[0]].bytes == createFile(0).bytes
+    files[ids[1199]].originalFilename == 'file-1199.txt'
+
+    when:
+    def infos = storage.findInfo(requested)
+    then:
+    infos.keySet() as List == ids.reverse()
+    infos.values().every { it.context == 'bulk' && it.metadata == 'metadata' && it.contentHash }
+    infos[ids[600]].originalFilename == 'file-600.txt'
+    infos[ids[600]].size == createFile(600).size
+    infos[ids[600]].expiresAt == files[ids[600]].expiresAt
+    infos[ids[600]] == MultipartFileInfo.of(files[ids[600]])
+
+    expect:
+    storage.findAll([]).isEmpty()
+    storage.findInfo(['unknown']).isEmpty()
+
+    where:
+    layout << ['jdbc', 'in-memory']
+  }
+
+  @Unroll
+  def 'The attributes of files are looked up by context using #layout storage'() {
+    given:
+    storage = createStorage(layout)
+    storage.saveAll((0..<3).collect { createFile(it) }, 60, 'context', null)
+    storage.save(createFile(3), 60, 'other', null)
+
+    when:
+    def infos = storage.findInfoByContext('context')
+    then:
+    infos*.id == storage.findByContext('context')*.id
+    infos*.originalFilename.sort() == ['file-0.txt', 'file-1.txt', 'file-2.txt']
+    storage.findInfoByContext('unknown').empty
+
+    where:
+    layout << ['jdbc', 'in-memory']
+  }
+
+  def 'File attributes can be serialized'() {
+    given:
+    storage = createStorage('jdbc')
+    def id = storage.save(createFile(0), 60, 'context', 'metadata')
+    def info = storage.findInfo([id])[id]
+
+    when:
+    def buffer = new ByteArrayOutputStream()
+    new ObjectOutputStream(buffer).writeObject(info)
+    def copy = new ObjectInputStream(new ByteArrayInputStream(buffer.toByteArray())).readObject()
+    then:
+    copy == info
+    copy.createdAt == info.createdAt
+  }
+
+  MultipartFileStorage createStorage(String layout) {
+    if (layout == 'in-memory') {
+      def storage = new InMemoryMultipartFileStorage()
+      storage.afterPropertiesSet()
+      return storage
+    }
+    def storage = new JdbcMultipartFileStorage()
+    storage.dataSource = dataSource
+    storage.afterPropertiesSet()
+    storage.deleteAll()
+    return storage
+  }
+
+  static MultipartFile createFile(int index) {
+    new MockMultipartFile('file', "file-${index}.txt", 'text/plain', "Content of file ${index}".bytes)
+  }
+}
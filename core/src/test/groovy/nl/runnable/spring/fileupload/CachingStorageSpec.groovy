@@ -0,0 +1,181 @@
+package nl.runnable.spring.fileupload
+
+import nl.runnable.spring.fileupload.impl.CachingMultipartFileStorage
+import org.springframework.beans.factory.annotation.Autowired
+import org.springframework.beans.factory.annotation.Qualifier
+import org.springframework.mock.web.MockMultipartFile
+import org.springframework.test.context.ContextConfiguration
+import spock.lang.Specification
+
+import javax.sql.DataSource
+
+/**
+ * @author Laurens Fridael
+ */
+@ContextConfiguration(classes = [TestConfig])
+class CachingStorageSpec extends Specification {
+
+  @Autowired
+  MultipartFileStorage storage
+
+  @Autowired
+  @Qualifier("spring-file-upload-storage")
+  DataSource dataSource
+
+  CountingStorage counting
+
+  CachingMultipartFileStorage cache
+
+  def file = new MockMultipartFile('file', 'logo.png', 'image/png', [1, 2, 3, 4] as byte[])
+
+  def setup() {
+    counting = new CountingStorage(storage: storage)
+    cache = new CachingMultipartFileStorage(counting)
+  }
+
+  def cleanup() {
+    storage.deleteAll()
+  }
+
+  def 'Repeated lookups are served from the cache'() {
+    given:
+    def id = cache.save(file, MultipartFileStorage.TTL_30_MINUTES, 'context', null)
+
+    when:
+    3.times {
+      cache.find(id)
+      cache.findByContext('context')
+    }
+    then:
+    counting.finds == 1
+    counting.contextFinds == 1
+    cache.find(id).bytes == [1, 2, 3, 4] as byte[]
+  }
+
+  def 'Modifications invalidate cached files and contexts'() {
+    given:
+    def id = cache.save(file, MultipartFileStorage.TTL_30_MINUTES, 'context', 'before')
+    cache.find(id)
+    cache.findByContext('context')
+
+    when:
+    cache.setMetadata(id, 'after')
+    then:
+    cache.find(id).metadata == 'after'
+    cache.findByContext('context')*.metadata == ['after']
+
+    when:
+    def other = cache.save(file, MultipartFileStorage.TTL_30_MINUTES, 'context', null)
+    then:
+    cache.findByContext('context')*.id == [id, other]
+
+    when:
+    cache.delete(id)
+    then:
+    cache.find(id) == null
+    cache.findByContext('context')*.id == [other]
+
+    when:
+    cache.deleteByContext('context')
+    then:
+    cache.find(other) == null
+    cache.findByContext('context').empty
+  }
+
+  def 'Files are not cached beyond their expiration date'() {
+    given:
+    def id = cache.save(file, MultipartFileStorage.TTL_30_MINUTES, null, null)
+    cache.setTimeToLive(id, 0)
+
+    when:
+    cache.find(id)
+    cache.find(id)
+    then:
+    counting.finds == 2
+  }
+
+  def 'The cache is bounded by the maximum number of entries'() {
+    given:
+    cache.maxEntries = 2
+    def ids = (1..3).collect { cache.save(file, MultipartFileStorage.TTL_30_MINUTES, null, null) }
+
+    when:
+    ids.each { cache.find(it) }
+    cache.find(ids[0])
+    then:
+    counting.finds == 4
+  }
+
+  def 'Modifications made by other instances are applied through the change log'() {
+    given:
+    def otherCache = new CachingMultipartFileStorage(storage)
+    [cache, otherCache].each {
+      it.changeLogDataSource = dataSource
+      it.pollInterval = 0
+    }
+    def id = cache.save(file, MultipartFileStorage.TTL_30_MINUTES, 'context', 'before')
+    cache.find(id)
+    cache.findByContext('context')
+
+    when:
+    otherCache.setMetadata(id, 'after')
+    then:
+    cache.find(id).metadata == 'after'
+    cache.findByContext('context')*.metadata == ['after']
+
+    when:
+    otherCache.deleteByContext('context')
+    then:
+    cache.findByContext('context').empty
+  }
+
+  def 'Bulk lookups only load files that are not cached'() {
+    given:
+    def ids = (1..5).collect { cache.save(file, MultipartFileStorage.TTL_30_MINUTES, null, null) }
+    cache.find(ids[1])
+    cache.find(ids[3])
+
+    when:
+    def found = cache.findAll(ids + 'unknown')
+    then:
+    found.keySet() as List == ids
+    counting.bulkFinds == [[ids[0], ids[2], ids[4], 'unknown']]
+
+    when:
+    def infos = cache.findInfo(ids.reverse())
+    then:
+    infos.keySet() as List == ids.reverse()
+    infos[ids[0]].originalFilename == 'logo.png'
+    counting.bulkFinds.size() == 1
+  }
+
+  static class CountingStorage implements MultipartFileStorage {
+
+    @Delegate
+    MultipartFileStorage storage
+
+    int finds
+
+    int contextFinds
+
+    List<List<String>> bulkFinds = []
+
+    @Override
+    StoredMultipartFile find(String id) {
+      finds++
+      return storage.find(id)
+    }
+
+    @Override
+    List<StoredMultipartFile> findByContext(String context) {
+      contextFinds++
+      return storage.findByContext(context)
+    }
+
+    @Override
+    Map<String, StoredMultipartFile> findAll(Collection<String> ids) {
+      bulkFinds << new ArrayList<String>(ids)
+      return storage.findAll(ids)
+    }
+  }
+}
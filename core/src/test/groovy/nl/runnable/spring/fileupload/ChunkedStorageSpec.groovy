@@ -0,0 +1,224 @@
+package nl.runnable.spring.fileupload
+
+import nl.runnable.spring.fileupload.impl.JdbcMultipartFileStorage
+import org.springframework.beans.factory.annotation.Autowired
+import org.springframework.beans.factory.annotation.Qualifier
+import org.springframework.core.task.AsyncTaskExecutor
+import org.springframework.jdbc.core.JdbcTemplate
+import org.springframework.mock.web.MockMultipartFile
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor
+import org.springframework.test.context.ContextConfiguration
+import spock.lang.Shared
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import javax.sql.DataSource
+import java.util.concurrent.Callable
+import java.util.concurrent.Future
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * @author Laurens Fridael
+ */
+@ContextConfiguration(classes = [TestConfig])
+class ChunkedStorageSpec extends Specification {
+
+  @Shared
+  ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor()
+
+  @Autowired
+  @Qualifier("spring-file-upload-storage")
+  DataSource dataSource
+
+  JdbcTemplate jdbc
+
+  byte[] content = new byte[10 * 1000]
+
+  def setupSpec() {
+    executor.corePoolSize = 4
+    executor.afterPropertiesSet()
+  }
+
+  def cleanupSpec() {
+    executor.shutdown()
+  }
+
+  def setup() {
+    new Random(42).nextBytes(content)
+    jdbc = new JdbcTemplate(dataSource)
+  }
+
+  @Unroll
+  def 'Files are stored in chunks and read back identically #mode'() {
+    given:
+    def storage = createStorage(parallel)
+
+    when:
+    def id = storage.save(new MockMultipartFile('file', content), MultipartFileStorage.TTL_30_MINUTES, null, null)
+    def file = storage.find(id)
+    then:
+    chunkCount(id) == 10
+    file.size == content.length
+    file.bytes == content
+    file.contentHash
+
+    cleanup:
+    storage.deleteAll()
+
+    where:
+    parallel << [false, true]
+    mode = parallel ? 'in parallel' : 'sequentially'
+  }
+
+  @Unroll
+  def 'Ranged reads spanning chunk boundaries yield the requested bytes #mode'() {
+    given:
+    def storage = createStorage(parallel)
+    def id = storage.save(new MockMultipartFile('file', content), MultipartFileStorage.TTL_30_MINUTES, null, null)
+    def file = storage.find(id)
+
+    expect:
+    file.getInputStream(1020, 3000).bytes == content[1020..<4020] as byte[]
+    file.getInputStream(9990, 100).bytes == content[9990..<10000] as byte[]
+    file.getInputStream(0, 1024).bytes == content[0..<1024] as byte[]
+
+    cleanup:
+    storage.deleteAll()
+
+    where:
+    parallel << [false, true]
+    mode = parallel ? 'in parallel' : 'sequentially'
+  }
+
+  def 'Deleting files deletes their chunks'() {
+    given:
+    def storage = createStorage(false)
+    def first = storage.save(new MockMultipartFile('file', content), MultipartFileStorage.TTL_30_MINUTES, 'ctx', null)
+    def second = storage.save(new MockMultipartFile('file', content), MultipartFileStorage.TTL_30_MINUTES, 'ctx', null)
+    def third = storage.save(new MockMultipartFile('file', content), MultipartFileStorage.TTL_30_MINUTES, null, null)
+
+    when:
+    storage.delete(first)
+    then:
+    chunkCount(first) == 0
+    chunkCount(second) == 10
+
+    when:
+    storage.deleteByContext('ctx')
+    storage.setTimeToLive(third, 0)
+    storage.deleteExpired()
+    then:
+    jdbc.queryForObject('SELECT COUNT(*) FROM sfus_chunk', Integer) == 0
+    storage.count() == 0
+  }
+
+  def 'Deleting expired files in batches deletes their chunks and keeps files that are no longer expired'() {
+    given:
+    def storage = createStorage(false)
+    def ids = (1..3).collect {
+      storage.save(new MockMultipartFile('file', content), MultipartFileStorage.TTL_30_MINUTES, null, null)
+    }
+    ids.each { storage.setTimeToLive(it, 0) }
+
+    when:
+    def result = storage.deleteExpired(2)
+    then:
+    result.count == 2
+    result.size == 2 * content.length
+    chunkCount(ids[0]) == 0
+    chunkCount(ids[1]) == 0
+    chunkCount(ids[2]) == 10
+
+    when:
+    storage.setTimeToLive(ids[2], 60)
+    then:
+    storage.deleteExpired(2).count == 0
+    chunkCount(ids[2]) == 10
+
+    cleanup:
+    storage.deleteAll()
+  }
+
+  def 'Empty files are stored without chunks'() {
+    given:
+    def storage = createStorage(false)
+
+    when:
+    def id = storage.save(new MockMultipartFile('file', new byte[0]), MultipartFileStorage.TTL_30_MINUTES, null, null)
+    then:
+    chunkCount(id) == 0
+    storage.find(id).bytes.length == 0
+
+    cleanup:
+    storage.deleteAll()
+  }
+
+  def 'A failed chunk leaves no chunks behind, including those still being written'() {
+    given:
+    def storage = createStorage(true)
+    storage.chunkTaskExecutor = new FailingChunkExecutor(executor)
+
+    when:
+    storage.save(new MockMultipartFile('file', content), 'failed', MultipartFileStorage.TTL_30_MINUTES, null, null)
+    then:
+    thrown(IllegalStateException)
+
+    when:
+    // Gives a chunk that was still being written time to be inserted, had the save not waited for it.
+    sleep(500)
+    then:
+    chunkCount('failed') == 0
+    storage.find('failed') == null
+  }
+
+  JdbcMultipartFileStorage createStorage(boolean parallel) {
+    def storage = new JdbcMultipartFileStorage()
+    storage.dataSource = dataSource
+    storage.chunkSize = 1000
+    if (parallel) {
+      storage.chunkTaskExecutor = executor
+      storage.chunkParallelism = 3
+    }
+    storage.afterPropertiesSet()
+    return storage
+  }
+
+  int chunkCount(String id) {
+    jdbc.queryForObject('SELECT COUNT(*) FROM sfus_chunk WHERE file_id = ?', Integer, id)
+  }
+
+  /**
+   * Fails the second chunk and slows down the third, which ignores interruption as a driver writing to the database
+   * would.
+   */
+  static class FailingChunkExecutor implements AsyncTaskExecutor {
+
+    @Delegate
+    final AsyncTaskExecutor executor
+
+    final AtomicInteger submitted = new AtomicInteger()
+
+    FailingChunkExecutor(AsyncTaskExecutor executor) {
+      this.executor = executor
+    }
+
+    @Override
+    Future<?> submit(Runnable task) {
+      int seq = submitted.getAndIncrement()
+      return executor.submit({
+        if (seq == 1) {
+          throw new IllegalStateException('Simulated chunk failure.')
+        }
+        if (seq == 2) {
+          sleep(200)
+        }
+        task.run()
+      } as Runnable)
+    }
+
+    @Override
+    def <T> Future<T> submit(Callable<T> task) {
+      return executor.submit(task)
+    }
+  }
+}
@@ -1,5 +1,6 @@
 package nl.runnable.spring.fileupload
 
+import nl.runnable.spring.fileupload.impl.InMemoryMultipartFileStorage
 import org.springframework.beans.factory.annotation.Autowired
 import org.springframework.mock.web.MockMultipartFile
 import org.springframework.test.context.ContextConfiguration
@@ -40,4 +41,81 @@ class CleanupExpiredFilesJobSpec extends Specification {
     !storage.find(fileId)
   }
 
+  def 'Deletes expired files in batches and reports the files and bytes reclaimed'() {
+    setup:
+    def storage = createInMemoryStorage()
+    10.times { storage.save(new MockMultipartFile('file', new byte[100]), 0, null, null) }
+    storage.save(new MockMultipartFile('file', new byte[100]), MultipartFileStorage.TTL_30_MINUTES, null, null)
+    def job = createJob(storage, 3, 0, 30)
+
+    when:
+    def result = job.cleanup()
+    then:
+    result == new DeletionResult(10, 1000)
+    job.lastResult == result
+    job.totalResult == result
+    storage.count() == 1
+  }
+
+  def 'Defers the remaining expired files to the next run once the time budget is spent'() {
+    setup:
+    def storage = createInMemoryStorage()
+    10.times { storage.save(new MockMultipartFile('file', new byte[100]), 0, null, null) }
+    def job = createJob(storage, 3, 1500, 1)
+
+    when:
+    def result = job.cleanup()
+    then:
+    result.count == 3
+    storage.count() == 7
+
+    when:
+    job.cleanup()
+    then:
+    storage.count() == 4
+    job.totalResult == new DeletionResult(6, 600)
+  }
+
+  def 'Only the instance holding the clean-up lease deletes expired files'() {
+    setup:
+    def storage = createInMemoryStorage()
+    3.times { storage.save(new MockMultipartFile('file', new byte[100]), 0, null, null) }
+    def job = createJob(storage, 10, 0, 30)
+    job.clusterLock = [tryAcquire: { String name, int duration -> false }] as ClusterLock
+
+    when:
+    def result = job.cleanup()
+    then:
+    result == DeletionResult.NONE
+    storage.count() == 3
+  }
+
+  def 'Cleans up regardless if the lease cannot be checked'() {
+    setup:
+    def storage = createInMemoryStorage()
+    3.times { storage.save(new MockMultipartFile('file', new byte[100]), 0, null, null) }
+    def job = createJob(storage, 10, 0, 30)
+    job.clusterLock = [tryAcquire: { String name, int duration -> throw new IllegalStateException() }] as ClusterLock
+
+    expect:
+    job.cleanup().count == 3
+  }
+
+  InMemoryMultipartFileStorage createInMemoryStorage() {
+    def storage = new InMemoryMultipartFileStorage()
+    storage.maxSize = 64 * 1024
+    storage.pageSize = 1024
+    storage.afterPropertiesSet()
+    return storage
+  }
+
+  CleanupExpiredFilesJob createJob(MultipartFileStorage storage, int batchSize, int batchPause, int timeBudget) {
+    def job = new CleanupExpiredFilesJob()
+    job.multipartFileStorage = storage
+    job.batchSize = batchSize
+    job.batchPause = batchPause
+    job.timeBudget = timeBudget
+    return job
+  }
+
 }
@@ -0,0 +1,72 @@
+package nl.runnable.spring.fileupload
+
+import nl.runnable.spring.fileupload.impl.JdbcClusterLock
+import org.springframework.beans.factory.annotation.Autowired
+import org.springframework.beans.factory.annotation.Qualifier
+import org.springframework.jdbc.core.JdbcTemplate
+import org.springframework.test.context.ContextConfiguration
+import spock.lang.Specification
+
+import javax.sql.DataSource
+
+/**
+ * @author Laurens Fridael
+ */
+@ContextConfiguration(classes = [TestConfig])
+class ClusterLockSpec extends Specification {
+
+  @Autowired
+  @Qualifier("spring-file-upload-storage")
+  DataSource dataSource
+
+  JdbcClusterLock first
+
+  JdbcClusterLock second
+
+  String name = "lease-${UUID.randomUUID()}"
+
+  def setup() {
+    first = new JdbcClusterLock()
+    first.dataSource = dataSource
+    second = new JdbcClusterLock()
+    second.dataSource = dataSource
+  }
+
+  def cleanup() {
+    new JdbcTemplate(dataSource).update('DELETE FROM sfus_lease WHERE name = ?', name)
+  }
+
+  def 'Only one instance holds a lease, and the holder can renew it'() {
+    expect:
+    first.tryAcquire(name, 60)
+    !second.tryAcquire(name, 60)
+    first.tryAcquire(name, 60)
+    !second.tryAcquire(name, 60)
+  }
+
+  def 'Another instance acquires the lease once the holder stops renewing it'() {
+    given:
+    first.tryAcquire(name, 1)
+
+    when:
+    sleep(1100)
+    then:
+    second.tryAcquire(name, 60)
+    !first.tryAcquire(name, 60)
+  }
+
+  def 'Another instance acquires the lease immediately once the holder releases it'() {
+    given:
+    first.tryAcquire(name, 60)
+
+    when:
+    second.release(name)
+    then:
+    !second.tryAcquire(name, 60)
+
+    when:
+    first.release(name)
+    then:
+    second.tryAcquire(name, 60)
+  }
+}
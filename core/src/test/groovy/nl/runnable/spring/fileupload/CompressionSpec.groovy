@@ -0,0 +1,113 @@
+package nl.runnable.spring.fileupload
+
+import nl.runnable.spring.fileupload.impl.JdbcMultipartFileStorage
+import org.springframework.beans.factory.annotation.Autowired
+import org.springframework.beans.factory.annotation.Qualifier
+import org.springframework.jdbc.core.JdbcTemplate
+import org.springframework.mock.web.MockMultipartFile
+import org.springframework.test.context.ContextConfiguration
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import javax.sql.DataSource
+import java.security.MessageDigest
+import java.util.zip.GZIPInputStream
+
+/**
+ * @author Laurens Fridael
+ */
+@ContextConfiguration(classes = [TestConfig])
+class CompressionSpec extends Specification {
+
+  @Autowired
+  @Qualifier("spring-file-upload-storage")
+  DataSource dataSource
+
+  JdbcMultipartFileStorage storage
+
+  JdbcTemplate jdbc
+
+  byte[] csv = (1..5000).collect { "$it,name-$it,${it * 31 % 97}\n" }.join('').bytes
+
+  def setup() {
+    storage = new JdbcMultipartFileStorage()
+    storage.dataSource = dataSource
+    storage.compress = true
+    storage.afterPropertiesSet()
+    jdbc = new JdbcTemplate(dataSource)
+    storage.deleteAll()
+  }
+
+  def cleanup() {
+    storage.deleteAll()
+  }
+
+  def 'Text content is compressed while it is written and decompressed while it is read'() {
+    when:
+    def id = storage.save(new MockMultipartFile('file', 'data.csv', 'text/csv', csv), 60, null, null)
+    def file = storage.find(id) as EncodedMultipartFile
+    then:
+    file.contentEncoding == 'gzip'
+    file.size == csv.length
+    file.encodedSize == storedSize(id)
+    file.encodedSize < csv.length / 2
+    file.bytes == csv
+    file.contentHash == sha256(csv)
+    new GZIPInputStream(file.encodedInputStream).bytes == csv
+  }
+
+  def 'Part of compressed content is read by decompressing up to the requested range'() {
+    when:
+    def id = storage.save(new MockMultipartFile('file', 'data.csv', 'text/csv', csv), 60, null, null)
+    then:
+    storage.find(id).getInputStream(10000, 500).bytes == Arrays.copyOfRange(csv, 10000, 10500)
+    storage.find(id).getInputStream(csv.length - 10, 500).bytes == Arrays.copyOfRange(csv, csv.length - 10, csv.length)
+  }
+
+  @Unroll
+  def 'Content of type #contentType is stored as-is'() {
+    when:
+    def id = storage.save(new MockMultipartFile('file', 'file', contentType, csv), 60, null, null)
+    def file = storage.find(id) as EncodedMultipartFile
+    then:
+    file.contentEncoding == null
+    file.encodedSize == csv.length
+    storedSize(id) == csv.length
+    file.bytes == csv
+
+    where:
+    contentType << ['image/jpeg', 'video/mp4', 'application/zip', 'application/x-gzip; charset=binary',
+                    'application/vnd.openxmlformats-officedocument.wordprocessingml.document']
+  }
+
+  def 'Files below the compression threshold are stored as-is'() {
+    when:
+    def id = storage.save(new MockMultipartFile('file', 'small.txt', 'text/plain', 'small'.bytes), 60, null, null)
+    then:
+    (storage.find(id) as EncodedMultipartFile).contentEncoding == null
+    storage.find(id).bytes == 'small'.bytes
+  }
+
+  def 'Empty and incompressible content survives compression'() {
+    given:
+    storage.compressionThreshold = 0
+    def random = new byte[100000]
+    new Random(42).nextBytes(random)
+
+    when:
+    def empty = storage.save(new MockMultipartFile('file', new byte[0]), 60, null, null)
+    def incompressible = storage.save(new MockMultipartFile('file', random), 60, null, null)
+    then:
+    (storage.find(empty) as EncodedMultipartFile).contentEncoding == 'gzip'
+    storage.find(empty).bytes.length == 0
+    storage.find(incompressible).bytes == random
+  }
+
+  long storedSize(String id) {
+    jdbc.queryForObject('SELECT LENGTH(data) FROM sfus_file WHERE id = ?', Long, id)
+  }
+
+  static String sha256(byte[] bytes) {
+    MessageDigest.getInstance('SHA-256').digest(bytes).encodeHex().toString()
+  }
+}
@@ -0,0 +1,147 @@
+package nl.runnable.spring.fileupload
+
+import nl.runnable.spring.fileupload.impl.ContentCachingMultipartFileStorage
+import nl.runnable.spring.fileupload.impl.InMemoryMultipartFileStorage
+import org.springframework.mock.web.MockMultipartFile
+import spock.lang.Specification
+
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * @author Laurens Fridael
+ */
+class ContentCachingStorageSpec extends Specification {
+
+  InMemoryMultipartFileStorage storage
+
+  ContentCachingMultipartFileStorage cache
+
+  def setup() {
+    storage = new InMemoryMultipartFileStorage()
+    storage.afterPropertiesSet()
+    cache = new ContentCachingMultipartFileStorage(storage)
+    cache.maxFileSize = 100
+    cache.maxSize = 250
+  }
+
+  MockMultipartFile file(int size, int seed = 0) {
+    def bytes = new byte[size]
+    new Random(seed).nextBytes(bytes)
+    return new MockMultipartFile('file', bytes)
+  }
+
+  def 'Small files are served from the cache'() {
+    given:
+    def upload = file(100)
+    def id = cache.save(upload, MultipartFileStorage.TTL_30_MINUTES, null, null)
+
+    when:
+    def first = cache.find(id).bytes
+    def second = cache.find(id).inputStream.bytes
+    def range = cache.find(id).getInputStream(10, 5).bytes
+    then:
+    first == upload.bytes
+    second == upload.bytes
+    range == upload.bytes[10..<15] as byte[]
+    cache.missCount == 1
+    cache.hitCount == 2
+    cache.loadCount == 1
+    cache.size == 100
+  }
+
+  def 'Files larger than the threshold are not cached'() {
+    given:
+    def id = cache.save(file(101), MultipartFileStorage.TTL_30_MINUTES, null, null)
+
+    when:
+    2.times { cache.find(id).bytes }
+    then:
+    cache.missCount == 0
+    cache.hitCount == 0
+    cache.size == 0
+  }
+
+  def 'Least recently used content is evicted to stay within the budget'() {
+    given:
+    def ids = (1..3).collect { cache.save(file(100, it), MultipartFileStorage.TTL_30_MINUTES, null, null) }
+
+    when:
+    ids.each { cache.find(it).bytes }
+    then:
+    cache.evictionCount == 1
+    cache.size == 200
+
+    when:
+    cache.find(ids[0]).bytes
+    then:
+    cache.loadCount == 4
+  }
+
+  def 'Deleting a file evicts its content'() {
+    given:
+    def id = cache.save(file(100), MultipartFileStorage.TTL_30_MINUTES, 'context', null)
+    cache.find(id).bytes
+
+    when:
+    cache.deleteByContext('context')
+    then:
+    cache.size == 0
+    cache.find(id) == null
+  }
+
+  def 'Concurrent requests for a cold file trigger a single read'() {
+    given:
+    def reads = new AtomicInteger()
+    def gate = new CountDownLatch(1)
+    def slowStorage = new SlowStorage(storage: storage, reads: reads, gate: gate)
+    cache = new ContentCachingMultipartFileStorage(slowStorage)
+    def upload = file(100)
+    def id = cache.save(upload, MultipartFileStorage.TTL_30_MINUTES, null, null)
+    def executor = Executors.newFixedThreadPool(50)
+    def ready = new CountDownLatch(50)
+
+    when:
+    def results = (1..50).collect {
+      executor.submit({
+        def stored = cache.find(id)
+        ready.countDown()
+        stored.bytes
+      } as java.util.concurrent.Callable)
+    }
+    ready.await(5, TimeUnit.SECONDS)
+    Thread.sleep(100)
+    gate.countDown()
+    then:
+    results.every { it.get(5, TimeUnit.SECONDS) == upload.bytes }
+    reads.get() == 1
+    cache.loadCount == 1
+
+    cleanup:
+    executor.shutdown()
+  }
+
+  static class SlowStorage implements MultipartFileStorage {
+
+    @Delegate
+    MultipartFileStorage storage
+
+    AtomicInteger reads
+
+    CountDownLatch gate
+
+    @Override
+    StoredMultipartFile find(String id) {
+      def file = storage.find(id)
+      return [getId: { file.id }, getSize: { file.size }, getContentHash: { file.contentHash },
+              getContext: { file.context }, getExpiresAt: { file.expiresAt },
+              getInputStream: {
+                reads.incrementAndGet()
+                gate.await()
+                file.inputStream
+              }] as StoredMultipartFile
+    }
+  }
+}
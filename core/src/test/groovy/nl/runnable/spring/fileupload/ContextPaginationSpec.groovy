@@ -0,0 +1,163 @@
+package nl.runnable.spring.fileupload
+
+import nl.runnable.spring.fileupload.impl.InMemoryMultipartFileStorage
+import nl.runnable.spring.fileupload.impl.JdbcMultipartFileStorage
+import nl.runnable.spring.fileupload.impl.PredefinedSessionMultipartFileStorage
+import org.springframework.beans.factory.annotation.Autowired
+import org.springframework.beans.factory.annotation.Qualifier
+import org.springframework.mock.web.MockMultipartFile
+import org.springframework.test.context.ContextConfiguration
+import org.springframework.web.multipart.MultipartFile
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import javax.sql.DataSource
+
+/**
+ * @author Laurens Fridael
+ */
+@ContextConfiguration(classes = [TestConfig])
+class ContextPaginationSpec extends Specification {
+
+  @Autowired
+  @Qualifier("spring-file-upload-storage")
+  DataSource dataSource
+
+  MultipartFileStorage storage
+
+  def cleanup() {
+    storage?.deleteAll()
+  }
+
+  @Unroll
+  def 'Walking a context page by page yields every file once, in order, using #layout storage'() {
+    given:
+    storage = createStorage(layout)
+    // Files saved in a batch share their creation time, so pages are also split between files created at once.
+    storage.saveAll((0..<450).collect { createFile(it) }, 60, 'import', null)
+    (450..<505).each { storage.save(createFile(it), 60, 'import', null) }
+    storage.save(createFile(999), 60, 'other', null)
+
+    when:
+    def pages = walk('import', 100)
+    then:
+    pages*.size() == [100, 100, 100, 100, 100, 5]
+    pages.flatten()*.id == storage.findByContext('import')*.id
+    pages.flatten()*.originalFilename.toSet().size() == 505
+
+    where:
+    layout << ['jdbc', 'in-memory']
+  }
+
+  @Unroll
+  def 'Pages continue after the previous page when files of earlier pages are deleted using #layout storage'() {
+    given:
+    storage = createStorage(layout)
+    (0..<30).each { storage.save(createFile(it), 60, 'import', null) }
+    def ids = storage.findByContext('import')*.id
+
+    when:
+    def visited = []
+    def page = storage.findByContext('import', null, 10)
+    while (page) {
+      visited.addAll(page*.id)
+      storage.delete(page*.id)
+      page = storage.findByContext('import', page.last(), 10)
+    }
+    then:
+    visited == ids
+    storage.findByContext('import').empty
+
+    where:
+    layout << ['jdbc', 'in-memory']
+  }
+
+  @Unroll
+  def 'Files of a context are processed one at a time using #layout storage'() {
+    given:
+    storage = createStorage(layout)
+    def contents = (0..<250).collectEntries {
+      [storage.save(createFile(it), 60, 'import', null), createFile(it).bytes]
+    }
+    def ids = storage.findByContext('import')*.id
+
+    when:
+    def visited = []
+    def count = storage.forEachByContext('import', { StoredMultipartFile file ->
+      assert file.bytes == contents[file.id]
+      visited << file.id
+    } as StoredMultipartFileCallback)
+    then:
+    count == 250
+    visited == ids
+    storage.forEachByContext('unknown', { assert false } as StoredMultipartFileCallback) == 0
+
+    where:
+    layout << ['jdbc', 'in-memory']
+  }
+
+  def 'An exception thrown by the callback stops the iteration'() {
+    given:
+    storage = createStorage('jdbc')
+    (0..<10).each { storage.save(createFile(it), 60, 'import', null) }
+    def visited = 0
+
+    when:
+    storage.forEachByContext('import', {
+      if (++visited == 3) {
+        throw new IllegalStateException('Stop')
+      }
+    } as StoredMultipartFileCallback)
+    then:
+    def e = thrown(IllegalStateException)
+    e.message == 'Stop'
+    visited == 3
+  }
+
+  def 'Session files are walked page by page and one at a time'() {
+    given:
+    storage = createStorage('jdbc')
+    def session = new PredefinedSessionMultipartFileStorage(storage, 'importer')
+    (0..<25).each { session.save(createFile(it), 60) }
+    storage.save(createFile(99), 60, 'other', null)
+    def ids = session.findAll()*.id
+
+    when:
+    def first = session.findAll(null, 20)
+    def second = session.findAll(first.last(), 20)
+    def visited = []
+    session.forEach({ visited << it.id } as StoredMultipartFileCallback)
+    then:
+    (first + second)*.id == ids
+    visited == ids
+  }
+
+  List<List<StoredMultipartFile>> walk(String context, int limit) {
+    def pages = []
+    def page = storage.findByContext(context, null, limit)
+    pages << page
+    while (page.size() == limit) {
+      page = storage.findByContext(context, page.last(), limit)
+      pages << page
+    }
+    return pages
+  }
+
+  MultipartFileStorage createStorage(String layout) {
+    if (layout == 'in-memory') {
+      def storage = new InMemoryMultipartFileStorage()
+      storage.afterPropertiesSet()
+      return storage
+    }
+    def storage = new JdbcMultipartFileStorage()
+    storage.dataSource = dataSource
+    storage.fetchSize = 16
+    storage.afterPropertiesSet()
+    storage.deleteAll()
+    return storage
+  }
+
+  static MultipartFile createFile(int index) {
+    new MockMultipartFile('file', "file-${index}.txt", 'text/plain', "Content of file ${index}".bytes)
+  }
+}
@@ -0,0 +1,205 @@
+package nl.runnable.spring.fileupload
+
+import nl.runnable.spring.fileupload.impl.JdbcMultipartFileStorage
+import org.springframework.beans.factory.annotation.Autowired
+import org.springframework.beans.factory.annotation.Qualifier
+import org.springframework.jdbc.core.JdbcTemplate
+import org.springframework.jdbc.datasource.DriverManagerDataSource
+import org.springframework.mock.web.MockMultipartFile
+import org.springframework.test.context.ContextConfiguration
+import spock.lang.Specification
+
+import javax.sql.DataSource
+import java.util.concurrent.Callable
+import java.util.concurrent.CyclicBarrier
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+
+/**
+ * @author Laurens Fridael
+ */
+@ContextConfiguration(classes = [TestConfig])
+class DeduplicationSpec extends Specification {
+
+  @Autowired
+  @Qualifier("spring-file-upload-storage")
+  DataSource dataSource
+
+  JdbcMultipartFileStorage storage
+
+  JdbcTemplate jdbc
+
+  def file = new MockMultipartFile('file', 'logo.png', 'image/png', [1, 2, 3, 4] as byte[])
+
+  def setup() {
+    storage = createStorage(true)
+    jdbc = new JdbcTemplate(dataSource)
+    storage.deleteAll()
+  }
+
+  def cleanup() {
+    storage.deleteAll()
+  }
+
+  def 'Identical content is stored once and shared between files'() {
+    when:
+    def ids = (1..3).collect { storage.save(file, MultipartFileStorage.TTL_30_MINUTES, 'context', null) }
+    then:
+    contentCount() == 1
+    referenceCount() == 3
+    ids.every { storage.find(it).bytes == [1, 2, 3, 4] as byte[] }
+    ids.every { storage.find(it).getInputStream(1, 2).bytes == [2, 3] as byte[] }
+  }
+
+  def 'Shared content is deleted along with the last file that references it'() {
+    given:
+    def first = storage.save(file, MultipartFileStorage.TTL_30_MINUTES, null, null)
+    def second = storage.save(file, MultipartFileStorage.TTL_30_MINUTES, null, null)
+
+    when:
+    storage.delete(first)
+    then:
+    contentCount() == 1
+    referenceCount() == 1
+    storage.find(second).bytes == [1, 2, 3, 4] as byte[]
+
+    when:
+    storage.delete(second)
+    then:
+    contentCount() == 0
+  }
+
+  def 'Deleting files by context releases their shared content'() {
+    given:
+    storage.save(file, MultipartFileStorage.TTL_30_MINUTES, 'context', null)
+    storage.save(file, MultipartFileStorage.TTL_30_MINUTES, 'context', null)
+    def other = storage.save(file, MultipartFileStorage.TTL_30_MINUTES, 'other-context', null)
+
+    when:
+    storage.deleteByContext('context')
+    then:
+    referenceCount() == 1
+    storage.find(other).bytes == [1, 2, 3, 4] as byte[]
+  }
+
+  def 'Deleting expired files releases their shared content'() {
+    given:
+    def id = storage.save(file, MultipartFileStorage.TTL_30_MINUTES, null, null)
+    storage.setTimeToLive(id, 0)
+
+    when:
+    storage.deleteExpired()
+    then:
+    contentCount() == 0
+  }
+
+  def 'Deleting expired files in batches releases their shared content once the last batch is deleted'() {
+    given:
+    def ids = (1..5).collect { storage.save(file, MultipartFileStorage.TTL_30_MINUTES, null, null) }
+    ids.each { storage.setTimeToLive(it, 0) }
+
+    when:
+    def first = storage.deleteExpired(3)
+    then:
+    first == new DeletionResult(3, 12)
+    referenceCount() == 2
+    contentCount() == 1
+
+    when:
+    def second = storage.deleteExpired(3)
+    then:
+    second == new DeletionResult(2, 8)
+    contentCount() == 0
+  }
+
+  def 'Concurrent first saves of the same content share a single copy'() {
+    given:
+    def concurrentDataSource = new DriverManagerDataSource(
+        "jdbc:h2:mem:deduplication-${UUID.randomUUID()};DB_CLOSE_DELAY=-1;MVCC=TRUE;LOCK_TIMEOUT=10000", 'sa', '')
+    def concurrentStorage = new JdbcMultipartFileStorage()
+    concurrentStorage.dataSource = concurrentDataSource
+    concurrentStorage.deduplicate = true
+    concurrentStorage.afterPropertiesSet()
+    def concurrentJdbc = new JdbcTemplate(concurrentDataSource)
+    // Both saves compute the hash, then wait for each other before storing the content, so both miss it.
+    def barrier = new CyclicBarrier(2)
+    def executor = Executors.newFixedThreadPool(2)
+
+    when:
+    def futures = (0..<2).collect {
+      executor.submit({
+        concurrentStorage.save(new SynchronizedMultipartFile(barrier), MultipartFileStorage.TTL_30_MINUTES, null, null)
+      } as Callable<String>)
+    }
+    def ids = futures.collect { it.get(30, TimeUnit.SECONDS) }
+    then:
+    ids.every { concurrentStorage.find(it).bytes == [1, 2, 3, 4] as byte[] }
+    concurrentJdbc.queryForObject('SELECT COUNT(*) FROM sfus_content', Integer) == 1
+    concurrentJdbc.queryForObject('SELECT SUM(ref_count) FROM sfus_content', Integer) == 2
+
+    cleanup:
+    executor.shutdownNow()
+  }
+
+  def 'Deduplication reduces the bytes written for a repetitive upload corpus'() {
+    given:
+    def templates = (1..5).collect { template ->
+      def bytes = new byte[64 * 1024]
+      new Random(template).nextBytes(bytes)
+      new MockMultipartFile('file', "template-${template}.pdf", 'application/pdf', bytes)
+    }
+    def corpus = (0..<200).collect { templates[it % templates.size()] }
+    def plainStorage = createStorage(false)
+
+    when:
+    corpus.each { plainStorage.save(it, MultipartFileStorage.TTL_30_MINUTES, 'plain', null) }
+    long plainBytes = jdbc.queryForObject('SELECT SUM(LENGTH(data)) FROM sfus_file', Long)
+    plainStorage.deleteAll()
+
+    corpus.each { storage.save(it, MultipartFileStorage.TTL_30_MINUTES, 'deduplicated', null) }
+    long deduplicatedBytes = jdbc.queryForObject('SELECT SUM(LENGTH(data)) FROM sfus_content', Long)
+    then:
+    plainBytes == corpus.size() * 64 * 1024
+    deduplicatedBytes == templates.size() * 64 * 1024
+    storage.count() == corpus.size()
+  }
+
+  JdbcMultipartFileStorage createStorage(boolean deduplicate) {
+    def storage = new JdbcMultipartFileStorage()
+    storage.dataSource = dataSource
+    storage.deduplicate = deduplicate
+    storage.afterPropertiesSet()
+    return storage
+  }
+
+  int contentCount() {
+    jdbc.queryForObject('SELECT COUNT(*) FROM sfus_content', Integer)
+  }
+
+  int referenceCount() {
+    jdbc.queryForObject('SELECT COALESCE(SUM(ref_count), 0) FROM sfus_content', Integer)
+  }
+
+  /**
+   * File whose content is read a second time, to be stored, only once another file has reached the same point.
+   */
+  static class SynchronizedMultipartFile extends MockMultipartFile {
+
+    final CyclicBarrier barrier
+
+    int reads = 0
+
+    SynchronizedMultipartFile(CyclicBarrier barrier) {
+      super('file', 'logo.png', 'image/png', [1, 2, 3, 4] as byte[])
+      this.barrier = barrier
+    }
+
+    @Override
+    InputStream getInputStream() throws IOException {
+      if (++reads == 2) {
+        barrier.await(10, TimeUnit.SECONDS)
+      }
+      return super.getInputStream()
+    }
+  }
+}
@@ -0,0 +1,142 @@
+package nl.runnable.spring.fileupload
+
+import nl.runnable.spring.fileupload.impl.FileSystemMultipartFileStorage
+import org.springframework.beans.factory.annotation.Autowired
+import org.springframework.beans.factory.annotation.Qualifier
+import org.springframework.jdbc.core.JdbcTemplate
+import org.springframework.mock.web.MockMultipartFile
+import org.springframework.test.context.ContextConfiguration
+import org.springframework.util.FileSystemUtils
+import spock.lang.Specification
+
+import javax.sql.DataSource
+
+/**
+ * @author Laurens Fridael
+ */
+@ContextConfiguration(classes = [TestConfig])
+class FileSystemStorageSpec extends Specification {
+
+  @Autowired
+  @Qualifier("spring-file-upload-storage")
+  DataSource dataSource
+
+  File directory
+
+  FileSystemMultipartFileStorage storage
+
+  def file = new MockMultipartFile('file', 'logo.png', 'image/png', [1, 2, 3, 4, 5, 6] as byte[])
+
+  def setup() {
+    directory = File.createTempFile('spring-file-upload-storage', '')
+    directory.delete()
+    storage = new FileSystemMultipartFileStorage()
+    storage.dataSource = dataSource
+    storage.directory = directory.path
+    storage.afterPropertiesSet()
+  }
+
+  def cleanup() {
+    storage.deleteAll()
+    FileSystemUtils.deleteRecursively(directory)
+  }
+
+  def 'Content is stored in a sharded directory tree and not in the database'() {
+    when:
+    def id = storage.save(file, MultipartFileStorage.TTL_30_MINUTES, 'context', 'metadata')
+    def stored = storage.find(id) as FileBackedMultipartFile
+    then:
+    stored.file.isFile()
+    stored.file.parentFile.parentFile.parentFile == directory
+    stored.file.length() == 6
+    new JdbcTemplate(dataSource).queryForObject('SELECT data FROM sfus_file WHERE id = ?', byte[], id) == null
+    stored.bytes == [1, 2, 3, 4, 5, 6] as byte[]
+    stored.originalFilename == 'logo.png'
+    stored.context == 'context'
+    stored.metadata == 'metadata'
+    stored.contentHash
+  }
+
+  def 'Partial content is read from the requested position'() {
+    given:
+    def stored = storage.find(storage.save(file, MultipartFileStorage.TTL_30_MINUTES, null, null))
+
+    expect:
+    stored.getInputStream(2, 3).bytes == [3, 4, 5] as byte[]
+    stored.getInputStream(4, 10).bytes == [5, 6] as byte[]
+  }
+
+  def 'Files are transferred to another file'() {
+    given:
+    def stored = storage.find(storage.save(file, MultipartFileStorage.TTL_30_MINUTES, null, null))
+    def dest = File.createTempFile('transfer', '.png')
+
+    when:
+    stored.transferTo(dest)
+    then:
+    dest.bytes == [1, 2, 3, 4, 5, 6] as byte[]
+
+    cleanup:
+    dest.delete()
+  }
+
+  def 'Deleting files deletes their content'() {
+    given:
+    def first = storage.find(storage.save(file, MultipartFileStorage.TTL_30_MINUTES, 'context', null))
+    def second = storage.find(storage.save(file, MultipartFileStorage.TTL_30_MINUTES, 'context', null))
+    def third = storage.find(storage.save(file, MultipartFileStorage.TTL_30_MINUTES, null, null))
+    def fourth = storage.find(storage.save(file, MultipartFileStorage.TTL_30_MINUTES, null, null))
+
+    when:
+    storage.delete(first.id)
+    then:
+    !first.file.exists()
+    second.file.exists()
+
+    when:
+    storage.deleteByContext('context')
+    storage.setTimeToLive(third.id, 0)
+    storage.deleteExpired()
+    then:
+    !second.file.exists()
+    !third.file.exists()
+    fourth.file.exists()
+    storage.count() == 1
+  }
+
+  def 'Deleting expired files in batches deletes their content and reports their size'() {
+    given:
+    def files = (1..3).collect { storage.find(storage.save(file, MultipartFileStorage.TTL_30_MINUTES, null, null)) }
+    files.each { storage.setTimeToLive(it.id, 0) }
+
+    when:
+    def result = storage.deleteExpired(2)
+    then:
+    result == new DeletionResult(2, 12)
+    files.count { it.file.exists() } == 1
+    storage.count() == 1
+  }
+
+  def 'Reading a deleted file fails'() {
+    given:
+    def stored = storage.find(storage.save(file, MultipartFileStorage.TTL_30_MINUTES, null, null))
+    storage.delete(stored.id)
+
+    when:
+    stored.inputStream
+    then:
+    thrown(FileNotFoundException)
+  }
+
+  def 'Saving a file with an existing ID keeps the existing content'() {
+    given:
+    storage.save(file, 'id', MultipartFileStorage.TTL_30_MINUTES, null, null)
+
+    when:
+    storage.save(new MockMultipartFile('file', [9] as byte[]), 'id', MultipartFileStorage.TTL_30_MINUTES, null, null)
+    then:
+    thrown(RuntimeException)
+    storage.find('id').bytes == [1, 2, 3, 4, 5, 6] as byte[]
+    storage.find('id').file.parentFile.listFiles().length == 1
+  }
+}
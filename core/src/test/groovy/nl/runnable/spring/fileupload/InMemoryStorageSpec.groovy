@@ -0,0 +1,166 @@
+package nl.runnable.spring.fileupload
+
+import nl.runnable.spring.fileupload.impl.InMemoryMultipartFileStorage
+import org.springframework.dao.DuplicateKeyException
+import org.springframework.mock.web.MockMultipartFile
+import spock.lang.Specification
+
+/**
+ * @author Laurens Fridael
+ */
+class InMemoryStorageSpec extends Specification {
+
+  InMemoryMultipartFileStorage storage
+
+  def setup() {
+    storage = new InMemoryMultipartFileStorage()
+    storage.maxSize = 4096
+    storage.pageSize = 1024
+    storage.afterPropertiesSet()
+  }
+
+  MockMultipartFile file(int size, int seed = 0) {
+    def bytes = new byte[size]
+    new Random(seed).nextBytes(bytes)
+    return new MockMultipartFile('file', "file-${seed}.bin", 'application/octet-stream', bytes)
+  }
+
+  def 'Files are stored in pages and read back identically'() {
+    given:
+    def upload = file(2500)
+
+    when:
+    def id = storage.save(upload, MultipartFileStorage.TTL_30_MINUTES, 'context', 'metadata')
+    def stored = storage.find(id)
+    then:
+    stored.bytes == upload.bytes
+    stored.getInputStream(1000, 100).bytes == upload.bytes[1000..<1100] as byte[]
+    stored.getInputStream(2400, 500).bytes == upload.bytes[2400..<2500] as byte[]
+    stored.originalFilename == 'file-0.bin'
+    stored.context == 'context'
+    stored.metadata == 'metadata'
+    stored.contentHash
+    storage.usedSize == 3072
+  }
+
+  def 'Saving a file with an existing ID fails'() {
+    given:
+    storage.save(file(10), 'id', MultipartFileStorage.TTL_30_MINUTES, null, null)
+
+    when:
+    storage.save(file(10, 1), 'id', MultipartFileStorage.TTL_30_MINUTES, null, null)
+    then:
+    thrown(DuplicateKeyException)
+    storage.usedSize == 1024
+  }
+
+  def 'Files larger than the memory budget are rejected'() {
+    when:
+    storage.save(file(4097), MultipartFileStorage.TTL_30_MINUTES, null, null)
+    then:
+    thrown(IllegalArgumentException)
+  }
+
+  def 'Expired files are evicted before the least recently used files'() {
+    given:
+    def first = storage.save(file(1024, 1), MultipartFileStorage.TTL_30_MINUTES, null, null)
+    def second = storage.save(file(1024, 2), MultipartFileStorage.TTL_30_MINUTES, null, null)
+    def third = storage.save(file(1024, 3), MultipartFileStorage.TTL_30_MINUTES, null, null)
+    def fourth = storage.save(file(1024, 4), MultipartFileStorage.TTL_30_MINUTES, null, null)
+    storage.setTimeToLive(third, 0)
+    storage.find(first)
+
+    when:
+    storage.save(file(1024, 5), MultipartFileStorage.TTL_30_MINUTES, null, null)
+    then:
+    storage.find(third) == null
+    storage.count() == 4
+
+    when:
+    storage.save(file(1024, 6), MultipartFileStorage.TTL_30_MINUTES, null, null)
+    then:
+    storage.find(second) == null
+    storage.find(first) != null
+    storage.find(fourth) != null
+  }
+
+  def 'Reading an evicted file fails'() {
+    given:
+    def stored = storage.find(storage.save(file(4096), MultipartFileStorage.TTL_30_MINUTES, null, null))
+    def stream = stored.inputStream
+
+    when:
+    storage.save(file(1), MultipartFileStorage.TTL_30_MINUTES, null, null)
+    stream.bytes
+    then:
+    thrown(FileNotFoundException)
+  }
+
+  def 'Files are found and deleted by context'() {
+    given:
+    def first = storage.save(file(10, 1), MultipartFileStorage.TTL_30_MINUTES, 'context', null)
+    def second = storage.save(file(10, 2), MultipartFileStorage.TTL_30_MINUTES, 'context', null)
+    storage.save(file(10, 3), MultipartFileStorage.TTL_30_MINUTES, 'other-context', null)
+
+    expect:
+    storage.findByContext('context')*.id == [first, second]
+    storage.findByContext('unknown').empty
+
+    when:
+    def count = storage.deleteByContext('context')
+    then:
+    count == 2
+    storage.findByContext('context').empty
+    storage.count() == 1
+  }
+
+  def 'Expired files are deleted'() {
+    given:
+    def id = storage.save(file(10), MultipartFileStorage.TTL_30_MINUTES, null, null)
+    storage.save(file(10), MultipartFileStorage.TTL_30_MINUTES, null, null)
+
+    when:
+    storage.setTimeToLive(id, 0)
+    def count = storage.deleteExpired()
+    then:
+    count == 1
+    storage.find(id) == null
+    storage.usedSize == 1024
+  }
+
+  def 'Expired files are deleted in batches, those that expired first'() {
+    given:
+    def ids = (1..3).collect { storage.save(file(it * 10), MultipartFileStorage.TTL_30_MINUTES, null, null) }
+    ids.reverse().each { storage.setTimeToLive(it, 0); sleep(2) }
+
+    when:
+    def result = storage.deleteExpired(2)
+    then:
+    result == new DeletionResult(2, 50)
+    storage.find(ids[0]) != null
+    storage.deleteExpired(2) == new DeletionResult(1, 10)
+  }
+
+  def 'Metadata is updated'() {
+    given:
+    def id = storage.save(file(10), MultipartFileStorage.TTL_30_MINUTES, null, 'before')
+
+    when:
+    storage.setMetadata(id, 'after')
+    then:
+    storage.find(id).metadata == 'after'
+  }
+
+  def 'Deleting all files frees all memory'() {
+    given:
+    storage.save(file(10), MultipartFileStorage.TTL_30_MINUTES, 'context', null)
+    storage.save(file(2000), MultipartFileStorage.TTL_30_MINUTES, null, null)
+
+    when:
+    def count = storage.deleteAll()
+    then:
+    count == 2
+    storage.usedSize == 0
+    storage.findByContext('context').empty
+  }
+}
@@ -1,10 +1,24 @@
 package nl.runnable.spring.fileupload
 
+import nl.runnable.spring.fileupload.impl.AbstractStoredMultipartFile
+import nl.runnable.spring.fileupload.impl.JdbcMultipartFileStorage
 import org.springframework.beans.factory.annotation.Autowired
+import org.springframework.jdbc.datasource.DelegatingDataSource
+import org.springframework.jdbc.datasource.DriverManagerDataSource
 import org.springframework.mock.web.MockMultipartFile
 import org.springframework.test.context.ContextConfiguration
 import org.springframework.transaction.annotation.Transactional
 import spock.lang.Specification
+import spock.lang.Unroll
+
+import javax.sql.DataSource
+import java.lang.reflect.InvocationHandler
+import java.lang.reflect.InvocationTargetException
+import java.lang.reflect.Method
+import java.lang.reflect.Proxy
+import java.security.MessageDigest
+import java.sql.Connection
+import java.sql.SQLException
 
 /**
  * @author Laurens Fridael
@@ -49,6 +63,7 @@ class MultipartFileStorageSpec extends Specification {
     file.size == 4
     !file.empty
     file.bytes == [1, 2, 3, 4] as byte[]
+    file.contentHash == MessageDigest.getInstance('SHA-256').digest([1, 2, 3, 4] as byte[]).encodeHex().toString()
     file.id == fileId
     file.context == context
     file.metadata == metadata
@@ -76,6 +91,27 @@ class MultipartFileStorageSpec extends Specification {
     tempFile.delete()
   }
 
+  def 'Reading part of a file yields only the requested bytes'() {
+    when:
+    def file = storage.find(fileId)
+    then:
+    file.getInputStream(1, 2).bytes == [2, 3] as byte[]
+    file.getInputStream(2, 10).bytes == [3, 4] as byte[]
+    file.getInputStream(4, 1).bytes == [] as byte[]
+  }
+
+  def 'Reading part of a file that does not support it skips to the requested bytes'() {
+    given:
+    def file = Stub(StoredMultipartFile) {
+      getInputStream() >> { new ByteArrayInputStream([1, 2, 3, 4] as byte[]) }
+    }
+
+    expect:
+    AbstractStoredMultipartFile.getInputStream(file, 1, 2).bytes == [2, 3] as byte[]
+    AbstractStoredMultipartFile.getInputStream(file, 2, 10).bytes == [3, 4] as byte[]
+    AbstractStoredMultipartFile.getInputStream(file, 4, 1).bytes == [] as byte[]
+  }
+
   def "Setting a file's time-to-live changes its expiration"() {
     when:
     def expiresAt = storage.setTimeToLive(fileId, 1000)
@@ -155,4 +191,55 @@ class MultipartFileStorageSpec extends Specification {
     thrown(Exception)
   }
 
+  @Unroll
+  def 'A file is not saved without its content hash if storing the hash fails using #operation'() {
+    given:
+    def jdbcStorage = new JdbcMultipartFileStorage()
+    jdbcStorage.dataSource = new FailingDataSource(
+        new DriverManagerDataSource("jdbc:h2:mem:hash-${UUID.randomUUID()};DB_CLOSE_DELAY=-1", 'sa', ''),
+        'UPDATE sfus_file SET content_hash')
+    jdbcStorage.afterPropertiesSet()
+    def file = new MockMultipartFile('file', 'file.txt', 'text/plain', [1, 2, 3, 4] as byte[])
+
+    when:
+    save(jdbcStorage, file)
+    then:
+    thrown(Exception)
+    jdbcStorage.count() == 0
+
+    where:
+    operation | save
+    'save'    | { s, f -> s.save(f, MultipartFileStorage.TTL_30_MINUTES, null, null) }
+    'saveAll' | { s, f -> s.saveAll([f, f], MultipartFileStorage.TTL_30_MINUTES, null, null) }
+  }
+
+  /**
+   * Fails to prepare statements starting with the given SQL.
+   */
+  static class FailingDataSource extends DelegatingDataSource {
+
+    final String failingSql
+
+    FailingDataSource(DataSource dataSource, String failingSql) {
+      super(dataSource)
+      this.failingSql = failingSql
+    }
+
+    @Override
+    Connection getConnection() throws SQLException {
+      def connection = super.getConnection()
+      def handler = { proxy, Method method, Object[] args ->
+        if (method.name == 'prepareStatement' && args[0].toString().startsWith(failingSql)) {
+          throw new SQLException('Simulated failure.')
+        }
+        try {
+          return method.invoke(connection, args)
+        } catch (InvocationTargetException e) {
+          throw e.cause
+        }
+      } as InvocationHandler
+      return Proxy.newProxyInstance(getClass().classLoader, [Connection] as Class[], handler) as Connection
+    }
+  }
+
 }
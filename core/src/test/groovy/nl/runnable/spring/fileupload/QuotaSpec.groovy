@@ -0,0 +1,397 @@
+package nl.runnable.spring.fileupload
+
+import nl.runnable.spring.fileupload.impl.BucketedMultipartFileStorage
+import nl.runnable.spring.fileupload.impl.FileSystemMultipartFileStorage
+import nl.runnable.spring.fileupload.impl.InMemoryMultipartFileStorage
+import nl.runnable.spring.fileupload.impl.JdbcMultipartFileStorage
+import org.springframework.beans.factory.annotation.Autowired
+import org.springframework.beans.factory.annotation.Qualifier
+import org.springframework.dao.DataAccessException
+import org.springframework.jdbc.datasource.DelegatingDataSource
+import org.springframework.jdbc.datasource.DriverManagerDataSource
+import org.springframework.jdbc.datasource.SingleConnectionDataSource
+import org.springframework.jdbc.datasource.SmartDataSource
+import org.springframework.mock.web.MockMultipartFile
+import org.springframework.test.context.ContextConfiguration
+import org.springframework.util.FileSystemUtils
+import org.springframework.web.multipart.MultipartFile
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import javax.sql.DataSource
+import java.lang.reflect.InvocationHandler
+import java.lang.reflect.InvocationTargetException
+import java.lang.reflect.Method
+import java.lang.reflect.Proxy
+import java.sql.Connection
+import java.sql.SQLException
+import java.util.concurrent.Callable
+import java.util.concurrent.Executors
+
+/**
+ * @author Laurens Fridael
+ */
+@ContextConfiguration(classes = [TestConfig])
+class QuotaSpec extends Specification {
+
+  @Autowired
+  @Qualifier("spring-file-upload-storage")
+  DataSource dataSource
+
+  JdbcMultipartFileStorage storage
+
+  File directory
+
+  SingleConnectionDataSource bucketDataSource
+
+  def cleanup() {
+    storage?.deleteAll()
+    if (directory) {
+      FileSystemUtils.deleteRecursively(directory)
+    }
+    bucketDataSource?.destroy()
+  }
+
+  @Unroll
+  def 'Saving more files than the quota allows is rejected using #layout storage'() {
+    given:
+    storage = createStorage(layout)
+    storage.maxFilesPerContext = 3
+    (0..<3).each { storage.save(createFile(10), 60, 'limited', null) }
+
+    when:
+    storage.save(createFile(10), 60, 'limited', null)
+    then:
+    def e = thrown(QuotaExceededException)
+    e.context == 'limited'
+    storage.findByContext('limited').size() == 3
+    storage.getUsage('limited') == new ContextUsage(3, 30)
+
+    when:
+    storage.saveAll([createFile(10), createFile(10)], 60, 'limited', null)
+    then:
+    thrown(QuotaExceededException)
+
+    expect:
+    storage.save(createFile(10), 60, 'other', null)
+    storage.save(createFile(10), 60, null, null)
+    storage.findByContext('limited').size() == 3
+    storage.getUsage('other').count == 1
+
+    where:
+    layout << ['plain', 'deduplicated', 'chunked', 'file system', 'bucketed']
+  }
+
+  def 'Saving files larger than the remaining quota is rejected'() {
+    given:
+    storage = createStorage('plain')
+    storage.maxSizePerContext = 100
+    storage.save(createFile(60), 60, 'limited', null)
+
+    when:
+    storage.save(createFile(41), 60, 'limited', null)
+    then:
+    thrown(QuotaExceededException)
+
+    when:
+    storage.saveAll([createFile(20), createFile(21)], 60, 'limited', null)
+    then:
+    thrown(QuotaExceededException)
+    storage.getUsage('limited') == new ContextUsage(1, 60)
+
+    expect:
+    storage.save(createFile(40), 60, 'limited', null)
+    storage.getUsage('limited') == new ContextUsage(2, 100)
+  }
+
+  @Unroll
+  def 'Usage is maintained as files are saved and deleted using #layout storage'() {
+    given:
+    storage = createStorage(layout)
+    storage.maxFilesPerContext = 1000
+    def ids = storage.saveAll((0..<10).collect { createFile(10) }, 60, 'context', null)
+    (0..<3).each { storage.save(createFile(20), 0, 'context', null) }
+    storage.save(createFile(30), 60, 'other', null)
+    storage.save(createFile(40), 60, null, null)
+
+    expect:
+    storage.getUsage('context') == new ContextUsage(13, 160)
+
+    when:
+    storage.delete(ids[0])
+    storage.delete(ids[1..2] + 'unknown')
+    then:
+    storage.getUsage('context') == new ContextUsage(10, 130)
+
+    when:
+    Thread.sleep(5)
+    storage.deleteExpired(2)
+    then:
+    storage.getUsage('context') == new ContextUsage(8, 90)
+
+    when:
+    storage.deleteExpired()
+    then:
+    storage.getUsage('context') == new ContextUsage(7, 70)
+
+    when:
+    storage.deleteByContext('context')
+    then:
+    storage.getUsage('context') == ContextUsage.NONE
+    storage.getUsage('other') == new ContextUsage(1, 30)
+
+    when:
+    storage.deleteAll()
+    then:
+    storage.getUsage('other') == ContextUsage.NONE
+
+    where:
+    layout << ['plain', 'deduplicated', 'chunked', 'file system', 'bucketed']
+  }
+
+  def 'Usage is initialized from the files saved before quotas were enabled'() {
+    given:
+    storage = createStorage('plain')
+    (0..<4).each { storage.save(createFile(10), 60, 'context', null) }
+    storage.maxFilesPerContext = 5
+
+    when:
+    storage.save(createFile(10), 60, 'context', null)
+    storage.save(createFile(10), 60, 'context', null)
+    then:
+    thrown(QuotaExceededException)
+    storage.getUsage('context') == new ContextUsage(5, 50)
+  }
+
+  def 'Concurrent saves never exceed the quota'() {
+    given:
+    def concurrentDataSource = new DriverManagerDataSource(
+        "jdbc:h2:mem:quota-${UUID.randomUUID()};DB_CLOSE_DELAY=-1;LOCK_TIMEOUT=10000", 'sa', '')
+    storage = new JdbcMultipartFileStorage()
+    storage.dataSource = concurrentDataSource
+    storage.maxFilesPerContext = 50
+    storage.maxSizePerContext = 10000
+    storage.afterPropertiesSet()
+    def executor = Executors.newFixedThreadPool(8)
+
+    when:
+    def futures = (0..<200).collect {
+      executor.submit({
+        try {
+          storage.save(createFile(100), 60, 'shared', null)
+          return true
+        } catch (QuotaExceededException ignored) {
+          return false
+        }
+      } as Callable<Boolean>)
+    }
+    def saved = futures.count { it.get() }
+    then:
+    saved == 50
+    storage.findByContext('shared').size() == 50
+    storage.getUsage('shared') == new ContextUsage(50, 5000)
+
+    cleanup:
+    executor.shutdown()
+  }
+
+  def 'Quota reserved by a save whose connection is lost is not kept'() {
+    given:
+    def failing = new ConnectionLosingDataSource(dataSource)
+    storage = new JdbcMultipartFileStorage()
+    storage.dataSource = failing
+    storage.maxFilesPerContext = 1
+    storage.afterPropertiesSet()
+    storage.deleteAll()
+
+    when:
+    failing.lost = true
+    storage.save(createFile(10), 60, 'limited', null)
+    then:
+    thrown(DataAccessException)
+
+    when:
+    failing.lost = false
+    then:
+    storage.getUsage('limited') == ContextUsage.NONE
+    storage.save(createFile(10), 60, 'limited', null)
+  }
+
+  def 'Usage matches the files after concurrent saves and deletes in the same context'() {
+    given:
+    def concurrentDataSource = new DriverManagerDataSource(
+        "jdbc:h2:mem:quota-${UUID.randomUUID()};DB_CLOSE_DELAY=-1;MVCC=TRUE;LOCK_TIMEOUT=10000", 'sa', '')
+    storage = new JdbcMultipartFileStorage()
+    storage.dataSource = concurrentDataSource
+    storage.maxFilesPerContext = 20
+    storage.afterPropertiesSet()
+    def executor = Executors.newFixedThreadPool(8)
+
+    when:
+    def futures = (0..<400).collect { i ->
+      executor.submit({
+        try {
+          switch (i % 4) {
+            case 0:
+              storage.deleteByContext('shared')
+              break
+            case 1:
+              storage.save(new OversizedMultipartFile(10), 60, 'shared', null)
+              break
+            default:
+              storage.save(createFile(10), i % 8 == 2 ? 0 : 60, 'shared', null)
+              storage.deleteExpired()
+          }
+        } catch (QuotaExceededException ignored) {
+        }
+      } as Callable<Object>)
+    }
+    futures*.get()
+    def files = storage.findByContext('shared')
+    then:
+    storage.getUsage('shared') == new ContextUsage(files.size(), files.sum(0L) { it.size } as long)
+
+    cleanup:
+    executor.shutdown()
+  }
+
+  @Unroll
+  def 'Saving is aborted once content exceeds its declared size using #layout storage'() {
+    given:
+    storage = createStorage(layout)
+    storage.maxSizePerContext = 1024 * 1024
+    def file = new OversizedMultipartFile(100)
+
+    when:
+    storage.save(file, 60, 'limited', null)
+    then:
+    thrown(QuotaExceededException)
+    // The endless content is only read up to the first buffer beyond the declared size.
+    file.read < 1024 * 1024
+    storage.findByContext('limited').empty
+    storage.getUsage('limited') == ContextUsage.NONE
+
+    where:
+    layout << ['deduplicated', 'chunked', 'file system']
+  }
+
+  def 'Usage is computed from the files when quotas are not enabled'() {
+    given:
+    storage = createStorage('plain')
+    (0..<3).each { storage.save(createFile(10), 60, 'context', null) }
+
+    expect:
+    storage.getUsage('context') == new ContextUsage(3, 30)
+    storage.getUsage('unknown') == ContextUsage.NONE
+  }
+
+  def 'In-memory storage reports usage by context'() {
+    given:
+    def inMemoryStorage = new InMemoryMultipartFileStorage()
+    inMemoryStorage.afterPropertiesSet()
+    (0..<3).each { inMemoryStorage.save(createFile(10), 60, 'context', null) }
+
+    expect:
+    inMemoryStorage.getUsage('context') == new ContextUsage(3, 30)
+    inMemoryStorage.getUsage('unknown') == ContextUsage.NONE
+  }
+
+  JdbcMultipartFileStorage createStorage(String layout) {
+    switch (layout) {
+      case 'file system':
+        directory = File.createTempFile('spring-file-upload-storage', '')
+        directory.delete()
+        def storage = new FileSystemMultipartFileStorage()
+        storage.dataSource = dataSource
+        storage.directory = directory.path
+        storage.afterPropertiesSet()
+        storage.deleteAll()
+        return storage
+      case 'bucketed':
+        bucketDataSource = new SingleConnectionDataSource("jdbc:h2:mem:quota-${UUID.randomUUID()}", 'sa', '', true)
+        def storage = new BucketedMultipartFileStorage()
+        storage.dataSource = bucketDataSource
+        storage.afterPropertiesSet()
+        return storage
+      default:
+        def storage = new JdbcMultipartFileStorage()
+        storage.dataSource = dataSource
+        storage.deduplicate = layout == 'deduplicated'
+        storage.chunkSize = layout == 'chunked' ? 16 : 0
+        storage.afterPropertiesSet()
+        storage.deleteAll()
+        return storage
+    }
+  }
+
+  static MultipartFile createFile(int size) {
+    new MockMultipartFile('file', "file-${size}.txt", 'text/plain', ('x' * size).bytes)
+  }
+
+  /**
+   * File whose content never ends, regardless of its declared size.
+   */
+  static class OversizedMultipartFile extends MockMultipartFile {
+
+    long read = 0
+
+    OversizedMultipartFile(int size) {
+      super('file', 'oversized.bin', 'application/octet-stream', new byte[size])
+    }
+
+    @Override
+    InputStream getInputStream() throws IOException {
+      new InputStream() {
+
+        @Override
+        int read() throws IOException {
+          OversizedMultipartFile.this.read++
+          return 0
+        }
+
+        @Override
+        int read(byte[] b, int off, int len) throws IOException {
+          OversizedMultipartFile.this.read += len
+          Arrays.fill(b, off, off + len, (byte) 0)
+          return len
+        }
+      }
+    }
+  }
+
+  /**
+   * Fails statements inserting files or releasing usage while the connection is reported lost, as if the connection
+   * was lost after quota was reserved.
+   */
+  static class ConnectionLosingDataSource extends DelegatingDataSource {
+
+    volatile boolean lost = false
+
+    ConnectionLosingDataSource(DataSource dataSource) {
+      super(dataSource)
+    }
+
+    @Override
+    Connection getConnection() {
+      def connection = super.getConnection()
+      return Proxy.newProxyInstance(getClass().classLoader, [Connection] as Class[], new InvocationHandler() {
+        @Override
+        Object invoke(Object proxy, Method method, Object[] args) {
+          if (lost && method.name == 'prepareStatement' && (args[0].toString().startsWith('INSERT INTO sfus_file') ||
+              args[0].toString().startsWith('UPDATE sfus_context_usage SET file_count = file_count -'))) {
+            throw new SQLException('Connection lost.')
+          }
+          if (method.name == 'close' && targetDataSource instanceof SmartDataSource &&
+              !targetDataSource.shouldClose(connection)) {
+            return null
+          }
+          try {
+            return method.invoke(connection, args)
+          } catch (InvocationTargetException e) {
+            throw e.targetException
+          }
+        }
+      }) as Connection
+    }
+  }
+}
@@ -0,0 +1,243 @@
+package nl.runnable.spring.fileupload
+
+import nl.runnable.spring.fileupload.impl.JdbcMultipartFileStorage
+import org.springframework.dao.DataAccessException
+import org.springframework.jdbc.core.JdbcTemplate
+import org.springframework.jdbc.datasource.DelegatingDataSource
+import org.springframework.jdbc.datasource.DriverManagerDataSource
+import org.springframework.jdbc.datasource.SingleConnectionDataSource
+import org.springframework.mock.web.MockMultipartFile
+import spock.lang.Specification
+
+import javax.sql.DataSource
+import java.lang.reflect.InvocationHandler
+import java.lang.reflect.InvocationTargetException
+import java.lang.reflect.Method
+import java.lang.reflect.Proxy
+import java.sql.Connection
+import java.sql.DatabaseMetaData
+
+/**
+ * @author Laurens Fridael
+ */
+class SchemaMigrationSpec extends Specification {
+
+  SingleConnectionDataSource dataSource
+
+  JdbcTemplate jdbc
+
+  def setup() {
+    dataSource = new SingleConnectionDataSource("jdbc:h2:mem:migration-${UUID.randomUUID()}", 'sa', '', true)
+    jdbc = new JdbcTemplate(dataSource)
+  }
+
+  def cleanup() {
+    dataSource.destroy()
+  }
+
+  def 'A new database is created with the indexed schema at the current version'() {
+    when:
+    createStorage()
+    then:
+    schemaVersion == 6
+    indexes.containsAll(['SFUS_FILE_CONTEXT_CREATED_AT', 'SFUS_FILE_EXPIRES_AT'])
+  }
+
+  def 'An unversioned database is migrated to the current version'() {
+    setup:
+    jdbc.execute(BASELINE_SCHEMA)
+    jdbc.update('''insert into sfus_file (id, name, size, data, context, created_at, expires_at)
+        values ('existing', 'file', 3, X'010203', 'context', 0, 4102444800000)''')
+
+    when:
+    def storage = createStorage()
+    then:
+    schemaVersion == 6
+    indexes.containsAll(['SFUS_FILE_CONTEXT_CREATED_AT', 'SFUS_FILE_EXPIRES_AT', 'SFUS_FILE_CONTENT_REF',
+        'SFUS_CHANGE_LOG_CHANGED_AT'])
+    jdbc.queryForObject("""select type_name from information_schema.columns
+        where table_name = 'SFUS_FILE' and column_name = 'SIZE'""", String) == 'BIGINT'
+    storage.find('existing').bytes == [1, 2, 3] as byte[]
+  }
+
+  def 'A migrated database stores files with each storage option'() {
+    setup:
+    jdbc.execute(BASELINE_SCHEMA)
+    def storage = new JdbcMultipartFileStorage()
+    storage.dataSource = dataSource
+    storage.deduplicate = deduplicate
+    storage.chunkSize = chunkSize
+    storage.afterPropertiesSet()
+
+    when:
+    def id = storage.save(new MockMultipartFile('file', [1, 2, 3] as byte[]), 60, 'context', null)
+    then:
+    storage.find(id).bytes == [1, 2, 3] as byte[]
+    storage.findByContext('context')*.id == [id]
+
+    where:
+    deduplicate | chunkSize
+    false       | 0
+    true        | 0
+    false       | 2
+  }
+
+  def 'Migrations are applied only once'() {
+    setup:
+    createStorage()
+
+    when:
+    createStorage()
+    then:
+    schemaVersion == 6
+    jdbc.queryForObject('select count(*) from sfus_schema_version', Integer) == 1
+  }
+
+  def 'Instances that start concurrently migrate the database one at a time'() {
+    setup:
+    jdbc.execute(BASELINE_SCHEMA)
+    def errors = Collections.synchronizedList([])
+
+    when:
+    (1..4).collect {
+      Thread.start {
+        try {
+          createStorage(new DriverManagerDataSource(dataSource.url, 'sa', ''))
+        } catch (Throwable e) {
+          errors << e
+        }
+      }
+    }*.join()
+    then:
+    errors.empty
+    schemaVersion == 6
+    jdbc.queryForObject('select count(*) from sfus_schema_version', Integer) == 1
+    jdbc.queryForObject('select locked_by from sfus_schema_version', String) == null
+  }
+
+  def 'A migration that failed partway is applied again on the next start'() {
+    setup:
+    jdbc.execute(BASELINE_SCHEMA)
+    jdbc.execute('create view sfus_change_log as select 0 as changed_at')
+
+    when:
+    createStorage()
+    then:
+    thrown(DataAccessException)
+    schemaVersion == 1
+    jdbc.queryForObject('select locked_by from sfus_schema_version', String) == null
+
+    when:
+    jdbc.execute('drop view sfus_change_log')
+    createStorage()
+    then:
+    schemaVersion == 6
+    indexes.contains('SFUS_CHANGE_LOG_CHANGED_AT')
+  }
+
+  def 'An unversioned database other than H2 is not migrated'() {
+    setup:
+    jdbc.execute(BASELINE_SCHEMA)
+
+    when:
+    createStorage(new ProductNameDataSource(dataSource, 'PostgreSQL'))
+    then:
+    thrown(IllegalStateException)
+    !jdbc.queryForObject("select count(*) from information_schema.tables where table_name = 'SFUS_SCHEMA_VERSION'",
+        Integer)
+  }
+
+  def 'A database other than H2 at the current version is used as is'() {
+    setup:
+    createStorage()
+
+    when:
+    createStorage(new ProductNameDataSource(dataSource, 'PostgreSQL'))
+    then:
+    schemaVersion == 6
+  }
+
+  def 'Files are found by context in the order in which they were created'() {
+    setup:
+    def storage = createStorage()
+    def ids = (1..5).collect {
+      def id = "file-$it".toString()
+      storage.save(new MockMultipartFile('file', [it] as byte[]), id, 60, 'context', null)
+      jdbc.update('update sfus_file set created_at = ? where id = ?', 1000L - it, id)
+      id
+    }
+
+    expect:
+    storage.findByContext('context')*.id == ids.reverse()
+  }
+
+  /**
+   * The schema created by release 0.0.8, before the schema was versioned.
+   */
+  static final String BASELINE_SCHEMA = '''create table sfus_file (
+	id varchar(255) not null unique,
+	name varchar(255) not null,
+	original_filename varchar(255),
+	content_type varchar(255),
+	size int not null,
+	data blob,
+	context varchar(255),
+	metadata varchar(255),
+	created_at bigint not null,
+	expires_at bigint not null
+);'''
+
+  JdbcMultipartFileStorage createStorage(DataSource dataSource = this.dataSource) {
+    def storage = new JdbcMultipartFileStorage()
+    storage.dataSource = dataSource
+    storage.afterPropertiesSet()
+    return storage
+  }
+
+  int getSchemaVersion() {
+    return jdbc.queryForObject('select version from sfus_schema_version', Integer)
+  }
+
+  List<String> getIndexes() {
+    return jdbc.queryForList('select index_name from information_schema.indexes', String)
+  }
+
+  /**
+   * Reports another database product than the target data source.
+   */
+  static class ProductNameDataSource extends DelegatingDataSource {
+
+    final String productName
+
+    ProductNameDataSource(DataSource dataSource, String productName) {
+      super(dataSource)
+      this.productName = productName
+    }
+
+    @Override
+    Connection getConnection() {
+      def connection = super.getConnection()
+      return Proxy.newProxyInstance(getClass().classLoader, [Connection] as Class[], new InvocationHandler() {
+        @Override
+        Object invoke(Object proxy, Method method, Object[] args) {
+          if (method.name == 'getMetaData') {
+            def metaData = connection.metaData
+            return Proxy.newProxyInstance(getClass().classLoader, [DatabaseMetaData] as Class[],
+                new InvocationHandler() {
+                  @Override
+                  Object invoke(Object metaDataProxy, Method metaDataMethod, Object[] metaDataArgs) {
+                    return metaDataMethod.name == 'getDatabaseProductName' ? productName :
+                        metaDataMethod.invoke(metaData, metaDataArgs)
+                  }
+                })
+          }
+          try {
+            return method.invoke(connection, args)
+          } catch (InvocationTargetException e) {
+            throw e.targetException
+          }
+        }
+      }) as Connection
+    }
+  }
+}
@@ -0,0 +1,205 @@
+package nl.runnable.spring.fileupload
+
+import nl.runnable.spring.fileupload.impl.JdbcMultipartFileStorage
+import nl.runnable.spring.fileupload.impl.PredefinedSessionMultipartFileStorage
+import nl.runnable.spring.fileupload.impl.TimeToLiveTouchQueue
+import org.springframework.beans.factory.annotation.Autowired
+import org.springframework.beans.factory.annotation.Qualifier
+import org.springframework.jdbc.datasource.DelegatingDataSource
+import org.springframework.jdbc.datasource.SmartDataSource
+import org.springframework.mock.web.MockMultipartFile
+import org.springframework.test.context.ContextConfiguration
+import spock.lang.Specification
+
+import javax.sql.DataSource
+import java.lang.reflect.InvocationHandler
+import java.lang.reflect.Method
+import java.lang.reflect.Proxy
+import java.sql.Connection
+
+/**
+ * @author Laurens Fridael
+ */
+@ContextConfiguration(classes = [TestConfig])
+class SessionTimeToLiveSpec extends Specification {
+
+  @Autowired
+  @Qualifier("spring-file-upload-storage")
+  DataSource dataSource
+
+  List<String> statements = []
+
+  JdbcMultipartFileStorage storage
+
+  def file = new MockMultipartFile('file', 'test.txt', 'text/plain', [1, 2, 3] as byte[])
+
+  def setup() {
+    storage = new JdbcMultipartFileStorage()
+    storage.dataSource = new StatementRecordingDataSource(dataSource, statements)
+    storage.afterPropertiesSet()
+  }
+
+  def cleanup() {
+    storage.deleteAll()
+  }
+
+  def "Refreshing a session's time-to-live executes a single update regardless of the number of files"() {
+    setup:
+    def sessionStorage = new PredefinedSessionMultipartFileStorage(storage, 'session')
+    40.times { sessionStorage.save(file, MultipartFileStorage.TTL_30_MINUTES) }
+    storage.save(file, MultipartFileStorage.TTL_30_MINUTES, 'other-session', null)
+    statements.clear()
+
+    when:
+    sessionStorage.timeToLive = 7200
+    then:
+    statements.size() == 1
+    statements[0].startsWith('UPDATE sfus_file SET expires_at')
+    sessionStorage.findAll().every { it.expiresAt.time - it.createdAt.time >= 7000 * 1000L }
+    storage.findByContext('other-session')[0].expiresAt.time - storage.findByContext('other-session')[0].createdAt.time ==
+        MultipartFileStorage.TTL_30_MINUTES * 1000L
+  }
+
+  def 'Refreshing the time-to-live of a context reports the number of files updated'() {
+    setup:
+    3.times { storage.save(file, MultipartFileStorage.TTL_30_MINUTES, 'context', null) }
+
+    expect:
+    storage.setTimeToLiveByContext('context', 60) == 3
+    storage.setTimeToLiveByContext('unknown', 60) == 0
+  }
+
+  def 'Repeated touches are coalesced and flushed in a single batch'() {
+    setup:
+    def queue = createTouchQueue()
+    ['a', 'b', 'c'].each { storage.save(file, MultipartFileStorage.TTL_30_MINUTES, it, null) }
+    statements.clear()
+
+    when:
+    100.times { queue.touch(['a', 'b', 'c'][it % 3], 3600) }
+    then:
+    statements.empty
+    queue.pendingCount == 3
+    queue.coalescedCount == 97
+
+    when:
+    queue.flush()
+    then:
+    statements == ['UPDATE sfus_file SET expires_at = ? WHERE context = ?']
+    queue.pendingCount == 0
+    ['a', 'b', 'c'].every {
+      storage.findByContext(it)[0].expiresAt.time >= System.currentTimeMillis() + (3600 + 250) * 1000L
+    }
+
+    cleanup:
+    queue.destroy()
+  }
+
+  def 'A touch is queued again once the written expiration no longer covers the maximum staleness'() {
+    setup:
+    def queue = createTouchQueue()
+
+    expect:
+    queue.touch('context', 3600)
+    !queue.touch('context', 3600 + 100)
+    queue.touch('context', 3600 + 200)
+
+    cleanup:
+    queue.destroy()
+  }
+
+  def 'Touches covered by the written expiration are not written again'() {
+    setup:
+    def queue = createTouchQueue()
+    storage.save(file, MultipartFileStorage.TTL_30_MINUTES, 'context', null)
+    queue.touch('context', 3600)
+    queue.flush()
+    statements.clear()
+
+    when:
+    10.times { queue.touch('context', 3600) }
+    then:
+    queue.flush() == 0
+    statements.empty
+
+    cleanup:
+    queue.destroy()
+  }
+
+  def 'Files whose context was touched are not deleted as expired within the maximum staleness'() {
+    setup:
+    def queue = createTouchQueue()
+    def id = storage.save(file, 0, 'context', null)
+
+    when:
+    queue.touch('context', 0)
+    queue.flush()
+    Thread.sleep(10)
+    storage.deleteExpired()
+    then:
+    storage.find(id)
+
+    cleanup:
+    queue.destroy()
+  }
+
+  def 'Refreshing writes the expiration immediately and replaces a pending touch'() {
+    setup:
+    def queue = createTouchQueue()
+    def id = storage.save(file, MultipartFileStorage.TTL_30_MINUTES, 'context', null)
+    queue.touch('context', 60)
+
+    when:
+    queue.refresh('context', 3600)
+    then:
+    queue.pendingCount == 0
+    storage.find(id).expiresAt.time >= System.currentTimeMillis() + 3600 * 1000L
+
+    cleanup:
+    queue.destroy()
+  }
+
+  TimeToLiveTouchQueue createTouchQueue() {
+    def queue = new TimeToLiveTouchQueue()
+    queue.multipartFileStorage = storage
+    queue.flushInterval = 60
+    queue.maxStaleness = 300
+    queue.afterPropertiesSet()
+    return queue
+  }
+
+  /**
+   * Records the SQL of each statement prepared through the data source's connections. Connections the target data
+   * source does not want closed are left open.
+   */
+  static class StatementRecordingDataSource extends DelegatingDataSource {
+
+    final List<String> statements
+
+    StatementRecordingDataSource(DataSource dataSource, List<String> statements) {
+      super(dataSource)
+      this.statements = statements
+    }
+
+    @Override
+    Connection getConnection() {
+      def connection = super.getConnection()
+      return Proxy.newProxyInstance(getClass().classLoader, [Connection] as Class[], new InvocationHandler() {
+        @Override
+        Object invoke(Object proxy, Method method, Object[] args) {
+          if (method.name in ['prepareStatement', 'prepareCall'] && args[0] instanceof String) {
+            statements << (String) args[0]
+          } else if (method.name == 'close' && targetDataSource instanceof SmartDataSource &&
+              !targetDataSource.shouldClose(connection)) {
+            return null
+          }
+          try {
+            return method.invoke(connection, args)
+          } catch (java.lang.reflect.InvocationTargetException e) {
+            throw e.targetException
+          }
+        }
+      }) as Connection
+    }
+  }
+}
@@ -0,0 +1,133 @@
+package nl.runnable.spring.fileupload
+
+import nl.runnable.spring.fileupload.impl.InMemoryMultipartFileStorage
+import nl.runnable.spring.fileupload.impl.InMemoryStorageMetrics
+import nl.runnable.spring.fileupload.impl.InstrumentedMultipartFileStorage
+import org.springframework.beans.factory.annotation.Autowired
+import org.springframework.mock.web.MockMultipartFile
+import org.springframework.test.context.ContextConfiguration
+import spock.lang.Specification
+
+/**
+ * @author Laurens Fridael
+ */
+@ContextConfiguration(classes = [TestConfig])
+class StorageMetricsSpec extends Specification {
+
+  @Autowired
+  StorageMetrics configuredMetrics
+
+  def metrics = new InMemoryStorageMetrics()
+
+  InMemoryMultipartFileStorage delegate
+
+  MultipartFileStorage storage
+
+  def setup() {
+    delegate = new InMemoryMultipartFileStorage()
+    delegate.afterPropertiesSet()
+    storage = new InstrumentedMultipartFileStorage(delegate, metrics)
+  }
+
+  def 'The latency of each operation and the bytes saved are recorded'() {
+    when:
+    def id = storage.save(createFile(100), 60, 'context', null)
+    storage.saveAll([createFile(10), createFile(20)], 60, 'context', null)
+    storage.find(id)
+    storage.find('unknown')
+    storage.findByContext('context')
+    storage.delete(id)
+    then:
+    metrics.getHistogram('sfus.storage.save').count == 1
+    metrics.getHistogram('sfus.storage.saveAll').count == 1
+    metrics.getHistogram('sfus.storage.find').count == 2
+    metrics.getHistogram('sfus.storage.findByContext').count == 1
+    metrics.getHistogram('sfus.storage.delete').count == 1
+    metrics.getHistogram('sfus.storage.find').max > 0
+    metrics.getCounter(StorageMetrics.STORAGE_BYTES_IN) == 130
+    metrics.getCounter('sfus.storage.find.errors') == 0
+    metrics.getHistogram('sfus.storage.count') == null
+  }
+
+  def 'Failed operations are recorded as errors'() {
+    when:
+    storage.save(createFile(10), -1, null, null)
+    then:
+    thrown(IllegalArgumentException)
+    metrics.getHistogram('sfus.storage.save').count == 1
+    metrics.getCounter('sfus.storage.save.errors') == 1
+    metrics.getCounter(StorageMetrics.STORAGE_BYTES_IN) == 0
+  }
+
+  def 'Percentiles are accurate to within the width of a bucket'() {
+    when:
+    (1..1000).each { metrics.record('latency', it * 1000L) }
+    def histogram = metrics.getHistogram('latency')
+    then:
+    histogram.count == 1000
+    histogram.sum == 500500000L
+    histogram.max == 1000000L
+    histogram.mean == 500500d
+    Math.abs(histogram.getPercentile(0.5) - 500000) <= 500000 / 8
+    Math.abs(histogram.getPercentile(0.99) - 990000) <= 990000 / 8
+    histogram.getPercentile(1) == 1000000L
+    histogram.getPercentile(0) <= 1000 * 9 / 8
+  }
+
+  def 'Small values and zero are recorded exactly'() {
+    when:
+    [0L, 1L, 7L, 8L, 9L].each { metrics.record('values', it) }
+    def histogram = metrics.getHistogram('values')
+    then:
+    histogram.getPercentile(0.2) == 0
+    histogram.getPercentile(0.4) == 1
+    histogram.getPercentile(0.6) == 7
+    histogram.getPercentile(0.8) == 8
+    histogram.getPercentile(1) == 9
+  }
+
+  def 'Measurements are recorded from several threads'() {
+    when:
+    def threads = (0..<8).collect {
+      Thread.start {
+        1000.times {
+          metrics.record('concurrent', 100)
+          metrics.increment('concurrent', 1)
+        }
+      }
+    }
+    threads*.join()
+    then:
+    metrics.getHistogram('concurrent').count == 8000
+    metrics.getCounter('concurrent') == 8000
+    metrics.counterNames == ['concurrent'] as Set
+  }
+
+  def 'Clean-up runs are recorded'() {
+    given:
+    def job = new CleanupExpiredFilesJob()
+    job.multipartFileStorage = storage
+    job.storageMetrics = metrics
+    job.batchPause = 0
+    3.times { storage.save(createFile(50), 0, null, null) }
+    Thread.sleep(5)
+
+    when:
+    job.cleanup()
+    job.cleanup()
+    then:
+    metrics.getHistogram(StorageMetrics.CLEANUP).count == 2
+    metrics.getHistogram(StorageMetrics.CLEANUP_FILES).sum == 3
+    metrics.getHistogram(StorageMetrics.CLEANUP_FILES).max == 3
+    metrics.getHistogram(StorageMetrics.CLEANUP_BYTES).sum == 150
+  }
+
+  def 'The metrics configuration provides an in-memory registry'() {
+    expect:
+    configuredMetrics instanceof InMemoryStorageMetrics
+  }
+
+  static MockMultipartFile createFile(int size) {
+    new MockMultipartFile('file', 'file.bin', 'application/octet-stream', new byte[size])
+  }
+}
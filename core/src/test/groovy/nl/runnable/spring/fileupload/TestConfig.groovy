@@ -1,6 +1,9 @@
 package nl.runnable.spring.fileupload
 
+import nl.runnable.spring.fileupload.config.AsyncFileUploadConfig
+import nl.runnable.spring.fileupload.config.ClusterLockConfig
 import nl.runnable.spring.fileupload.config.DefaultFileUploadConfig
+import nl.runnable.spring.fileupload.config.StorageMetricsConfig
 import org.springframework.beans.factory.annotation.Qualifier
 import org.springframework.beans.factory.config.PropertyPlaceholderConfigurer
 import org.springframework.context.annotation.Bean
@@ -16,7 +19,7 @@ import javax.sql.DataSource
  * @author Laurens Fridael
  */
 @Configuration
-@Import(DefaultFileUploadConfig)
+@Import([DefaultFileUploadConfig, AsyncFileUploadConfig, ClusterLockConfig, StorageMetricsConfig])
 class TestConfig {
 
   @Bean
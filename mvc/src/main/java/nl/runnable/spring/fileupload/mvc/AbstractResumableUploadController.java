@@ -0,0 +1,189 @@
+package nl.runnable.spring.fileupload.mvc;
+
+import nl.runnable.spring.fileupload.MultipartFileStorage;
+import nl.runnable.spring.fileupload.SessionMultipartFileStorage;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.util.Assert;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.EOFException;
+import java.io.IOException;
+
+/**
+ * Base class for controllers that accept resumable uploads. Subclasses are annotated with
+ * {@link org.springframework.stereotype.Controller} and a {@link RequestMapping} for the upload collection, for example:
+ * <pre>
+ * &#64;Controller
+ * &#64;RequestMapping("/uploads")
+ * class UploadController extends AbstractResumableUploadController {
+ * }
+ * </pre>
+ * The protocol is modelled after <a href="https://tus.io/">tus</a>:
+ * <ul>
+ * <li>{@code POST /uploads} with an {@code Upload-Length} header initiates an upload and returns its location.</li>
+ * <li>{@code HEAD /uploads/{id}} returns the current {@code Upload-Offset}.</li>
+ * <li>{@code PATCH /uploads/{id}} with an {@code Upload-Offset} header appends the request body at that offset.</li>
+ * <li>{@code POST /uploads/{id}} finalizes a complete upload, saving it in the session storage.</li>
+ * <li>{@code DELETE /uploads/{id}} aborts an upload.</li>
+ * </ul>
+ * Uploads are bound to the HTTP session that initiated them.
+ *
+ * @author Laurens Fridael
+ */
+public abstract class AbstractResumableUploadController {
+
+  public static final String UPLOAD_LENGTH = "Upload-Length";
+
+  public static final String UPLOAD_OFFSET = "Upload-Offset";
+
+  public static final String UPLOAD_FILE_ID = "Upload-File-Id";
+
+  /* Dependencies */
+
+  @Autowired
+  private ResumableUploadManager uploadManager;
+
+  /* Request handling */
+
+  @RequestMapping(method = RequestMethod.POST)
+  public ResponseEntity<Void> initiate(HttpServletRequest request,
+                                       @RequestHeader(UPLOAD_LENGTH) long length,
+                                       @RequestParam(value = "filename", required = false) String filename,
+                                       @RequestParam(value = "contentType", required = false) String contentType) {
+    if (length < 0) {
+      return new ResponseEntity<Void>(HttpStatus.BAD_REQUEST);
+    }
+    ResumableUpload upload = uploadManager.initiate(getOwner(request), length, filename, contentType);
+    HttpHeaders headers = createHeaders(upload, upload.getOffset());
+    headers.setLocation(ServletUriComponentsBuilder.fromRequestUri(request).path("/{id}")
+        .buildAndExpand(upload.getId()).toUri());
+    return new ResponseEntity<Void>(headers, HttpStatus.CREATED);
+  }
+
+  @RequestMapping(method = RequestMethod.HEAD, value = "/{id}")
+  public ResponseEntity<Void> getOffset(HttpServletRequest request, @PathVariable("id") String id) {
+    ResumableUpload upload = uploadManager.find(getOwner(request), id);
+    if (upload == null) {
+      return new ResponseEntity<Void>(HttpStatus.NOT_FOUND);
+    }
+    HttpHeaders headers = createHeaders(upload, upload.getOffset());
+    headers.setCacheControl("no-store");
+    return new ResponseEntity<Void>(headers, HttpStatus.OK);
+  }
+
+  @RequestMapping(method = RequestMethod.PATCH, value = "/{id}")
+  public ResponseEntity<Void> append(HttpServletRequest request, @PathVariable("id") String id,
+                                     @RequestHeader(UPLOAD_OFFSET) long offset) throws IOException {
+    ResumableUpload upload = uploadManager.find(getOwner(request), id);
+    if (upload == null) {
+      return new ResponseEntity<Void>(HttpStatus.NOT_FOUND);
+    }
+    if (offset != upload.getOffset()) {
+      return new ResponseEntity<Void>(createHeaders(upload, upload.getOffset()), HttpStatus.CONFLICT);
+    }
+    int length = request.getContentLength();
+    if (length < 0) {
+      return new ResponseEntity<Void>(HttpStatus.LENGTH_REQUIRED);
+    }
+    if (length > uploadManager.getMaxPartSize() || offset + length > upload.getLength()) {
+      return new ResponseEntity<Void>(createHeaders(upload, upload.getOffset()), HttpStatus.PAYLOAD_TOO_LARGE);
+    }
+    long newOffset;
+    try {
+      newOffset = uploadManager.append(upload, offset, request.getInputStream(), length);
+    } catch (EOFException e) {
+      return new ResponseEntity<Void>(createHeaders(upload, upload.getOffset()), HttpStatus.BAD_REQUEST);
+    }
+    return new ResponseEntity<Void>(createHeaders(upload, newOffset), HttpStatus.NO_CONTENT);
+  }
+
+  @RequestMapping(method = RequestMethod.POST, value = "/{id}")
+  public ResponseEntity<Void> complete(HttpServletRequest request, SessionMultipartFileStorage storage,
+                                       @PathVariable("id") String id) {
+    ResumableUpload upload = uploadManager.find(getOwner(request), id);
+    if (upload == null) {
+      return new ResponseEntity<Void>(HttpStatus.NOT_FOUND);
+    }
+    if (!upload.isComplete()) {
+      return new ResponseEntity<Void>(createHeaders(upload, upload.getOffset()), HttpStatus.CONFLICT);
+    }
+    String fileId = storage.save(uploadManager.complete(upload), getTimeToLive(), getMetadata(upload));
+    uploadManager.delete(upload);
+    HttpHeaders headers = new HttpHeaders();
+    headers.set(UPLOAD_FILE_ID, fileId);
+    String location = getFileLocation(request, fileId);
+    if (location != null) {
+      headers.set(HttpHeaders.LOCATION, location);
+    }
+    return new ResponseEntity<Void>(headers, HttpStatus.CREATED);
+  }
+
+  @RequestMapping(method = RequestMethod.DELETE, value = "/{id}")
+  public ResponseEntity<Void> abort(HttpServletRequest request, @PathVariable("id") String id) {
+    ResumableUpload upload = uploadManager.find(getOwner(request), id);
+    if (upload == null) {
+      return new ResponseEntity<Void>(HttpStatus.NOT_FOUND);
+    }
+    uploadManager.delete(upload);
+    return new ResponseEntity<Void>(HttpStatus.NO_CONTENT);
+  }
+
+  /* Extension points */
+
+  /**
+   * Obtains the time-to-live of finalized files. Defaults to {@link MultipartFileStorage#TTL_30_MINUTES}.
+   */
+  protected int getTimeToLive() {
+    return MultipartFileStorage.TTL_30_MINUTES;
+  }
+
+  /**
+   * Obtains the metadata to store with a finalized file. Defaults to {@code null}.
+   */
+  @Nullable
+  protected String getMetadata(@NotNull ResumableUpload upload) {
+    return null;
+  }
+
+  /**
+   * Obtains the location at which a finalized file can be retrieved. Defaults to {@code null}, in which case only the
+   * {@value #UPLOAD_FILE_ID} header is returned.
+   */
+  @Nullable
+  protected String getFileLocation(@NotNull HttpServletRequest request, @NotNull String fileId) {
+    return null;
+  }
+
+  /* Utility */
+
+  @NotNull
+  private static String getOwner(@NotNull HttpServletRequest request) {
+    return request.getSession(true).getId();
+  }
+
+  @NotNull
+  private static HttpHeaders createHeaders(@NotNull ResumableUpload upload, long offset) {
+    HttpHeaders headers = new HttpHeaders();
+    headers.set(UPLOAD_OFFSET, String.valueOf(offset));
+    headers.set(UPLOAD_LENGTH, String.valueOf(upload.getLength()));
+    return headers;
+  }
+
+  /* Dependencies */
+
+  public void setUploadManager(@NotNull ResumableUploadManager uploadManager) {
+    Assert.notNull(uploadManager);
+    this.uploadManager = uploadManager;
+  }
+}
@@ -33,6 +33,11 @@ public class DefaultFileUploadMvcConfig extends WebMvcConfigurerAdapter {
     return new HttpSessionMultipartFileStorageInterceptor();
   }
 
+  @Bean
+  ResumableUploadManager resumableUploadManager() {
+    return new ResumableUploadManager();
+  }
+
   @Configuration
   static class MvcConfig extends WebMvcConfigurerAdapter {
 
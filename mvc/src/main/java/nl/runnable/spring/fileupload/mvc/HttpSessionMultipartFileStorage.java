@@ -3,7 +3,9 @@ package nl.runnable.spring.fileupload.mvc;
 import nl.runnable.spring.fileupload.MultipartFileStorage;
 import nl.runnable.spring.fileupload.impl.AbstractSessionMultipartFileStorage;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.springframework.util.Assert;
+import org.springframework.web.multipart.MultipartFile;
 
 import javax.servlet.http.HttpServletRequest;
 
@@ -14,6 +16,8 @@ class HttpSessionMultipartFileStorage extends AbstractSessionMultipartFileStorag
 
   private final HttpServletRequest request;
 
+  private boolean filesSaved = false;
+
   public HttpSessionMultipartFileStorage(@NotNull MultipartFileStorage storage, @NotNull HttpServletRequest request) {
     super(storage);
     Assert.notNull(request);
@@ -25,4 +29,25 @@ class HttpSessionMultipartFileStorage extends AbstractSessionMultipartFileStorag
     return request.getSession(true).getId();
   }
 
+  @NotNull
+  @Override
+  public String save(@NotNull MultipartFile file, int timeToLiveInSeconds, @Nullable String metadata) {
+    filesSaved = true;
+    return super.save(file, timeToLiveInSeconds, metadata);
+  }
+
+  @Override
+  public void save(@NotNull MultipartFile file, @NotNull String id, int timeToLiveInSeconds,
+                   @Nullable String metadata) {
+    filesSaved = true;
+    super.save(file, id, timeToLiveInSeconds, metadata);
+  }
+
+  /**
+   * Indicates if files were saved through this instance, i.e. during the current request.
+   */
+  boolean isFilesSaved() {
+    return filesSaved;
+  }
+
 }
@@ -1,7 +1,11 @@
 package nl.runnable.spring.fileupload.mvc;
 
+import nl.runnable.spring.fileupload.StorageMetrics;
+import nl.runnable.spring.fileupload.impl.TimeToLiveTouchQueue;
+import org.jetbrains.annotations.NotNull;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.web.servlet.handler.HandlerInterceptorAdapter;
 
 import javax.servlet.http.HttpServletRequest;
@@ -9,12 +13,33 @@ import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
 
 /**
+ * Extends the time-to-live of session-bound files to the session's timeout after each request that used them.
+ * <p>
+ * If a {@link TimeToLiveTouchQueue} is available, extensions are coalesced and written in the background. Requests that
+ * saved files write the extension immediately, as the new files are not covered by earlier extensions.
+ * </p>
+ * <p>
+ * If {@link StorageMetrics} are available, extensions written immediately are counted as
+ * {@link StorageMetrics#SESSION_TIME_TO_LIVE_REFRESHES refreshes} and coalesced extensions as
+ * {@link StorageMetrics#SESSION_TIME_TO_LIVE_TOUCHES touches}.
+ * </p>
+ *
  * @author Laurens Fridael
  */
 public class HttpSessionMultipartFileStorageInterceptor extends HandlerInterceptorAdapter {
 
   private final Logger logger = LoggerFactory.getLogger(getClass());
 
+  /* Dependencies */
+
+  @Autowired(required = false)
+  private TimeToLiveTouchQueue touchQueue;
+
+  @Autowired(required = false)
+  private StorageMetrics storageMetrics;
+
+  /* Main operations */
+
   @Override
   public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler,
                               Exception ex) throws Exception {
@@ -25,8 +50,33 @@ public class HttpSessionMultipartFileStorageInterceptor extends HandlerIntercept
       if (session != null) {
         int timeToLiveInSeconds = session.getMaxInactiveInterval();
         logger.debug("Setting time-to-live for session-bound files to {} seconds", timeToLiveInSeconds);
-        sessionStorage.setTimeToLive(timeToLiveInSeconds);
+        if (touchQueue == null) {
+          sessionStorage.setTimeToLive(timeToLiveInSeconds);
+          count(StorageMetrics.SESSION_TIME_TO_LIVE_REFRESHES);
+        } else if (sessionStorage.isFilesSaved()) {
+          touchQueue.refresh(session.getId(), timeToLiveInSeconds);
+          count(StorageMetrics.SESSION_TIME_TO_LIVE_REFRESHES);
+        } else {
+          touchQueue.touch(session.getId(), timeToLiveInSeconds);
+          count(StorageMetrics.SESSION_TIME_TO_LIVE_TOUCHES);
+        }
       }
     }
   }
+
+  private void count(@NotNull String name) {
+    if (storageMetrics != null) {
+      storageMetrics.increment(name, 1);
+    }
+  }
+
+  /* Dependencies */
+
+  public void setTouchQueue(TimeToLiveTouchQueue touchQueue) {
+    this.touchQueue = touchQueue;
+  }
+
+  public void setStorageMetrics(StorageMetrics storageMetrics) {
+    this.storageMetrics = storageMetrics;
+  }
 }
@@ -0,0 +1,96 @@
+package nl.runnable.spring.fileupload.mvc;
+
+import nl.runnable.spring.fileupload.StoredMultipartFile;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Represents the state of an upload managed by {@link ResumableUploadManager}.
+ *
+ * @author Laurens Fridael
+ */
+public class ResumableUpload {
+
+  private final String id;
+
+  private final String context;
+
+  private final long length;
+
+  private final String filename;
+
+  private final String contentType;
+
+  private final List<StoredMultipartFile> parts;
+
+  private final long offset;
+
+  ResumableUpload(@NotNull String id, @NotNull String context, long length, @Nullable String filename,
+                  @Nullable String contentType, @NotNull List<StoredMultipartFile> parts, long offset) {
+    this.id = id;
+    this.context = context;
+    this.length = length;
+    this.filename = filename;
+    this.contentType = contentType;
+    this.parts = Collections.unmodifiableList(parts);
+    this.offset = offset;
+  }
+
+  /**
+   * Obtains the upload ID.
+   */
+  @NotNull
+  public String getId() {
+    return id;
+  }
+
+  /**
+   * Obtains the context in which the parts of this upload are staged.
+   */
+  @NotNull
+  String getContext() {
+    return context;
+  }
+
+  /**
+   * Obtains the total number of bytes declared when the upload was initiated.
+   */
+  public long getLength() {
+    return length;
+  }
+
+  /**
+   * Obtains the number of bytes received so far. This is the offset at which the next part must be appended.
+   */
+  public long getOffset() {
+    return offset;
+  }
+
+  /**
+   * Tests if all declared bytes have been received.
+   */
+  public boolean isComplete() {
+    return offset == length;
+  }
+
+  @Nullable
+  public String getFilename() {
+    return filename;
+  }
+
+  @Nullable
+  public String getContentType() {
+    return contentType;
+  }
+
+  /**
+   * Obtains the staged parts, ordered by offset.
+   */
+  @NotNull
+  List<StoredMultipartFile> getParts() {
+    return parts;
+  }
+}
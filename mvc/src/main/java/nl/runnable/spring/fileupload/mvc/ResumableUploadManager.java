@@ -0,0 +1,363 @@
+package nl.runnable.spring.fileupload.mvc;
+
+import nl.runnable.spring.fileupload.IdGenerator;
+import nl.runnable.spring.fileupload.MultipartFileStorage;
+import nl.runnable.spring.fileupload.StoredMultipartFile;
+import nl.runnable.spring.fileupload.impl.UuidGenerator;
+import nl.runnable.spring.fileupload.util.ResourceMultipartFile;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.util.Assert;
+import org.springframework.util.FileCopyUtils;
+import org.springframework.util.StringUtils;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Manages uploads that are sent in several parts, so that an interrupted upload can be resumed from the last part that
+ * was received.
+ * <p>
+ * Parts are staged in {@link MultipartFileStorage} under a context that is unique to the upload and its owner, along
+ * with a manifest holding the upload's declared length, filename and content type. Staged parts expire after
+ * {@link #setStagingTimeToLive(int) the staging time-to-live} unless the upload makes progress. Once all bytes have
+ * been received, {@link #complete(ResumableUpload)} provides the assembled file, which can then be saved using the
+ * regular storage operations.
+ * </p>
+ *
+ * @author Laurens Fridael
+ */
+public class ResumableUploadManager {
+
+  private static final String CONTEXT_PREFIX = "resumable-upload:";
+
+  private static final String MANIFEST = "manifest";
+
+  private static final String PART = "part";
+
+  private final Logger logger = LoggerFactory.getLogger(getClass());
+
+  /* Dependencies */
+
+  @Autowired
+  private MultipartFileStorage storage;
+
+  private IdGenerator idGenerator = new UuidGenerator();
+
+  /* Configuration */
+
+  @Value("${spring-file-upload-storage.resumable.stagingTimeToLive:3600}")
+  private int stagingTimeToLive = MultipartFileStorage.TTL_1_HOUR;
+
+  @Value("${spring-file-upload-storage.resumable.maxPartSize:8388608}")
+  private int maxPartSize = 8 * 1024 * 1024;
+
+  /* Main operations */
+
+  /**
+   * Initiates an upload.
+   *
+   * @param owner       Identifies the party that may access the upload, typically the session ID.
+   * @param length      The total number of bytes that will be uploaded.
+   * @param filename    The original filename.
+   * @param contentType The content type.
+   * @return The upload.
+   */
+  @NotNull
+  public ResumableUpload initiate(@NotNull String owner, long length, @Nullable String filename,
+                                  @Nullable String contentType) {
+    Assert.hasText(owner, "Owner cannot be empty.");
+    Assert.isTrue(length >= 0, "Length cannot be less than 0.");
+
+    String id = idGenerator.generateId();
+    String context = getContext(owner, id);
+    ResourceMultipartFile manifest = new ResourceMultipartFile(new ByteArrayResource(new byte[0]), MANIFEST,
+        contentType, 0);
+    manifest.setOriginalFilename(filename);
+    storage.save(manifest, id, stagingTimeToLive, context, String.valueOf(length));
+    logger.debug("Initiated upload '{}' of {} bytes.", id, length);
+    return new ResumableUpload(id, context, length, filename, contentType, Collections.<StoredMultipartFile>emptyList(),
+        0);
+  }
+
+  /**
+   * Finds an upload.
+   *
+   * @param owner The owner that initiated the upload.
+   * @param id    The upload ID.
+   * @return The upload or {@code null} if no such upload exists for the given owner or if it has expired.
+   */
+  @Nullable
+  public ResumableUpload find(@NotNull String owner, @NotNull String id) {
+    Assert.hasText(owner, "Owner cannot be empty.");
+    Assert.hasText(id, "ID cannot be empty.");
+
+    String context = getContext(owner, id);
+    StoredMultipartFile manifest = null;
+    List<StoredMultipartFile> parts = new ArrayList<StoredMultipartFile>();
+    for (StoredMultipartFile file : storage.findByContext(context)) {
+      if (MANIFEST.equals(file.getName()) && id.equals(file.getId())) {
+        manifest = file;
+      } else if (PART.equals(file.getName())) {
+        parts.add(file);
+      }
+    }
+    if (manifest == null) {
+      return null;
+    }
+    Collections.sort(parts, new Comparator<StoredMultipartFile>() {
+
+      @Override
+      public int compare(StoredMultipartFile p1, StoredMultipartFile p2) {
+        long o1 = getPartOffset(p1);
+        long o2 = getPartOffset(p2);
+        return o1 < o2 ? -1 : (o1 == o2 ? 0 : 1);
+      }
+    });
+    long offset = 0;
+    List<StoredMultipartFile> contiguousParts = new ArrayList<StoredMultipartFile>(parts.size());
+    for (StoredMultipartFile part : parts) {
+      if (getPartOffset(part) != offset) {
+        break;
+      }
+      contiguousParts.add(part);
+      offset += part.getSize();
+    }
+    return new ResumableUpload(id, context, Long.parseLong(manifest.getMetadata()), manifest.getOriginalFilename(),
+        manifest.getContentType(), contiguousParts, offset);
+  }
+
+  /**
+   * Appends a part to an upload.
+   *
+   * @param upload The upload.
+   * @param offset The offset of the part, which must be equal to the upload's current offset.
+   * @param data   The part's content.
+   * @param length The part's length.
+   * @return The new offset.
+   * @throws IllegalStateException    If the offset does not match that of the upload.
+   * @throws IllegalArgumentException If the part is larger than the maximum part size or extends beyond the declared
+   *                                  length.
+   * @throws EOFException             If the data ends before the given length. The part is discarded.
+   */
+  public long append(@NotNull ResumableUpload upload, long offset, @NotNull InputStream data, long length)
+      throws IOException {
+    Assert.notNull(upload, "Upload cannot be null.");
+    Assert.notNull(data, "Data cannot be null.");
+    if (offset != upload.getOffset()) {
+      throw new IllegalStateException(String.format("Expected offset %d, but got %d.", upload.getOffset(), offset));
+    }
+    Assert.isTrue(length >= 0 && length <= maxPartSize,
+        String.format("Part length must be between 0 and %d bytes.", maxPartSize));
+    Assert.isTrue(offset + length <= upload.getLength(), "Part extends beyond the declared length of the upload.");
+
+    // The part is buffered, so that an interrupted request does not leave a partial part behind.
+    byte[] content = new byte[(int) length];
+    int read = 0;
+    int count;
+    while (read < content.length && (count = data.read(content, read, content.length - read)) != -1) {
+      read += count;
+    }
+    if (read < content.length) {
+      throw new EOFException(String.format("Expected %d bytes, but only received %d.", length, read));
+    }
+    storage.save(new ResourceMultipartFile(new ByteArrayResource(content), PART, null, length),
+        upload.getId() + "-" + offset, stagingTimeToLive, upload.getContext(), String.valueOf(offset));
+    extendStaging(upload);
+    logger.debug("Appended {} bytes at offset {} to upload '{}'.", length, offset, upload.getId());
+    return offset + length;
+  }
+
+  /**
+   * Obtains the file assembled from the parts of a completed upload. The parts are read lazily, so the file is only
+   * valid until the upload is deleted.
+   *
+   * @param upload The upload.
+   * @return The assembled file.
+   * @throws IllegalStateException If not all bytes have been received yet.
+   */
+  @NotNull
+  public MultipartFile complete(@NotNull ResumableUpload upload) {
+    Assert.notNull(upload, "Upload cannot be null.");
+    Assert.state(upload.isComplete(), String.format("Upload is incomplete: received %d of %d bytes.",
+        upload.getOffset(), upload.getLength()));
+
+    return new AssembledMultipartFile(upload);
+  }
+
+  /**
+   * Deletes an upload and its staged parts.
+   *
+   * @param upload The upload.
+   * @return The number of staged files deleted.
+   */
+  public int delete(@NotNull ResumableUpload upload) {
+    Assert.notNull(upload, "Upload cannot be null.");
+
+    return storage.deleteByContext(upload.getContext());
+  }
+
+  /* Utility */
+
+  @NotNull
+  private static String getContext(@NotNull String owner, @NotNull String id) {
+    return CONTEXT_PREFIX + owner + ":" + id;
+  }
+
+  private static long getPartOffset(@NotNull StoredMultipartFile part) {
+    String metadata = part.getMetadata();
+    return StringUtils.hasText(metadata) ? Long.parseLong(metadata) : -1;
+  }
+
+  /**
+   * Extends the time-to-live of all staged files of an upload that is making progress.
+   */
+  private void extendStaging(@NotNull ResumableUpload upload) {
+    storage.setTimeToLiveByContext(upload.getContext(), stagingTimeToLive);
+  }
+
+  /**
+   * {@link MultipartFile} that reads the parts of an upload in sequence.
+   */
+  private static class AssembledMultipartFile implements MultipartFile {
+
+    private final ResumableUpload upload;
+
+    AssembledMultipartFile(@NotNull ResumableUpload upload) {
+      this.upload = upload;
+    }
+
+    @Override
+    public String getName() {
+      return "file";
+    }
+
+    @Override
+    public String getOriginalFilename() {
+      return upload.getFilename();
+    }
+
+    @Override
+    public String getContentType() {
+      return upload.getContentType();
+    }
+
+    @Override
+    public boolean isEmpty() {
+      return getSize() == 0;
+    }
+
+    @Override
+    public long getSize() {
+      return upload.getLength();
+    }
+
+    @Override
+    public byte[] getBytes() throws IOException {
+      return FileCopyUtils.copyToByteArray(getInputStream());
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+      return new PartsInputStream(upload.getParts().iterator());
+    }
+
+    @Override
+    public void transferTo(File dest) throws IOException, IllegalStateException {
+      FileCopyUtils.copy(getInputStream(), new FileOutputStream(dest));
+    }
+  }
+
+  /**
+   * Opens each part only when the previous part has been read completely.
+   */
+  private static class PartsInputStream extends InputStream {
+
+    private final Iterator<StoredMultipartFile> parts;
+
+    private InputStream current;
+
+    PartsInputStream(@NotNull Iterator<StoredMultipartFile> parts) {
+      this.parts = parts;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0) {
+        return 0;
+      }
+      while (true) {
+        if (current == null) {
+          if (!parts.hasNext()) {
+            return -1;
+          }
+          current = parts.next().getInputStream();
+        }
+        int count = current.read(b, off, len);
+        if (count != -1) {
+          return count;
+        }
+        current.close();
+        current = null;
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (current != null) {
+        current.close();
+        current = null;
+      }
+    }
+  }
+
+  /* Dependencies */
+
+  public void setStorage(@NotNull MultipartFileStorage storage) {
+    Assert.notNull(storage);
+    this.storage = storage;
+  }
+
+  public void setIdGenerator(@NotNull IdGenerator idGenerator) {
+    Assert.notNull(idGenerator);
+    this.idGenerator = idGenerator;
+  }
+
+  /* Configuration */
+
+  /**
+   * Sets the time that staged parts are kept after the upload last made progress.
+   */
+  public void setStagingTimeToLive(int stagingTimeToLive) {
+    Assert.isTrue(stagingTimeToLive > 0, "Staging time-to-live must be greater than 0.");
+    this.stagingTimeToLive = stagingTimeToLive;
+  }
+
+  /**
+   * Sets the maximum size of a single part. Parts are buffered in memory before they are staged.
+   */
+  public void setMaxPartSize(int maxPartSize) {
+    Assert.isTrue(maxPartSize > 0, "Maximum part size must be greater than 0.");
+    this.maxPartSize = maxPartSize;
+  }
+
+  public int getMaxPartSize() {
+    return maxPartSize;
+  }
+}
@@ -1,19 +1,110 @@
 package nl.runnable.spring.fileupload.mvc;
 
+import nl.runnable.spring.fileupload.EncodedMultipartFile;
+import nl.runnable.spring.fileupload.FileBackedMultipartFile;
+import nl.runnable.spring.fileupload.HashedMultipartFile;
+import nl.runnable.spring.fileupload.StorageMetrics;
 import nl.runnable.spring.fileupload.StoredMultipartFile;
+import nl.runnable.spring.fileupload.impl.AbstractStoredMultipartFile;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.core.MethodParameter;
-import org.springframework.util.FileCopyUtils;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
+import org.springframework.util.MimeTypeUtils;
+import org.springframework.util.StreamUtils;
+import org.springframework.util.StringUtils;
 import org.springframework.web.context.request.NativeWebRequest;
 import org.springframework.web.method.support.HandlerMethodReturnValueHandler;
 import org.springframework.web.method.support.ModelAndViewContainer;
 
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 
 /**
+ * Writes {@link StoredMultipartFile}s returned from handler methods to the response.
+ * <p>
+ * Supports byte range requests as defined by RFC 7233. A single range produces a {@code 206 Partial Content} response,
+ * multiple ranges produce a {@code multipart/byteranges} response. Only the requested bytes are read from storage.
+ * Overlapping and adjacent ranges are merged, so no byte is read more than once, and requests for more than 16 ranges
+ * receive the full content.
+ * </p>
+ * <p>
+ * Responses carry a {@code Last-Modified} date equal to {@link StoredMultipartFile#getCreatedAt()} and, for
+ * {@link HashedMultipartFile}s, an {@code ETag} derived from {@link HashedMultipartFile#getContentHash()}. Conditional
+ * requests are answered with {@code 304 Not Modified} without reading the file's content.
+ * </p>
+ * <p>
+ * Content of {@link FileBackedMultipartFile}s is sent directly from the file, using the container's {@code sendfile}
+ * support where available.
+ * </p>
+ * <p>
+ * Content of {@link EncodedMultipartFile}s stored using gzip is sent as-is with {@code Content-Encoding: gzip} to
+ * clients that accept it. Other clients, and range requests, receive the content decompressed while it is streamed.
+ * The gzip representation has its own {@code ETag}, as RFC 7232 requires for strong entity tags.
+ * </p>
+ * <p>
+ * Handler methods can also return a {@code ListenableFuture<StoredMultipartFile>}, such as one obtained from
+ * {@link nl.runnable.spring.fileupload.AsyncMultipartFileStorage#find(String)}. The request is then processed
+ * asynchronously: the container thread is released while the file is looked up and the file is written once the
+ * future completes.
+ * </p>
+ * <p>
+ * If {@link StorageMetrics} are available, the duration of each download, its time to first byte and the number of
+ * bytes sent are recorded, measured from the moment the handler method returned the file, or its future completed.
+ * Responses without content, such as {@code 304 Not Modified}, are not recorded.
+ * </p>
+ *
  * @author Laurens Fridael
  */
 public class StoredMultipartFileReturnValueHandler implements HandlerMethodReturnValueHandler {
 
+  private static final String BYTES = "bytes";
+
+  /**
+   * The maximum number of ranges served for a single request. Requests for more ranges receive the full content.
+   */
+  private static final int MAX_RANGES = 16;
+
+  private static final String GZIP = "gzip";
+
+  private static final String X_GZIP = "x-gzip";
+
+  private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+  private static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+
+  private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+
+  private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+
+  private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+
+  /* Dependencies */
+
+  @Autowired(required = false)
+  private StorageMetrics storageMetrics;
+
+  /* Main operations */
+
   @Override
   public boolean supportsReturnType(MethodParameter returnType) {
     return StoredMultipartFile.class.isAssignableFrom(returnType.getParameterType());
@@ -22,15 +113,468 @@ public class StoredMultipartFileReturnValueHandler implements HandlerMethodRetur
   @Override
   public void handleReturnValue(Object returnValue, MethodParameter returnType, ModelAndViewContainer mavContainer,
                                 NativeWebRequest webRequest) throws Exception {
-    HttpServletResponse response = (HttpServletResponse) webRequest.getNativeResponse();
+    long startedAt = System.nanoTime();
+    mavContainer.setRequestHandled(true);
+    HttpServletRequest request = webRequest.getNativeRequest(HttpServletRequest.class);
+    HttpServletResponse response = webRequest.getNativeResponse(HttpServletResponse.class);
     if (returnValue == null) {
       response.sendError(HttpServletResponse.SC_NOT_FOUND);
       return;
     }
 
     StoredMultipartFile multipartFile = (StoredMultipartFile) returnValue;
+    boolean gzipped = isGzipped(multipartFile);
+    if (gzipped) {
+      response.setHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+    }
+    // Ranges apply to the decompressed content, so range requests never receive the gzip representation.
+    boolean sendGzipped = gzipped && !StringUtils.hasText(request.getHeader(HttpHeaders.RANGE)) &&
+        acceptsGzip(request);
+    if (checkNotModified(multipartFile, sendGzipped, request, response)) {
+      return;
+    }
+    response.setHeader(HttpHeaders.ACCEPT_RANGES, BYTES);
+    List<HttpRange> ranges = Collections.emptyList();
+    if (!sendGzipped) {
+      try {
+        ranges = getRequestedRanges(request, multipartFile);
+      } catch (IllegalArgumentException e) {
+        response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + multipartFile.getSize());
+        response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+        return;
+      }
+    }
+
+    MeteredResponse meteredResponse = storageMetrics != null ? new MeteredResponse(response, startedAt) : null;
+    if (meteredResponse != null) {
+      response = meteredResponse;
+    }
+    if (sendGzipped) {
+      writeEncodedContent((EncodedMultipartFile) multipartFile, response);
+    } else if (ranges.isEmpty()) {
+      writeContent(multipartFile, request, response);
+    } else if (ranges.size() == 1) {
+      writePartialContent(multipartFile, ranges.get(0), request, response);
+    } else {
+      writePartialContent(multipartFile, ranges, response);
+    }
+    if (meteredResponse != null) {
+      meteredResponse.record();
+    }
+  }
+
+  /**
+   * Evaluates {@code If-None-Match} and {@code If-Modified-Since}, using only the file's metadata. As per RFC 7232,
+   * {@code If-Modified-Since} is ignored if {@code If-None-Match} is present.
+   *
+   * @return {@code true} if a {@code 304 Not Modified} response has been prepared.
+   */
+  private boolean checkNotModified(@NotNull StoredMultipartFile multipartFile, boolean gzipped,
+                                   @NotNull HttpServletRequest request, @NotNull HttpServletResponse response) {
+    String etag = gzipped ? getGzipETag(multipartFile) : getETag(multipartFile);
+    long lastModified = multipartFile.getCreatedAt().getTime() / 1000 * 1000;
+    if (etag != null) {
+      response.setHeader(HttpHeaders.ETAG, etag);
+    }
+    response.setDateHeader(HttpHeaders.LAST_MODIFIED, lastModified);
+    if (!"GET".equals(request.getMethod()) && !"HEAD".equals(request.getMethod())) {
+      return false;
+    }
+
+    boolean notModified;
+    String ifNoneMatch = request.getHeader(HttpHeaders.IF_NONE_MATCH);
+    if (StringUtils.hasText(ifNoneMatch)) {
+      notModified = etag != null && matchesETag(ifNoneMatch, etag);
+    } else {
+      long ifModifiedSince;
+      try {
+        ifModifiedSince = request.getDateHeader(HttpHeaders.IF_MODIFIED_SINCE);
+      } catch (IllegalArgumentException e) {
+        ifModifiedSince = -1;
+      }
+      notModified = ifModifiedSince >= lastModified;
+    }
+    if (notModified) {
+      response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+    }
+    return notModified;
+  }
+
+  /**
+   * Tests if a list of entity tags matches the given entity tag using weak comparison.
+   */
+  private static boolean matchesETag(@NotNull String candidates, @NotNull String etag) {
+    for (String candidate : StringUtils.commaDelimitedListToStringArray(candidates)) {
+      candidate = candidate.trim();
+      if (candidate.startsWith("W/")) {
+        candidate = candidate.substring(2);
+      }
+      if (candidate.equals("*") || candidate.equals(etag)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void writeContent(@NotNull StoredMultipartFile multipartFile, @NotNull HttpServletRequest request,
+                            @NotNull HttpServletResponse response) throws IOException {
+    response.setContentType(multipartFile.getContentType());
+    setContentLength(response, multipartFile.getSize());
+    if (multipartFile instanceof FileBackedMultipartFile) {
+      transfer(((FileBackedMultipartFile) multipartFile).getFile(), 0, multipartFile.getSize(), request, response);
+    } else {
+      copy(multipartFile.getInputStream(), getOutputStream(response));
+    }
+  }
+
+  private void writeEncodedContent(@NotNull EncodedMultipartFile multipartFile, @NotNull HttpServletResponse response)
+      throws IOException {
     response.setContentType(multipartFile.getContentType());
-    response.setContentLength((int) multipartFile.getSize());
-    FileCopyUtils.copy(multipartFile.getInputStream(), response.getOutputStream());
+    response.setHeader(HttpHeaders.CONTENT_ENCODING, GZIP);
+    if (multipartFile.getEncodedSize() >= 0) {
+      setContentLength(response, multipartFile.getEncodedSize());
+    }
+    copy(multipartFile.getEncodedInputStream(), getOutputStream(response));
+  }
+
+  private void writePartialContent(@NotNull StoredMultipartFile multipartFile, @NotNull HttpRange range,
+                                   @NotNull HttpServletRequest request, @NotNull HttpServletResponse response)
+      throws IOException {
+    long size = multipartFile.getSize();
+    long start = range.getRangeStart(size);
+    long end = range.getRangeEnd(size);
+    response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+    response.setContentType(multipartFile.getContentType());
+    response.setHeader(HttpHeaders.CONTENT_RANGE, contentRange(start, end, size));
+    setContentLength(response, end - start + 1);
+    if (multipartFile instanceof FileBackedMultipartFile) {
+      transfer(((FileBackedMultipartFile) multipartFile).getFile(), start, end - start + 1, request, response);
+    } else {
+      InputStream in = AbstractStoredMultipartFile.getInputStream(multipartFile, start, end - start + 1);
+      copy(in, getOutputStream(response));
+    }
+  }
+
+  private void writePartialContent(@NotNull StoredMultipartFile multipartFile, @NotNull List<HttpRange> ranges,
+                                   @NotNull HttpServletResponse response) throws IOException {
+    long size = multipartFile.getSize();
+    String boundary = MimeTypeUtils.generateMultipartBoundaryString();
+    response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+    response.setContentType("multipart/byteranges; boundary=" + boundary);
+    OutputStream out = getOutputStream(response);
+    for (HttpRange range : ranges) {
+      long start = range.getRangeStart(size);
+      long end = range.getRangeEnd(size);
+      print(out, "\r\n--" + boundary + "\r\n");
+      if (multipartFile.getContentType() != null) {
+        print(out, HttpHeaders.CONTENT_TYPE + ": " + multipartFile.getContentType() + "\r\n");
+      }
+      print(out, HttpHeaders.CONTENT_RANGE + ": " + contentRange(start, end, size) + "\r\n\r\n");
+      InputStream in = AbstractStoredMultipartFile.getInputStream(multipartFile, start, end - start + 1);
+      try {
+        StreamUtils.copy(in, out);
+      } finally {
+        in.close();
+      }
+    }
+    print(out, "\r\n--" + boundary + "--");
+    out.flush();
+  }
+
+  /**
+   * Obtains the byte ranges requested by the client, ordered by position, with overlapping and adjacent ranges merged.
+   *
+   * @return The requested ranges or an empty list if the full content should be sent.
+   * @throws IllegalArgumentException If the requested ranges cannot be satisfied.
+   */
+  @NotNull
+  private List<HttpRange> getRequestedRanges(@NotNull HttpServletRequest request,
+                                             @NotNull StoredMultipartFile multipartFile) {
+    String rangeHeader = request.getHeader(HttpHeaders.RANGE);
+    if (!StringUtils.hasText(rangeHeader) || !isRangeApplicable(request, multipartFile)) {
+      return Collections.emptyList();
+    }
+    List<HttpRange> ranges;
+    try {
+      ranges = HttpRange.parseRanges(rangeHeader);
+    } catch (IllegalArgumentException e) {
+      // Malformed Range headers must be ignored.
+      return Collections.emptyList();
+    }
+    if (ranges.size() > MAX_RANGES) {
+      // RFC 7233 allows ignoring the Range header, which keeps a single request from reading the content many times.
+      return Collections.emptyList();
+    }
+    long size = multipartFile.getSize();
+    List<HttpRange> satisfiable = new ArrayList<HttpRange>(ranges.size());
+    for (HttpRange range : ranges) {
+      if (size > 0 && range.getRangeStart(size) < size && range.getRangeStart(size) <= range.getRangeEnd(size)) {
+        satisfiable.add(range);
+      }
+    }
+    if (satisfiable.isEmpty()) {
+      throw new IllegalArgumentException("None of the requested ranges can be satisfied.");
+    }
+    return merge(satisfiable, size);
+  }
+
+  /**
+   * Orders the given ranges by position and merges those that overlap or are adjacent.
+   */
+  @NotNull
+  private static List<HttpRange> merge(@NotNull List<HttpRange> ranges, final long size) {
+    if (ranges.size() == 1) {
+      return ranges;
+    }
+    List<HttpRange> sorted = new ArrayList<HttpRange>(ranges);
+    Collections.sort(sorted, new Comparator<HttpRange>() {
+      @Override
+      public int compare(HttpRange a, HttpRange b) {
+        long start = a.getRangeStart(size);
+        long otherStart = b.getRangeStart(size);
+        return start < otherStart ? -1 : (start == otherStart ? 0 : 1);
+      }
+    });
+    List<HttpRange> merged = new ArrayList<HttpRange>(sorted.size());
+    long start = sorted.get(0).getRangeStart(size);
+    long end = sorted.get(0).getRangeEnd(size);
+    for (HttpRange range : sorted.subList(1, sorted.size())) {
+      if (range.getRangeStart(size) <= end + 1) {
+        end = Math.max(end, range.getRangeEnd(size));
+      } else {
+        merged.add(HttpRange.createByteRange(start, end));
+        start = range.getRangeStart(size);
+        end = range.getRangeEnd(size);
+      }
+    }
+    merged.add(HttpRange.createByteRange(start, end));
+    return merged;
+  }
+
+  /**
+   * Evaluates the {@code If-Range} header. Ranges only apply if the given entity tag matches that of the file or if the
+   * given date exactly equals the file's last modification date, as RFC 7233 requires.
+   */
+  private boolean isRangeApplicable(@NotNull HttpServletRequest request, @NotNull StoredMultipartFile multipartFile) {
+    String ifRange = request.getHeader(HttpHeaders.IF_RANGE);
+    if (!StringUtils.hasText(ifRange)) {
+      return true;
+    }
+    ifRange = ifRange.trim();
+    if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+      // If-Range requires a strong comparison, so weak entity tags never match.
+      return ifRange.equals(getETag(multipartFile));
+    }
+    long date;
+    try {
+      date = request.getDateHeader(HttpHeaders.IF_RANGE);
+    } catch (IllegalArgumentException e) {
+      return false;
+    }
+    long lastModified = multipartFile.getCreatedAt().getTime() / 1000 * 1000;
+    return lastModified == date;
+  }
+
+  @Nullable
+  private static String getETag(@NotNull StoredMultipartFile multipartFile) {
+    String contentHash = getContentHash(multipartFile);
+    return contentHash != null ? "\"" + contentHash + "\"" : null;
+  }
+
+  @Nullable
+  private static String getGzipETag(@NotNull StoredMultipartFile multipartFile) {
+    String contentHash = getContentHash(multipartFile);
+    return contentHash != null ? "\"" + contentHash + "-" + GZIP + "\"" : null;
+  }
+
+  @Nullable
+  private static String getContentHash(@NotNull StoredMultipartFile multipartFile) {
+    return multipartFile instanceof HashedMultipartFile ? ((HashedMultipartFile) multipartFile).getContentHash() : null;
+  }
+
+  private static boolean isGzipped(@NotNull StoredMultipartFile multipartFile) {
+    return multipartFile instanceof EncodedMultipartFile &&
+        GZIP.equals(((EncodedMultipartFile) multipartFile).getContentEncoding());
+  }
+
+  /**
+   * Evaluates the {@code Accept-Encoding} header. A quality value of 0 excludes an encoding, as does the absence of the
+   * header.
+   */
+  private static boolean acceptsGzip(@NotNull HttpServletRequest request) {
+    String acceptEncoding = request.getHeader(HttpHeaders.ACCEPT_ENCODING);
+    if (!StringUtils.hasText(acceptEncoding)) {
+      return false;
+    }
+    boolean wildcard = false;
+    for (String coding : StringUtils.commaDelimitedListToStringArray(acceptEncoding)) {
+      String[] parts = coding.split(";");
+      String name = parts[0].trim();
+      if (name.equalsIgnoreCase(GZIP) || name.equalsIgnoreCase(X_GZIP)) {
+        return getQuality(parts) > 0;
+      }
+      if (name.equals("*")) {
+        wildcard = getQuality(parts) > 0;
+      }
+    }
+    return wildcard;
+  }
+
+  private static float getQuality(@NotNull String[] parts) {
+    for (int i = 1; i < parts.length; i++) {
+      String parameter = parts[i].trim();
+      if (parameter.startsWith("q=")) {
+        try {
+          return Float.parseFloat(parameter.substring(2));
+        } catch (NumberFormatException e) {
+          return 0;
+        }
+      }
+    }
+    return 1;
+  }
+
+  private static String contentRange(long start, long end, long size) {
+    return BYTES + " " + start + "-" + end + "/" + size;
+  }
+
+  private static void setContentLength(@NotNull HttpServletResponse response, long contentLength) {
+    if (contentLength <= Integer.MAX_VALUE) {
+      response.setContentLength((int) contentLength);
+    } else {
+      response.setHeader(HttpHeaders.CONTENT_LENGTH, Long.toString(contentLength));
+    }
+  }
+
+  /**
+   * Sends part of a file. If the container supports it, as Tomcat does, the file is handed to the container to be sent
+   * using {@code sendfile}. Otherwise the file is sent using {@link FileChannel#transferTo(long, long,
+   * WritableByteChannel)}.
+   */
+  private static void transfer(@NotNull File file, long position, long count, @NotNull HttpServletRequest request,
+                               @NotNull HttpServletResponse response) throws IOException {
+    if (!file.isFile()) {
+      throw new FileNotFoundException(String.format("File '%s' no longer exists.", file));
+    }
+    if (Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT))) {
+      request.setAttribute(SENDFILE_FILENAME, file.getAbsolutePath());
+      request.setAttribute(SENDFILE_START, position);
+      request.setAttribute(SENDFILE_END, position + count);
+      if (response instanceof MeteredResponse) {
+        ((MeteredResponse) response).handedOff(count);
+      }
+      return;
+    }
+    FileInputStream in = new FileInputStream(file);
+    try {
+      FileChannel source = in.getChannel();
+      OutputStream out = getOutputStream(response);
+      WritableByteChannel target = Channels.newChannel(out);
+      long end = position + count;
+      while (position < end) {
+        long transferred = source.transferTo(position, end - position, target);
+        if (transferred <= 0) {
+          throw new EOFException(String.format("File '%s' ends before the expected size.", file));
+        }
+        position += transferred;
+      }
+      out.flush();
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Obtains the stream to write content to, which counts the content if the response is metered. The stream of the
+   * container is not wrapped, so that its non-blocking API remains available to filters and the container.
+   */
+  @NotNull
+  private static OutputStream getOutputStream(@NotNull HttpServletResponse response) throws IOException {
+    if (response instanceof MeteredResponse) {
+      return ((MeteredResponse) response).getMeteredOutputStream();
+    }
+    return response.getOutputStream();
+  }
+
+  private static void print(@NotNull OutputStream out, @NotNull String s) throws IOException {
+    out.write(s.getBytes(ISO_8859_1));
+  }
+
+  private static void copy(@NotNull InputStream in, @NotNull OutputStream out) throws IOException {
+    try {
+      StreamUtils.copy(in, out);
+      out.flush();
+    } finally {
+      in.close();
+    }
+  }
+
+  /* Dependencies */
+
+  public void setStorageMetrics(@Nullable StorageMetrics storageMetrics) {
+    this.storageMetrics = storageMetrics;
+  }
+
+  /**
+   * Response that measures the content written to it through {@link #getMeteredOutputStream()}.
+   */
+  private final class MeteredResponse extends HttpServletResponseWrapper {
+
+    private final long startedAt;
+
+    private OutputStream meteredOutputStream;
+
+    private long bytes = 0;
+
+    private boolean firstByteSent = false;
+
+    MeteredResponse(@NotNull HttpServletResponse response, long startedAt) {
+      super(response);
+      this.startedAt = startedAt;
+    }
+
+    /**
+     * Obtains a stream that writes to the response's output stream and counts the bytes written.
+     */
+    @NotNull
+    OutputStream getMeteredOutputStream() throws IOException {
+      if (meteredOutputStream == null) {
+        meteredOutputStream = new FilterOutputStream(getOutputStream()) {
+
+          @Override
+          public void write(int b) throws IOException {
+            out.write(b);
+            sent(1);
+          }
+
+          @Override
+          public void write(@NotNull byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            sent(len);
+          }
+        };
+      }
+      return meteredOutputStream;
+    }
+
+    /**
+     * Counts content handed to the container to be sent using {@code sendfile}.
+     */
+    void handedOff(long count) {
+      sent(count);
+    }
+
+    private void sent(long count) {
+      if (!firstByteSent && count > 0) {
+        firstByteSent = true;
+        storageMetrics.record(StorageMetrics.DOWNLOAD_TIME_TO_FIRST_BYTE, System.nanoTime() - startedAt);
+      }
+      bytes += count;
+    }
+
+    void record() {
+      storageMetrics.record(StorageMetrics.DOWNLOAD, System.nanoTime() - startedAt);
+      storageMetrics.increment(StorageMetrics.DOWNLOAD_BYTES_OUT, bytes);
+    }
   }
 }
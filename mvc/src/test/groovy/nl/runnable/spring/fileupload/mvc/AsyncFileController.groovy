@@ -0,0 +1,37 @@
+package nl.runnable.spring.fileupload.mvc
+
+import nl.runnable.spring.fileupload.AsyncMultipartFileStorage
+import nl.runnable.spring.fileupload.MultipartFileStorage
+import nl.runnable.spring.fileupload.StoredMultipartFile
+import org.springframework.beans.factory.annotation.Autowired
+import org.springframework.http.HttpStatus
+import org.springframework.stereotype.Controller
+import org.springframework.util.concurrent.ListenableFuture
+import org.springframework.web.bind.annotation.*
+import org.springframework.web.multipart.MultipartFile
+
+/**
+ * Example controller for testing asynchronous request processing with {@link AsyncMultipartFileStorage}.
+ *
+ * @author Laurens Fridael
+ */
+@Controller
+@RequestMapping("/async")
+class AsyncFileController {
+
+  @Autowired
+  AsyncMultipartFileStorage storage
+
+  @RequestMapping(method = RequestMethod.POST)
+  @ResponseBody
+  @ResponseStatus(HttpStatus.CREATED)
+  ListenableFuture<String> post(@RequestParam MultipartFile file) {
+    return storage.save(file, MultipartFileStorage.TTL_30_MINUTES, null, null)
+  }
+
+  @RequestMapping(method = RequestMethod.GET, value = "/{id}")
+  ListenableFuture<StoredMultipartFile> get(@PathVariable String id) {
+    return storage.find(id)
+  }
+
+}
@@ -0,0 +1,81 @@
+package nl.runnable.spring.fileupload.mvc
+
+import nl.runnable.spring.fileupload.MultipartFileStorage
+import org.springframework.beans.factory.annotation.Autowired
+import org.springframework.mock.web.MockMultipartFile
+import org.springframework.test.context.ContextConfiguration
+import org.springframework.test.context.web.WebAppConfiguration
+import org.springframework.test.web.servlet.MockMvc
+import org.springframework.test.web.servlet.setup.MockMvcBuilders
+import org.springframework.web.context.WebApplicationContext
+import spock.lang.Specification
+
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.*
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*
+
+/**
+ * @author Laurens Fridael
+ */
+@WebAppConfiguration
+@ContextConfiguration(classes = TestConfig)
+class AsyncFileHandlingSpec extends Specification {
+
+  @Autowired
+  WebApplicationContext context
+
+  @Autowired
+  MultipartFileStorage storage
+
+  MockMvc mvc
+
+  def setup() {
+    mvc = MockMvcBuilders.webAppContextSetup(context).build()
+  }
+
+  def 'Files are saved asynchronously and the request thread is released meanwhile'() {
+    given:
+    def file = new MockMultipartFile('file', 'async.txt', 'text/plain', 'async'.bytes)
+
+    when:
+    def result = mvc.perform(fileUpload('/async').file(file))
+        .andExpect(request().asyncStarted())
+        .andReturn()
+    def id = result.asyncResult as String
+    then:
+    mvc.perform(asyncDispatch(result)).andExpect(status().is(201))
+    storage.find(id).bytes == 'async'.bytes
+
+    cleanup:
+    storage.delete(id)
+  }
+
+  def 'Files found asynchronously are streamed by the return value handler'() {
+    given:
+    def id = storage.save(new MockMultipartFile('file', 'async.txt', 'text/plain', 'async'.bytes),
+        MultipartFileStorage.TTL_30_MINUTES, null, null)
+
+    when:
+    def result = mvc.perform(get("/async/$id"))
+        .andExpect(request().asyncStarted())
+        .andReturn()
+    result.asyncResult
+    then:
+    mvc.perform(asyncDispatch(result))
+        .andExpect(status().is(200))
+        .andExpect(header().string('Content-Type', 'text/plain'))
+        .andExpect(content().bytes('async'.bytes))
+
+    cleanup:
+    storage.delete(id)
+  }
+
+  def 'Files not found asynchronously produce 404 Not Found'() {
+    when:
+    def result = mvc.perform(get('/async/missing'))
+        .andExpect(request().asyncStarted())
+        .andReturn()
+    result.asyncResult
+    then:
+    mvc.perform(asyncDispatch(result)).andExpect(status().is(404))
+  }
+}
@@ -0,0 +1,124 @@
+package nl.runnable.spring.fileupload.mvc
+
+import nl.runnable.spring.fileupload.EncodedMultipartFile
+import nl.runnable.spring.fileupload.HashedMultipartFile
+import org.springframework.mock.web.MockHttpServletRequest
+import org.springframework.mock.web.MockHttpServletResponse
+import org.springframework.web.context.request.ServletWebRequest
+import org.springframework.web.method.support.ModelAndViewContainer
+import spock.lang.Specification
+import spock.lang.Unroll
+
+import java.util.zip.GZIPOutputStream
+
+/**
+ * @author Laurens Fridael
+ */
+class CompressedContentSpec extends Specification {
+
+  def handler = new StoredMultipartFileReturnValueHandler()
+
+  byte[] content = ('line of text\n' * 100).bytes
+
+  byte[] compressed
+
+  HashedEncodedMultipartFile file = Mock(HashedEncodedMultipartFile)
+
+  def request = new MockHttpServletRequest('GET', '/file')
+
+  def response = new MockHttpServletResponse()
+
+  def setup() {
+    def buffer = new ByteArrayOutputStream()
+    def out = new GZIPOutputStream(buffer)
+    out.write(content)
+    out.close()
+    compressed = buffer.toByteArray()
+
+    file.contentEncoding >> 'gzip'
+    file.size >> content.length
+    file.encodedSize >> compressed.length
+    file.contentType >> 'text/plain'
+    file.contentHash >> 'abc'
+    file.createdAt >> new Date()
+    file.encodedInputStream >> { new ByteArrayInputStream(compressed) }
+    file.inputStream >> { new ByteArrayInputStream(content) }
+    file.getInputStream(_, _) >> { long position, long length ->
+      new ByteArrayInputStream(content, (int) position, (int) length)
+    }
+  }
+
+  @Unroll
+  def 'Compressed content is sent as-is to clients accepting #acceptEncoding'() {
+    given:
+    request.addHeader('Accept-Encoding', acceptEncoding)
+
+    when:
+    handle()
+    then:
+    response.status == 200
+    response.getHeader('Content-Encoding') == 'gzip'
+    response.getHeader('Vary') == 'Accept-Encoding'
+    response.getHeader('ETag') == '"abc-gzip"'
+    response.contentLength == compressed.length
+    response.contentAsByteArray == compressed
+    0 * file.inputStream
+
+    where:
+    acceptEncoding << ['gzip, deflate', 'deflate;q=1, x-gzip;q=0.5', '*']
+  }
+
+  @Unroll
+  def 'Compressed content is decompressed for clients accepting #acceptEncoding'() {
+    given:
+    if (acceptEncoding) {
+      request.addHeader('Accept-Encoding', acceptEncoding)
+    }
+
+    when:
+    handle()
+    then:
+    response.status == 200
+    response.getHeader('Content-Encoding') == null
+    response.getHeader('Vary') == 'Accept-Encoding'
+    response.getHeader('ETag') == '"abc"'
+    response.contentLength == content.length
+    response.contentAsByteArray == content
+    0 * file.encodedInputStream
+
+    where:
+    acceptEncoding << [null, 'identity', 'gzip;q=0', 'deflate, *;q=0']
+  }
+
+  def 'Ranges of compressed content are sent decompressed'() {
+    given:
+    request.addHeader('Accept-Encoding', 'gzip')
+    request.addHeader('Range', 'bytes=13-25')
+
+    when:
+    handle()
+    then:
+    response.status == 206
+    response.getHeader('Content-Encoding') == null
+    response.contentAsByteArray == Arrays.copyOfRange(content, 13, 26)
+  }
+
+  def 'The gzip representation is revalidated using its own entity tag'() {
+    given:
+    request.addHeader('Accept-Encoding', 'gzip')
+    request.addHeader('If-None-Match', '"abc-gzip"')
+
+    when:
+    handle()
+    then:
+    response.status == 304
+    0 * file.encodedInputStream
+  }
+
+  void handle() {
+    handler.handleReturnValue(file, null, new ModelAndViewContainer(), new ServletWebRequest(request, response))
+  }
+
+  static interface HashedEncodedMultipartFile extends EncodedMultipartFile, HashedMultipartFile {
+  }
+}
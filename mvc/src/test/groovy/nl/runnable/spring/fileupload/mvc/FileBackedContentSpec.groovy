@@ -0,0 +1,87 @@
+package nl.runnable.spring.fileupload.mvc
+
+import nl.runnable.spring.fileupload.FileBackedMultipartFile
+import org.springframework.mock.web.MockHttpServletRequest
+import org.springframework.mock.web.MockHttpServletResponse
+import org.springframework.web.context.request.ServletWebRequest
+import org.springframework.web.method.support.ModelAndViewContainer
+import spock.lang.Specification
+
+/**
+ * @author Laurens Fridael
+ */
+class FileBackedContentSpec extends Specification {
+
+  def handler = new StoredMultipartFileReturnValueHandler()
+
+  File content
+
+  FileBackedMultipartFile file = Mock(FileBackedMultipartFile)
+
+  def request = new MockHttpServletRequest('GET', '/file')
+
+  def response = new MockHttpServletResponse()
+
+  def setup() {
+    content = File.createTempFile('content', '.bin')
+    content.bytes = (1..100) as byte[]
+    file.file >> content
+    file.size >> 100
+    file.contentType >> 'application/octet-stream'
+    file.createdAt >> new Date()
+  }
+
+  def cleanup() {
+    content.delete()
+  }
+
+  def 'File-backed content is transferred from the file'() {
+    when:
+    handle()
+    then:
+    response.status == 200
+    response.contentAsByteArray == (1..100) as byte[]
+    0 * file.inputStream
+  }
+
+  def 'Files without a content hash are sent without an entity tag'() {
+    when:
+    handle()
+    then:
+    response.status == 200
+    response.getHeader('ETag') == null
+    response.getHeader('Last-Modified')
+  }
+
+  def 'File-backed ranges are transferred from the file'() {
+    given:
+    request.addHeader('Range', 'bytes=10-19')
+
+    when:
+    handle()
+    then:
+    response.status == 206
+    response.contentAsByteArray == (11..20) as byte[]
+    0 * file.getInputStream(*_)
+  }
+
+  def 'File-backed content is handed to the container if it supports sendfile'() {
+    given:
+    request.setAttribute('org.apache.tomcat.sendfile.support', Boolean.TRUE)
+    request.addHeader('Range', 'bytes=10-19')
+
+    when:
+    handle()
+    then:
+    response.contentAsByteArray.length == 0
+    response.contentLength == 10
+    request.getAttribute('org.apache.tomcat.sendfile.filename') == content.absolutePath
+    request.getAttribute('org.apache.tomcat.sendfile.start') == 10L
+    request.getAttribute('org.apache.tomcat.sendfile.end') == 20L
+  }
+
+  void handle() {
+    handler.handleReturnValue(file, null, new ModelAndViewContainer(),
+        new ServletWebRequest(request, response))
+  }
+}
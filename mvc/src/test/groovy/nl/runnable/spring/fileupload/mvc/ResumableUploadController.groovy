@@ -0,0 +1,21 @@
+package nl.runnable.spring.fileupload.mvc
+
+import org.springframework.stereotype.Controller
+import org.springframework.web.bind.annotation.RequestMapping
+
+import javax.servlet.http.HttpServletRequest
+
+/**
+ * Example controller for testing resumable uploads.
+ *
+ * @author Laurens Fridael
+ */
+@Controller
+@RequestMapping("/uploads")
+class ResumableUploadController extends AbstractResumableUploadController {
+
+  @Override
+  protected String getFileLocation(HttpServletRequest request, String fileId) {
+    return "/session/${fileId}"
+  }
+}
@@ -0,0 +1,108 @@
+package nl.runnable.spring.fileupload.mvc
+
+import nl.runnable.spring.fileupload.MultipartFileStorage
+import org.springframework.beans.factory.annotation.Autowired
+import org.springframework.mock.web.MockHttpSession
+import org.springframework.test.context.ContextConfiguration
+import org.springframework.test.context.web.WebAppConfiguration
+import org.springframework.test.web.servlet.MockMvc
+import org.springframework.test.web.servlet.setup.MockMvcBuilders
+import org.springframework.transaction.annotation.Transactional
+import org.springframework.web.context.WebApplicationContext
+import spock.lang.Specification
+
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.*
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*
+
+/**
+ * @author Laurens Fridael
+ */
+@WebAppConfiguration
+@ContextConfiguration(classes = TestConfig)
+@Transactional
+class ResumableUploadHandlingSpec extends Specification {
+
+  @Autowired
+  WebApplicationContext context
+
+  @Autowired
+  MultipartFileStorage storage
+
+  MockMvc mvc
+
+  MockHttpSession session = new MockHttpSession()
+
+  String location
+
+  def setup() {
+    mvc = MockMvcBuilders.webAppContextSetup(context).build()
+    location = mvc.perform(post('/uploads').session(session).header('Upload-Length', 10)
+        .param('filename', 'test.pdf').param('contentType', 'application/pdf'))
+        .andExpect(status().is(201))
+        .andExpect(header().string('Upload-Offset', '0'))
+        .andReturn().response.getHeader('Location')
+  }
+
+  def "An upload sent in parts is finalized as a file in the session"() {
+    when:
+    mvc.perform(patch(location).session(session).header('Upload-Offset', 0).content([1, 2, 3, 4] as byte[]))
+        .andExpect(status().is(204))
+        .andExpect(header().string('Upload-Offset', '4'))
+    mvc.perform(patch(location).session(session).header('Upload-Offset', 4).content([5, 6, 7, 8, 9, 10] as byte[]))
+        .andExpect(status().is(204))
+        .andExpect(header().string('Upload-Offset', '10'))
+    def response = mvc.perform(post(location).session(session))
+        .andExpect(status().is(201))
+        .andReturn().response
+    def fileId = response.getHeader('Upload-File-Id')
+    then:
+    response.getHeader('Location') == "/session/${fileId}"
+    mvc.perform(get("/session/${fileId}").session(session))
+        .andExpect(status().is(200))
+        .andExpect(content().contentType('application/pdf'))
+        .andExpect(content().bytes((1..10) as byte[]))
+    storage.find(fileId).originalFilename == 'test.pdf'
+    mvc.perform(head(location).session(session)).andExpect(status().is(404))
+  }
+
+  def "HEAD <location> reports the offset from which to resume"() {
+    given:
+    mvc.perform(patch(location).session(session).header('Upload-Offset', 0).content([1, 2, 3] as byte[]))
+
+    expect:
+    mvc.perform(head(location).session(session))
+        .andExpect(status().is(200))
+        .andExpect(header().string('Upload-Offset', '3'))
+        .andExpect(header().string('Upload-Length', '10'))
+  }
+
+  def "PATCH <location> at a mismatching offset produces 409 Conflict"() {
+    expect:
+    mvc.perform(patch(location).session(session).header('Upload-Offset', 2).content([1, 2] as byte[]))
+        .andExpect(status().is(409))
+        .andExpect(header().string('Upload-Offset', '0'))
+  }
+
+  def "PATCH <location> beyond the declared length produces 413 Payload Too Large"() {
+    expect:
+    mvc.perform(patch(location).session(session).header('Upload-Offset', 0).content(new byte[11]))
+        .andExpect(status().is(413))
+  }
+
+  def "POST <location> for an incomplete upload produces 409 Conflict"() {
+    expect:
+    mvc.perform(post(location).session(session)).andExpect(status().is(409))
+  }
+
+  def "Uploads are not accessible from another session"() {
+    expect:
+    mvc.perform(head(location).session(new MockHttpSession())).andExpect(status().is(404))
+  }
+
+  def "DELETE <location> aborts the upload"() {
+    when:
+    mvc.perform(delete(location).session(session)).andExpect(status().is(204))
+    then:
+    mvc.perform(head(location).session(session)).andExpect(status().is(404))
+  }
+}
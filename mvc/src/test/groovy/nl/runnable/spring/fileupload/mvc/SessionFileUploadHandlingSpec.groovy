@@ -62,6 +62,112 @@ class SessionFileUploadHandlingSpec extends Specification {
     // .andExpect(content().contentTypeCompatibleWith("application/pdf"))
   }
 
+  def "GET <location> with a single byte range produces 206 Partial Content and obtains the requested bytes"() {
+    when:
+    def actions = mvc.perform(get(location).session(session).header('Range', 'bytes=1-2'))
+    then:
+    actions.andExpect(status().is(206))
+        .andExpect(header().string('Content-Range', 'bytes 1-2/4'))
+        .andExpect(content().bytes([2, 3] as byte[]))
+  }
+
+  def "GET <location> with multiple byte ranges produces a multipart/byteranges response"() {
+    when:
+    def response = mvc.perform(get(location).session(session).header('Range', 'bytes=0-0,-1'))
+        .andExpect(status().is(206))
+        .andReturn().response
+    then:
+    response.contentType.startsWith('multipart/byteranges')
+    response.contentAsString.contains('Content-Range: bytes 0-0/4')
+    response.contentAsString.contains('Content-Range: bytes 3-3/4')
+  }
+
+  def "GET <location> with overlapping or adjacent byte ranges produces a single merged range"() {
+    when:
+    def actions = mvc.perform(get(location).session(session).header('Range', 'bytes=2-2,0-1,1-2'))
+    then:
+    actions.andExpect(status().is(206))
+        .andExpect(header().string('Content-Range', 'bytes 0-2/4'))
+        .andExpect(content().bytes([1, 2, 3] as byte[]))
+  }
+
+  def "GET <location> with more than 16 byte ranges produces 200 OK and obtains the full content"() {
+    when:
+    def actions = mvc.perform(get(location).session(session).header('Range', 'bytes=' + (['0-0'] * 17).join(',')))
+    then:
+    actions.andExpect(status().is(200))
+        .andExpect(content().bytes([1, 2, 3, 4] as byte[]))
+  }
+
+  def "GET <location> with an unsatisfiable byte range produces 416 Requested Range Not Satisfiable"() {
+    when:
+    def actions = mvc.perform(get(location).session(session).header('Range', 'bytes=10-20'))
+    then:
+    actions.andExpect(status().is(416))
+        .andExpect(header().string('Content-Range', 'bytes */4'))
+  }
+
+  def "GET <location> with a stale If-Range produces 200 OK and obtains the full content"() {
+    when:
+    def actions = mvc.perform(get(location).session(session)
+        .header('Range', 'bytes=1-2')
+        .header('If-Range', 'Thu, 01 Jan 1970 00:00:00 GMT'))
+    then:
+    actions.andExpect(status().is(200))
+        .andExpect(content().bytes([1, 2, 3, 4] as byte[]))
+  }
+
+  def "GET <location> with an If-Range date later than Last-Modified produces 200 OK"() {
+    when:
+    def actions = mvc.perform(get(location).session(session)
+        .header('Range', 'bytes=1-2')
+        .header('If-Range', 'Fri, 01 Jan 2100 00:00:00 GMT'))
+    then:
+    actions.andExpect(status().is(200))
+        .andExpect(content().bytes([1, 2, 3, 4] as byte[]))
+  }
+
+  def "GET <location> with an If-Range date equal to Last-Modified produces 206 Partial Content"() {
+    given:
+    def lastModified = mvc.perform(get(location).session(session)).andReturn().response.getHeader('Last-Modified')
+
+    when:
+    def actions = mvc.perform(get(location).session(session).header('Range', 'bytes=1-2').header('If-Range', lastModified))
+    then:
+    actions.andExpect(status().is(206))
+        .andExpect(content().bytes([2, 3] as byte[]))
+  }
+
+  def "GET <location> produces ETag and Last-Modified headers"() {
+    when:
+    def response = mvc.perform(get(location).session(session)).andReturn().response
+    then:
+    response.getHeader('ETag') ==~ /"[0-9a-f]{64}"/
+    response.getHeader('Last-Modified')
+  }
+
+  def "GET <location> with a matching If-None-Match produces 304 Not Modified without content"() {
+    given:
+    def etag = mvc.perform(get(location).session(session)).andReturn().response.getHeader('ETag')
+
+    when:
+    def actions = mvc.perform(get(location).session(session).header('If-None-Match', etag))
+    then:
+    actions.andExpect(status().is(304))
+        .andExpect(content().bytes(new byte[0]))
+  }
+
+  def "GET <location> with a matching If-Range entity tag produces 206 Partial Content"() {
+    given:
+    def etag = mvc.perform(get(location).session(session)).andReturn().response.getHeader('ETag')
+
+    when:
+    def actions = mvc.perform(get(location).session(session).header('Range', 'bytes=2-').header('If-Range', etag))
+    then:
+    actions.andExpect(status().is(206))
+        .andExpect(content().bytes([3, 4] as byte[]))
+  }
+
   def "GET /session produces 200 OK and obtains the names of the files in session storage"() {
     when:
     def actions = mvc.perform(get('/session').session(session))
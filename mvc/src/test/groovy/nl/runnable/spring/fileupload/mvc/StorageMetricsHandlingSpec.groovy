@@ -0,0 +1,130 @@
+package nl.runnable.spring.fileupload.mvc
+
+import nl.runnable.spring.fileupload.FileBackedMultipartFile
+import nl.runnable.spring.fileupload.StorageMetrics
+import nl.runnable.spring.fileupload.impl.InMemoryStorageMetrics
+import org.springframework.beans.factory.annotation.Autowired
+import org.springframework.mock.web.MockHttpServletRequest
+import org.springframework.mock.web.MockHttpServletResponse
+import org.springframework.mock.web.MockHttpSession
+import org.springframework.mock.web.MockMultipartFile
+import org.springframework.test.context.ContextConfiguration
+import org.springframework.test.context.web.WebAppConfiguration
+import org.springframework.test.web.servlet.MockMvc
+import org.springframework.test.web.servlet.setup.MockMvcBuilders
+import org.springframework.transaction.annotation.Transactional
+import org.springframework.web.context.WebApplicationContext
+import org.springframework.web.context.request.ServletWebRequest
+import org.springframework.web.method.support.ModelAndViewContainer
+import spock.lang.Specification
+
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.*
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*
+
+/**
+ * @author Laurens Fridael
+ */
+@WebAppConfiguration
+@ContextConfiguration(classes = TestConfig)
+@Transactional
+class StorageMetricsHandlingSpec extends Specification {
+
+  @Autowired
+  WebApplicationContext context
+
+  @Autowired
+  InMemoryStorageMetrics metrics
+
+  MockMvc mvc
+
+  MockHttpSession session
+
+  String location
+
+  def setup() {
+    mvc = MockMvcBuilders.webAppContextSetup(context).build()
+    def file = new MockMultipartFile('file', 'test.pdf', 'application/pdf', (1..100) as byte[])
+    def result = mvc.perform(fileUpload('/session').file(file)).andReturn()
+    session = result.request.session as MockHttpSession
+    location = result.response.getHeader('Location')
+  }
+
+  def 'Downloads are recorded'() {
+    given:
+    metrics.reset()
+
+    when:
+    mvc.perform(get(location).session(session)).andExpect(status().is(200))
+    mvc.perform(get(location).session(session).header('Range', 'bytes=0-9')).andExpect(status().is(206))
+    then:
+    metrics.getHistogram(StorageMetrics.DOWNLOAD).count == 2
+    metrics.getHistogram(StorageMetrics.DOWNLOAD_TIME_TO_FIRST_BYTE).count == 2
+    metrics.getHistogram(StorageMetrics.DOWNLOAD_TIME_TO_FIRST_BYTE).max <=
+        metrics.getHistogram(StorageMetrics.DOWNLOAD).max
+    metrics.getCounter(StorageMetrics.DOWNLOAD_BYTES_OUT) == 110
+  }
+
+  def 'Every byte of a multi-range response is counted'() {
+    given:
+    metrics.reset()
+
+    when:
+    def response = mvc.perform(get(location).session(session).header('Range', 'bytes=0-9,50-59'))
+        .andExpect(status().is(206)).andReturn().response
+    then:
+    response.contentAsByteArray.length > 20
+    metrics.getCounter(StorageMetrics.DOWNLOAD_BYTES_OUT) == response.contentAsByteArray.length
+  }
+
+  def 'Responses without content are not recorded as downloads'() {
+    given:
+    def etag = mvc.perform(get(location).session(session)).andReturn().response.getHeader('ETag')
+    metrics.reset()
+
+    when:
+    mvc.perform(get(location).session(session).header('If-None-Match', etag)).andExpect(status().is(304))
+    mvc.perform(get(location).session(session).header('Range', 'bytes=500-')).andExpect(status().is(416))
+    then:
+    metrics.getHistogram(StorageMetrics.DOWNLOAD) == null
+    metrics.getCounter(StorageMetrics.DOWNLOAD_BYTES_OUT) == 0
+  }
+
+  def 'Time-to-live extensions of session-bound files are counted'() {
+    given:
+    metrics.reset()
+
+    when:
+    mvc.perform(fileUpload('/session').file(new MockMultipartFile('file', 'other.pdf', 'application/pdf',
+        [1] as byte[])).session(session))
+    mvc.perform(get('/session').session(session))
+    mvc.perform(get(location).session(session))
+    then:
+    metrics.getCounter(StorageMetrics.SESSION_TIME_TO_LIVE_REFRESHES) == 1
+    metrics.getCounter(StorageMetrics.SESSION_TIME_TO_LIVE_TOUCHES) == 2
+  }
+
+  def 'Content handed to the container is counted'() {
+    given:
+    def handler = new StoredMultipartFileReturnValueHandler()
+    handler.storageMetrics = metrics
+    metrics.reset()
+    def content = File.createTempFile('content', '.bin')
+    content.bytes = new byte[100]
+    def file = Mock(FileBackedMultipartFile)
+    file.file >> content
+    file.size >> 100
+    file.createdAt >> new Date()
+    def request = new MockHttpServletRequest('GET', '/file')
+    request.setAttribute('org.apache.tomcat.sendfile.support', Boolean.TRUE)
+
+    when:
+    handler.handleReturnValue(file, null, new ModelAndViewContainer(),
+        new ServletWebRequest(request, new MockHttpServletResponse()))
+    then:
+    metrics.getCounter(StorageMetrics.DOWNLOAD_BYTES_OUT) == 100
+    metrics.getHistogram(StorageMetrics.DOWNLOAD_TIME_TO_FIRST_BYTE).count == 1
+
+    cleanup:
+    content?.delete()
+  }
+}
@@ -1,6 +1,9 @@
 package nl.runnable.spring.fileupload.mvc
 
+import nl.runnable.spring.fileupload.config.AsyncFileUploadConfig
 import nl.runnable.spring.fileupload.config.DefaultFileUploadConfig
+import nl.runnable.spring.fileupload.config.StorageMetricsConfig
+import nl.runnable.spring.fileupload.config.TimeToLiveTouchQueueConfig
 import org.springframework.beans.factory.annotation.Qualifier
 import org.springframework.beans.factory.config.PropertyPlaceholderConfigurer
 import org.springframework.context.annotation.Bean
@@ -18,7 +21,8 @@ import javax.sql.DataSource
  */
 @Configuration
 @EnableWebMvc
-@Import([DefaultFileUploadConfig, DefaultFileUploadMvcConfig])
+@Import([DefaultFileUploadConfig, AsyncFileUploadConfig, StorageMetricsConfig, TimeToLiveTouchQueueConfig,
+    DefaultFileUploadMvcConfig])
 class TestConfig {
 
   @Bean